@@ -163,16 +163,38 @@ public class SolrDocumentIndexer implements DocumentIndexer {
                             " offending annotation label: '" + e.mLabel + "'");
       }
         
+      /*
+       *  Let's enforce lowercasing of annotation labels,
+       *  we do the same in a query plugin. 
+       */
+      annotLabel = annotLabel.toLowerCase();
       createPayloadStr(annotString,
           e,
           e.mStartChar,
           e.mStartChar + e.mCharLen,
-          /*
-           *  Let's enforce lowercasing of annotation labels,
-           *  we do the same in a query plugin. 
-           */
-          annotLabel.toLowerCase()
+          annotLabel
       );                
+      /*
+       * An annotation with a non-empty value is also indexed using
+       * a type-only term, e.g., ne_#any, which lets us find annotations
+       * of this type using a single posting list. The type-only term 
+       * should immediately follow the regular one: the schema filter
+       * AnyTypeTokenFilter places it at the same position, so that
+       * it does not change length norms of the annotation field.
+       */
+      String annotType = UtilConst.getAnnotationType(annotLabel);
+      if (annotType != null) {
+        String anyLabel = UtilConst.combineFieldValueAny(annotType);
+        
+        if (!anyLabel.equals(annotLabel)) {
+          createPayloadStr(annotString,
+              e,
+              e.mStartChar,
+              e.mStartChar + e.mCharLen,
+              anyLabel
+          );
+        }
+      }
     }
     
     addField(oneDoc, mAnnotFieldName, annotString.toString()); 
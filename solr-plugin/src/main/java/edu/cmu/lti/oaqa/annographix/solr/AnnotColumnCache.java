@@ -0,0 +1,310 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+
+import edu.cmu.lti.oaqa.annographix.solr.StructQueryParseVer3.FieldType;
+
+/**
+ * A thread-safe cache of decoded annotation postings for a few 
+ * frequently used (hot) annotation labels, e.g., sentences or paragraphs.
+ * 
+ * <p>For each segment, a posting of the hot label is read and decoded 
+ * only once: annotation offsets and ids of all documents are stored 
+ * in compact primitive arrays (columns), see {@link AnnotColumns}. 
+ * Cached postings are then iterated using {@link CachedAnnotPostings}
+ * without reading and decoding payloads.</p>
+ * 
+ * <p>The cache is keyed by the segment core key, the field name, and 
+ * the label. Because the segment core is shared among readers with
+ * different sets of deleted documents, cached columns include deleted
+ * documents, which are filtered out during iteration. The total size of
+ * cached columns is bounded: least recently used entries are evicted first.
+ * Entries of a segment are removed when the segment core is closed.</p>
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+public class AnnotColumnCache {
+  /**
+   * Constructor.
+   * 
+   * @param hotLabels   annotation labels whose postings are cached.
+   * @param maxBytes    the maximum total size of cached columns (in bytes).
+   */
+  public AnnotColumnCache(Collection<String> hotLabels, long maxBytes) {
+    mHotLabels = new HashSet<String>(hotLabels);
+    mMaxBytes = maxBytes;
+  }
+  
+  /**
+   * @param label   an annotation label.
+   * @return true if postings of the label should be cached.
+   */
+  public boolean isHotLabel(String label) {
+    return mHotLabels.contains(label);
+  }
+  
+  /**
+   * Retrieves a cached posting or creates a cache entry, if the posting
+   * is not cached yet.
+   * 
+   * @param reader      a segment reader.
+   * @param term        an annotation term.
+   * @param termsEnum   a terms enumerator that is already positioned at the term.
+   * @param payloadVer  a version of the payload format.
+   * @param acceptDocs  documents that can be returned.
+   * @return a cached posting, or null if the posting is too large to be cached.
+   * @throws IOException
+   */
+  public DocsEnum getPostings(AtomicReader  reader, 
+                              Term          term,
+                              TermsEnum     termsEnum,
+                              int           payloadVer,
+                              Bits          acceptDocs) 
+                              throws IOException {
+    Key           key = new Key(reader.getCoreCacheKey(), term);
+    AnnotColumns  cols;
+    
+    synchronized (mCache) {
+      if (mTooLarge.contains(key)) return null;
+      cols = mCache.get(key);
+    }
+    if (cols != null) {
+      mHitQty.incrementAndGet();
+      return new CachedAnnotPostings(cols, acceptDocs);
+    }
+    mMissQty.incrementAndGet();
+    
+    addCloseListener(reader);
+    /*
+     *  Decoding is done outside of the synchronized block. 
+     *  If two threads decode the same posting concurrently, 
+     *  the second one simply replaces the entry. 
+     */
+    cols = decode(termsEnum.docsAndPositions(null, null, 
+                                           DocsAndPositionsEnum.FLAG_PAYLOADS |
+                                           DocsAndPositionsEnum.FLAG_FREQS),
+                  term.text(), payloadVer);
+    synchronized (mCache) {
+      if (cols == null) {
+        mTooLarge.add(key);
+        return null;
+      }
+      AnnotColumns prev = mCache.put(key, cols);
+      if (prev != null) mBytes -= prev.getByteSize();
+      mBytes += cols.getByteSize();
+      // Evict least recently used entries
+      Iterator<Map.Entry<Key, AnnotColumns>> it = mCache.entrySet().iterator();
+      while (mBytes > mMaxBytes && it.hasNext()) {
+        Map.Entry<Key, AnnotColumns> e = it.next();
+        if (e.getValue() == cols) continue;
+        mBytes -= e.getValue().getByteSize();
+        it.remove();
+      }
+    }
+    return new CachedAnnotPostings(cols, acceptDocs);
+  }
+  
+  /**
+   * @return cache statistics: the maximum and the current size (in bytes),
+   *         the number of entries, the number of hits and misses, 
+   *         as well as the hit ratio.
+   */
+  public NamedList<Object> getStatistics() {
+    NamedList<Object> res = new SimpleOrderedMap<Object>();
+    long hitQty = mHitQty.get(), missQty = mMissQty.get();
+    long bytes;
+    int  size;
+    
+    synchronized (mCache) {
+      size = mCache.size();
+      bytes = mBytes;
+    }
+    
+    res.add("annotCacheHotLabels", mHotLabels.toString());
+    res.add("annotCacheMaxBytes", mMaxBytes);
+    res.add("annotCacheBytes", bytes);
+    res.add("annotCacheSize", size);
+    res.add("annotCacheHits", hitQty);
+    res.add("annotCacheMisses", missQty);
+    res.add("annotCacheHitRatio", 
+            hitQty + missQty > 0 ? (float)hitQty / (hitQty + missQty) : 0.0f);
+    return res;
+  }
+  
+  /**
+   * Reads and decodes a complete posting. 
+   * 
+   * @param posting     a posting that includes deleted documents.
+   * @param label       an annotation label.
+   * @param payloadVer  a version of the payload format.
+   * @return decoded columns, or null, if the columns would exceed the cache size.
+   * @throws IOException
+   */
+  private AnnotColumns decode(DocsAndPositionsEnum posting, 
+                              String label, 
+                              int payloadVer) throws IOException {
+    OnePostStateAnnot post = new OnePostStateAnnot(label, FieldType.FIELD_ANNOTATION,
+                                                   posting, 0, 0, 0, payloadVer);
+    int     docQty = 0, elemQty = 0;
+    int[]   docIds = new int[16], docStart = new int[17];
+    int[]   startOffsets = new int[64], endOffsets = new int[64];
+    int[]   ids = new int[64], parentIds = new int[64];
+    
+    while (post.nextDoc() != OnePostStateBase.NO_MORE_DOCS) {
+      post.readDocElements();
+      int qty = post.getQty();
+      
+      if (AnnotColumns.getByteSize(docQty + 1, elemQty + qty) > mMaxBytes) 
+        return null;
+      
+      docIds = ArrayUtil.grow(docIds, docQty + 1);
+      docStart = ArrayUtil.grow(docStart, docQty + 2);
+      startOffsets = ArrayUtil.grow(startOffsets, elemQty + qty);
+      endOffsets = ArrayUtil.grow(endOffsets, elemQty + qty);
+      ids = ArrayUtil.grow(ids, elemQty + qty);
+      parentIds = ArrayUtil.grow(parentIds, elemQty + qty);
+      
+      docIds[docQty] = post.getDocID();
+      for (int i = 0; i < qty; ++i, ++elemQty) {
+        startOffsets[elemQty] = post.getStartOffset(i);
+        endOffsets[elemQty]   = post.getEndOffset(i);
+        ids[elemQty]          = post.getId(i);
+        parentIds[elemQty]    = post.getParentId(i);
+      }
+      docStart[++docQty] = elemQty;
+    }
+    
+    return new AnnotColumns(Arrays.copyOf(docIds, docQty), 
+                            Arrays.copyOf(docStart, docQty + 1),
+                            Arrays.copyOf(startOffsets, elemQty),
+                            Arrays.copyOf(endOffsets, elemQty),
+                            Arrays.copyOf(ids, elemQty),
+                            Arrays.copyOf(parentIds, elemQty));
+  }
+  
+  /**
+   * Makes sure that cache entries are removed when the segment is closed.
+   * 
+   * @param reader  a segment reader.
+   */
+  private void addCloseListener(AtomicReader reader) {
+    Object coreKey = reader.getCoreCacheKey();
+    
+    synchronized (mCache) {
+      if (!mListenedCores.add(coreKey)) return;
+    }
+    if (reader instanceof SegmentReader) {
+      ((SegmentReader) reader).addCoreClosedListener(
+          new SegmentReader.CoreClosedListener() {
+            @Override
+            public void onClose(Object ownerCoreCacheKey) {
+              purge(ownerCoreCacheKey);
+            }
+          });
+    } else {
+      reader.addReaderClosedListener(
+          new IndexReader.ReaderClosedListener() {
+            @Override
+            public void onClose(IndexReader closedReader) {
+              purge(closedReader.getCoreCacheKey());
+            }
+          });
+    }
+  }
+  
+  /**
+   * Removes all entries of a segment.
+   * 
+   * @param coreKey   a segment core key.
+   */
+  private void purge(Object coreKey) {
+    synchronized (mCache) {
+      Iterator<Map.Entry<Key, AnnotColumns>> it = mCache.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<Key, AnnotColumns> e = it.next();
+        if (e.getKey().mCoreKey == coreKey) {
+          mBytes -= e.getValue().getByteSize();
+          it.remove();
+        }
+      }
+      Iterator<Key> itTooLarge = mTooLarge.iterator();
+      while (itTooLarge.hasNext()) {
+        if (itTooLarge.next().mCoreKey == coreKey) itTooLarge.remove();
+      }
+      mListenedCores.remove(coreKey);
+    }
+  }
+  
+  /**
+   * A cache key: a segment core key, a field name, and an annotation label.
+   */
+  private static final class Key {
+    Key(Object coreKey, Term term) {
+      mCoreKey = coreKey;
+      mTerm = term;
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) return false;
+      Key other = (Key) o;
+      return mCoreKey == other.mCoreKey && mTerm.equals(other.mTerm);
+    }
+    
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(mCoreKey) * 31 + mTerm.hashCode();
+    }
+    
+    final Object mCoreKey;
+    final Term   mTerm;
+  }
+  
+  private final HashSet<String>                 mHotLabels;
+  private final long                            mMaxBytes;
+  private final LinkedHashMap<Key, AnnotColumns> mCache = 
+            new LinkedHashMap<Key, AnnotColumns>(16, 0.75f, true /* access order */);
+  /** Postings that were too large to be cached. */
+  private final HashSet<Key>                    mTooLarge = new HashSet<Key>();
+  /** Segment cores, for which we registered close listeners. */
+  private final HashSet<Object>                 mListenedCores = new HashSet<Object>();
+  /** The total size of cached columns. */
+  private long                                  mBytes = 0;
+  private final AtomicLong                      mHitQty = new AtomicLong();
+  private final AtomicLong                      mMissQty = new AtomicLong();
+}
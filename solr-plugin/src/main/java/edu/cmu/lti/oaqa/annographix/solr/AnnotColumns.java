@@ -0,0 +1,78 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+/**
+ * Decoded annotations of all documents in a segment for one annotation label,
+ * see {@link AnnotColumnCache}. Annotation attributes are kept in parallel 
+ * arrays (columns). Annotations of the k-th document occupy the range
+ * [mDocStart[k], mDocStart[k+1]) in each column. Objects of this class
+ * are shared among threads and <b>must not be modified</b>.
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+class AnnotColumns {
+  /**
+   * Constructor.
+   * 
+   * @param docIds        sorted document ids.
+   * @param docStart      indices of the first annotation of each document
+   *                      (plus one extra element).
+   * @param startOffsets  annotation start offsets.
+   * @param endOffsets    annotation end offsets.
+   * @param ids           annotation ids.
+   * @param parentIds     annotation parent ids.
+   */
+  AnnotColumns(int[] docIds, int[] docStart, 
+               int[] startOffsets, int[] endOffsets,
+               int[] ids, int[] parentIds) {
+    mDocIds = docIds;
+    mDocStart = docStart;
+    mStartOffsets = startOffsets;
+    mEndOffsets = endOffsets;
+    mIds = ids;
+    mParentIds = parentIds;
+  }
+  
+  /**
+   * @return an (approximate) memory size of the columns.
+   */
+  long getByteSize() {
+    return getByteSize(mDocIds.length, mStartOffsets.length);
+  }
+  
+  /**
+   * Computes an (approximate) memory size of the columns.
+   * 
+   * @param docQty    a number of documents.
+   * @param elemQty   a number of annotations.
+   * @return the size in bytes.
+   */
+  static long getByteSize(int docQty, int elemQty) {
+    return 4L * (2L * docQty + 1 + 4L * elemQty) + ARRAY_OVERHEAD * 6;
+  }
+  
+  /** A rough estimate of the array object overhead. */
+  private static final int ARRAY_OVERHEAD = 16;
+  
+  final int[] mDocIds;
+  final int[] mDocStart;
+  final int[] mStartOffsets;
+  final int[] mEndOffsets;
+  final int[] mIds;
+  final int[] mParentIds;
+}
@@ -29,15 +29,38 @@ import org.apache.lucene.util.ArrayUtil;
  *  start offset, end offset, id, parent id.
  *  <p>
  *  See {@link org.apache.lucene.analysis.payloads.PayloadHelper#encodeInt(int, byte[], int)}.
+ *  A more compact encoding is implemented in {@link AnnotEncoderVer4}.
  * 
  * @author Leonid Boytsov
  *    
  **/
-//  TODO: Try to use some light-weight compression?
 public class AnnotEncoderVer3 extends AbstractEncoder 
         implements PayloadEncoder {
   @Override
   public BytesRef encode(char[] buffer, int offset, int length) {
+    ElemInfoData  e = new ElemInfoData();
+    
+    parse(buffer, offset, length, e);
+    
+    BytesRef result = new BytesRef(PayloadHelper.encodeInt(e.mStartOffset));
+    result.append(new BytesRef(PayloadHelper.encodeInt(e.mEndOffset)));
+    result.append(new BytesRef(PayloadHelper.encodeInt(e.mId)));
+    result.append(new BytesRef(PayloadHelper.encodeInt(e.mParentId)));
+    return result;
+  }
+  
+  /**
+   * Parses a textual payload description, which includes 
+   * start offset, end offset, id, parent id (separated 
+   * by {@link UtilConst#PAYLOAD_ID_SEP_CHAR}).
+   * 
+   * @param buffer    a buffer with the payload description.
+   * @param offset    the offset of the description in the buffer.
+   * @param length    the length of the description.
+   * @param res       the parsing result.
+   */
+  static void parse(char[] buffer, int offset, int length, 
+                    ElemInfoData res) {
     int sep1pos = -1, sep2pos = -1, sep3pos = -1, sepQty = 0;
     
     for (int i = 0; i < length; ++i) {
@@ -54,20 +77,13 @@ public class AnnotEncoderVer3 extends AbstractEncoder
       }
     }
     
-    int wordStartPos = ArrayUtil.parseInt(buffer, offset, sep1pos);
-    int wordEndPos   = ArrayUtil.parseInt(buffer, offset + sep1pos+1, 
-                                           sep2pos - sep1pos - 1);
-    int annotId      = ArrayUtil.parseInt(buffer, offset + sep2pos+1, 
-                                           sep3pos - sep2pos - 1);    
-    int parentId     = ArrayUtil.parseInt(buffer, offset + sep3pos+1, 
-                                           length - sep3pos-1);
-    
-    
-    BytesRef result = new BytesRef(PayloadHelper.encodeInt(wordStartPos));
-    result.append(new BytesRef(PayloadHelper.encodeInt(wordEndPos)));
-    result.append(new BytesRef(PayloadHelper.encodeInt(annotId)));
-    result.append(new BytesRef(PayloadHelper.encodeInt(parentId)));
-    return result;
+    res.mStartOffset = ArrayUtil.parseInt(buffer, offset, sep1pos);
+    res.mEndOffset   = ArrayUtil.parseInt(buffer, offset + sep1pos+1, 
+                                          sep2pos - sep1pos - 1);
+    res.mId          = ArrayUtil.parseInt(buffer, offset + sep2pos+1, 
+                                          sep3pos - sep2pos - 1);    
+    res.mParentId    = ArrayUtil.parseInt(buffer, offset + sep3pos+1, 
+                                          length - sep3pos-1);
   }
 
   /**
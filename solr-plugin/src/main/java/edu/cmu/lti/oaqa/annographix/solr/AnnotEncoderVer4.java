@@ -0,0 +1,157 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import org.apache.lucene.analysis.payloads.AbstractEncoder;
+import org.apache.lucene.analysis.payloads.PayloadEncoder;
+import org.apache.lucene.util.BytesRef;
+
+
+/**
+ *  Encode annotation-related information as a {@link BytesRef}
+ *  using a compact (version 4) format.
+ *  <p>
+ *  The textual input is the same as for {@link AnnotEncoderVer3}:
+ *  start offset, end offset, id, parent id. However, instead of
+ *  using four 4-byte integers, we encode:
+ *  </p>
+ *  <ol>
+ *  <li>The start offset;
+ *  <li>The annotation length, i.e., the difference between
+ *      the end and the start offset;
+ *  <li>The annotation id;
+ *  <li>The difference between the parent id and the annotation id.
+ *  </ol>
+ *  <p>
+ *  All values are stored as variable-length integers (7 bits per byte,
+ *  the high bit is set for all bytes except the last one). Because
+ *  ids and parent-id deltas can be negative (e.g., -1 means there is no parent),
+ *  they are additionally zig-zag encoded. A typical annotation
+ *  requires 5-8 bytes instead of 16 bytes.
+ *  </p>
+ *
+ * @author Leonid Boytsov
+ *
+ **/
+public class AnnotEncoderVer4 extends AbstractEncoder
+        implements PayloadEncoder {
+  /** The maximum number of bytes necessary to encode one annotation. */
+  public static final int MAX_ENCODED_LEN = 4 * 5;
+
+  @Override
+  public BytesRef encode(char[] buffer, int offset, int length) {
+    ElemInfoData  e = new ElemInfoData();
+
+    AnnotEncoderVer3.parse(buffer, offset, length, e);
+
+    return encode(e);
+  }
+
+  /**
+   * Encodes annotation data.
+   *
+   * @param e   annotation data.
+   * @return    encoded data.
+   */
+  public static BytesRef encode(ElemInfoData e) {
+    if (e.mStartOffset < 0 || e.mEndOffset < e.mStartOffset) {
+      throw new RuntimeException(String.format(
+          "Invalid annotation offsets: start=%d end=%d",
+          e.mStartOffset, e.mEndOffset));
+    }
+    byte[]  bytes = new byte[MAX_ENCODED_LEN];
+    int     pos = 0;
+
+    pos = writeVInt(bytes, pos, e.mStartOffset);
+    pos = writeVInt(bytes, pos, e.mEndOffset - e.mStartOffset);
+    pos = writeVInt(bytes, pos, zigZagEncode(e.mId));
+    pos = writeVInt(bytes, pos, zigZagEncode(e.mParentId - e.mId));
+
+    return new BytesRef(bytes, 0, pos);
+  }
+
+  /**
+   *  Decodes payload data.
+   *
+   *  @param buffer   A buffer that stores encoded payload data.
+   *  @param res      A reusable result variable, which is used
+   *                  to prevent unnecessary memory allocations.
+   */
+  public static void decode(BytesRef buffer,
+                            ElemInfoData res /* reuse this variable */) {
+    byte[] bytes = buffer.bytes;
+    int    pos = buffer.offset;
+
+    /*
+     * Variable-length integers are decoded inline,
+     * to avoid creating intermediate objects.
+     */
+    byte b = bytes[pos++];
+    int  start = b & 0x7F;
+    for (int shift = 7; b < 0; shift += 7) {
+      b = bytes[pos++];
+      start |= (b & 0x7F) << shift;
+    }
+    b = bytes[pos++];
+    int  len = b & 0x7F;
+    for (int shift = 7; b < 0; shift += 7) {
+      b = bytes[pos++];
+      len |= (b & 0x7F) << shift;
+    }
+    b = bytes[pos++];
+    int  id = b & 0x7F;
+    for (int shift = 7; b < 0; shift += 7) {
+      b = bytes[pos++];
+      id |= (b & 0x7F) << shift;
+    }
+    b = bytes[pos++];
+    int  parentDelta = b & 0x7F;
+    for (int shift = 7; b < 0; shift += 7) {
+      b = bytes[pos++];
+      parentDelta |= (b & 0x7F) << shift;
+    }
+
+    res.mStartOffset = start;
+    res.mEndOffset   = start + len;
+    res.mId          = zigZagDecode(id);
+    res.mParentId    = res.mId + zigZagDecode(parentDelta);
+  }
+
+  /**
+   * Writes a variable-length integer (the value is treated as unsigned).
+   *
+   * @param bytes   a target buffer.
+   * @param pos     a start position.
+   * @param val     a value to write.
+   * @return        a position after the last written byte.
+   */
+  private static int writeVInt(byte[] bytes, int pos, int val) {
+    while ((val & ~0x7F) != 0) {
+      bytes[pos++] = (byte)((val & 0x7F) | 0x80);
+      val >>>= 7;
+    }
+    bytes[pos++] = (byte) val;
+    return pos;
+  }
+
+  private static int zigZagEncode(int val) {
+    return (val << 1) ^ (val >> 31);
+  }
+
+  private static int zigZagDecode(int val) {
+    return (val >>> 1) ^ -(val & 1);
+  }
+}
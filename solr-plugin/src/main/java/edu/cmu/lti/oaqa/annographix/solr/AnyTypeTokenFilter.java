@@ -0,0 +1,99 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+
+/**
+ * A filter of the annotation field that places each type-only term, 
+ * e.g., NamedEntity_#any (see {@link UtilConst#combineFieldValueAny(String)}), 
+ * at the position of the preceding term: the indexer emits the type-only 
+ * term right after the regular term of the same annotation.
+ * 
+ * <p>Because type-only terms have the position increment zero, they
+ * are discounted as overlaps, when the length of the field is computed
+ * (both {@link org.apache.lucene.search.similarities.DefaultSimilarity}
+ * and {@link org.apache.lucene.search.similarities.BM25Similarity}
+ * discount overlaps by default). Hence, length norms are the same as 
+ * in an index without type-only terms. Note, however, that type-only
+ * terms are still counted in the total number of field terms, i.e.,
+ * the average field length used by BM25 is larger.</p>
+ * 
+ * <p>Annotations are retrieved using payloads, not positions: 
+ * positions of the annotation field are not used by queries.</p>
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+public final class AnyTypeTokenFilter extends TokenFilter {
+  /**
+   * Constructor.
+   * 
+   * @param input   a stream of annotation terms (after the payload filter).
+   */
+  public AnyTypeTokenFilter(TokenStream input) {
+    super(input);
+  }
+
+  @Override
+  public boolean incrementToken() throws IOException {
+    if (!input.incrementToken()) return false;
+    
+    if (mHasPrevToken && isAnyTypeTerm()) {
+      mPosIncAttr.setPositionIncrement(0);
+    }
+    mHasPrevToken = true;
+    return true;
+  }
+  
+  @Override
+  public void reset() throws IOException {
+    super.reset();
+    mHasPrevToken = false;
+  }
+  
+  /**
+   * @return true if the current term ends with _#any.
+   */
+  private boolean isAnyTypeTerm() {
+    int     len = mTermAttr.length();
+    int     suffLen = ANY_SUFFIX.length();
+    
+    if (len <= suffLen) return false;
+    
+    char    buf[] = mTermAttr.buffer();
+    
+    for (int i = 0; i < suffLen; ++i) {
+      if (buf[len - suffLen + i] != ANY_SUFFIX.charAt(i)) return false;
+    }
+    return true;
+  }
+  
+  private static final String ANY_SUFFIX = UtilConst.VALUE_SEPARATOR + 
+                                           UtilConst.STRING_ANY;
+  
+  private final CharTermAttribute           mTermAttr = 
+                                        addAttribute(CharTermAttribute.class);
+  private final PositionIncrementAttribute  mPosIncAttr = 
+                                        addAttribute(PositionIncrementAttribute.class);
+  /** True if a term was already returned by the stream. */
+  private boolean                           mHasPrevToken = false;
+}
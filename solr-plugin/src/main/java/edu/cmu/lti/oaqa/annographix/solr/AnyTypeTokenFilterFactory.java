@@ -0,0 +1,50 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import java.util.Map;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.util.TokenFilterFactory;
+
+/**
+ * A factory of {@link AnyTypeTokenFilter}, which is specified in the
+ * schema after the payload filter of the annotation field:
+ * <pre>
+ * &lt;filter class="edu.cmu.lti.oaqa.annographix.solr.AnyTypeTokenFilterFactory"/&gt;
+ * </pre>
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+public class AnyTypeTokenFilterFactory extends TokenFilterFactory {
+  /**
+   * Constructor.
+   * 
+   * @param args  filter arguments (the filter has none).
+   */
+  public AnyTypeTokenFilterFactory(Map<String, String> args) {
+    super(args);
+    if (!args.isEmpty()) {
+      throw new IllegalArgumentException("Unknown parameters: " + args);
+    }
+  }
+
+  @Override
+  public TokenStream create(TokenStream input) {
+    return new AnyTypeTokenFilter(input);
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.util.Bits;
+
+import edu.cmu.lti.oaqa.annographix.solr.StructQueryParseVer3.FieldType;
+
+/**
+ * A posting over cached decoded annotations, see {@link AnnotColumnCache}.
+ * Only document-level iteration is supported, annotations of the current
+ * document are retrieved directly from columns by {@link OnePostStateCached}.
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+class CachedAnnotPostings extends DocsEnum implements ElemSource {
+  /**
+   * Constructor.
+   * 
+   * @param cols        cached columns.
+   * @param acceptDocs  documents that can be returned (null means all documents).
+   */
+  CachedAnnotPostings(AnnotColumns cols, Bits acceptDocs) {
+    mCols = cols;
+    mAcceptDocs = acceptDocs;
+    mDocQty = cols.mDocIds.length;
+  }
+
+  @Override
+  public int docID() {
+    return mDocId;
+  }
+
+  @Override
+  public int nextDoc() throws IOException {
+    return skipNonAccepted(mPos + 1);
+  }
+
+  @Override
+  public int advance(int target) throws IOException {
+    int[] docIds = mCols.mDocIds;
+    int   lo = mPos + 1, hi = mDocQty;
+    
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (docIds[mid] < target) lo = mid + 1;
+      else hi = mid;
+    }
+    return skipNonAccepted(lo);
+  }
+  
+  /**
+   * Finds the first accepted document whose index is at least pos.
+   */
+  private int skipNonAccepted(int pos) {
+    while (pos < mDocQty && 
+           mAcceptDocs != null && !mAcceptDocs.get(mCols.mDocIds[pos])) {
+      ++pos;
+    }
+    mPos = pos;
+    return mDocId = pos < mDocQty ? mCols.mDocIds[pos] : NO_MORE_DOCS;
+  }
+
+  @Override
+  public int freq() throws IOException {
+    return mCols.mDocStart[mPos + 1] - mCols.mDocStart[mPos];
+  }
+
+  @Override
+  public long cost() {
+    return mDocQty;
+  }
+  
+  /**
+   * @return an index of the first annotation of the current document in columns.
+   */
+  int getElemStart() {
+    return mCols.mDocStart[mPos];
+  }
+  
+  /**
+   * @return cached columns.
+   */
+  AnnotColumns getColumns() {
+    return mCols;
+  }
+
+  @Override
+  public OnePostStateBase createPost(String token, FieldType type,
+                                     int connectQty,
+                                     long minCompPostCost,
+                                     int componentId) {
+    return new OnePostStateCached(token, type, this, 
+                                  connectQty, minCompPostCost, componentId);
+  }
+  
+  private final AnnotColumns  mCols;
+  private final Bits          mAcceptDocs;
+  private final int           mDocQty;
+  private int                 mPos = -1;
+  private int                 mDocId = -1;
+}
@@ -0,0 +1,55 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import edu.cmu.lti.oaqa.annographix.solr.StructQueryParseVer3.ConstraintType;
+
+/**
+ * A simple helper class encapsulating a constraint check 
+ * for two nodes, one of which is constraining and and
+ * another one is being dependent, i.e., constraint.
+ *
+ */
+class ConstraintInfo {
+  OnePostStateBase                        mConstrainingNode;
+  OnePostStateBase                        mDependentNode;
+  StructQueryParseVer3.ConstraintType     mConstrType;
+  /**
+   * @param mConstrainingNode   a constraining node.
+   * @param mDependentNode      a dependent, i.e., constrained node.
+   * @param constrType          a constraint type
+   */
+  public ConstraintInfo(OnePostStateBase constrainingNode,
+                        OnePostStateBase dependentNode, 
+                        ConstraintType constrType) {
+    mConstrainingNode = constrainingNode;
+    mDependentNode    = dependentNode;
+    mConstrType       = constrType;
+  }
+  
+  /**
+   *  @return true, if and only if the constraint is satisfied.
+   */
+  public boolean check() {
+    if (mConstrType == ConstraintType.CONSTRAINT_PARENT){
+      return mConstrainingNode.getCurrId() == mDependentNode.getCurrParentId();
+    } else {
+      // mConstrType[k] == ConstraintType.CONSTRAINT_CONTAINS
+      return (mDependentNode.getCurrStartOffset() >= mConstrainingNode.getCurrStartOffset() &&
+              mDependentNode.getCurrEndOffset()   <= mConstrainingNode.getCurrEndOffset());
+    }    
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import java.util.ArrayDeque;
+
+/**
+ * Parallel arrays that keep elements of one posting in the current 
+ * document, see {@link OnePostStateBase}. 
+ * 
+ * <p>Buffers are expensive to allocate and are needed for every posting 
+ * of every segment searched by a query. Hence, a scorer returns 
+ * buffers of its postings to a pool, once it is exhausted, and the next
+ * scorer created by the same thread takes them from the pool 
+ * (see {@link #acquire(int)} and {@link #release(ElemBuffers)}). 
+ * Each thread has its own pool, which has a limited size:
+ * buffers that grew too large, e.g., because of one huge document, 
+ * are not pooled.</p>
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+class ElemBuffers {
+  /** The maximum capacity of a pooled buffer (in the # of elements). */
+  static final int MAX_POOLED_CAPACITY = 16384;
+  /** The maximum total capacity of buffers pooled by one thread. */
+  static final int MAX_POOLED_TOTAL_CAPACITY = 256 * 1024;
+  
+  /** Element start offsets. */
+  int[]     mStartOffsets = new int[0];
+  /** Element end offsets. */
+  int[]     mEndOffsets = new int[0];
+  /** Element ids (annotation only). */
+  int[]     mIds = new int[0];
+  /** Element parent ids (annotation only). */
+  int[]     mParentIds = new int[0];
+  /** Indices of elements in the domain of the node. */
+  int[]     mDomain = new int[0];
+  /** Flags indicating that elements are in the domain of the node. */
+  boolean[] mInDomain = new boolean[0];
+  /** 
+   * Element indices sorted by ids: either empty or has the same 
+   * capacity as other arrays.
+   */
+  long[]    mIdIndex = new long[0];
+  /** Element indices sorted by parent ids (see {@link #mIdIndex}). */
+  long[]    mParentIdIndex = new long[0];
+  /** 
+   * True if id indices were requested (see {@link #allocKeyIndex()}):
+   * they are then (re-)allocated together with other arrays.
+   */
+  boolean   mNeedsKeyIndex = false;
+  
+  /**
+   * @return the number of elements the buffers can accommodate.
+   */
+  int getCapacity() {
+    return mStartOffsets.length;
+  }
+  
+  /**
+   * Re-allocates arrays, previously stored elements are not copied.
+   * 
+   * @param capacity  a new capacity.
+   */
+  void realloc(int capacity) {
+    mStartOffsets = new int[capacity];
+    mEndOffsets   = new int[capacity];
+    mIds          = new int[capacity];
+    mParentIds    = new int[capacity];
+    mDomain       = new int[capacity];
+    mInDomain     = new boolean[capacity];
+    /*
+     * Id indices are used only with parent-child constraints.
+     * Thus, they are allocated only for nodes participating in 
+     * such constraints.
+     */
+    if (mNeedsKeyIndex) {
+      mIdIndex        = new long[capacity];
+      mParentIdIndex  = new long[capacity];
+    }
+  }
+  
+  /**
+   * Allocates id indices, unless they are allocated already. 
+   * If the current capacity is zero, indices are allocated
+   * by the first call to {@link #realloc(int)}.
+   */
+  void allocKeyIndex() {
+    mNeedsKeyIndex = true;
+    if (mIdIndex.length < mStartOffsets.length) {
+      mIdIndex        = new long[mStartOffsets.length];
+      mParentIdIndex  = new long[mStartOffsets.length];
+    }
+  }
+  
+  /**
+   * Takes buffers from the pool of the current thread, or allocates
+   * new ones, if the pool is empty.
+   * 
+   * @param minCapacity   the minimum capacity of buffers.
+   * @return buffers whose capacity is at least minCapacity.
+   */
+  static ElemBuffers acquire(int minCapacity) {
+    Pool        pool = mPool.get();
+    ElemBuffers res = pool.mFree.pollLast();
+    
+    if (res == null) {
+      res = new ElemBuffers();
+    } else {
+      pool.mTotalCapacity -= res.getCapacity();
+    }
+    if (res.getCapacity() < minCapacity) res.realloc(minCapacity);
+    return res;
+  }
+  
+  /**
+   * Returns buffers to the pool of the current thread. The caller 
+   * must not use them afterwards.
+   * 
+   * @param buf   buffers to return.
+   */
+  static void release(ElemBuffers buf) {
+    Pool  pool = mPool.get();
+    int   capacity = buf.getCapacity();
+    
+    if (capacity == 0 || capacity > MAX_POOLED_CAPACITY ||
+        pool.mTotalCapacity + capacity > MAX_POOLED_TOTAL_CAPACITY) {
+      return;
+    }
+    pool.mFree.addLast(buf);
+    pool.mTotalCapacity += capacity;
+  }
+  
+  /**
+   * @return the total capacity of buffers pooled by the current thread.
+   */
+  static int getPooledCapacity() {
+    return mPool.get().mTotalCapacity;
+  }
+  
+  /**
+   * Buffers pooled by one thread.
+   */
+  private static class Pool {
+    final ArrayDeque<ElemBuffers> mFree = new ArrayDeque<ElemBuffers>();
+    int                           mTotalCapacity = 0;
+  }
+  
+  private static final ThreadLocal<Pool> mPool = new ThreadLocal<Pool>() {
+    @Override
+    protected Pool initialValue() {
+      return new Pool();
+    }
+  };
+}
@@ -17,7 +17,10 @@
 package edu.cmu.lti.oaqa.annographix.solr;
 
 /**
- * This is an auxiliary class to keep annotation/token data.
+ * This is an auxiliary class to keep annotation/token data, e.g., 
+ * it is used to store decoded payloads. Note that posting states
+ * ({@link OnePostStateBase}) keep elements in parallel primitive arrays
+ * rather than in objects of this class.
  * 
  *  @author Leonid Boytsov
  */
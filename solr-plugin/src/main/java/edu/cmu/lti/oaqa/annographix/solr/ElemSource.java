@@ -0,0 +1,52 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import edu.cmu.lti.oaqa.annographix.solr.StructQueryParseVer3.FieldType;
+
+/**
+ * A posting whose elements are not read from positions and payloads
+ * of a Lucene posting: they are cached (see {@link CachedAnnotPostings}), 
+ * decoded once for queries of a batch (see {@link SharedPostings}), or 
+ * merged from postings of alternatives (see {@link UnionPostings}).
+ * Such postings are iterated only at the document level (as a 
+ * {@link org.apache.lucene.index.DocsEnum}, the frequency is the number
+ * of elements in the current document), and each of them creates its own 
+ * helper object to read elements of the current document, see 
+ * {@link OnePostStateBase#createPost(org.apache.lucene.index.DocsEnum, String, FieldType, int, long, int, int, int)}.
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+interface ElemSource {
+  /**
+   * Creates an object to read elements of this posting.
+   * 
+   * @param token       textual representation.
+   * @param type        posting type: annotation or regular token.
+   * @param connectQty  a number of postings connected with a given node/posting 
+   *                    via a query graph.
+   * @param minCompPostCost a minimum cost among postings associated with the subset
+   *                    of nodes connected to this posting.
+   * @param componentId a unique ID associated with the subset of nodes that
+   *                    are connected to this one.
+   * @return            a newly created object.
+   */
+  OnePostStateBase createPost(String token, FieldType type,
+                              int connectQty,
+                              long minCompPostCost,
+                              int componentId);
+}
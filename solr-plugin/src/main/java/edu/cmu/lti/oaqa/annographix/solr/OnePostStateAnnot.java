@@ -22,6 +22,7 @@ package edu.cmu.lti.oaqa.annographix.solr;
 import java.io.IOException;
 
 import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.util.BytesRef;
 
 import edu.cmu.lti.oaqa.annographix.solr.StructQueryParseVer3.FieldType;
 
@@ -47,25 +48,46 @@ class OnePostStateAnnot extends OnePostStateBase {
    *                    of nodes connected to this posting.
    * @param componentId a unique ID associated with the subset of nodes that
    *                    are connected to this one.
+   * @param payloadVer  a version of the payload format.
    */
   public OnePostStateAnnot(String token, FieldType type,
                            DocsAndPositionsEnum posting, 
                            int connectQty,
                            long minCompPostCost,
-                           int componentId) {
+                           int componentId,
+                           int payloadVer) {
     super(token, type, posting, connectQty, minCompPostCost, componentId);
+    mPosPosting = posting;
+    if (payloadVer != UtilConst.PAYLOAD_VERSION_3 &&
+        payloadVer != UtilConst.PAYLOAD_VERSION_4) {
+      throw new RuntimeException("Unsupported payload version: " + payloadVer);
+    }
+    mPayloadVer = payloadVer;
   }
 
   /**
-   * Read next element {@link edu.cmu.lti.oaqa.annographix.solr.OnePostStateBase#readDocElements()}.
+   * Read next element {@link edu.cmu.lti.oaqa.annographix.solr.OnePostStateBase#readNextElement(int)}.
    */
   @Override
-  protected void readDocElements() throws IOException {
-    readDocElementsBase();
-    for (int i = 0; i < mQty; ++i) {
-      mPosting.nextPosition();   
-      AnnotEncoderVer3.decode(mPosting.getPayload(), mSortedElemInfo[i]);
-    }
+  protected void readNextElement(int indx) throws IOException {
+    mPosPosting.nextPosition();   
+    BytesRef payload = mPosPosting.getPayload();
+    if (mPayloadVer == UtilConst.PAYLOAD_VERSION_4)
+      AnnotEncoderVer4.decode(payload, mDecodeBuf);
+    else
+      AnnotEncoderVer3.decode(payload, mDecodeBuf);
+    mDecodedBytes += payload.length;
+    mStartOffsets[indx] = mDecodeBuf.mStartOffset;
+    mEndOffsets[indx]   = mDecodeBuf.mEndOffset;
+    mIds[indx]          = mDecodeBuf.mId;
+    mParentIds[indx]    = mDecodeBuf.mParentId;
   }
+  
+  /** The posting with positions and payloads. */
+  private final DocsAndPositionsEnum  mPosPosting;
+  /** A reusable buffer to store decoded payload data. */
+  private ElemInfoData  mDecodeBuf = new ElemInfoData();
+  /** A version of the payload format. */
+  private final int     mPayloadVer;
 
 }
@@ -22,9 +22,9 @@ package edu.cmu.lti.oaqa.annographix.solr;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
 
 import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.DocsEnum;
 
 import edu.cmu.lti.oaqa.annographix.solr.StructQueryParseVer3.ConstraintType;
 import edu.cmu.lti.oaqa.annographix.solr.StructQueryParseVer3.FieldType;
@@ -41,14 +41,29 @@ import edu.cmu.lti.oaqa.annographix.solr.StructQueryParseVer3.FieldType;
  */
 public abstract class OnePostStateBase {
   public static int NO_MORE_DOCS = org.apache.lucene.search.DocIdSetIterator.NO_MORE_DOCS;
-  /** The initial size of the array containing matching entries inside a single document. */
+  /** 
+   * The initial size of arrays containing matching entries inside a single 
+   * document, if the average number of entries is not known. 
+   */
   protected static int INIT_SIZE_ELEM_INFO = 512; 
+  /** The minimum initial size of arrays containing matching entries. */
+  protected static int MIN_SIZE_ELEM_INFO = 16;
+  /** 
+   * The number of documents after which we check whether arrays containing 
+   * matching entries are much larger than needed, see {@link #trimElemInfo()}.
+   */
+  protected static int TRIM_WINDOW_ELEM_INFO = 1024;
   
   /**
    * 
    * Creates a wrapper of the right type.
    * 
-   * @param posting     posting to wrap.
+   * @param posting     posting to wrap: either a Lucene posting with
+   *                    positions (and payloads), or a posting whose elements
+   *                    are read elsewhere, see {@link ElemSource}, e.g., 
+   *                    a cached posting (see {@link AnnotColumnCache}), 
+   *                    a shared posting (see {@link SharedPostings}), or 
+   *                    a union of postings (see {@link UnionPostings}).
    * @param token       textual representation.
    * @param type        posting type: annotation or regular token.
    * @param connectQty  number of postings connected with a given node/posting 
@@ -57,24 +72,64 @@ public abstract class OnePostStateBase {
    *                    of nodes connected to this posting.
    * @param componentId a unique ID associated with the subset of nodes associated 
    *                    with the subset of nodes connected to this posting.
+   * @param payloadVer  a version of the annotation payload format, e.g.,
+   *                    {@link UtilConst#PAYLOAD_VERSION_3}.
+   * @param initElemQty the initial size of arrays containing entries of 
+   *                    a single document (see {@link #getInitElemQty(long, long)}):
+   *                    if it is positive, arrays are taken from the pool of
+   *                    the current thread and should be returned using
+   *                    {@link #releaseElemInfo()}; otherwise, arrays are 
+   *                    allocated when the first document is read.
    * 
    * @return            reference to the newly created object
    */
-  public static OnePostStateBase createPost(DocsAndPositionsEnum posting, 
+  public static OnePostStateBase createPost(DocsEnum  posting, 
                                             String    token,
                                             FieldType type,
                                             int connectQty,
                                             long minCompPostCost,
-                                            int componentId) {
-    return type == FieldType.FIELD_ANNOTATION ? 
-                      new OnePostStateAnnot(token, type, posting, 
-                                            connectQty, minCompPostCost, componentId):
-                      new OnePostStateText(token, type, posting, 
+                                            int componentId,
+                                            int payloadVer,
+                                            int initElemQty) {
+    OnePostStateBase res;
+    
+    if (posting instanceof ElemSource) {
+      res = ((ElemSource) posting).createPost(token, type, connectQty, 
+                                              minCompPostCost, componentId);
+    } else {
+      DocsAndPositionsEnum  posPosting = (DocsAndPositionsEnum) posting;
+      
+      res = type == FieldType.FIELD_ANNOTATION ? 
+                      new OnePostStateAnnot(token, type, posPosting, 
+                                            connectQty, minCompPostCost, componentId,
+                                            payloadVer):
+                      new OnePostStateText(token, type, posPosting, 
                                             connectQty, minCompPostCost, componentId);
+    }
+    if (initElemQty > 0) res.acquireElemInfo(initElemQty);
+    return res;
+  }
+  
+  /**
+   * Computes the initial size of arrays containing entries of a single
+   * document using the average number of entries per document, 
+   * which is obtained from segment statistics of the term.
+   * 
+   * @param docFreq         the number of segment documents containing the term.
+   * @param totalTermFreq   the total number of term occurrences in the 
+   *                        segment, or -1, if it is not known.
+   * @return the initial size.
+   */
+  public static int getInitElemQty(long docFreq, long totalTermFreq) {
+    if (docFreq <= 0 || totalTermFreq <= 0) return INIT_SIZE_ELEM_INFO;
+    
+    long avgQty = (totalTermFreq + docFreq - 1) / docFreq;
+    return (int)Math.max(MIN_SIZE_ELEM_INFO, 
+                         Math.min(2 * avgQty, INIT_SIZE_ELEM_INFO));
   }
   
   public OnePostStateBase(String token, FieldType type,
-                          DocsAndPositionsEnum posting, 
+                          DocsEnum posting, 
                           int connectQty,
                           long minCompPostCost,
                           int componentId) {
@@ -84,7 +139,6 @@ public abstract class OnePostStateBase {
     mConnectQty = connectQty;
     mMinCompPostCost = minCompPostCost;
     mComponentId = componentId;
-    extendElemInfo(INIT_SIZE_ELEM_INFO);
   }
   
   /**
@@ -93,20 +147,76 @@ public abstract class OnePostStateBase {
   public int getDocID() { return mDocId; }
   
   /**
-   * @param i  an index of an element to return.
-   * @return an i-th element
+   * Returns the start offset of the i-th element, if necessary, the element 
+   * (as well as all the preceding ones) is read from the posting list.
+   * 
+   * @param i  an index of an element.
+   * @return the start offset of the i-th element.
+   * @throws IOException
    */
-  public ElemInfoData getElement(int i) { return mSortedElemInfo[i]; }
-  
+  public int getStartOffset(int i) throws IOException { 
+    if (i >= mReadQty) readElemsUpTo(i + 1);
+    return mStartOffsets[i]; 
+  }
+
   /**
-   * @return all elements
+   * @param i  an index of an element, see {@link #getStartOffset(int)}.
+   * @return the end offset of the i-th element.
+   * @throws IOException
+   */
+  public int getEndOffset(int i) throws IOException { 
+    if (i >= mReadQty) readElemsUpTo(i + 1);
+    return mEndOffsets[i]; 
+  }
+
+  /**
+   * @param i  an index of an element, see {@link #getStartOffset(int)}.
+   * @return the id of the i-th element.
+   * @throws IOException
+   */
+  public int getId(int i) throws IOException { 
+    if (i >= mReadQty) readElemsUpTo(i + 1);
+    return mIds[i]; 
+  }
+
+  /**
+   * @param i  an index of an element, see {@link #getStartOffset(int)}.
+   * @return the parent id of the i-th element.
+   * @throws IOException
+   */
+  public int getParentId(int i) throws IOException { 
+    if (i >= mReadQty) readElemsUpTo(i + 1);
+    return mParentIds[i]; 
+  }
+  
+  /*
+   * Unlike functions getStartOffset(int), getEndOffset(int), etc..., 
+   * the following functions never read data from the posting list: 
+   * the current element index should point to an element that was already read.
+   * This is always true, if the index is obtained via
+   * findElemLargerOffset(int, int, int) or if the element was previously 
+   * accessed using, e.g., getStartOffset(int).
    */
-  public ElemInfoData[] getAllElements() { return mSortedElemInfo; }
   
   /**
-   * @return a current element
+   * @return the start offset of the current element.
+   */
+  public int getCurrStartOffset() { return mStartOffsets[mCurrElemIndx]; }
+
+  /**
+   * @return the end offset of the current element.
    */
-  public ElemInfoData getCurrElement() { return mSortedElemInfo[mCurrElemIndx]; }
+  public int getCurrEndOffset() { return mEndOffsets[mCurrElemIndx]; }
+
+  /**
+   * @return the id of the current element.
+   */
+  public int getCurrId() { return mIds[mCurrElemIndx]; }
+
+  /**
+   * @return the parent id of the current element.
+   */
+  public int getCurrParentId() { return mParentIds[mCurrElemIndx]; }
   
   /**
    * Changes the internal index pointing to the current element, 
@@ -134,14 +244,11 @@ public abstract class OnePostStateBase {
    * by one in each iteration. 
    * </p> 
    *
-   * @param     sortedElemInfo    an array of elements sorted in the order of
-   *                              non-decreasing offsets.
+   * @param     sortedStartOffsets  an array of element start offsets sorted 
+   *                              in the non-decreasing order.
    * @param     sortedElemQty     an array may contain a large number of pre-allocated
    *                              elements, however, we need to use only this
    *                              number of elements.               
-   * @param     reusableOffComp   a reusable comparator object.                                     
-   * @param     reusableKey       a reusable key (we reuse the key to avoid an
-   *                              extra memory allocation).
    * @param     linSearchIterQty  a maximum number of forward iterations to carry out,
    *                              before starting a full-blown exponential search. 
    * @param     offsetToExceed    find elements with offset greater than this value.
@@ -157,10 +264,8 @@ public abstract class OnePostStateBase {
    */
 
   static public int findElemLargerOffset(
-                            ElemInfoData[]  sortedElemInfo,
+                            int[]           sortedStartOffsets,
                             int             sortedElemQty,
-                            StartOffsetElemInfoDataComparator reusableOffComp,                                  
-                            ElemInfoData    reusableKey,
                             int linSearchIterQty,
                             int offsetToExceed, 
                             int minIndx) {
@@ -169,29 +274,29 @@ public abstract class OnePostStateBase {
     for (int i = 0; 
         i < linSearchIterQty && minIndx < sortedElemQty; 
         ++i, ++minIndx) {
-      if (sortedElemInfo[minIndx].mStartOffset > offsetToExceed) return minIndx;
+      if (sortedStartOffsets[minIndx] > offsetToExceed) return minIndx;
     }   
     
     if (minIndx >= sortedElemQty) return sortedElemQty;
-    if (sortedElemInfo[minIndx].mStartOffset > offsetToExceed) return minIndx;
+    if (sortedStartOffsets[minIndx] > offsetToExceed) return minIndx;
     int d = 1;
     int indx1 = minIndx, indx2 = -1;
     /*
      *  Loop invariant:
      *      minIndx < indx1 < sortedElemQty && 
-     *      sortedElemInfo[indx1] <= offsetToExceed
+     *      sortedStartOffsets[indx1] <= offsetToExceed
      */
     while (true) {
       indx2 = indx1 + d;
       if (indx2 < sortedElemQty) {
-        if (sortedElemInfo[indx2].mStartOffset > offsetToExceed) {
+        if (sortedStartOffsets[indx2] > offsetToExceed) {
           break;
         } else {
           indx1 = indx2;
         }
       } else {
         // sortedElemQty - 1 >= indx1 >= minIndx
-        if (sortedElemInfo[sortedElemQty - 1].mStartOffset <= offsetToExceed) {
+        if (sortedStartOffsets[sortedElemQty - 1] <= offsetToExceed) {
           return sortedElemQty;
         }
         /*
@@ -210,24 +315,22 @@ public abstract class OnePostStateBase {
     }
     /*
      * After exiting the loop it is guaranteed that:
-     * 1) sortedElemInfo[indx2].mStartOffset > offsetToExceed
+     * 1) sortedStartOffsets[indx2] > offsetToExceed
      * Due to loop invariant:
-     * 2) sortedElemInfo[indx1].mStartOffset <= offsetToExceed
+     * 2) sortedStartOffsets[indx1] <= offsetToExceed
      * 3) minIndx < indx1 < sortedElemQty 
      */
     
-    reusableKey.mStartOffset = offsetToExceed;
     // Search from indx1 inclusive to indx2 exclusive
-    int res = Arrays.binarySearch(sortedElemInfo, 
-                              indx1, indx2,
-                              reusableKey, 
-                              reusableOffComp);
+    int res = Arrays.binarySearch(sortedStartOffsets, 
+                                  indx1, indx2,
+                                  offsetToExceed);
     if (res >= 0) {
       /*
        *  Find the first element larger than res
        */
       while (res < indx2 && 
-             sortedElemInfo[res].mStartOffset == offsetToExceed)  {
+             sortedStartOffsets[res] == offsetToExceed)  {
         ++res;
       }
     } else {
@@ -244,7 +347,16 @@ public abstract class OnePostStateBase {
   
   /**
    * Find an element with an offset larger than the specified one,
-   * see {@link #findElemLargerOffset(ElemInfoData[], int, StartOffsetElemInfoDataComparator, ElemInfoData, int, int, int)}.
+   * see {@link #findElemLargerOffset(int[], int, int, int, int)}.
+   * 
+   * <p>
+   * Elements are read from the posting list lazily: we read only as many
+   * elements as necessary to find the answer. Namely, we stop reading 
+   * as soon as we read an element whose offset is larger than offsetToExceed. 
+   * Because elements are sorted by their offsets, the search among
+   * elements already read returns exactly the same result as the search 
+   * among all the document elements.
+   * </p>
    *
    * @param     linSearchIterQty  a maximum number of forward iterations to carry out,
    *                              before starting a full-blown exponential search. 
@@ -254,20 +366,40 @@ public abstract class OnePostStateBase {
    * @return                a minimum index of the element whose offset is
    *                        larger than the specified parameter, or the
    *                        number of elements, if no such element exists.
+   * @throws IOException
    */
   public int findElemLargerOffset(int linSearchIterQty,
                                   int offsetToExceed, 
-                                  int minIndx) {
-    return findElemLargerOffset(mSortedElemInfo, mQty, 
-                                mOffsetComp, mSearchKey,
+                                  int minIndx) throws IOException {
+    if (mQty == 0) return 0;
+    /*
+     *  If minIndx is beyond the last element that we read, the answer
+     *  can only be found among the elements that are not read yet. 
+     */
+    readElemsUpTo(Math.min(mQty, Math.max(minIndx, 0) + 1));
+    while (mReadQty < mQty &&
+           mStartOffsets[mReadQty - 1] <= offsetToExceed) {
+      readElemsUpTo(mReadQty + 1);
+    }
+    return findElemLargerOffset(mStartOffsets, mReadQty, 
                                 linSearchIterQty, offsetToExceed, minIndx);
   }
   
+  /**
+   * @return a query token (an empty string for the covering annotation).
+   */
+  public String getToken() { return mToken; }
+  
   /**
    * @return a number of elements in a current document.
    */
   public int getQty() { return mQty; }
   
+  /**
+   * @return a number of payload bytes decoded so far (in all documents).
+   */
+  public long getDecodedBytes() { return mDecodedBytes; }
+  
   /**
    * @return a cost associated with the posting.
    */
@@ -302,6 +434,7 @@ public abstract class OnePostStateBase {
    */
   public int advance(int docId) throws IOException {
     mQty = 0;
+    mReadQty = 0;
     if (mDocId != NO_MORE_DOCS)
       mDocId = mPosting.advance(docId);
 
@@ -316,6 +449,7 @@ public abstract class OnePostStateBase {
    */
   public int nextDoc() throws IOException {
     mQty = 0;
+    mReadQty = 0;
     if (mDocId != NO_MORE_DOCS)
       mDocId = mPosting.nextDoc();
 
@@ -344,10 +478,12 @@ public abstract class OnePostStateBase {
     }
     mConstrType = new StructQueryParseVer3.ConstraintType[constrType.size()];
     mConstrNode = new OnePostStateBase[constrNode.size()];
+    mOwnConstr  = new ConstraintInfo[constrNode.size()];
     
     for (int i = 0; i < constrType.size(); ++i) {
       mConstrType[i] = constrType.get(i);
       mConstrNode[i] = constrNode.get(i);
+      mOwnConstr[i]  = new ConstraintInfo(this, mConstrNode[i], mConstrType[i]);
     }    
   }
   /**
@@ -385,15 +521,30 @@ public abstract class OnePostStateBase {
    * @param allSortedPost sorted postings.
    */
   public void buildConstraintIndex(OnePostStateBase allSortedPost[]) {
-    ArrayList<ConstraintInfo>   constrList = new ArrayList<ConstraintInfo>();
+    /*
+     * The index is rebuilt whenever postings are reordered inside 
+     * a document (see TermSpanIterator#reorderByDocQty()). Hence,
+     * arrays are allocated only once: they are large enough to keep 
+     * all the constraints involving this node. Constraint objects
+     * are created only once as well (see setConstraints()).
+     */
+    if (mConstraintIndex == null) {
+      int maxQty = mConstrNode.length;
+      for (OnePostStateBase main : allSortedPost) {
+        for (OnePostStateBase dep : main.mConstrNode) {
+          if (dep == this) ++maxQty;
+        }
+      }
+      mConstraintIndex = new ConstraintInfo[maxQty];
+      mContainConstr = new ConstraintInfo[maxQty];
+    }
+    mConstraintQty = 0;
     
     // First let's memorize this node constraints with smaller-sort-index nodes 
     for (int i = 0; i < mConstrNode.length; ++i) {
-      OnePostStateBase dep = mConstrNode[i];
-      if (dep.getSortIndex() < mSortIndx) {
-        constrList.add(new ConstraintInfo(this, // the current node is constraining
-                                          dep,
-                                          mConstrType[i]));
+      if (mConstrNode[i].getSortIndex() < mSortIndx) {
+        // the current node is constraining
+        mConstraintIndex[mConstraintQty++] = mOwnConstr[i];
       }      
     }
     // Second let's retrieve constraints that smaller-sort-index nodes form with the current one
@@ -403,17 +554,179 @@ public abstract class OnePostStateBase {
       for (int i = 0; i < main.mConstrNode.length; ++i) {
         OnePostStateBase dep = main.mConstrNode[i];
         if (dep.getSortIndex() == mSortIndx) { // the current node is a dependent node
-          constrList.add(new ConstraintInfo(main,
-                                            this,
-                                            main.mConstrType[i]));
+          mConstraintIndex[mConstraintQty++] = main.mOwnConstr[i];
         }
       }
     }
     
-    mConstraintIndex = new ConstraintInfo[constrList.size()];
-    constrList.toArray(mConstraintIndex);
+    /*
+     *  A parent-child constraint with a smaller-sort-index node
+     *  is used to probe the id (or the parent id) index instead
+     *  of iterating over all the elements of the current posting.
+     */
+    mParentProbe = null;
+    for (int i = 0; i < mConstraintQty; ++i) {
+      if (mConstraintIndex[i].mConstrType == ConstraintType.CONSTRAINT_PARENT) {
+        mParentProbe = mConstraintIndex[i];
+        break;
+      }
+    }
+    /*
+     *  Containment constraints with smaller-sort-index nodes are used
+     *  to narrow the range of elements (sorted by start offsets), 
+     *  which need to be checked.
+     */
+    mContainConstrQty = 0;
+    for (int i = 0; i < mConstraintQty; ++i) {
+      if (mConstraintIndex[i].mConstrType == ConstraintType.CONSTRAINT_CONTAINS) {
+        mContainConstr[mContainConstrQty++] = mConstraintIndex[i];
+      }
+    }
+    
+    if (mParentProbe != null && !mElemInfo.mNeedsKeyIndex) {
+      mElemInfo.allocKeyIndex();
+      loadElemInfo();
+    }
+  }
+  
+  /**
+   * @return a parent-child constraint that connects this node with 
+   *         a node having a smaller sort index, or null, if there is 
+   *         no such constraint. See {@link #buildConstraintIndex(OnePostStateBase[])}.
+   */
+  public ConstraintInfo getParentProbe() {
+    return mParentProbe;
+  }
+  
+  /**
+   * @return containment constraints that connect this node with 
+   *         nodes having smaller sort indices: only the first
+   *         {@link #getContainConstraintQty()} entries are valid. 
+   *         See {@link #buildConstraintIndex(OnePostStateBase[])}.
+   */
+  public ConstraintInfo[] getContainConstraints() {
+    return mContainConstr;
   }
   
+  /**
+   * @return the number of containment constraints, see {@link #getContainConstraints()}.
+   */
+  public int getContainConstraintQty() {
+    return mContainConstrQty;
+  }
+  
+  /**
+   * Returns an index of document elements sorted either by element ids or 
+   * by parent ids. Each entry of the index packs a key (in the upper 32 bits)
+   * and an element index (in the lower 32 bits). The index is created
+   * the first time it is requested for the current document: to this end,
+   * all the document elements are read.
+   * 
+   * @param byParentId  if true, the elements are sorted by parent ids,
+   *                    otherwise they are sorted by ids.
+   * @return an array, whose first {@link #getQty()} entries represent
+   *         the index.
+   * @throws IOException
+   */
+  public long[] getKeyIndex(boolean byParentId) throws IOException {
+    if (byParentId) {
+      if (!mParentIdIndexReady) {
+        buildKeyIndex(mParentIds, mParentIdIndex);
+        mParentIdIndexReady = true;
+      }
+      return mParentIdIndex;
+    }
+    if (!mIdIndexReady) {
+      buildKeyIndex(mIds, mIdIndex);
+      mIdIndexReady = true;
+    }
+    return mIdIndex;
+  }
+  
+  /**
+   * Finds the first entry of the key index (see {@link #getKeyIndex(boolean)})
+   * whose key is &gt;= than a given one.
+   * 
+   * @param keyIndex    a key index.
+   * @param qty         a number of entries in the index.
+   * @param key         a key to find.
+   * @return the index of the first entry with the key &gt;= key, or qty,
+   *         if there is no such entry.
+   */
+  public static int lowerBoundKey(long[] keyIndex, int qty, int key) {
+    long  packed = ((long)key) << 32;
+    int   lo = 0, hi = qty;
+    
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (keyIndex[mid] < packed) lo = mid + 1;
+      else hi = mid;
+    }
+    return lo;
+  }
+  
+  /**
+   * Extracts a key from an entry of the key index.
+   */
+  public static int getIndexKey(long entry) {
+    return (int)(entry >> 32);
+  }
+
+  /**
+   * Extracts an element index from an entry of the key index.
+   */
+  public static int getIndexElem(long entry) {
+    return (int)entry;
+  }
+  
+  /**
+   * Reads all document elements and fills out the key index.
+   */
+  private void buildKeyIndex(int[] keys, long[] keyIndex) throws IOException {
+    readElemsUpTo(mQty);
+    for (int i = 0; i < mQty; ++i) {
+      keyIndex[i] = (((long)keys[i]) << 32) | i;
+    }
+    Arrays.sort(keyIndex, 0, mQty);
+  }
+  
+  /**
+   * Initializes a domain of the node, i.e., a set of elements that 
+   * can possibly be a part of the match, see {@link TermSpanIterator#checkSpanConstraints()}.
+   * Initially, the domain includes elements with indices in the range
+   * [startIndx, endIndx) whose end offsets do not exceed maxEndOffset. 
+   * All these elements should have been read already.
+   * 
+   * @param startIndx       the first element index (inclusive).
+   * @param endIndx         the last element index (exclusive).
+   * @param maxEndOffset    the maximum end offset.
+   * @return the size of the domain.
+   */
+  public int initDomain(int startIndx, int endIndx, int maxEndOffset) {
+    mDomainQty = 0;
+    for (int i = startIndx; i < endIndx; ++i) {
+      boolean bOk = mEndOffsets[i] <= maxEndOffset;
+      mInDomain[i] = bOk;
+      if (bOk) mDomain[mDomainQty++] = i;
+    }
+    return mDomainQty;
+  }
+  
+  /**
+   * @return the size of the node domain, see {@link #initDomain(int, int, int)}.
+   */
+  public int getDomainQty() { return mDomainQty; }
+  
+  /**
+   * Checks if the element belongs to the node domain, 
+   * see {@link #initDomain(int, int, int)}. 
+   * 
+   * @param elemIndx  an index of the element, it should be in the range
+   *                  used to initialize the domain.
+   * @return true if the element is in the domain.
+   */
+  public boolean isInDomain(int elemIndx) { return mInDomain[elemIndx]; }
+  
   /**
    * Check if constraints involving the current node and all
    * the nodes with smaller sort indices are satisfied.
@@ -423,8 +736,8 @@ public abstract class OnePostStateBase {
    * @return true if and only if all constraints are satisfied.
    */
   public boolean checkConstrIncrIndexed() {
-    for (ConstraintInfo e : mConstraintIndex)
-      if (!e.check()) return false;
+    for (int i = 0; i < mConstraintQty; ++i)
+      if (!mConstraintIndex[i].check()) return false;
     return true;
   }
   
@@ -454,15 +767,12 @@ public abstract class OnePostStateBase {
       int otherSortIndx = nodeOther.getSortIndex();
       if (otherSortIndx >= minSortIndx && 
           otherSortIndx <= maxSortIndx) { 
-        ElemInfoData    eCurr = mSortedElemInfo[mCurrElemIndx];
-        ElemInfoData    eOther = nodeOther.getCurrElement();
-        
         if (mConstrType[k] == ConstraintType.CONSTRAINT_PARENT){
-          if (eCurr.mId != eOther.mParentId) return false;
+          if (getCurrId() != nodeOther.getCurrParentId()) return false;
         } else {
           // mConstrType[k] == ConstraintType.CONSTRAINT_CONTAINS
-          if (eOther.mStartOffset < eCurr.mStartOffset ||
-              eOther.mEndOffset > eCurr.mEndOffset) return false;
+          if (nodeOther.getCurrStartOffset() < getCurrStartOffset() ||
+              nodeOther.getCurrEndOffset() > getCurrEndOffset()) return false;
         }
       }
     }
@@ -470,40 +780,139 @@ public abstract class OnePostStateBase {
   }
   
   /**
-   * This function read one-document tokens/annotations start and end offsets.
-   * All read entries are supposed to be sorted by the start offset!
+   * This function prepares reading of one-document tokens/annotations 
+   * start and end offsets (all entries are supposed to be sorted by 
+   * the start offset!). 
+   * 
+   * <p>
+   * Note that elements are not read immediately: positions and payloads
+   * are read (and decoded) on demand, only as far as {@link #getStartOffset(int)}
+   * and {@link #findElemLargerOffset(int, int, int)} actually need them.
+   * Hence, if the document is ruled out after a few comparisons, we do not
+   * pay for reading all elements of a frequent term.
+   * </p>
+   * 
    * @throws IOException
    */
-  protected abstract void readDocElements()  throws IOException;
-  
-  protected void readDocElementsBase() throws IOException {
+  protected void readDocElements() throws IOException {
     mCurrElemIndx=0;
+    mReadQty = 0;
+    mIdIndexReady = mParentIdIndexReady = false;
     mQty = mPosting.freq();
+    trimElemInfo();
     // Ensure we have enough space to store 
     extendElemInfo(mQty);    
   }
   
   /**
-   * Re-allocate the mElemInfo array if necessary.
+   * Reads the next element from the posting list and saves it
+   * (in the arrays mStartOffsets, mEndOffsets, mIds, mParentIds)
+   * at the specified index.
+   * 
+   * @param indx  an index of the element.
+   * @throws IOException
+   */
+  protected abstract void readNextElement(int indx) throws IOException;
+  
+  /**
+   * Ensures that the first qty elements of the current document are read.
+   * 
+   * @param qty   a number of elements to read, should not exceed {@link #getQty()}.
+   * @throws IOException
+   */
+  protected void readElemsUpTo(int qty) throws IOException {
+    for (; mReadQty < qty; ++mReadQty) {
+      readNextElement(mReadQty);
+    }
+  }
+  
+  /**
+   * Re-allocate element arrays if necessary. This function is called
+   * before we start reading elements of the next document. Hence,
+   * previously stored elements are not copied to new arrays.
    * 
    * @param newCapacity  a new minimum number of elements to accommodate.
    */
   protected void extendElemInfo(int newCapacity) {
-    if (newCapacity > mSortedElemInfo.length) {
-      ElemInfoData oldElemInfo[] = mSortedElemInfo;
-      mSortedElemInfo = new ElemInfoData[newCapacity * 2];
-      for (int i = 0; i < oldElemInfo.length; ++i) {
-        mSortedElemInfo[i] = oldElemInfo[i]; // re-use previously allocated memory
-      }
-      for (int i = oldElemInfo.length; i < mSortedElemInfo.length; ++i) {
-        mSortedElemInfo[i] = new ElemInfoData();
-      }
+    if (newCapacity > mStartOffsets.length) {
+      mElemInfo.realloc(newCapacity * 2);
+      loadElemInfo();
+    }
+  }
+  
+  /**
+   * Shrinks element arrays that are much larger than needed (a high-water 
+   * mark policy). Arrays grow to accommodate the largest document, 
+   * but a single huge document should not make us keep large arrays 
+   * for the rest of the segment. Hence, every {@link #TRIM_WINDOW_ELEM_INFO} 
+   * documents, we check the maximum number of elements in these documents: 
+   * if arrays are more than four times larger, they are re-allocated. 
+   * Like {@link #extendElemInfo(int)}, this function is called before
+   * we start reading elements of the next document.
+   */
+  protected void trimElemInfo() {
+    if (mQty > mWindowMaxQty) mWindowMaxQty = mQty;
+    if (++mWindowDocQty < TRIM_WINDOW_ELEM_INFO) return;
+    
+    int newCapacity = Math.max(2 * mWindowMaxQty, MIN_SIZE_ELEM_INFO);
+    if (mStartOffsets.length > 4 * newCapacity) {
+      mElemInfo.realloc(newCapacity);
+      loadElemInfo();
     }
+    mWindowDocQty = 0;
+    mWindowMaxQty = 0;
+  }
+  
+  /**
+   * Takes element arrays from the pool of the current thread, 
+   * see {@link ElemBuffers}.
+   * 
+   * @param initElemQty   the minimum initial size of arrays.
+   */
+  protected void acquireElemInfo(int initElemQty) {
+    mElemInfo = ElemBuffers.acquire(initElemQty);
+    mIsElemInfoPooled = true;
+    loadElemInfo();
+  }
+  
+  /**
+   * Returns element arrays to the pool of the current thread, if 
+   * they were taken from the pool. This function should be called
+   * only after the posting is exhausted: elements of the current document 
+   * are discarded. If another document is read, new arrays are allocated.
+   */
+  public void releaseElemInfo() {
+    mQty = mReadQty = mDomainQty = 0;
+    if (!mIsElemInfoPooled) return;
+    
+    boolean needsKeyIndex = mElemInfo.mNeedsKeyIndex;
+    
+    ElemBuffers.release(mElemInfo);
+    mElemInfo = new ElemBuffers();
+    if (needsKeyIndex) mElemInfo.allocKeyIndex();
+    mIsElemInfoPooled = false;
+    loadElemInfo();
+  }
+  
+  /**
+   * Caches references to element arrays in the fields of this object,
+   * which is necessary after arrays are re-allocated.
+   */
+  private void loadElemInfo() {
+    mStartOffsets   = mElemInfo.mStartOffsets;
+    mEndOffsets     = mElemInfo.mEndOffsets;
+    mIds            = mElemInfo.mIds;
+    mParentIds      = mElemInfo.mParentIds;
+    mDomain         = mElemInfo.mDomain;
+    mInDomain       = mElemInfo.mInDomain;
+    mIdIndex        = mElemInfo.mIdIndex;
+    mParentIdIndex  = mElemInfo.mParentIdIndex;
   }
   
   protected String                  mToken;
   protected FieldType               mFieldType;
-  protected DocsAndPositionsEnum    mPosting;
+  /** A document-level iterator over the posting. */
+  protected DocsEnum                mPosting;
   /** 
    * The current document id, should always be -1 in the beginning,
    * before {@link #advance(int)} or {@link #nextDoc()} is called.
@@ -511,14 +920,46 @@ public abstract class OnePostStateBase {
   protected int                     mDocId=-1;
   protected int                     mCurrElemIndx=0;
   protected int                     mQty = 0;
-  /** Elements are supposed to be started by offset. */
-  protected ElemInfoData[]          mSortedElemInfo = new ElemInfoData[0];
-  protected ElemInfoData            mSearchKey = new ElemInfoData();
-  protected StartOffsetElemInfoDataComparator   mOffsetComp = 
-                                      new StartOffsetElemInfoDataComparator();
+  /** A number of elements (in the current document) that were read so far. */
+  protected int                     mReadQty = 0;
+  /** A number of payload bytes decoded so far (in all documents). */
+  protected long                    mDecodedBytes = 0;
+  /*
+   * Elements are supposed to be sorted by the start offset. 
+   * Element attributes are kept in parallel arrays (a struct of arrays),
+   * which is more cache friendly than keeping an array of objects.
+   * Arrays are owned by mElemInfo, fields below merely cache references.
+   */
+  /** Element arrays, possibly taken from a pool, see {@link ElemBuffers}. */
+  private ElemBuffers               mElemInfo = new ElemBuffers();
+  /** True if element arrays should be returned to the pool. */
+  private boolean                   mIsElemInfoPooled = false;
+  /** The maximum number of elements in documents read since the last trim check. */
+  private int                       mWindowMaxQty = 0;
+  /** The number of documents read since the last trim check. */
+  private int                       mWindowDocQty = 0;
+  /** Element start offsets. */
+  protected int[]                   mStartOffsets = new int[0];
+  /** Element end offsets. */
+  protected int[]                   mEndOffsets = new int[0];
+  /** Element ids (annotation only). */
+  protected int[]                   mIds = new int[0];
+  /** Element parent ids (annotation only). */
+  protected int[]                   mParentIds = new int[0];
+  /** 
+   * Indices of elements that can be a part of the match (in the increasing 
+   * order), see {@link #initDomain(int, int, int)}.
+   */
+  protected int[]                   mDomain = new int[0];
+  /** A number of elements in the domain. */
+  protected int                     mDomainQty = 0;
+  /** A flag indicating that an element is in the domain. */
+  protected boolean[]               mInDomain = new boolean[0];
   
   protected StructQueryParseVer3.ConstraintType[] mConstrType = null;
   protected OnePostStateBase[]                    mConstrNode = null;
+  /** Constraints where this node is constraining: one per entry of mConstrNode. */
+  ConstraintInfo[]                                mOwnConstr = null;
   protected int                                   mConnectQty = 0;
   protected long                                  mMinCompPostCost = Long.MAX_VALUE;
   protected int                                   mComponentId = -1;
@@ -526,52 +967,19 @@ public abstract class OnePostStateBase {
 
   /** An "index" of constraints that is used for faster incremental constraint verification */
   ConstraintInfo[]                                mConstraintIndex;
-}
-
-class StartOffsetElemInfoDataComparator implements Comparator<ElemInfoData> {
-
-  @Override
-  public int compare(ElemInfoData o1, ElemInfoData o2) {
-    return o1.mStartOffset - o2.mStartOffset;
-  }
-}
-
-/**
- * A simple helper class encapsulating a constraint check 
- * for two nodes, one of which is constraining and and
- * another one is being dependent, i.e., constraint.
- *
- */
-class ConstraintInfo {
-  OnePostStateBase                        mConstrainingNode;
-  OnePostStateBase                        mDependentNode;
-  StructQueryParseVer3.ConstraintType     mConstrType;
-  /**
-   * @param mConstrainingNode   a constraining node.
-   * @param mDependentNode      a dependent, i.e., constrained node.
-   * @param constrType          a constraint type
-   */
-  public ConstraintInfo(OnePostStateBase constrainingNode,
-                        OnePostStateBase dependentNode, 
-                        ConstraintType constrType) {
-    mConstrainingNode = constrainingNode;
-    mDependentNode    = dependentNode;
-    mConstrType       = constrType;
-  }
+  /** The number of valid entries in mConstraintIndex. */
+  int                                             mConstraintQty = 0;
+  /** A parent-child constraint used to probe id indices (can be null). */
+  ConstraintInfo                                  mParentProbe;
+  /** Containment constraints with smaller-sort-index nodes. */
+  ConstraintInfo[]                                mContainConstr;
+  /** The number of valid entries in mContainConstr. */
+  int                                             mContainConstrQty = 0;
   
-  /**
-   *  @return true, if and only if the constraint is satisfied.
-   */
-  public boolean check() {
-    ElemInfoData    eCurr  = mConstrainingNode.getCurrElement();
-    ElemInfoData    eOther = mDependentNode.getCurrElement();
-    
-    if (mConstrType == ConstraintType.CONSTRAINT_PARENT){
-      return eCurr.mId == eOther.mParentId;
-    } else {
-      // mConstrType[k] == ConstraintType.CONSTRAINT_CONTAINS
-      return (eOther.mStartOffset >= eCurr.mStartOffset &&
-              eOther.mEndOffset   <= eCurr.mEndOffset);
-    }    
-  }
+  /** Element indices sorted by ids (see {@link #getKeyIndex(boolean)}). */
+  protected long[]                  mIdIndex = new long[0];
+  /** Element indices sorted by parent ids (see {@link #getKeyIndex(boolean)}). */
+  protected long[]                  mParentIdIndex = new long[0];
+  protected boolean                 mIdIndexReady = false;
+  protected boolean                 mParentIdIndexReady = false;
 }
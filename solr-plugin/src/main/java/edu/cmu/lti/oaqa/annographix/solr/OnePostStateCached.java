@@ -0,0 +1,84 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import java.io.IOException;
+
+import edu.cmu.lti.oaqa.annographix.solr.StructQueryParseVer3.FieldType;
+
+/**
+ * This a helper class to read cached annotation postings, 
+ * see {@link AnnotColumnCache}. Annotations are already decoded:
+ * we simply copy them from cached columns.
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+class OnePostStateCached extends OnePostStateBase {
+  /**
+   * @param token       textual representation.
+   * @param type        posting type: annotation or regular token.
+   * @param posting     a cached posting.
+   * @param connectQty  a number of postings connected with a given node/posting 
+   *                    via a query graph.
+   * @param minCompPostCost a minimum cost among postings associated with the subset
+   *                    of nodes connected to this posting.
+   * @param componentId a unique ID associated with the subset of nodes that
+   *                    are connected to this one.
+   */
+  public OnePostStateCached(String token, FieldType type,
+                            CachedAnnotPostings posting, 
+                            int connectQty,
+                            long minCompPostCost,
+                            int componentId) {
+    super(token, type, posting, connectQty, minCompPostCost, componentId);
+    mCachedPosting = posting;
+    mCols = posting.getColumns();
+  }
+  
+  /**
+   * Read next element {@link edu.cmu.lti.oaqa.annographix.solr.OnePostStateBase#readNextElement(int)}.
+   */
+  @Override
+  protected void readNextElement(int indx) throws IOException {
+    int src = mCachedPosting.getElemStart() + indx;
+    
+    mStartOffsets[indx] = mCols.mStartOffsets[src];
+    mEndOffsets[indx]   = mCols.mEndOffsets[src];
+    mIds[indx]          = mCols.mIds[src];
+    mParentIds[indx]    = mCols.mParentIds[src];
+  }
+  
+  /**
+   * Copies a range of elements at once, see {@link OnePostStateBase#readElemsUpTo(int)}.
+   */
+  @Override
+  protected void readElemsUpTo(int qty) throws IOException {
+    if (mReadQty >= qty) return;
+    
+    int src = mCachedPosting.getElemStart() + mReadQty;
+    int len = qty - mReadQty;
+    
+    System.arraycopy(mCols.mStartOffsets, src, mStartOffsets, mReadQty, len);
+    System.arraycopy(mCols.mEndOffsets,   src, mEndOffsets,   mReadQty, len);
+    System.arraycopy(mCols.mIds,          src, mIds,          mReadQty, len);
+    System.arraycopy(mCols.mParentIds,    src, mParentIds,    mReadQty, len);
+    mReadQty = qty;
+  }
+  
+  private final CachedAnnotPostings mCachedPosting;
+  private final AnnotColumns        mCols;
+}
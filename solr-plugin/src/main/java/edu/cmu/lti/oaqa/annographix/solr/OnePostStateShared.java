@@ -0,0 +1,85 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import java.io.IOException;
+
+import edu.cmu.lti.oaqa.annographix.solr.StructQueryParseVer3.FieldType;
+
+/**
+ * This a helper class to read postings shared among queries evaluated
+ * in a batch, see {@link SharedPostings}. Elements are decoded only 
+ * once per document: we simply copy them from the shared decoder.
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+class OnePostStateShared extends OnePostStateBase {
+  /**
+   * @param token       textual representation.
+   * @param type        posting type: annotation or regular token.
+   * @param posting     a shared posting.
+   * @param connectQty  a number of postings connected with a given node/posting 
+   *                    via a query graph.
+   * @param minCompPostCost a minimum cost among postings associated with the subset
+   *                    of nodes connected to this posting.
+   * @param componentId a unique ID associated with the subset of nodes that
+   *                    are connected to this one.
+   */
+  public OnePostStateShared(String token, FieldType type,
+                            SharedPostings posting, 
+                            int connectQty,
+                            long minCompPostCost,
+                            int componentId) {
+    super(token, type, posting, connectQty, minCompPostCost, componentId);
+    mSharedPosting = posting;
+    mDecoder = posting.getDecoder();
+  }
+  
+  /**
+   * Read next element {@link edu.cmu.lti.oaqa.annographix.solr.OnePostStateBase#readNextElement(int)}.
+   */
+  @Override
+  protected void readNextElement(int indx) throws IOException {
+    mSharedPosting.readElemsUpTo(indx + 1);
+    
+    mStartOffsets[indx] = mDecoder.mStartOffsets[indx];
+    mEndOffsets[indx]   = mDecoder.mEndOffsets[indx];
+    mIds[indx]          = mDecoder.mIds[indx];
+    mParentIds[indx]    = mDecoder.mParentIds[indx];
+  }
+  
+  /**
+   * Copies a range of elements at once, see {@link OnePostStateBase#readElemsUpTo(int)}.
+   */
+  @Override
+  protected void readElemsUpTo(int qty) throws IOException {
+    if (mReadQty >= qty) return;
+    
+    mSharedPosting.readElemsUpTo(qty);
+    
+    int len = qty - mReadQty;
+    
+    System.arraycopy(mDecoder.mStartOffsets, mReadQty, mStartOffsets, mReadQty, len);
+    System.arraycopy(mDecoder.mEndOffsets,   mReadQty, mEndOffsets,   mReadQty, len);
+    System.arraycopy(mDecoder.mIds,          mReadQty, mIds,          mReadQty, len);
+    System.arraycopy(mDecoder.mParentIds,    mReadQty, mParentIds,    mReadQty, len);
+    mReadQty = qty;
+  }
+  
+  private final SharedPostings    mSharedPosting;
+  private final OnePostStateBase  mDecoder;
+}
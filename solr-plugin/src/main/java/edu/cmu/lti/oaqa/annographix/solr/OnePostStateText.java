@@ -52,21 +52,21 @@ class OnePostStateText extends OnePostStateBase {
                            long minCompPostCost,
                            int componentId) {
     super(token, type, posting, connectQty, minCompPostCost, componentId);
+    mPosPosting = posting;
   }
 
   /**
-   * Read next element {@link edu.cmu.lti.oaqa.annographix.solr.OnePostStateBase#readDocElements()}.
+   * Read next element {@link edu.cmu.lti.oaqa.annographix.solr.OnePostStateBase#readNextElement(int)}.
    */
   @Override
-  protected void readDocElements() throws IOException {
-    readDocElementsBase();
-    for (int i = 0; i < mQty; ++i) {
-      mPosting.nextPosition();
-      ElemInfoData dt = mSortedElemInfo[i];
-      dt.mId = -1;
-      dt.mParentId = -1;
-      dt.mStartOffset = mPosting.startOffset();
-      dt.mEndOffset = mPosting.endOffset();
-    }
+  protected void readNextElement(int indx) throws IOException {
+    mPosPosting.nextPosition();
+    mIds[indx] = -1;
+    mParentIds[indx] = -1;
+    mStartOffsets[indx] = mPosPosting.startOffset();
+    mEndOffsets[indx] = mPosPosting.endOffset();
   }
+  
+  /** The posting with positions and offsets. */
+  private final DocsAndPositionsEnum  mPosPosting;
 }
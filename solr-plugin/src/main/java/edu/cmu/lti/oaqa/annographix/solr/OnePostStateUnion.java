@@ -0,0 +1,122 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import java.io.IOException;
+
+import edu.cmu.lti.oaqa.annographix.solr.StructQueryParseVer3.FieldType;
+
+/**
+ * This a helper class to read elements of alternative lexical entries,
+ * see {@link UnionPostings}. Elements of alternatives present in the
+ * current document are merged (lazily) in the order of start offsets.
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+class OnePostStateUnion extends OnePostStateBase {
+  /**
+   * @param token       textual representation.
+   * @param type        posting type: annotation or regular token.
+   * @param posting     a union of alternative postings.
+   * @param connectQty  a number of postings connected with a given node/posting 
+   *                    via a query graph.
+   * @param minCompPostCost a minimum cost among postings associated with the subset
+   *                    of nodes connected to this posting.
+   * @param componentId a unique ID associated with the subset of nodes that
+   *                    are connected to this one.
+   */
+  public OnePostStateUnion(String token, FieldType type,
+                           UnionPostings posting, 
+                           int connectQty,
+                           long minCompPostCost,
+                           int componentId) {
+    super(token, type, posting, connectQty, minCompPostCost, componentId);
+    mAlts = posting.getDecoders();
+    mAltQty = new int[mAlts.length];
+    mAltPos = new int[mAlts.length];
+  }
+  
+  /**
+   * Starts reading elements of the current document: alternatives
+   * present in the document start reading their elements as well.
+   */
+  @Override
+  protected void readDocElements() throws IOException {
+    super.readDocElements();
+    
+    for (int i = 0; i < mAlts.length; ++i) {
+      OnePostStateBase alt = mAlts[i];
+      
+      mAltPos[i] = 0;
+      if (alt.getDocID() == mDocId) {
+        alt.readDocElements();
+        mAltQty[i] = alt.getQty();
+      } else {
+        mAltQty[i] = 0;
+      }
+    }
+  }
+  
+  /**
+   * Read next element {@link edu.cmu.lti.oaqa.annographix.solr.OnePostStateBase#readNextElement(int)}:
+   * the element with the smallest start offset among unread elements 
+   * of all alternatives.
+   */
+  @Override
+  protected void readNextElement(int indx) throws IOException {
+    int bestAlt = -1, bestStart = Integer.MAX_VALUE;
+    
+    for (int i = 0; i < mAlts.length; ++i) {
+      if (mAltPos[i] < mAltQty[i]) {
+        int start = mAlts[i].getStartOffset(mAltPos[i]);
+        
+        if (bestAlt < 0 || start < bestStart) {
+          bestAlt = i;
+          bestStart = start;
+        }
+      }
+    }
+    if (bestAlt < 0) {
+      throw new RuntimeException("Bug: no more elements in alternatives, index: " + indx);
+    }
+    OnePostStateBase  alt = mAlts[bestAlt];
+    int               pos = mAltPos[bestAlt]++;
+    
+    mStartOffsets[indx] = bestStart;
+    mEndOffsets[indx]   = alt.getEndOffset(pos);
+    mIds[indx]          = alt.getId(pos);
+    mParentIds[indx]    = alt.getParentId(pos);
+  }
+  
+  /**
+   * @return the number of payload bytes decoded by all alternatives.
+   */
+  @Override
+  public long getDecodedBytes() { 
+    long res = 0;
+    
+    for (OnePostStateBase alt : mAlts) res += alt.getDecodedBytes();
+    return res;
+  }
+  
+  /** Decoders of alternatives. */
+  private final OnePostStateBase  mAlts[];
+  /** Numbers of elements of alternatives in the current document. */
+  private final int               mAltQty[];
+  /** Numbers of elements of alternatives that were merged so far. */
+  private final int               mAltPos[];
+}
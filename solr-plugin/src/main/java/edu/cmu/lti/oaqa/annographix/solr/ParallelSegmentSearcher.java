@@ -0,0 +1,179 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.ThreadInterruptedException;
+
+/**
+ * Searches segments of an index concurrently: all matching documents of 
+ * each segment are found and scored in advance, then they are replayed 
+ * by {@link SegmentResultScorer}. Because results are replayed 
+ * in the order of segments and document ids, the outcome of a search 
+ * (including the order of documents with equal scores) does not depend 
+ * on the number of threads.
+ * 
+ * <p>A query uses at most a given number of threads, including the 
+ * calling thread. The calling thread processes segments as well. Hence,
+ * the search progresses even if all the executor threads are busy 
+ * with other queries.</p>
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+class ParallelSegmentSearcher {
+  /**
+   * Creates scorers for segments.
+   */
+  interface ScorerFactory {
+    /**
+     * @param context   a segment context.
+     * @return a scorer or null, if no document can match.
+     * @throws IOException
+     */
+    StructScorerVer3 create(AtomicReaderContext context) throws IOException;
+  }
+  
+  /**
+   * Matching documents of one segment together with their scores and
+   * frequencies.
+   */
+  static class SegmentResults {
+    int     mQty = 0;
+    int[]   mDocIds = new int[16];
+    float[] mScores = new float[16];
+    int[]   mFreqs = new int[16];
+    /** 
+     * True if the search of the segment stopped, because 
+     * the time budget was exceeded (see {@link QueryTimeBudget}). 
+     */
+    boolean mTimeBudgetExceeded = false;
+    
+    void add(int docId, float score, int freq) {
+      if (mQty == mDocIds.length) {
+        int newSize = 2 * mQty;
+        mDocIds = Arrays.copyOf(mDocIds, newSize);
+        mScores = Arrays.copyOf(mScores, newSize);
+        mFreqs = Arrays.copyOf(mFreqs, newSize);
+      }
+      mDocIds[mQty] = docId;
+      mScores[mQty] = score;
+      mFreqs[mQty] = freq;
+      ++mQty;
+    }
+  }
+  
+  /**
+   * Searches all segments.
+   * 
+   * @param leaves      segment contexts.
+   * @param factory     a factory of segment scorers.
+   * @param executor    an executor.
+   * @param threadQty   the maximum number of threads (including the calling one).
+   * @return results for each segment (the same order as in leaves), 
+   *         an entry is null if no document can match in a segment.
+   * @throws IOException
+   */
+  static SegmentResults[] search(final List<AtomicReaderContext> leaves,
+                                 final ScorerFactory factory,
+                                 ExecutorService executor,
+                                 int threadQty) throws IOException {
+    final int                         segmQty = leaves.size();
+    final SegmentResults              res[] = new SegmentResults[segmQty];
+    final AtomicInteger               nextSegm = new AtomicInteger();
+    final CountDownLatch              doneSegm = new CountDownLatch(segmQty);
+    final AtomicReference<Throwable>  error = new AtomicReference<Throwable>();
+    
+    Runnable worker = new Runnable() {
+      @Override
+      public void run() {
+        int i;
+        
+        while ((i = nextSegm.getAndIncrement()) < segmQty) {
+          try {
+            if (error.get() == null) 
+              res[i] = searchSegment(factory.create(leaves.get(i)));
+          } catch (Throwable e) {
+            error.compareAndSet(null, e);
+          } finally {
+            doneSegm.countDown();
+          }
+        }
+      }
+    };
+    
+    int taskQty = Math.min(threadQty, segmQty) - 1;
+    
+    for (int i = 0; i < taskQty; ++i) {
+      try {
+        executor.execute(worker);
+      } catch (RejectedExecutionException e) {
+        // The executor is saturated, the remaining work is done by the calling thread
+        break;
+      }
+    }
+    worker.run();
+    /*
+     *  We wait for segments rather than for tasks: a task, which starts 
+     *  after all segments are processed, simply finds no work.
+     */
+    try {
+      doneSegm.await();
+    } catch (InterruptedException e) {
+      throw new ThreadInterruptedException(e);
+    }
+    
+    Throwable e = error.get();
+    if (e != null) {
+      if (e instanceof IOException) throw (IOException) e;
+      if (e instanceof RuntimeException) throw (RuntimeException) e;
+      if (e instanceof Error) throw (Error) e;
+      throw new RuntimeException(e);
+    }
+    return res;
+  }
+  
+  /**
+   * Finds and scores all matching documents of a segment.
+   * 
+   * @param scorer    a segment scorer (can be null).
+   * @return segment results or null, if the scorer is null.
+   * @throws IOException
+   */
+  private static SegmentResults searchSegment(StructScorerVer3 scorer) 
+                                              throws IOException {
+    if (scorer == null) return null;
+    
+    SegmentResults  res = new SegmentResults();
+    int             docId;
+    
+    while ((docId = scorer.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+      res.add(docId, scorer.score(), scorer.freq());
+    }
+    res.mTimeBudgetExceeded = scorer.isTimeBudgetExceeded();
+    return res;
+  }
+}
@@ -15,8 +15,21 @@
  */
 package edu.cmu.lti.oaqa.annographix.solr;
 
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.SolrCore;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.search.QParser;
 import org.apache.solr.search.QParserPlugin;
@@ -24,20 +37,196 @@ import org.apache.solr.search.QParserPlugin;
 /**
  * A plugin to create a custom structured-retrieval parser.
  * 
+ * <p>The plugin keeps a cache of parsed queries, whose size is specified by
+ * the argument {@link #PARAM_PLAN_CACHE_SIZE} (zero disables caching). 
+ * Cache statistics are available via {@link #getStatistics()}.</p>
+ * 
+ * <p>In addition, the plugin can cache decoded annotations of frequently
+ * used labels (e.g., sentences), see {@link AnnotColumnCache}. Such labels
+ * are specified by the argument {@link #PARAM_HOT_LABELS} (a comma-separated list), 
+ * and the maximum cache size is specified by the argument 
+ * {@link #PARAM_HOT_LABEL_CACHE_BYTES}. If no hot labels are given, 
+ * annotations are not cached.</p>
+ * 
+ * <p>Segments of the index can be searched concurrently, see 
+ * {@link ParallelSegmentSearcher}. The plugin owns a pool of
+ * {@link #PARAM_SEARCH_THREADS} threads shared among all queries 
+ * (zero disables concurrent search). The number of threads used by one query 
+ * is specified by the argument {@link #PARAM_QUERY_THREADS} and can be 
+ * overridden using the query parameter 
+ * {@link StructRetrQParserVer3#PARAM_THREADS}. Idle threads time out, 
+ * and the pool is shut down, when the core is closed (Solr 4.6 does not
+ * let query-parser plugins be {@link org.apache.solr.util.plugin.SolrCoreAware}: 
+ * a close hook is registered when the first parser is created).</p>
+ * 
+ * <p>Queries running at least {@link #PARAM_SLOW_QUERY_MS} milliseconds 
+ * are logged together with their plans and execution statistics, 
+ * see {@link StructQueryStats}. Statistics are also added to the debug
+ * output, if it is requested (debugQuery=true).</p>
+ * 
  * @author Leonid Boytsov
  * 
  */
 public class ParserPluginVer3  extends QParserPlugin {
+  /** A name of the argument that specifies the size of the query-parse cache. */
+  public static final String  PARAM_PLAN_CACHE_SIZE = "planCacheSize";
+  /** A default size of the query-parse cache. */
+  public static final int     DEFAULT_PLAN_CACHE_SIZE = 4096;
+  /** A name of the argument that specifies a comma-separated list of hot labels. */
+  public static final String  PARAM_HOT_LABELS = "hotLabels";
+  /** A name of the argument that specifies the size (in bytes) of the hot-label cache. */
+  public static final String  PARAM_HOT_LABEL_CACHE_BYTES = "hotLabelCacheBytes";
+  /** A default size of the hot-label cache. */
+  public static final long    DEFAULT_HOT_LABEL_CACHE_BYTES = 256L * 1024 * 1024;
+  /** A name of the argument that specifies the number of search threads. */
+  public static final String  PARAM_SEARCH_THREADS = "searchThreads";
+  /** A name of the argument that specifies the default number of threads per query. */
+  public static final String  PARAM_QUERY_THREADS = "queryThreads";
+  /** A default number of threads per query: segments are searched sequentially. */
+  public static final int     DEFAULT_QUERY_THREADS = 1;
+  /** 
+   * A name of the argument that specifies the time (in ms) after which
+   * the query is considered to be slow (a negative value disables logging).
+   */
+  public static final String  PARAM_SLOW_QUERY_MS = "slowQueryMs";
+  /** The maximum number of search tasks waiting for a thread. */
+  private static final int    MAX_QUEUED_SEARCH_TASKS = 1024;
+  /** The time (in seconds) after which an idle search thread terminates. */
+  private static final long   IDLE_THREAD_TIMEOUT_SEC = 60;
+  
   @Override
   public QParser createParser(String qstr, 
                              SolrParams localParams,
                              SolrParams params, 
                              SolrQueryRequest req) {
-    return new StructRetrQParserVer3(qstr, localParams, params, req);
+    if (mSearchExecutor != null && req.getCore() != null &&
+        mCloseHookAdded.compareAndSet(false, true)) {
+      final ExecutorService executor = mSearchExecutor;
+      req.getCore().addCloseHook(new CloseHook() {
+        @Override
+        public void preClose(SolrCore core) {
+          /*
+           *  Queries still running do not fail: a rejected task is 
+           *  simply not executed, see ParallelSegmentSearcher.
+           */
+          executor.shutdown();
+        }
+        
+        @Override
+        public void postClose(SolrCore core) {}
+      });
+    }
+    return new StructRetrQParserVer3(qstr, localParams, params, req, 
+                                     mPlanCache, mAnnotCache,
+                                     mSearchExecutor, mSearchThreadQty, 
+                                     mQueryThreadQty, mSlowQueryMs,
+                                     mExceededQueryQty);
   }
 
   @Override
   public void init(@SuppressWarnings("rawtypes") NamedList args) {
-    // we are not using arguments in this plugin.    
+    int               planCacheSize = DEFAULT_PLAN_CACHE_SIZE;
+    long              hotLabelCacheBytes = DEFAULT_HOT_LABEL_CACHE_BYTES;
+    int               searchThreadQty = 0;
+    int               queryThreadQty = DEFAULT_QUERY_THREADS;
+    long              slowQueryMs = -1;
+    ArrayList<String> hotLabels = new ArrayList<String>();
+    
+    if (args != null) {
+      Object val = args.get(PARAM_PLAN_CACHE_SIZE);
+      if (val != null) planCacheSize = Integer.parseInt(val.toString());
+      
+      val = args.get(PARAM_HOT_LABEL_CACHE_BYTES);
+      if (val != null) hotLabelCacheBytes = Long.parseLong(val.toString());
+      
+      val = args.get(PARAM_SEARCH_THREADS);
+      if (val != null) searchThreadQty = Integer.parseInt(val.toString());
+      
+      val = args.get(PARAM_QUERY_THREADS);
+      if (val != null) queryThreadQty = Integer.parseInt(val.toString());
+      
+      val = args.get(PARAM_SLOW_QUERY_MS);
+      if (val != null) slowQueryMs = Long.parseLong(val.toString());
+      
+      val = args.get(PARAM_HOT_LABELS);
+      if (val != null) {
+        for (String label : val.toString().split(",")) {
+          // Note lowercasing, query text is lowercased as well
+          label = label.trim().toLowerCase();
+          if (!label.isEmpty()) hotLabels.add(label);
+        }
+      }
+    }
+    
+    mPlanCache = planCacheSize > 0 ? 
+                 new StructQueryPlanCache(planCacheSize) : null;
+    mAnnotCache = !hotLabels.isEmpty() && hotLabelCacheBytes > 0 ?
+                  new AnnotColumnCache(hotLabels, hotLabelCacheBytes) : null;
+    
+    mSearchThreadQty = Math.max(searchThreadQty, 0);
+    mQueryThreadQty = queryThreadQty;
+    mSlowQueryMs = slowQueryMs;
+    mSearchExecutor = mSearchThreadQty > 0 ? 
+                      createSearchExecutor(mSearchThreadQty) : null;
+  }
+  
+  /**
+   * Creates a bounded pool of daemon threads: queries shouldn't 
+   * prevent the JVM from exiting. Idle threads time out. A task, 
+   * which is rejected, is dropped: the segments that it would 
+   * have searched are picked up by the worker loop of the submitting
+   * thread, see {@link ParallelSegmentSearcher}.
+   * 
+   * @param threadQty   the number of threads.
+   * @return an executor.
+   */
+  private static ExecutorService createSearchExecutor(int threadQty) {
+    final AtomicInteger threadId = new AtomicInteger();
+    
+    ThreadPoolExecutor res = 
+        new ThreadPoolExecutor(threadQty, threadQty, 
+                               IDLE_THREAD_TIMEOUT_SEC, TimeUnit.SECONDS,
+                               new ArrayBlockingQueue<Runnable>(
+                                                 MAX_QUEUED_SEARCH_TASKS),
+                               new ThreadFactory() {
+                                 @Override
+                                 public Thread newThread(Runnable r) {
+                                   Thread t = new Thread(r, 
+                                       "annographix-search-" + 
+                                       threadId.incrementAndGet());
+                                   t.setDaemon(true);
+                                   return t;
+                                 }
+                               });
+    res.allowCoreThreadTimeOut(true);
+    return res;
+  }
+  
+  @Override
+  public String getDescription() {
+    return "A structured-retrieval query parser (version 3)";
+  }
+  
+  @Override
+  @SuppressWarnings("rawtypes")
+  public NamedList getStatistics() {
+    NamedList<Object> res = new SimpleOrderedMap<Object>();
+    
+    if (mPlanCache != null) res.addAll(mPlanCache.getStatistics());
+    if (mAnnotCache != null) res.addAll(mAnnotCache.getStatistics());
+    res.add("timeBudgetExceededQueries", mExceededQueryQty.get());
+    return res;
   }
+  
+  private StructQueryPlanCache mPlanCache = 
+                          new StructQueryPlanCache(DEFAULT_PLAN_CACHE_SIZE);
+  private AnnotColumnCache     mAnnotCache = null;
+  private ExecutorService      mSearchExecutor = null;
+  private int                  mSearchThreadQty = 0;
+  private int                  mQueryThreadQty = DEFAULT_QUERY_THREADS;
+  private long                 mSlowQueryMs = -1;
+  /** True if the search pool is shut down, when the core is closed. */
+  private final AtomicBoolean  mCloseHookAdded = new AtomicBoolean();
+  /** The number of queries whose time budget was exceeded, see {@link QueryTimeBudget}. */
+  private final AtomicLong     mExceededQueryQty = new AtomicLong();
 }
@@ -0,0 +1,137 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.search.TimeLimitingCollector;
+import org.apache.lucene.search.TimeLimitingCollector.TimeExceededException;
+import org.apache.lucene.util.Counter;
+
+/**
+ * A wall-clock time budget of a query. Scorers check the budget 
+ * cooperatively (see {@link StructScorerVer3#advance(int)} and 
+ * {@link TermSpanIterator#checkSpanConstraints()}): once the budget is 
+ * exceeded, spans are no longer verified and scorers stop returning
+ * documents. Thus, the query returns partial results.
+ * 
+ * <p>Partial results must not be cached. Hence, a scorer of the main 
+ * Solr query throws the exception, which Solr expects from its own 
+ * time-limiting collector (see {@link #createTimeExceededException(int)}).
+ * Solr catches it, keeps documents collected so far, adds the flag 
+ * <code>partialResults</code> to the response header, and does not put 
+ * results into caches. The budget is request-scoped: it is kept 
+ * in the state of the request (see {@link StructQueryRequestState}) 
+ * rather than in the query.</p>
+ * 
+ * <p>When the budget is exceeded for the first time, we increment 
+ * the counter passed to the constructor: each plugin keeps its own
+ * counter (see {@link ParserPluginVer3#getStatistics()}). The budget
+ * can be shared among threads searching segments of the same query.</p>
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+public class QueryTimeBudget {
+  /**
+   * Constructor: the budget starts when the object is created.
+   * 
+   * @param timeAllowed   the time budget in milliseconds.
+   */
+  public QueryTimeBudget(long timeAllowed) {
+    this(timeAllowed, null);
+  }
+  
+  /**
+   * Constructor: the budget starts when the object is created.
+   * 
+   * @param timeAllowed       the time budget in milliseconds.
+   * @param exceededQueryQty  a counter of queries whose budget was 
+   *                          exceeded, or null if such queries 
+   *                          are not counted.
+   */
+  public QueryTimeBudget(long timeAllowed, AtomicLong exceededQueryQty) {
+    mTimeAllowed = timeAllowed;
+    mExceededQueryQty = exceededQueryQty;
+    mStart = System.nanoTime();
+    mDeadline = mStart + timeAllowed * 1000000L;
+  }
+  
+  /**
+   * Reads the clock to check whether the budget is exceeded. 
+   * This function is rather cheap, yet callers in tight loops
+   * should not call it at every iteration.
+   * 
+   * @return true if the budget is exceeded.
+   */
+  public boolean checkClock() {
+    if (mExceeded.get()) return true;
+    if (System.nanoTime() - mDeadline < 0) return false;
+    
+    if (mExceeded.compareAndSet(false, true) && mExceededQueryQty != null) {
+      mExceededQueryQty.incrementAndGet();
+    }
+    return true;
+  }
+  
+  /**
+   * @return true if the budget was found to be exceeded 
+   *         (the clock is not read).
+   */
+  public boolean isExceeded() {
+    return mExceeded.get();
+  }
+  
+  /**
+   * @return the time budget in milliseconds.
+   */
+  public long getTimeAllowed() {
+    return mTimeAllowed;
+  }
+  
+  /**
+   * Creates the exception thrown by {@link TimeLimitingCollector} when
+   * the time allowed is exceeded. The exception has no public constructor. 
+   * Hence, we obtain it from a time-limiting collector whose clock 
+   * is past the deadline (the wrapped collector is never called).
+   * 
+   * @param lastDocId   an id of the last document processed.
+   * @return an exception.
+   */
+  public TimeExceededException createTimeExceededException(int lastDocId) {
+    long    elapsedMs = (System.nanoTime() - mStart) / 1000000L;
+    Counter clock = Counter.newCounter();
+    TimeLimitingCollector collector = new TimeLimitingCollector(null, clock, 
+                                                                mTimeAllowed);
+    collector.setBaseline(0);
+    clock.addAndGet(Math.max(elapsedMs, mTimeAllowed + 1));
+    try {
+      collector.collect(lastDocId);
+    } catch (TimeExceededException e) {
+      return e;
+    } catch (Exception e) {
+      throw new RuntimeException("Bug: unexpected exception", e);
+    }
+    throw new RuntimeException("Bug: the time-limiting collector did not time out");
+  }
+  
+  private final long              mTimeAllowed;
+  private final long              mStart;
+  private final long              mDeadline;
+  private final AtomicBoolean     mExceeded = new AtomicBoolean();
+  private final AtomicLong        mExceededQueryQty;
+}
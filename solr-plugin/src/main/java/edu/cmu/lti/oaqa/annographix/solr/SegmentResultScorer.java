@@ -0,0 +1,114 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import java.io.IOException;
+
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.Bits;
+
+/**
+ * A scorer that replays matching documents found in advance 
+ * by {@link ParallelSegmentSearcher}.
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+class SegmentResultScorer extends Scorer {
+  /**
+   * Constructor.
+   * 
+   * @param weight      an instance of the weight class that created this scorer.
+   * @param res         results of the segment.
+   * @param acceptDocs  documents that can be returned (null means all documents).
+   * @param timeBudget  a time budget of the query, or null: if it is not null 
+   *                    and the search of the segment stopped, because the budget 
+   *                    was exceeded, the scorer throws an exception
+   *                    (see {@link QueryTimeBudget#createTimeExceededException(int)}),
+   *                    after it replays all found documents.
+   */
+  SegmentResultScorer(Weight weight, 
+                      ParallelSegmentSearcher.SegmentResults res,
+                      Bits acceptDocs,
+                      QueryTimeBudget timeBudget) {
+    super(weight);
+    mRes = res;
+    mAcceptDocs = acceptDocs;
+    mTimeBudget = timeBudget;
+  }
+
+  @Override
+  public float score() throws IOException {
+    return mRes.mScores[mPos];
+  }
+
+  @Override
+  public int freq() throws IOException {
+    return mRes.mFreqs[mPos];
+  }
+
+  @Override
+  public int docID() {
+    return mDocId;
+  }
+
+  @Override
+  public int nextDoc() throws IOException {
+    return skipNonAccepted(mPos + 1);
+  }
+
+  @Override
+  public int advance(int target) throws IOException {
+    int[] docIds = mRes.mDocIds;
+    int   lo = mPos + 1, hi = mRes.mQty;
+    
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (docIds[mid] < target) lo = mid + 1;
+      else hi = mid;
+    }
+    return skipNonAccepted(lo);
+  }
+
+  @Override
+  public long cost() {
+    return mRes.mQty;
+  }
+  
+  /**
+   * Finds the first accepted document whose index is at least pos.
+   */
+  private int skipNonAccepted(int pos) {
+    while (pos < mRes.mQty && 
+           mAcceptDocs != null && !mAcceptDocs.get(mRes.mDocIds[pos])) {
+      ++pos;
+    }
+    mPos = pos;
+    if (pos >= mRes.mQty && mRes.mTimeBudgetExceeded && mTimeBudget != null) {
+      int lastDocId = mDocId;
+      mDocId = NO_MORE_DOCS;
+      throw mTimeBudget.createTimeExceededException(lastDocId);
+    }
+    return mDocId = pos < mRes.mQty ? mRes.mDocIds[pos] : NO_MORE_DOCS;
+  }
+  
+  private final ParallelSegmentSearcher.SegmentResults  mRes;
+  private final Bits                                    mAcceptDocs;
+  private final QueryTimeBudget                         mTimeBudget;
+  private int                                           mPos = -1;
+  private int                                           mDocId = -1;
+}
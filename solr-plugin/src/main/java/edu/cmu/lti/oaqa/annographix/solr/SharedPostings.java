@@ -0,0 +1,119 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.DocsEnum;
+
+import edu.cmu.lti.oaqa.annographix.solr.StructQueryParseVer3.FieldType;
+
+/**
+ * A posting shared among queries evaluated in a batch, 
+ * see {@link StructQueryBatchVer3}. Elements of each document are decoded
+ * (lazily) only once, scorers of individual queries copy them using 
+ * {@link OnePostStateShared}.
+ * 
+ * <p>The posting is positioned by the batch evaluator: a request to advance
+ * to a document that is not larger than the current one does not move the
+ * posting. Hence, all queries sharing the posting see the same current
+ * document.</p>
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+class SharedPostings extends DocsEnum implements ElemSource {
+  /**
+   * Constructor.
+   * 
+   * @param posting     an already initialized posting list.
+   * @param token       textual representation.
+   * @param type        posting type: annotation or regular token.
+   * @param payloadVer  a version of the annotation payload format.
+   */
+  SharedPostings(DocsEnum posting, 
+                 String token, FieldType type, 
+                 int payloadVer) {
+    mPosting = posting;
+    // The decoder outlives scorers of the batch, so its arrays are not pooled
+    mDecoder = OnePostStateBase.createPost(posting, token, type, 
+                                           0, 0, 0, payloadVer, 0);
+  }
+
+  @Override
+  public int docID() {
+    return mDecoder.getDocID();
+  }
+
+  @Override
+  public int nextDoc() throws IOException {
+    return advance(docID() + 1);
+  }
+
+  @Override
+  public int advance(int target) throws IOException {
+    int doc = mDecoder.getDocID();
+    
+    if (doc >= target) return doc;
+    return mDecoder.advance(target);
+  }
+
+  @Override
+  public int freq() throws IOException {
+    return mPosting.freq();
+  }
+
+  @Override
+  public long cost() {
+    return mPosting.cost();
+  }
+  
+  /**
+   * Ensures that the first qty elements of the current document are decoded.
+   * 
+   * @param qty   a number of elements to decode.
+   * @throws IOException
+   */
+  void readElemsUpTo(int qty) throws IOException {
+    int doc = mDecoder.getDocID();
+    
+    if (mDecodedDocId != doc) {
+      mDecoder.readDocElements();
+      mDecodedDocId = doc;
+    }
+    mDecoder.readElemsUpTo(qty);
+  }
+  
+  /**
+   * @return an object keeping decoded elements of the current document.
+   */
+  OnePostStateBase getDecoder() {
+    return mDecoder;
+  }
+
+  @Override
+  public OnePostStateBase createPost(String token, FieldType type,
+                                     int connectQty,
+                                     long minCompPostCost,
+                                     int componentId) {
+    return new OnePostStateShared(token, type, this, 
+                                  connectQty, minCompPostCost, componentId);
+  }
+  
+  private final DocsEnum              mPosting;
+  private final OnePostStateBase      mDecoder;
+  private int                         mDecodedDocId = -1;
+}
@@ -0,0 +1,153 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.handler.component.SearchComponent;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.SyntaxError;
+
+/**
+ * A search component that evaluates a batch of structured queries
+ * in one request, see {@link StructQueryBatchVer3}.
+ * 
+ * <p>Queries are specified by the (multi-valued) request parameter 
+ * {@link #PARAM_BATCH_QUERY}. Each value is parsed exactly as the main
+ * query, i.e., it can contain local parameters, e.g.,
+ * <code>{!annographix cover_annot=sentence}@a:person ~b:born #covers(a,b)</code>.
+ * The number of top documents per query is specified by the parameter
+ * {@link #PARAM_BATCH_ROWS} (by default, it is equal to the value of the 
+ * <code>rows</code> parameter). The component adds a list of top documents
+ * (unique keys and scores) for each query to the section 
+ * {@link #RESPONSE_SECTION} of the response.</p>
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+public class StructBatchSearchComponent extends SearchComponent {
+  /** A name of the request parameter that specifies batch queries. */
+  public static final String  PARAM_BATCH_QUERY = "batch_q";
+  /** A name of the request parameter that specifies the number of top documents. */
+  public static final String  PARAM_BATCH_ROWS = "batch_rows";
+  /** A name of the argument that specifies a default query parser. */
+  public static final String  PARAM_PARSER = "parser";
+  /** A default query parser name. */
+  public static final String  DEFAULT_PARSER = "annographix";
+  /** A default number of top documents. */
+  public static final int     DEFAULT_ROWS = 10;
+  /** A name of the response section. */
+  public static final String  RESPONSE_SECTION = "structBatch";
+  
+  @Override
+  public void init(@SuppressWarnings("rawtypes") NamedList args) {
+    super.init(args);
+    if (args != null) {
+      Object val = args.get(PARAM_PARSER);
+      if (val != null) mParserName = val.toString();
+    }
+  }
+
+  @Override
+  public void prepare(ResponseBuilder rb) throws IOException {
+    // Nothing to prepare
+  }
+
+  @Override
+  public void process(ResponseBuilder rb) throws IOException {
+    SolrParams  params = rb.req.getParams();
+    String      queryTexts[] = params.getParams(PARAM_BATCH_QUERY);
+    
+    if (queryTexts == null || queryTexts.length == 0) return;
+    
+    int rows = params.getInt(PARAM_BATCH_ROWS, 
+                             params.getInt(CommonParams.ROWS, DEFAULT_ROWS));
+    
+    ArrayList<StructQueryVer3> queries = new ArrayList<StructQueryVer3>();
+    
+    for (String text : queryTexts) {
+      Query q;
+      try {
+        q = QParser.getParser(text, mParserName, rb.req).getQuery();
+      } catch (SyntaxError e) {
+        throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, e);
+      }
+      if (!(q instanceof StructQueryVer3)) {
+        throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                                "Not a structured query in the parameter '" +
+                                PARAM_BATCH_QUERY + "': " + text);
+      }
+      queries.add((StructQueryVer3) q);
+    }
+    
+    SolrIndexSearcher searcher = rb.req.getSearcher();
+    TopDocs           topDocs[] = 
+                        new StructQueryBatchVer3(queries).search(searcher, rows);
+    SchemaField       keyField = rb.req.getSchema().getUniqueKeyField();
+    Set<String>       fieldSet = keyField != null ? 
+                                 Collections.singleton(keyField.getName()) : null;
+    NamedList<Object> res = new NamedList<Object>();
+    
+    for (int i = 0; i < topDocs.length; ++i) {
+      NamedList<Object>           queryRes = new SimpleOrderedMap<Object>();
+      ArrayList<NamedList<Object>> docs = new ArrayList<NamedList<Object>>();
+      
+      for (ScoreDoc sd : topDocs[i].scoreDocs) {
+        NamedList<Object> doc = new SimpleOrderedMap<Object>();
+        
+        if (keyField != null) {
+          Document d = searcher.doc(sd.doc, fieldSet);
+          doc.add(keyField.getName(), d.get(keyField.getName()));
+        } else {
+          doc.add("docid", sd.doc);
+        }
+        doc.add(UtilConst.SCORE_FIELD, sd.score);
+        docs.add(doc);
+      }
+      queryRes.add("numFound", topDocs[i].totalHits);
+      queryRes.add("docs", docs);
+      res.add(queryTexts[i], queryRes);
+    }
+    rb.rsp.add(RESPONSE_SECTION, res);
+  }
+
+  @Override
+  public String getDescription() {
+    return "Evaluates a batch of structured queries sharing postings";
+  }
+
+  @Override
+  public String getSource() {
+    return null;
+  }
+  
+  private String mParserName = DEFAULT_PARSER;
+}
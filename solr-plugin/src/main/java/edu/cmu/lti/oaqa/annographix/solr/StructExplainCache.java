@@ -0,0 +1,208 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+import org.apache.lucene.index.AtomicReaderContext;
+
+/**
+ * A per-request cache used to explain matches of a structured query
+ * (see {@link StructQueryVer3.StructQueryWeightVer3#explain(AtomicReaderContext, int)}).
+ * 
+ * <p>Solr explains result documents one by one in the order of their
+ * ranks. Building a scorer for every document would be costly: 
+ * postings need to be opened and sorted, constraint indices need to be built,
+ * etc. Instead, we keep one scorer per segment and move it forward
+ * in the order of increasing document ids:</p>
+ * <ol>
+ * <li>If we know which documents are going to be explained 
+ *     (see {@link DocSource}), all such documents in a segment are 
+ *     evaluated in one pass, when the first of them is explained. 
+ *     Results are memorized.
+ * <li>Otherwise, the scorer is reused if the explained document
+ *     follows the current scorer document, and it is rebuilt if the 
+ *     explained document precedes it.
+ * </ol>
+ * <p>The cache keeps scorers (and their postings) open, so it should 
+ * be closed as soon as the request is processed (e.g., using 
+ * a close hook of the Solr request). The cache is thread-safe.</p>
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+public class StructExplainCache implements Closeable {
+  /**
+   * A source of documents that are going to be explained.
+   */
+  public interface DocSource {
+    /**
+     * @return top-level (i.e., not segment) ids of documents to be 
+     *         explained (in any order), or null, if they are not known.
+     */
+    int[] getDocIds();
+  }
+  
+  /**
+   * Constructor.
+   * 
+   * @param docSource   a source of explained documents, or null, 
+   *                    if they are not known in advance.
+   */
+  public StructExplainCache(DocSource docSource) {
+    mDocSource = docSource;
+  }
+  
+  /**
+   * Finds information about the match in a given document.
+   * 
+   * @param context         a segment context.
+   * @param doc             a segment document id.
+   * @param scorerFactory   a factory creating scorers for the segment.
+   * @return information about the match, or null, if the document 
+   *         does not match.
+   * @throws IOException
+   */
+  synchronized StructScorerVer3.MatchInfo getMatchInfo(
+                            AtomicReaderContext context, int doc,
+                            ParallelSegmentSearcher.ScorerFactory scorerFactory) 
+                            throws IOException {
+    SegmentState st = mSegments.get(context.reader());
+    
+    if (st == null) {
+      st = new SegmentState();
+      mSegments.put(context.reader(), st);
+      
+      int[] docs = getSegmentDocs(getDocIds(), context.docBase, 
+                                  context.reader().maxDoc());
+      // all listed documents are evaluated in one pass
+      for (int d : docs) 
+        st.mMatchInfos.put(d, evaluate(st, context, d, scorerFactory));
+    }
+    if (st.mMatchInfos.containsKey(doc)) return st.mMatchInfos.get(doc);
+    
+    StructScorerVer3.MatchInfo res = evaluate(st, context, doc, scorerFactory);
+    st.mMatchInfos.put(doc, res);
+    return res;
+  }
+  
+  /**
+   * Releases all the scorers and forgets the source of documents.
+   */
+  @Override
+  public synchronized void close() {
+    mSegments.clear();
+    mDocSource = null;
+    mDocIds = null;
+  }
+  
+  /**
+   * Selects documents belonging to a given segment.
+   * 
+   * @param docIds    top-level document ids (can be null).
+   * @param docBase   the id of the first segment document.
+   * @param maxDoc    the number of segment documents.
+   * @return sorted unique segment ids of selected documents.
+   */
+  static int[] getSegmentDocs(int[] docIds, int docBase, int maxDoc) {
+    if (docIds == null) return new int[0];
+    
+    int[] res = new int[docIds.length];
+    int   qty = 0;
+    
+    for (int id : docIds) {
+      if (id >= docBase && id - docBase < maxDoc) res[qty++] = id - docBase;
+    }
+    Arrays.sort(res, 0, qty);
+    
+    int uniqQty = 0;
+    for (int i = 0; i < qty; ++i) {
+      if (uniqQty == 0 || res[uniqQty - 1] != res[i]) res[uniqQty++] = res[i];
+    }
+    return Arrays.copyOf(res, uniqQty);
+  }
+  
+  /**
+   * @return ids of explained documents (obtained only once), or null, 
+   *         if they are not known.
+   */
+  private int[] getDocIds() {
+    if (mDocIds == null && mDocSource != null) {
+      mDocIds = mDocSource.getDocIds();
+      mDocSource = null;
+    }
+    return mDocIds;
+  }
+  
+  /**
+   * Positions the segment scorer at a given document (the scorer 
+   * is rebuilt only if it is already past the document) and 
+   * collects information about the match.
+   * 
+   * @return information about the match, or null, if the document 
+   *         does not match.
+   */
+  private StructScorerVer3.MatchInfo evaluate(SegmentState st,
+                            AtomicReaderContext context, int doc,
+                            ParallelSegmentSearcher.ScorerFactory scorerFactory) 
+                            throws IOException {
+    if (st.mNoMatches) return null;
+    if (st.mScorer == null || st.mScorer.docID() > doc) {
+      st.mScorer = scorerFactory.create(context);
+      if (st.mScorer == null) {
+        st.mNoMatches = true;
+        return null;
+      }
+      ++mScorerQty;
+    }
+    int curr = st.mScorer.docID();
+    if (curr < doc) curr = st.mScorer.advance(doc);
+    if (curr != doc) return null;
+    
+    return st.mScorer.getMatchInfo(MAX_SPAN_QTY);
+  }
+  
+  /**
+   * @return the number of scorers created so far.
+   */
+  synchronized int getScorerQty() { return mScorerQty; }
+  
+  /**
+   * The state of one segment.
+   */
+  private static class SegmentState {
+    /** A scorer, which is moved forward, or null, if it is not created yet. */
+    StructScorerVer3                              mScorer;
+    /** True if no document in the segment can match. */
+    boolean                                       mNoMatches = false;
+    /** Memorized information about matches (null for non-matching documents). */
+    HashMap<Integer, StructScorerVer3.MatchInfo>  mMatchInfos = 
+                                new HashMap<Integer, StructScorerVer3.MatchInfo>();
+  }
+  
+  /** The maximum number of matching spans (in a document) that are listed. */
+  static final int MAX_SPAN_QTY = 10;
+  
+  private DocSource                                 mDocSource;
+  private int[]                                     mDocIds;
+  private int                                       mScorerQty = 0;
+  private final IdentityHashMap<Object, SegmentState> mSegments = 
+                                        new IdentityHashMap<Object, SegmentState>();
+}
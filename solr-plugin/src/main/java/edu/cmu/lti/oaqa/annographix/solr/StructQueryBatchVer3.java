@@ -0,0 +1,204 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.Bits;
+
+/**
+ * A batch of structured queries (e.g., variants of the same question
+ * with relaxed constraints or alternative labels) that are evaluated together.
+ * 
+ * <p>In each segment, a posting of every distinct term is read only once:
+ * postings are shared among queries (see {@link SharedPostings}). Hence, 
+ * elements of a shared term are decoded only once per document, whereas
+ * span and constraint checking is still carried out by a separate 
+ * scorer of each query.</p>
+ * 
+ * <p>Shared postings are traversed in the order of increasing document ids.
+ * A posting is advanced only to a document that is not larger than the
+ * smallest document, where <b>some</b> query can still match: it is
+ * the smallest among the largest current documents of query postings.
+ * Queries whose postings are all positioned at the same document
+ * are verified in this document.</p>
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+public class StructQueryBatchVer3 {
+  /**
+   * Constructor.
+   * 
+   * @param queries   a list of queries.
+   */
+  public StructQueryBatchVer3(List<StructQueryVer3> queries) {
+    mQueries = new ArrayList<StructQueryVer3>(queries);
+  }
+  
+  /**
+   * Evaluates all queries of the batch.
+   * 
+   * @param searcher    an index searcher.
+   * @param k           the number of top documents to retrieve for each query.
+   * @return an array of top documents: one entry per query.
+   * @throws IOException
+   */
+  public TopDocs[] search(IndexSearcher searcher, int k) throws IOException {
+    int qty = mQueries.size();
+    // Like IndexSearcher, we don't need more than maxDoc entries in a queue
+    k = Math.min(k, Math.max(1, searcher.getIndexReader().maxDoc()));
+    
+    StructQueryVer3.StructQueryWeightVer3 weights[] = 
+                                  new StructQueryVer3.StructQueryWeightVer3[qty];
+    TopScoreDocCollector                  collectors[] = 
+                                  new TopScoreDocCollector[qty];
+    // Documents are sorted by the query score: top-k pruning is possible
+    TopScoreThreshold                     topScores[] = 
+                                  new TopScoreThreshold[qty];
+    
+    for (int i = 0; i < qty; ++i) {
+      Weight w = searcher.createNormalizedWeight(mQueries.get(i));
+      
+      if (!(w instanceof StructQueryVer3.StructQueryWeightVer3)) {
+        throw new RuntimeException("Bug: unexpected weight class: " + 
+                                   w.getClass().getName());
+      }
+      weights[i] = (StructQueryVer3.StructQueryWeightVer3) w;
+      collectors[i] = TopScoreDocCollector.create(k, true);
+      topScores[i] = weights[i].createTopScores();
+    }
+    
+    for (AtomicReaderContext context : searcher.getIndexReader().leaves()) {
+      HashMap<Term, SharedPostings> sharedPosts = 
+                                          new HashMap<Term, SharedPostings>();
+      StructScorerVer3  scorers[] = new StructScorerVer3[qty];
+      SharedPostings    queryPosts[][][] = new SharedPostings[qty][][];
+      Bits              liveDocs = context.reader().getLiveDocs();
+      
+      for (int i = 0; i < qty; ++i) {
+        collectors[i].setNextReader(context);
+        scorers[i] = weights[i].createScorer(context, liveDocs, 
+                                             topScores[i],
+                                             sharedPosts, false);
+        if (scorers[i] == null) continue;
+        collectors[i].setScorer(scorers[i]);
+        
+        ArrayList<Term[]> terms = mQueries.get(i).getAllTerms();
+        queryPosts[i] = new SharedPostings[terms.size()][];
+        for (int j = 0; j < terms.size(); ++j) {
+          ArrayList<SharedPostings> alts = new ArrayList<SharedPostings>();
+          // alternatives missing in the segment have no shared postings
+          for (Term t : terms.get(j)) {
+            SharedPostings post = sharedPosts.get(t);
+            if (post != null) alts.add(post);
+          }
+          if (alts.isEmpty()) {
+            throw new RuntimeException("Bug: no shared posting for the term " + 
+                                       Arrays.toString(terms.get(j)));
+          }
+          queryPosts[i][j] = alts.toArray(new SharedPostings[alts.size()]);
+        }
+      }
+      searchSegment(scorers, queryPosts, collectors);
+    }
+    
+    TopDocs res[] = new TopDocs[qty];
+    for (int i = 0; i < qty; ++i) {
+      res[i] = collectors[i].topDocs();
+    }
+    return res;
+  }
+  
+  /**
+   * Evaluates all queries in one segment.
+   * 
+   * @param scorers     query scorers (null, if a query cannot match).
+   * @param queryPosts  shared postings of each query node of each query 
+   *                    (a node can have several alternative postings).
+   * @param collectors  collectors of top documents.
+   * @throws IOException
+   */
+  private void searchSegment(StructScorerVer3       scorers[],
+                             SharedPostings         queryPosts[][][],
+                             TopScoreDocCollector   collectors[]) 
+                             throws IOException {
+    int qty = scorers.length;
+    int queryDocs[] = new int[qty];
+    int target = 0;
+    
+    while (true) {
+      int minDoc = DocIdSetIterator.NO_MORE_DOCS;
+      
+      for (int i = 0; i < qty; ++i) {
+        if (scorers[i] == null) continue;
+        
+        int doc = -1;
+        // advance() doesn't move postings positioned at or after the target
+        for (SharedPostings alts[] : queryPosts[i]) {
+          // a node is present if any of its alternatives is present
+          int nodeDoc = DocIdSetIterator.NO_MORE_DOCS;
+          
+          for (SharedPostings post : alts) {
+            nodeDoc = Math.min(nodeDoc, post.advance(target));
+          }
+          doc = Math.max(doc, nodeDoc);
+        }
+        if (doc == DocIdSetIterator.NO_MORE_DOCS) {
+          // the query cannot match in the remaining documents
+          scorers[i] = null;
+          continue;
+        }
+        queryDocs[i] = doc;
+        minDoc = Math.min(minDoc, doc);
+      }
+      if (minDoc == DocIdSetIterator.NO_MORE_DOCS) break;
+      /*
+       *  No query can match a document smaller than minDoc: 
+       *  it is safe to advance all postings to minDoc. 
+       */
+      if (minDoc > target) {
+        target = minDoc;
+        continue;
+      }
+      // All postings of these queries are positioned at the target document
+      for (int i = 0; i < qty; ++i) {
+        if (scorers[i] == null || queryDocs[i] != target) continue;
+        
+        if (scorers[i].approximation().advance(target) != target) {
+          throw new RuntimeException("Bug: the approximation of the query " + 
+                                     i + " is not positioned at the document " + 
+                                     target);
+        }
+        if (scorers[i].matches()) collectors[i].collect(target);
+      }
+      ++target;
+    }
+  }
+  
+  private final ArrayList<StructQueryVer3> mQueries;
+}
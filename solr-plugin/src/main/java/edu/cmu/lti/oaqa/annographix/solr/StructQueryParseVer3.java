@@ -16,6 +16,7 @@
 package edu.cmu.lti.oaqa.annographix.solr;
 
 import java.util.*;
+import java.util.regex.Pattern;
 
 import com.cedarsoftware.util.DeepEquals;
 
@@ -42,6 +43,13 @@ public class StructQueryParseVer3 {
   public static final char LABEL_SEPARATOR = ':';
   public static final char PREFIX_OP = '#';
   public static final String PREFIX_OP_STR = PREFIX_OP + "";
+  /** 
+   * Separates alternatives in a lexical entry, e.g., ~:run|ran matches 
+   * either run or ran, see {@link #getAlternatives(String)}.
+   */
+  public static final char ALT_SEPARATOR = '|';
+  
+  private static final String ALT_SEPARATOR_REGEX = Pattern.quote(ALT_SEPARATOR + "");
   
   private static final String CONSTR_FMT = PREFIX_OP +
       "<constraint name>(<head element label>,<dependent element label 1>,...<dependent element label N>)";
@@ -53,6 +61,14 @@ public class StructQueryParseVer3 {
     return mTokens;
   }
 
+  /**
+   * @param     label   a label of a text/annotation term.
+   * @return    the index of the labeled term, or null, if there is no such label.
+   */
+  public Integer getLabelId(String label) {
+    return mLabel2Id.get(label);
+  }
+
   /**
    * @return an array of field types (an array element denotes 
    * either a text field or an annotation field).
@@ -131,6 +147,7 @@ public class StructQueryParseVer3 {
               "Bad token '%s', should start with %c, %s, or %s",
               tok, PREFIX_OP, PREFIX_TEXT, PREFIX_ANNOT));
         }
+        e.mToken = normalizeAlternatives(e.mToken, type, tok);
         addOneElement(e, type);
       }
     }
@@ -152,7 +169,55 @@ public class StructQueryParseVer3 {
      *  unique IDs to connected subgraphs.
      */
     compConnectInfo();
-     
+    
+    compCanonicalForm();
+  }
+  
+  /**
+   * @return a canonical text of the query, where elements are 
+   *         ordered canonically and are given canonical labels,
+   *         while constraints are sorted and de-duplicated. Two queries
+   *         that differ only in labels, in the order of elements, or
+   *         in the order of constraints are likely (but not guaranteed) 
+   *         to have the same canonical text. However, queries 
+   *         with the same canonical text are always equivalent.
+   */
+  public String getCanonicalText() {
+    return mCanonicalText;
+  }
+  
+  /**
+   * @return true if the internal representation of the parse 
+   *         (except labels) coincides with the representation
+   *         of the parsed canonical text.
+   */
+  public boolean isCanonical() {
+    return mIsCanonical;
+  }
+  
+  /**
+   * @param     index   a token (text/annotation term) index.
+   * @return    the index of the term in the canonical form of the query,
+   *            see {@link #getCanonicalText()}.
+   */
+  public int getCanonicalId(int index) {
+    return mCanonId[index];
+  }
+  
+  /**
+   * @return a parse of the canonical query text, see {@link #getCanonicalText()};
+   *         if the parse is already canonical, the function returns this object.
+   * @throws SyntaxError
+   */
+  public StructQueryParseVer3 getCanonicalParse() throws SyntaxError {
+    if (mIsCanonical) return this;
+    
+    StructQueryParseVer3 res = mCanonicalParse;
+    if (res == null) {
+      // A benign race: several threads may create equivalent objects
+      res = mCanonicalParse = new StructQueryParseVer3(mCanonicalText);
+    }
+    return res;
   }
 
   /**
@@ -285,6 +350,86 @@ public class StructQueryParseVer3 {
            label.indexOf(')') == -1;
   }
   
+  /**
+   * Splits a (normalized) lexical entry into alternatives.
+   * 
+   * @param token   a lexical entry, e.g., run|ran.
+   * @return an array of alternatives, which has a single element, 
+   *         if the entry has no alternatives.
+   */
+  public static String[] getAlternatives(String token) {
+    return token.indexOf(ALT_SEPARATOR) < 0 ? 
+           new String[] { token } : 
+           token.split(ALT_SEPARATOR_REGEX);
+  }
+  
+  /**
+   * Checks alternatives of a lexical entry and brings them to the 
+   * normal form: alternatives are sorted and duplicates are removed.
+   * Thus, equivalent entries, e.g., ran|run and run|ran, have
+   * the same canonical form (see {@link #getCanonicalText()}).
+   * 
+   * @param lexEntry    a lexical entry.
+   * @param type        a field type.
+   * @param token       full text of a token.
+   * @return a normalized lexical entry.
+   * @throws SyntaxError
+   */
+  private String normalizeAlternatives(String lexEntry, FieldType type, String token) 
+                                      throws SyntaxError {
+    if (lexEntry.indexOf(ALT_SEPARATOR) < 0) {
+      checkAnyToken(lexEntry, type, token);
+      return lexEntry;
+    }
+    TreeSet<String> alts = new TreeSet<String>();
+    
+    // -1 preserves trailing empty strings
+    for (String alt : lexEntry.split(ALT_SEPARATOR_REGEX, -1)) {
+      if (alt.isEmpty()) {
+        throw new SyntaxError(String.format(
+            "Bad token '%s', an empty alternative", token));
+      }
+      checkAnyToken(alt, type, token);
+      alts.add(alt);
+    }
+    StringBuilder sb = new StringBuilder();
+    
+    for (String alt : alts) {
+      if (sb.length() > 0) sb.append(ALT_SEPARATOR);
+      sb.append(alt);
+    }
+    return sb.toString();
+  }
+  
+  /**
+   * Checks that a wildcard {@link UtilConst#STRING_ANY} is used only in 
+   * a valid type-only annotation term, e.g., NamedEntity_#any, see 
+   * {@link UtilConst#combineFieldValueAny(String)}. Such a term is 
+   * indexed as is: hence, it is not expanded at query time.
+   * 
+   * @param lexEntry    a lexical entry of the token.
+   * @param type        a field type.
+   * @param token       full text of a token.
+   * @throws SyntaxError
+   */
+  private void checkAnyToken(String lexEntry, FieldType type, String token) 
+                            throws SyntaxError {
+    if (!lexEntry.equals(UtilConst.STRING_ANY) && 
+        !lexEntry.endsWith(UtilConst.VALUE_SEPARATOR + UtilConst.STRING_ANY)) {
+      return;
+    }
+    
+    String annotType = UtilConst.getAnnotationType(lexEntry);
+    
+    if (type != FieldType.FIELD_ANNOTATION || annotType == null ||
+        !lexEntry.equals(UtilConst.combineFieldValueAny(annotType))) {
+      throw new SyntaxError(String.format(
+          "Bad token '%s', '%s' can be used only with an annotation type, e.g., %s%s",
+          token, UtilConst.STRING_ANY, 
+          PREFIX_ANNOT + LABEL_SEPARATOR, UtilConst.combineFieldValueAny("ne")));
+    }
+  }
+  
   /**
    * 
    * Parse a token, which comes in a format: <prefix> <optional label> : <lexical entry>.
@@ -447,6 +592,109 @@ public class StructQueryParseVer3 {
     }
   }
   
+  /**
+   * Computes the canonical text of the query (see {@link #getCanonicalText()}). 
+   * 
+   * <p>Elements are sorted using a label-independent signature: the type
+   * and the text of the element followed by the sorted descriptions
+   * of constraints, where the element participates. Ties are resolved
+   * using the original order of elements. Then, the i-th element
+   * in the sorted order gets the label <code>n&lt;i&gt;</code>. 
+   * Constraints are sorted by the head element, the constraint type,
+   * and the dependent element.</p>
+   */
+  private void compCanonicalForm() {
+    final int     N = mTokens.size();
+    final String  baseSig[] = new String[N];
+    
+    for (int i = 0; i < N; ++i) {
+      baseSig[i] = (mTypes.get(i) == FieldType.FIELD_TEXT ? PREFIX_TEXT : PREFIX_ANNOT) + 
+                   mTokens.get(i);
+    }
+    
+    ArrayList<ArrayList<String>> edgeSig = new ArrayList<ArrayList<String>>();
+    for (int i = 0; i < N; ++i) edgeSig.add(new ArrayList<String>());
+    
+    for (int i = 0; i < N; ++i) {
+      ArrayList<ConstraintType> constr = mConstrType.get(i);
+      ArrayList<Integer>        depIds = mDependId.get(i);
+      for (int k = 0; k < constr.size(); ++k) {
+        int depId = depIds.get(k);
+        edgeSig.get(i).add("out " + constr.get(k) + " " + baseSig[depId]);
+        edgeSig.get(depId).add("in " + constr.get(k) + " " + baseSig[i]);
+      }
+    }
+    
+    final String sig[] = new String[N];
+    for (int i = 0; i < N; ++i) {
+      ArrayList<String> e = edgeSig.get(i);
+      Collections.sort(e);
+      sig[i] = baseSig[i] + " " + e;
+    }
+    
+    Integer order[] = new Integer[N];
+    for (int i = 0; i < N; ++i) order[i] = i;
+    // The sort is stable: ties are resolved using the original order
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer o1, Integer o2) {
+        return sig[o1].compareTo(sig[o2]);
+      }
+    });
+    
+    int canonId[] = mCanonId = new int[N];
+    mIsCanonical = true;
+    for (int i = 0; i < N; ++i) { 
+      canonId[order[i]] = i;
+      if (order[i] != i) mIsCanonical = false;
+    }
+    
+    StringBuilder sb = new StringBuilder();
+    
+    for (int i = 0; i < N; ++i) {
+      int k = order[i];
+      if (i > 0) sb.append(' ');
+      sb.append(mTypes.get(k) == FieldType.FIELD_TEXT ? PREFIX_TEXT : PREFIX_ANNOT);
+      sb.append('n').append(i).append(LABEL_SEPARATOR).append(mTokens.get(k));
+    }
+    
+    for (int i = 0; i < N; ++i) {
+      int k = order[i];
+      
+      ArrayList<ConstraintType> constr = mConstrType.get(k);
+      ArrayList<Integer>        depIds = mDependId.get(k);
+      /*
+       *  Constraints of one head are sorted by the type and the canonical id 
+       *  of the dependent element. Duplicates are removed.
+       */
+      TreeSet<Long> sortedConstr = new TreeSet<Long>();
+      for (int j = 0; j < constr.size(); ++j) {
+        sortedConstr.add(((long)constr.get(j).ordinal() << 32) | 
+                         canonId[depIds.get(j)]);
+      }
+      if (sortedConstr.size() != constr.size()) mIsCanonical = false;
+      
+      int j = 0;
+      for (long c : sortedConstr) {
+        ConstraintType  type = ConstraintType.values()[(int)(c >>> 32)];
+        int             depCanonId = (int)(c & 0xFFFFFFFFL); 
+        
+        if (mIsCanonical && 
+            (constr.get(j) != type || canonId[depIds.get(j)] != depCanonId)) {
+          mIsCanonical = false;
+        }
+        ++j;
+        
+        sb.append(' ').append(PREFIX_OP);
+        sb.append(type == ConstraintType.CONSTRAINT_PARENT ? 
+                  CONSTR_PARENT : CONSTR_CONTAINS);
+        sb.append("(n").append(i).append(",n").append(depCanonId).append(')');
+      }
+    }
+    
+    mCanonicalText = sb.toString();
+  }
+  
   private void doVisit(int compId, int nodeId, HashSet<Integer> visited) {
     if (visited.contains(nodeId)) return; // never visit twice
     visited.add(nodeId);
@@ -472,6 +720,15 @@ public class StructQueryParseVer3 {
 
   private HashMap<Integer, ArrayList<Integer>>      mEdges = 
                                       new HashMap<Integer, ArrayList<Integer>>();
+  
+  /** A canonical text of the query. */
+  private String                                    mCanonicalText;
+  /** Indices of terms in the canonical form of the query. */
+  private int[]                                     mCanonId;
+  /** True if this parse is canonical. */
+  private boolean                                   mIsCanonical;
+  /** A (lazily created) parse of the canonical text. */
+  private volatile StructQueryParseVer3             mCanonicalParse;
 }
 
 class LexicalEntryParse {
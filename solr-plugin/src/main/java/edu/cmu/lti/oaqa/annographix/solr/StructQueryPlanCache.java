@@ -0,0 +1,143 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.search.SyntaxError;
+
+/**
+ * A bounded thread-safe LRU cache of parsed structured queries 
+ * (see {@link StructQueryParseVer3}). 
+ * 
+ * <p>A parse depends only on the query text, but not on local parameters
+ * such as the span size or field names. Hence, the cache is keyed by the 
+ * normalized query text. Cached parses are shared among requests
+ * and, therefore, <b>must not be modified</b>.</p>
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+public class StructQueryPlanCache {
+  /**
+   * Constructor.
+   * 
+   * @param maxSize     the maximum number of cached entries.
+   */
+  public StructQueryPlanCache(final int maxSize) {
+    mMaxSize = maxSize;
+    mCache = new LinkedHashMap<String, StructQueryParseVer3>(
+                    16, 0.75f, true /* access order */) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(
+                        Map.Entry<String, StructQueryParseVer3> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+  
+  /**
+   * Retrieves a query parse from the cache or parses the 
+   * query, if the parse is not cached.
+   * 
+   * @param text    a query text.
+   * @return        a (shared) query parse.
+   * @throws SyntaxError
+   */
+  public StructQueryParseVer3 getParse(String text) throws SyntaxError {
+    String key = normalize(text);
+    StructQueryParseVer3 res;
+    
+    synchronized (mCache) {
+      res = mCache.get(key);
+    }
+    if (res != null) {
+      mHitQty.incrementAndGet();
+      return res;
+    }
+    mMissQty.incrementAndGet();
+    /*
+     *  Parsing is done outside of the synchronized block. 
+     *  If two threads parse the same query concurrently, 
+     *  the second one simply replaces the entry. 
+     */
+    res = new StructQueryParseVer3(key);
+    synchronized (mCache) {
+      mCache.put(key, res);
+    }
+    return res;
+  }
+  
+  /**
+   * @return cache statistics: the maximum and the current size,
+   *         the number of hits and misses, as well as the hit ratio.
+   */
+  public NamedList<Object> getStatistics() {
+    NamedList<Object> res = new SimpleOrderedMap<Object>();
+    long hitQty = mHitQty.get(), missQty = mMissQty.get();
+    int  size;
+    
+    synchronized (mCache) {
+      size = mCache.size();
+    }
+    
+    res.add("planCacheMaxSize", mMaxSize);
+    res.add("planCacheSize", size);
+    res.add("planCacheHits", hitQty);
+    res.add("planCacheMisses", missQty);
+    res.add("planCacheHitRatio", 
+            hitQty + missQty > 0 ? (float)hitQty / (hitQty + missQty) : 0.0f);
+    return res;
+  }
+  
+  /**
+   * Normalizes query text: trims the text and replaces
+   * each sequence of white-spaces with a single space. White-spaces
+   * are the same characters as the ones matched by the regular 
+   * expression <code>\s</code>, which is used by the query parser.
+   * 
+   * @param text    a query text.
+   * @return        a normalized query text.
+   */
+  static String normalize(String text) {
+    StringBuilder sb = new StringBuilder(text.length());
+    boolean       prevSpace = false;
+    
+    for (int i = 0; i < text.length(); ++i) {
+      char c = text.charAt(i);
+      if (c == ' ' || c == '\t' || c == '\n' || 
+          c == '\u000B' || c == '\f' || c == '\r') {
+        prevSpace = true;
+      } else {
+        if (prevSpace && sb.length() > 0) sb.append(' ');
+        prevSpace = false;
+        sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+  
+  private final int                                       mMaxSize;
+  private final LinkedHashMap<String, StructQueryParseVer3> mCache;
+  private final AtomicLong                                mHitQty = new AtomicLong();
+  private final AtomicLong                                mMissQty = new AtomicLong();
+}
@@ -0,0 +1,288 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.request.SolrRequestInfo;
+import org.apache.solr.search.SortSpec;
+import org.apache.solr.search.WrappedQuery;
+
+/**
+ * Request-scoped state of structured queries: time budgets, 
+ * outputs of execution statistics, and caches used to explain matches.
+ * 
+ * <p>Solr uses queries as keys of its caches. Thus, a query can outlive 
+ * the request, which created it, and it can be evaluated again, e.g., 
+ * when caches are autowarmed. Hence, request-scoped objects are not 
+ * kept in queries. Instead, the query parser registers them in the
+ * context of the Solr request (see 
+ * {@link org.apache.solr.request.SolrQueryRequest#getContext()}) and 
+ * weights look them up, when they are created 
+ * (in the thread processing the request). The state is keyed by queries: 
+ * equal queries (see {@link StructQueryVer3#equals(Object)}) share it.</p>
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+public class StructQueryRequestState {
+  /** A key of the state in the context of the Solr request. */
+  public static final String CONTEXT_KEY = StructQueryRequestState.class.getName();
+  
+  /**
+   * A state of one query. Closing the state (when the request is closed)
+   * reports execution statistics, which were not reported yet, 
+   * see {@link StructQueryStats#flush()}.
+   */
+  public static class QueryState implements Closeable {
+    /**
+     * @return a time budget, or null, if time is not limited.
+     */
+    public QueryTimeBudget getTimeBudget() {
+      return mTimeBudget;
+    }
+    
+    /**
+     * Sets a time budget, see {@link QueryTimeBudget}.
+     * 
+     * @param timeBudget  a time budget, or null, if time is not limited.
+     */
+    public void setTimeBudget(QueryTimeBudget timeBudget) {
+      mTimeBudget = timeBudget;
+    }
+    
+    /**
+     * Requests execution statistics, see {@link StructQueryStats}.
+     * Statistics are not gathered, unless debug output is requested or
+     * slow queries are logged.
+     * 
+     * @param debugInfo     debug output, or null, if it is not requested.
+     * @param slowQueryMs   a query is logged if it runs at least this 
+     *                      number of milliseconds, a negative value 
+     *                      disables logging.
+     */
+    public void setStatsOutput(NamedList<Object> debugInfo, long slowQueryMs) {
+      mStatsDebugInfo = debugInfo;
+      mSlowQueryMs = slowQueryMs;
+    }
+    
+    /**
+     * @return debug output for execution statistics, or null, 
+     *         if it is not requested.
+     */
+    public NamedList<Object> getStatsDebugInfo() {
+      return mStatsDebugInfo;
+    }
+    
+    /**
+     * @return a query is logged if it runs at least this number of 
+     *         milliseconds, a negative value means never.
+     */
+    public long getSlowQueryMs() {
+      return mSlowQueryMs;
+    }
+    
+    /**
+     * @return a cache used to explain matches, or null, if each 
+     *         explanation should be computed from scratch.
+     */
+    public StructExplainCache getExplainCache() {
+      return mExplainCache;
+    }
+    
+    /**
+     * Sets a cache used to explain matches, see {@link StructExplainCache}.
+     * 
+     * @param explainCache  a cache, or null, if each explanation
+     *                      should be computed from scratch.
+     */
+    public void setExplainCache(StructExplainCache explainCache) {
+      mExplainCache = explainCache;
+    }
+    
+    /**
+     * Memorizes execution statistics of a search carried out by the query.
+     * 
+     * @param stats   execution statistics.
+     */
+    synchronized void addStats(StructQueryStats stats) {
+      mStats.add(stats);
+    }
+    
+    /**
+     * Reports execution statistics of all searches, unless they 
+     * were reported already, see {@link StructQueryStats#flush()}.
+     */
+    public synchronized void flushStats() {
+      for (StructQueryStats stats : mStats) stats.flush();
+    }
+    
+    @Override
+    public void close() {
+      flushStats();
+    }
+    
+    private QueryTimeBudget    mTimeBudget;
+    private NamedList<Object>  mStatsDebugInfo;
+    private long               mSlowQueryMs = -1;
+    private StructExplainCache mExplainCache;
+    private final ArrayList<StructQueryStats> mStats = 
+                                          new ArrayList<StructQueryStats>();
+  }
+  
+  /**
+   * Constructor.
+   * 
+   * @param rb    a response builder of the request, or null.
+   */
+  public StructQueryRequestState(ResponseBuilder rb) {
+    mResponseBuilder = rb;
+  }
+  
+  /**
+   * Retrieves the state from the context of a Solr request.
+   * 
+   * @param reqInfo   a Solr request.
+   * @param create    if true, the state is created, unless it exists.
+   * @return the state, or null, if there is none (and create is false).
+   */
+  public static StructQueryRequestState get(SolrRequestInfo reqInfo, 
+                                            boolean create) {
+    Map<Object, Object>     context = reqInfo.getReq().getContext();
+    StructQueryRequestState res = 
+                      (StructQueryRequestState) context.get(CONTEXT_KEY);
+    
+    if (res == null && create) {
+      res = new StructQueryRequestState(reqInfo.getResponseBuilder());
+      context.put(CONTEXT_KEY, res);
+    }
+    return res;
+  }
+  
+  /**
+   * @return the state of the Solr request processed by the current thread, 
+   *         or null, if there is no such request or state.
+   */
+  static StructQueryRequestState getCurrent() {
+    SolrRequestInfo reqInfo = SolrRequestInfo.getRequestInfo();
+    
+    return reqInfo != null ? get(reqInfo, false) : null;
+  }
+  
+  /**
+   * Retrieves the state of a query.
+   * 
+   * @param query   a query: it should not be modified afterwards.
+   * @param create  if true, the state is created, unless it exists.
+   * @return the state, or null, if there is none (and create is false).
+   */
+  public synchronized QueryState getQueryState(Query query, boolean create) {
+    QueryState res = mQueryStates.get(query);
+    
+    if (res == null && create) {
+      res = new QueryState();
+      mQueryStates.put(query, res);
+    }
+    return res;
+  }
+  
+  /**
+   * Checks if the query is evaluated as (a part of) the main query 
+   * of the request, i.e., it is not a filter query. Only the main query
+   * is evaluated by Solr in a way, which respects the time allowed
+   * (see {@link QueryTimeBudget}).
+   * 
+   * @param query   a query.
+   * @return true if the query is the main query of the request, or 
+   *         one of its (possibly nested) Boolean clauses, and it is 
+   *         not used as a filter.
+   */
+  boolean isInMainQuery(Query query) {
+    if (mResponseBuilder == null) return false;
+    
+    List<Query> filters = mResponseBuilder.getFilters();
+    if (filters != null && filters.contains(query)) return false;
+    
+    return containsQuery(mResponseBuilder.getQuery(), query);
+  }
+  
+  /**
+   * Checks if the query is the top-level main query of the request, 
+   * whose results are sorted by score. Only then the score of the query
+   * is the final document score, and top-k pruning is possible 
+   * (see {@link TopScoreThreshold}). The query should not be a filter, 
+   * and the request should need neither a set of all matching documents 
+   * (e.g., for faceting) nor grouping. The number of found documents 
+   * (numFound) becomes a lower bound.
+   * 
+   * @param query   a query.
+   * @return true if the query is the score-sorted main query.
+   */
+  boolean isScoreSortedMainQuery(Query query) {
+    if (mResponseBuilder == null) return false;
+    if (mResponseBuilder.isNeedDocSet() || mResponseBuilder.grouping()) 
+      return false;
+    
+    List<Query> filters = mResponseBuilder.getFilters();
+    if (filters != null && filters.contains(query)) return false;
+    
+    Query root = mResponseBuilder.getQuery();
+    while (root instanceof WrappedQuery) 
+      root = ((WrappedQuery) root).getWrappedQuery();
+    if (root == null || !root.equals(query)) return false;
+    
+    SortSpec sortSpec = mResponseBuilder.getSortSpec();
+    Sort     sort = sortSpec != null ? sortSpec.getSort() : null;
+    if (sort == null) return true; // sorted by score by default
+    
+    SortField fields[] = sort.getSort();
+    return fields.length == 0 || 
+           fields[0].getType() == SortField.Type.SCORE && 
+           !fields[0].getReverse();
+  }
+  
+  /**
+   * Checks if the query is equal to the root query or to one of its
+   * (possibly nested) clauses.
+   */
+  private static boolean containsQuery(Query root, Query query) {
+    if (root == null) return false;
+    if (root instanceof WrappedQuery) 
+      return containsQuery(((WrappedQuery) root).getWrappedQuery(), query);
+    if (root.equals(query)) return true;
+    if (root instanceof BooleanQuery) {
+      for (BooleanClause c : ((BooleanQuery) root).getClauses()) {
+        if (containsQuery(c.getQuery(), query)) return true;
+      }
+    }
+    return false;
+  }
+  
+  private final ResponseBuilder           mResponseBuilder;
+  private final HashMap<Query, QueryState> mQueryStates = 
+                                          new HashMap<Query, QueryState>();
+}
@@ -0,0 +1,250 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import java.io.Closeable;
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Execution statistics of one search carried out by a structured query
+ * (i.e., statistics gathered by scorers created by the same weight).
+ * Each scorer gathers statistics of its segment (see {@link SegmentStats}) 
+ * and reports them once it is exhausted. When all segments are reported,
+ * statistics are added to the debug output (if requested) and the query 
+ * is logged if it was slow.
+ * 
+ * <p>A search can end before all scorers are exhausted, e.g., when the 
+ * time budget is exceeded (see {@link QueryTimeBudget}) or when the query 
+ * is a required clause of a Boolean query. Hence, statistics gathered 
+ * so far (including partial statistics of scorers that are not exhausted)
+ * can be reported using {@link #flush()}. This is done when the request 
+ * is closed (see {@link StructQueryRequestState.QueryState#close()}).</p>
+ * 
+ * <p>Statistics are gathered only if they are requested: otherwise,
+ * scorers do not read the clock.</p>
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+class StructQueryStats implements Closeable {
+  /**
+   * Counters of one segment.
+   */
+  static class SegmentStats {
+    /** The number of documents found by leapfrogging. */
+    long  mCandDocQty;
+    /** The number of documents whose spans were checked. */
+    long  mCheckedDocQty;
+    /** The number of documents whose matching spans were counted. */
+    long  mFreqDocQty;
+    /** The number of spans containing all query elements. */
+    long  mSpanQty;
+    /** The number of constraint-check iterations. */
+    long  mConstrIterQty;
+    /** The number of spans whose check was terminated because of max_iter. */
+    long  mMaxIterCutoffQty;
+    /** The number of decoded payload bytes. */
+    long  mPayloadBytes;
+    /** The time spent on leapfrogging. */
+    long  mLeapfrogNanos;
+    /** The time spent on reading elements and finding the first match. */
+    long  mCheckNanos;
+    /** The time spent on counting matching spans. */
+    long  mFreqNanos;
+    
+    /**
+     * Adds counters of another segment.
+     * 
+     * @param o   statistics of another segment.
+     */
+    void add(SegmentStats o) {
+      mCandDocQty += o.mCandDocQty;
+      mCheckedDocQty += o.mCheckedDocQty;
+      mFreqDocQty += o.mFreqDocQty;
+      mSpanQty += o.mSpanQty;
+      mConstrIterQty += o.mConstrIterQty;
+      mMaxIterCutoffQty += o.mMaxIterCutoffQty;
+      mPayloadBytes += o.mPayloadBytes;
+      mLeapfrogNanos += o.mLeapfrogNanos;
+      mCheckNanos += o.mCheckNanos;
+      mFreqNanos += o.mFreqNanos;
+    }
+    
+    NamedList<Object> toNamedList() {
+      NamedList<Object> res = new SimpleOrderedMap<Object>();
+      
+      res.add("candidateDocs", mCandDocQty);
+      res.add("checkedDocs", mCheckedDocQty);
+      res.add("freqDocs", mFreqDocQty);
+      res.add("spans", mSpanQty);
+      res.add("constrIter", mConstrIterQty);
+      res.add("maxIterCutoffs", mMaxIterCutoffQty);
+      res.add("payloadBytes", mPayloadBytes);
+      res.add("leapfrogNanos", mLeapfrogNanos);
+      res.add("checkNanos", mCheckNanos);
+      res.add("freqNanos", mFreqNanos);
+      return res;
+    }
+    
+    /**
+     * @return a copy of counters.
+     */
+    SegmentStats copy() {
+      SegmentStats res = new SegmentStats();
+      res.add(this);
+      return res;
+    }
+    
+    @Override
+    public String toString() {
+      return toNamedList().toString();
+    }
+  }
+  
+  /**
+   * Constructor.
+   * 
+   * @param plan          a (canonical) parsed query.
+   * @param segmQty       the number of index segments.
+   * @param debugInfo     debug output, or null, if it is not requested.
+   * @param slowQueryMs   a query is logged if it runs at least this 
+   *                      number of milliseconds, a negative value 
+   *                      disables logging.
+   */
+  StructQueryStats(String plan, int segmQty, 
+                   NamedList<Object> debugInfo, long slowQueryMs) {
+    mPlan = plan;
+    mSegmQty = segmQty;
+    mDebugInfo = debugInfo;
+    mSlowQueryMs = slowQueryMs;
+    mStartNanos = System.nanoTime();
+    mSegments = new SegmentStats[segmQty];
+    mScorers = new StructScorerVer3[segmQty];
+  }
+  
+  /**
+   * Memorizes a scorer of a segment, which gathers statistics: if the 
+   * scorer is not exhausted, its partial statistics are reported 
+   * by {@link #flush()}.
+   * 
+   * @param ord     a segment index.
+   * @param scorer  a scorer.
+   */
+  synchronized void addScorer(int ord, StructScorerVer3 scorer) {
+    checkSegment(ord);
+    if (mSegments[ord] == null) mScorers[ord] = scorer;
+  }
+  
+  /**
+   * Memorizes statistics of a segment. 
+   * 
+   * @param ord     a segment index.
+   * @param stats   statistics, or null, if no document can match in the segment.
+   */
+  synchronized void addSegment(int ord, SegmentStats stats) {
+    checkSegment(ord);
+    if (mSegments[ord] != null) return; // the segment was reported already
+    
+    mSegments[ord] = stats != null ? stats : new SegmentStats();
+    mScorers[ord] = null;
+    if (++mDoneQty == mSegmQty && !mReported) report(true);
+  }
+  
+  /**
+   * Reports statistics gathered so far, unless they were reported already
+   * or no segment was searched. Segments, whose scorers are not exhausted, 
+   * are reported partially, and segments, which were not searched, 
+   * are omitted.
+   */
+  synchronized void flush() {
+    if (mReported) return;
+    
+    boolean started = mDoneQty > 0;
+    for (int i = 0; i < mSegmQty; ++i) {
+      if (mScorers[i] != null) {
+        mSegments[i] = mScorers[i].getStats();
+        mScorers[i] = null;
+        started = true;
+      }
+    }
+    if (started) report(false);
+  }
+  
+  /**
+   * Flushes statistics, see {@link #flush()}.
+   */
+  @Override
+  public void close() {
+    flush();
+  }
+  
+  private void checkSegment(int ord) {
+    if (ord < 0 || ord >= mSegmQty) {
+      throw new RuntimeException("Bug: invalid segment index: " + ord);
+    }
+  }
+  
+  /**
+   * Adds statistics to the debug output and logs a slow query.
+   * 
+   * @param complete  true if all scorers are exhausted.
+   */
+  private void report(boolean complete) {
+    long          elapsedMs = (System.nanoTime() - mStartNanos) / 1000000;
+    SegmentStats  total = new SegmentStats();
+    
+    mReported = true;
+    for (SegmentStats s : mSegments) {
+      if (s != null) total.add(s);
+    }
+    
+    if (mDebugInfo != null) {
+      NamedList<Object> res = new SimpleOrderedMap<Object>();
+      
+      res.add("plan", mPlan);
+      res.add("elapsedMs", elapsedMs);
+      res.add("complete", complete);
+      res.add("total", total.toNamedList());
+      for (int i = 0; i < mSegmQty; ++i) {
+        if (mSegments[i] != null) {
+          res.add("segment" + i, mSegments[i].toNamedList());
+        }
+      }
+      mDebugInfo.add("search", res);
+    }
+    if (mSlowQueryMs >= 0 && elapsedMs >= mSlowQueryMs) {
+      logger.warn(String.format("Slow structured query (%d ms%s), plan: '%s', stats: %s",
+                                elapsedMs, complete ? "" : ", partial", mPlan, total));
+    }
+  }
+  
+  private static final Logger logger = LoggerFactory.getLogger(StructQueryStats.class);
+  
+  private final String            mPlan;
+  private final int               mSegmQty;
+  private final NamedList<Object> mDebugInfo;
+  private final long              mSlowQueryMs;
+  private final long              mStartNanos;
+  private final SegmentStats[]    mSegments;
+  /** Scorers, which are not exhausted (null for reported segments). */
+  private final StructScorerVer3[] mScorers;
+  private int                     mDoneQty = 0;
+  private boolean                 mReported = false;
+}
@@ -17,13 +17,19 @@ package edu.cmu.lti.oaqa.annographix.solr;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.lucene.index.*;
 import org.apache.lucene.search.*;
 import org.apache.lucene.search.similarities.Similarity;
 import org.apache.lucene.search.similarities.Similarity.SimScorer;
 import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.common.util.NamedList;
 import org.apache.solr.search.SyntaxError;
 
 import org.slf4j.Logger;
@@ -38,6 +44,12 @@ import edu.cmu.lti.oaqa.annographix.solr.StructQueryParseVer3.FieldType;
   *  a span <b>should be reasonably small, </b> e.g. roughly a sentence or 
   *  a paragraph.
   *  
+  *  <p>An annotation term of the form type_#any (e.g., ne_#any) matches
+  *  annotations of the type with any label. Such terms are emitted by
+  *  the indexer, so they are read as regular (single) postings 
+  *  rather than expanded into postings of all labels, 
+  *  see {@link UtilConst#combineFieldValueAny(String)}.</p>
+  *  
   *  @author Leonid Boytsov
   *
   */
@@ -55,10 +67,32 @@ public class StructQueryVer3 extends Query {
    * before giving up on constraint checking for the <b>current span</b>.
    */
   private int mMaxSpanCheckConstrIter;
+  /** A version of the annotation payload format. */
+  private int       mPayloadVer;
+  /** If true, we only check if the document matches, but do not count matching spans. */
+  private boolean   mMatchOnly;
+  /** If positive, documents that cannot get into top-k results are not verified. */
+  private int       mTopK;
   /** A label of a top-level covering annotation; equal to null, if there is none. */
   private String    mCoverAnnotLabel;
-  /** Lucene term objects */
-  private ArrayList<Term>   mTerms = new ArrayList<Term>();
+  /** A cache of decoded annotations for hot labels (can be null). */
+  private AnnotColumnCache  mAnnotCache;
+  /** An executor to search segments concurrently (can be null). */
+  private ExecutorService   mSearchExecutor;
+  /** The maximum number of threads used to search segments of the index. */
+  private int               mSearchThreadQty = 1;
+  /** 
+   * Weights of query nodes (in the order of query tokens), or null, 
+   * if per-node scoring is disabled, see {@link #setNodeScoring(float[], float)}.
+   */
+  private float[]           mNodeWeights;
+  /** A weight of span compactness in per-node scoring. */
+  private float             mCompactWeight = 0;
+  /** 
+   * Lucene term objects: each query node has one term per alternative
+   * lexical entry, see {@link StructQueryParseVer3#getAlternatives(String)}.
+   */
+  private ArrayList<Term[]> mTerms = new ArrayList<Term[]>();
   /** A term for the covering annotation, or null, if there is none. */
   private Term              mCoverAnnotTerm;
   
@@ -86,6 +120,23 @@ public class StructQueryVer3 extends Query {
    *                            the text field mTextFieldName.
    * @param maxSpanCheckConstrIter    The maximum number of brute-force iterations that we carry out
    *                                  before giving up on constraint checking for the <b>current span</b>.
+   * @param payloadVer          A version of the annotation payload format, e.g., 
+   *                            {@link UtilConst#PAYLOAD_VERSION_3}.
+   * @param matchOnly           If true, we stop checking spans in a document
+   *                            as soon as the first matching span is found: 
+   *                            all matching documents get the frequency one.
+   * @param topK                If positive, we keep track of the top-k scores
+   *                            and do not verify documents whose score cannot 
+   *                            exceed the k-th largest score seen so far
+   *                            (such documents do not match). Pruning is 
+   *                            enabled only if the query is the main query
+   *                            of a Solr request whose results are sorted by score
+   *                            (see {@link StructQueryRequestState#isScoreSortedMainQuery(Query)}),
+   *                            or if it is evaluated by {@link StructQueryBatchVer3}.
+   *                            The number of matching documents (numFound)
+   *                            is then only a lower bound. k should not be 
+   *                            smaller than the number of collected documents:
+   *                            {@link StructRetrQParserVer3} makes sure it is not.
    * @throws SyntaxError
    */
   public StructQueryVer3(String text, 
@@ -93,8 +144,43 @@ public class StructQueryVer3 extends Query {
                          String coverAnnotLabel,
                          String textFieldName, 
                          String annotFieldName, 
-                         int    maxSpanCheckConstrIter)
+                         int    maxSpanCheckConstrIter,
+                         int    payloadVer,
+                         boolean matchOnly,
+                         int    topK)
                          throws SyntaxError
+  {
+    this(text, new StructQueryParseVer3(text),
+         span, coverAnnotLabel, textFieldName, annotFieldName,
+         maxSpanCheckConstrIter, payloadVer, matchOnly, topK);
+  }
+  
+  /**
+   * Constructor that accepts an already parsed query, e.g., 
+   * a parse retrieved from {@link StructQueryPlanCache}. The parse
+   * is not modified and can be shared among queries.
+   * 
+   * @param text                A text of query.
+   * @param queryParse          A parsed query text.
+   * @param span                See {@link #StructQueryVer3(String, int, String, String, String, int, int, boolean, int)}.
+   * @param coverAnnotLabel     See {@link #StructQueryVer3(String, int, String, String, String, int, int, boolean, int)}.
+   * @param textFieldName       See {@link #StructQueryVer3(String, int, String, String, String, int, int, boolean, int)}.
+   * @param annotFieldName      See {@link #StructQueryVer3(String, int, String, String, String, int, int, boolean, int)}.
+   * @param maxSpanCheckConstrIter    See {@link #StructQueryVer3(String, int, String, String, String, int, int, boolean, int)}.
+   * @param payloadVer          See {@link #StructQueryVer3(String, int, String, String, String, int, int, boolean, int)}.
+   * @param matchOnly           See {@link #StructQueryVer3(String, int, String, String, String, int, int, boolean, int)}.
+   * @param topK                See {@link #StructQueryVer3(String, int, String, String, String, int, int, boolean, int)}.
+   */
+  public StructQueryVer3(String text,
+                         StructQueryParseVer3 queryParse,
+                         int    span,
+                         String coverAnnotLabel,
+                         String textFieldName, 
+                         String annotFieldName, 
+                         int    maxSpanCheckConstrIter,
+                         int    payloadVer,
+                         boolean matchOnly,
+                         int    topK)
   {
     mQueryText = text;
     
@@ -106,28 +192,104 @@ public class StructQueryVer3 extends Query {
     mAnnotFieldName = annotFieldName;
     
     mMaxSpanCheckConstrIter = maxSpanCheckConstrIter;
+    mPayloadVer = payloadVer;
+    mMatchOnly = matchOnly;
+    mTopK = topK;
     
-    mQueryParse = new StructQueryParseVer3(mQueryText);
+    mQueryParse = queryParse;
     
     mTokens = mQueryParse.getTokens();
     mTokenTypes = mQueryParse.getTypes();
     
     for (int i = 0; i < mTokens.size(); ++i) {
-      mTerms.add(new Term(
-                          mTokenTypes.get(i) == FieldType.FIELD_TEXT ? 
-                          mTextFieldName : mAnnotFieldName,
-                          mTokens.get(i)
-                         )
-                );
+      String  alts[] = StructQueryParseVer3.getAlternatives(mTokens.get(i));
+      Term    terms[] = new Term[alts.length];
+      
+      for (int k = 0; k < alts.length; ++k) {
+        terms[k] = new Term(
+                            mTokenTypes.get(i) == FieldType.FIELD_TEXT ? 
+                            mTextFieldName : mAnnotFieldName,
+                            alts[k]
+                           );
+      }
+      mTerms.add(terms);
     }
     
     if (mCoverAnnotLabel != null) {
       mCoverAnnotTerm = new Term(mAnnotFieldName, mCoverAnnotLabel);
     }
-    logger.info(
-        String.format("Query created, span %d, covering annot. '%s', maximum # of iter: %d",
+    if (logger.isDebugEnabled()) {
+      logger.debug(
+        String.format("Query created, span %d, covering annot. '%s', maximum # of iter: %d, payload ver.: %d, match only: %b, top-k: %d",
                       mSpan, mCoverAnnotLabel != null ? mCoverAnnotLabel:"",
-                      mMaxSpanCheckConstrIter));
+                      mMaxSpanCheckConstrIter, mPayloadVer, mMatchOnly, mTopK));
+    }
+  }
+  
+  /**
+   * Sets a cache of decoded annotations for hot labels, 
+   * see {@link AnnotColumnCache}. The cache does not affect
+   * query results. Hence, it is not a part of the query identity.
+   * 
+   * @param annotCache  a cache, or null, if caching should be disabled.
+   */
+  public void setAnnotColumnCache(AnnotColumnCache annotCache) {
+    mAnnotCache = annotCache;
+  }
+  
+  /**
+   * Lets the query search segments concurrently, 
+   * see {@link ParallelSegmentSearcher}. Concurrency does not affect 
+   * query results (but top-k pruning is disabled). Hence, 
+   * it is not a part of the query identity.
+   * 
+   * @param executor    an executor, or null, if segments should be 
+   *                    searched sequentially.
+   * @param threadQty   the maximum number of threads (including 
+   *                    the calling one) used by the query, 
+   *                    segments are searched sequentially if it is 
+   *                    smaller than two.
+   */
+  public void setSearchExecutor(ExecutorService executor, int threadQty) {
+    mSearchExecutor = executor;
+    mSearchThreadQty = threadQty;
+  }
+  
+  /**
+   * Enables per-node scoring (see {@link StructScorerVer3#score()}):
+   * each node has its own similarity, whose frequency is the number 
+   * of node elements taking part in matching spans, and the score 
+   * is boosted using the compactness of matching spans. Node weights
+   * are multiplied by the query boost. Because the scoring affects 
+   * results, it is a part of the query identity.
+   * 
+   * @param nodeWeights     weights of query nodes (in the order of 
+   *                        query tokens), or null, if per-node scoring
+   *                        is disabled.
+   * @param compactWeight   a weight of span compactness.
+   */
+  public void setNodeScoring(float[] nodeWeights, float compactWeight) {
+    if (nodeWeights != null && nodeWeights.length != mTokens.size()) {
+      throw new IllegalArgumentException(
+          "The number of node weights (" + nodeWeights.length + 
+          ") is different from the number of query nodes (" + mTokens.size() + ")");
+    }
+    mNodeWeights = nodeWeights;
+    mCompactWeight = nodeWeights != null ? compactWeight : 0;
+  }
+  
+  /**
+   * @return node weights in the order of nodes of the canonical query
+   *         (see {@link StructQueryParseVer3#getCanonicalText()}), or null,
+   *         if per-node scoring is disabled.
+   */
+  private float[] getCanonicalNodeWeights() {
+    if (mNodeWeights == null) return null;
+    
+    float res[] = new float[mNodeWeights.length];
+    for (int i = 0; i < mNodeWeights.length; ++i)
+      res[mQueryParse.getCanonicalId(i)] = mNodeWeights[i];
+    return res;
   }
   
   @Override
@@ -139,12 +301,140 @@ public class StructQueryVer3 extends Query {
     return mQueryText;
   }  
   
+  /**
+   * Rewrites the query into the canonical form (see 
+   * {@link StructQueryParseVer3#getCanonicalText()}), so that 
+   * equivalent queries are evaluated in exactly the same way.
+   * 
+   * @see org.apache.lucene.search.Query#rewrite(IndexReader)
+   */
+  @Override
+  public Query rewrite(IndexReader reader) throws IOException {
+    if (mQueryParse.isCanonical()) return this;
+    
+    StructQueryParseVer3 canonParse;
+    try {
+      canonParse = mQueryParse.getCanonicalParse();
+    } catch (SyntaxError e) {
+      throw new RuntimeException(
+          "Bug: cannot parse the canonical form of the query '" + mQueryText + "'", e);
+    }
+    StructQueryVer3 res = new StructQueryVer3(canonParse.getCanonicalText(),
+                                              canonParse,
+                                              mSpan, mCoverAnnotLabel,
+                                              mTextFieldName, mAnnotFieldName,
+                                              mMaxSpanCheckConstrIter,
+                                              mPayloadVer,
+                                              mMatchOnly,
+                                              mTopK);
+    res.setBoost(getBoost());
+    res.setAnnotColumnCache(mAnnotCache);
+    res.setSearchExecutor(mSearchExecutor, mSearchThreadQty);
+    res.setNodeScoring(getCanonicalNodeWeights(), mCompactWeight);
+    return res;
+  }
+  
+  /**
+   * @return the span size that is actually used: if there is 
+   *         a covering annotation, the span size is ignored.
+   */
+  private int getEffectiveSpan() {
+    return mCoverAnnotLabel != null ? 0 : mSpan;
+  }
+
+  /**
+   * Finds dense postings, i.e., postings containing at least
+   * the fraction {@link UtilConst#DENSE_POSTING_RATIO} of segment documents.
+   * If all postings are dense, the posting with the smallest number
+   * of documents is marked as non-dense, because at least one posting
+   * must be used for leapfrogging.
+   *
+   * @param docFreqs    numbers of segment documents containing posting terms.
+   * @param maxDoc      the number of segment documents (including deleted ones).
+   * @return an array of flags: true denotes a dense posting.
+   */
+  static boolean[] findDensePostings(int docFreqs[], int maxDoc) {
+    boolean res[] = new boolean[docFreqs.length];
+    int     denseQty = 0, minId = -1;
+
+    for (int i = 0; i < docFreqs.length; ++i) {
+      if (docFreqs[i] >= UtilConst.DENSE_POSTING_RATIO * maxDoc) {
+        res[i] = true;
+        ++denseQty;
+      }
+      if (minId < 0 || docFreqs[i] < docFreqs[minId]) minId = i;
+    }
+    if (minId >= 0 && denseQty == docFreqs.length) res[minId] = false;
+    return res;
+  }
+  
+  /**
+   * Two queries are equal if their canonical forms 
+   * (see {@link StructQueryParseVer3#getCanonicalText()}) are equal
+   * and all parameters affecting evaluation are the same. Request-scoped
+   * objects, e.g., time budgets, are not kept in queries 
+   * (see {@link StructQueryRequestState}): partial results are kept out
+   * of Solr caches by Solr itself (see {@link QueryTimeBudget}).
+   */
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    
+    StructQueryVer3 other = (StructQueryVer3) o;
+    
+    return getBoost() == other.getBoost() &&
+           getEffectiveSpan() == other.getEffectiveSpan() &&
+           mMaxSpanCheckConstrIter == other.mMaxSpanCheckConstrIter &&
+           mPayloadVer == other.mPayloadVer &&
+           mMatchOnly == other.mMatchOnly &&
+           mTopK == other.mTopK &&
+           mCompactWeight == other.mCompactWeight &&
+           Arrays.equals(getCanonicalNodeWeights(), other.getCanonicalNodeWeights()) &&
+           (mCoverAnnotLabel == null ? other.mCoverAnnotLabel == null :
+                                       mCoverAnnotLabel.equals(other.mCoverAnnotLabel)) &&
+           mTextFieldName.equals(other.mTextFieldName) &&
+           mAnnotFieldName.equals(other.mAnnotFieldName) &&
+           mQueryParse.getCanonicalText().equals(other.mQueryParse.getCanonicalText());
+  }
+  
+  @Override
+  public int hashCode() {
+    int h = Float.floatToIntBits(getBoost());
+    
+    h = 31 * h + mQueryParse.getCanonicalText().hashCode();
+    h = 31 * h + getEffectiveSpan();
+    h = 31 * h + (mCoverAnnotLabel != null ? mCoverAnnotLabel.hashCode() : 0);
+    h = 31 * h + mTextFieldName.hashCode();
+    h = 31 * h + mAnnotFieldName.hashCode();
+    h = 31 * h + mMaxSpanCheckConstrIter;
+    h = 31 * h + mPayloadVer;
+    h = 31 * h + (mMatchOnly ? 1 : 0);
+    h = 31 * h + mTopK;
+    h = 31 * h + Float.floatToIntBits(mCompactWeight);
+    h = 31 * h + Arrays.hashCode(getCanonicalNodeWeights());
+    return h;
+  }
+  
   /**
    * @see org.apache.lucene.search.Query#extractTerms(Set)
    */
   @Override
   public void extractTerms(Set<Term> queryTerms) {
-    for (Term t: mTerms) queryTerms.add(t);
+    for (Term terms[]: mTerms) 
+      for (Term t: terms) queryTerms.add(t);
+  }
+  
+  /**
+   * @return terms of all query nodes (each node has one term per 
+   *         alternative lexical entry) including the term of the covering 
+   *         annotation (if there is one).
+   */
+  ArrayList<Term[]> getAllTerms() {
+    ArrayList<Term[]> res = new ArrayList<Term[]>(mTerms);
+    
+    if (mCoverAnnotTerm != null) res.add(new Term[] { mCoverAnnotTerm });
+    return res;
   }
   
   @Override
@@ -163,14 +453,71 @@ public class StructQueryVer3 extends Query {
     private final Similarity.SimWeight                  mWeightTextField;
     /** A similarity weight for the annotation-field tokens */
     private final Similarity.SimWeight                  mWeightAnnotField;
-    private transient ArrayList<TermContext>            mTermContexts =
-                                                new ArrayList<TermContext>();
+    /** 
+     * Similarity weights of query nodes, or null, if per-node scoring 
+     * is disabled, see {@link StructScorerVer3#score()}. 
+     */
+    private final Similarity.SimWeight[]                mNodeSimWeights;
+    private transient ArrayList<TermContext[]>          mTermContexts =
+                                                new ArrayList<TermContext[]>();
     private transient TermContext                       mCoverAnnotContext;
+    /** 
+     * The top-k scores shared among scorers of all segments, 
+     * or null, if top-k pruning is disabled.
+     */
+    private final TopScoreThreshold                     mTopScores;
+    /** 
+     * Segments of the index, or null, if segments are searched sequentially, 
+     * see {@link ParallelSegmentSearcher}.
+     */
+    private final List<AtomicReaderContext>             mParallelLeaves;
+    /** Results of the concurrent search (computed on demand). */
+    private ParallelSegmentSearcher.SegmentResults[]    mParallelResults;
+    /** Execution statistics, or null, if they are not requested. */
+    private final StructQueryStats                      mStats;
+    /** 
+     * A time budget, or null, if time is not limited. It is applied only
+     * to the main query of a Solr request, see {@link QueryTimeBudget}.
+     */
+    private final QueryTimeBudget                       mTimeBudget;
     
     public StructQueryWeightVer3(IndexSearcher searcher) throws IOException {
       mSimilarity = searcher.getSimilarity();
       final IndexReaderContext readerContext = searcher.getTopReaderContext();
       
+      mParallelLeaves = mSearchExecutor != null && mSearchThreadQty > 1 &&
+                        readerContext.leaves().size() > 1 ?
+                        readerContext.leaves() : null;
+      StructQueryRequestState reqState = StructQueryRequestState.getCurrent();
+      StructQueryRequestState.QueryState queryState = reqState != null ? 
+                          reqState.getQueryState(StructQueryVer3.this, false) : null;
+      
+      /*
+       *  Pruning assumes that our score is the final document score
+       *  and that documents are sorted by score. In addition, 
+       *  segments searched concurrently are scored before any scores
+       *  are collected, so top-k pruning would use the threshold without
+       *  applying filters.
+       */
+      mTopScores = mTopK > 0 && mParallelLeaves == null && reqState != null &&
+                   reqState.isScoreSortedMainQuery(StructQueryVer3.this) ? 
+                   new TopScoreThreshold(mTopK) : null;
+      
+      mTimeBudget = queryState != null && 
+                    reqState.isInMainQuery(StructQueryVer3.this) ? 
+                    queryState.getTimeBudget() : null;
+      
+      NamedList<Object> statsDebugInfo = queryState != null ? 
+                                         queryState.getStatsDebugInfo() : null;
+      long              slowQueryMs = queryState != null ? 
+                                      queryState.getSlowQueryMs() : -1;
+      
+      mStats = statsDebugInfo != null || slowQueryMs >= 0 ?
+               new StructQueryStats(mQueryParse.getCanonicalText(),
+                                    readerContext.leaves().size(),
+                                    statsDebugInfo, slowQueryMs) : null;
+      if (mStats != null) queryState.addStats(mStats);
+      
       ArrayList<TermStatistics> termStatsTextFieldLst = new ArrayList<TermStatistics>();
       ArrayList<TermStatistics> termStatsAnnotFieldLst = new ArrayList<TermStatistics>();
       
@@ -178,17 +525,31 @@ public class StructQueryVer3 extends Query {
       final ArrayList<String>     tokens = mQueryParse.getTokens();
       final ArrayList<FieldType>  types  = mQueryParse.getTypes();
       
+      mNodeSimWeights = mNodeWeights != null ? 
+                        new Similarity.SimWeight[tokens.size()] : null;
+      
       for (int i = 0; i < tokens.size(); ++i) {
         // mTerms comes from the enclosing class
-        final Term term = mTerms.get(i);
-        TermContext ctx = TermContext.build(readerContext, term);
-        mTermContexts.add(ctx);
-        TermStatistics stat = searcher.termStatistics(term, ctx);
+        final Term    terms[] = mTerms.get(i);
+        TermContext   ctxs[] = new TermContext[terms.length];
+        
+        for (int k = 0; k < terms.length; ++k) 
+          ctxs[k] = TermContext.build(readerContext, terms[k]);
+        mTermContexts.add(ctxs);
+        TermStatistics stat = getTermStatistics(searcher, tokens.get(i), terms, ctxs);
         if (types.get(i) == FieldType.FIELD_TEXT)
           termStatsTextFieldLst.add(stat);
         else 
           termStatsAnnotFieldLst.add(stat);
-          
+        
+        if (mNodeSimWeights != null) {
+          String field = types.get(i) == FieldType.FIELD_TEXT ? 
+                         mTextFieldName : mAnnotFieldName;
+          mNodeSimWeights[i] = mSimilarity.computeWeight(
+                                    getBoost() * mNodeWeights[i],
+                                    searcher.collectionStatistics(field),
+                                    stat);
+        }
       }                  
       
       if (mCoverAnnotTerm != null)
@@ -210,9 +571,56 @@ public class StructQueryVer3 extends Query {
                                 searcher.collectionStatistics(mAnnotFieldName),
                                 termStatsAnnotField);            
     }
+    
+    /**
+     * Obtains statistics of a query node. Statistics of a node with 
+     * several alternative lexical entries are approximated: 
+     * the number of documents is the sum of alternatives' numbers 
+     * (but not more than the number of documents in the index). 
+     * 
+     * @param searcher    a searcher.
+     * @param token       a lexical entry of the node.
+     * @param terms       terms of alternatives.
+     * @param ctxs        contexts of alternatives' terms.
+     * @return statistics of the node.
+     * @throws IOException 
+     */
+    private TermStatistics getTermStatistics(IndexSearcher searcher,
+                                             String        token,
+                                             Term          terms[],
+                                             TermContext   ctxs[]) 
+                                             throws IOException {
+      if (terms.length == 1) return searcher.termStatistics(terms[0], ctxs[0]);
+      
+      long docFreq = 0, totalTermFreq = 0;
+      
+      for (int k = 0; k < terms.length; ++k) {
+        TermStatistics stat = searcher.termStatistics(terms[k], ctxs[k]);
+        
+        docFreq += stat.docFreq();
+        if (totalTermFreq >= 0 && stat.totalTermFreq() >= 0)
+          totalTermFreq += stat.totalTermFreq();
+        else
+          totalTermFreq = -1;
+      }
+      docFreq = Math.min(docFreq, searcher.getIndexReader().maxDoc());
+      return new TermStatistics(new BytesRef(token), docFreq, totalTermFreq);
+    }
+    
     @Override
     public String toString() { return "weight(" + getQuery() + ")"; }
     
+    /**
+     * Creates top-k scores for a search that sorts documents by 
+     * the score of this query, e.g., by {@link StructQueryBatchVer3}.
+     * 
+     * @return top-k scores to be shared among scorers of all segments, 
+     *         or null, if top-k pruning is disabled.
+     */
+    TopScoreThreshold createTopScores() { 
+      return mTopK > 0 ? new TopScoreThreshold(mTopK) : null; 
+    }
+    
     /**
      * Should be a sum of individual normalization values, see
      * a description of {@link org.apache.lucene.search.similarities.TFIDFSimilarity}. 
@@ -220,6 +628,12 @@ public class StructQueryVer3 extends Query {
      */
     @Override
     public float getValueForNormalization() {
+      if (mNodeSimWeights != null) {
+        float sum = 0;
+        for (Similarity.SimWeight w : mNodeSimWeights)
+          sum += w.getValueForNormalization();
+        return sum;
+      }
       return mWeightTextField.getValueForNormalization() +
              mWeightAnnotField.getValueForNormalization();
     }
@@ -228,6 +642,26 @@ public class StructQueryVer3 extends Query {
     public void normalize(float queryNorm, float topLevelBoost) {
       mWeightTextField.normalize(queryNorm, topLevelBoost);
       mWeightAnnotField.normalize(queryNorm, topLevelBoost);
+      if (mNodeSimWeights != null) {
+        for (Similarity.SimWeight w : mNodeSimWeights)
+          w.normalize(queryNorm, topLevelBoost);
+      }
+    }
+    
+    /**
+     * @param context   a segment context.
+     * @return similarity scorers of query nodes for the segment, 
+     *         or null, if per-node scoring is disabled.
+     * @throws IOException 
+     */
+    private SimScorer[] getNodeSimScorers(AtomicReaderContext context) 
+                                          throws IOException {
+      if (mNodeSimWeights == null) return null;
+      
+      SimScorer res[] = new SimScorer[mNodeSimWeights.length];
+      for (int i = 0; i < res.length; ++i)
+        res[i] = mSimilarity.simScorer(mNodeSimWeights[i], context);
+      return res;
     }
     
     /**
@@ -247,15 +681,15 @@ public class StructQueryVer3 extends Query {
      * 
      * @throws IOException
      */
-    private DocsAndPositionsEnum initPosting(AtomicReaderContext context,
-                                             final Bits          liveDocs,
-                                             String              token,
-                                             FieldType           tokenType,
-                                             Term                t,
-                                             TermContext         termCtx,
-                                             final TermsEnum termTextFieldEnum,
-                                             final TermsEnum termAnnotFieldEnum ) 
-                                             throws IOException {
+    private DocsEnum initPosting(AtomicReaderContext context,
+                                 final Bits          liveDocs,
+                                 String              token,
+                                 FieldType           tokenType,
+                                 Term                t,
+                                 TermContext         termCtx,
+                                 final TermsEnum termTextFieldEnum,
+                                 final TermsEnum termAnnotFieldEnum ) 
+                                 throws IOException {
       final AtomicReader        reader = context.reader();                                             
       String termDesc = "'" + token + "' type: " + tokenType;
       final TermState state = termCtx.get(context.ord);
@@ -291,6 +725,13 @@ public class StructQueryVer3 extends Query {
       } else {
         // Annotation field must include payloads
         termAnnotFieldEnum.seekExact(t.bytes(), state);
+        // Postings of hot labels are read from the cache
+        if (mAnnotCache != null && mAnnotCache.isHotLabel(token)) {
+          DocsEnum cachedPost = mAnnotCache.getPostings(reader, t, 
+                                                        termAnnotFieldEnum, 
+                                                        mPayloadVer, liveDocs);
+          if (cachedPost != null) return cachedPost;
+        }
         post = termAnnotFieldEnum.docsAndPositions(liveDocs, null, 
                                       DocsAndPositionsEnum.FLAG_PAYLOADS |
                                       DocsAndPositionsEnum.FLAG_FREQS);
@@ -311,6 +752,130 @@ public class StructQueryVer3 extends Query {
     }
 
     
+    /**
+     * Initializes a posting, which can be shared among queries evaluated
+     * in a batch. For parameters, see 
+     * {@link #initPosting(AtomicReaderContext, Bits, String, FieldType, Term, TermContext, TermsEnum, TermsEnum)}.
+     * 
+     * @param sharedPosts   postings shared among queries (keyed by terms), 
+     *                      or null, if postings should not be shared.
+     * @return a pointer to an initialized (possibly shared) posting object.
+     * @throws IOException
+     */
+    private DocsEnum initPosting(AtomicReaderContext context,
+                                 Map<Term, SharedPostings> sharedPosts,
+                                 final Bits          liveDocs,
+                                 String              token,
+                                 FieldType           tokenType,
+                                 Term                t,
+                                 TermContext         termCtx,
+                                 final TermsEnum termTextFieldEnum,
+                                 final TermsEnum termAnnotFieldEnum ) 
+                                 throws IOException {
+      if (sharedPosts == null) {
+        return initPosting(context, liveDocs, token, tokenType, t, termCtx,
+                           termTextFieldEnum, termAnnotFieldEnum);
+      }
+      SharedPostings res = sharedPosts.get(t);
+      
+      if (res == null) {
+        DocsEnum post = initPosting(context, liveDocs, 
+                                    token, tokenType, t, termCtx,
+                                    termTextFieldEnum, 
+                                    termAnnotFieldEnum);
+        if (post == null) return null;
+        res = new SharedPostings(post, token, tokenType, mPayloadVer);
+        sharedPosts.put(t, res);
+      }
+      return res;
+    }
+
+    /**
+     * Initializes a posting of a query node: if the node has several 
+     * alternative lexical entries, postings of alternatives present in
+     * the segment are merged using {@link UnionPostings}. For parameters, see 
+     * {@link #initPosting(AtomicReaderContext, Map, Bits, String, FieldType, Term, TermContext, TermsEnum, TermsEnum)}.
+     * 
+     * @param terms         terms of alternatives.
+     * @param termCtxs      contexts of alternatives' terms.
+     * @return a pointer to an initialized posting object, or null, 
+     *         if no alternative is present in the segment.
+     * @throws IOException
+     */
+    private DocsEnum initNodePosting(AtomicReaderContext context,
+                                     Map<Term, SharedPostings> sharedPosts,
+                                     final Bits          liveDocs,
+                                     FieldType           tokenType,
+                                     Term                terms[],
+                                     TermContext         termCtxs[],
+                                     final TermsEnum termTextFieldEnum,
+                                     final TermsEnum termAnnotFieldEnum ) 
+                                     throws IOException {
+      ArrayList<DocsEnum>   posts = new ArrayList<DocsEnum>();
+      ArrayList<String>     tokens = new ArrayList<String>();
+      
+      for (int k = 0; k < terms.length; ++k) {
+        DocsEnum post = initPosting(context, sharedPosts, liveDocs, 
+                                    terms[k].text(), tokenType, 
+                                    terms[k], termCtxs[k],
+                                    termTextFieldEnum, 
+                                    termAnnotFieldEnum);
+        if (post != null) {
+          posts.add(post);
+          tokens.add(terms[k].text());
+        }
+      }
+      if (posts.isEmpty()) return null;
+      if (posts.size() == 1) return posts.get(0);
+      
+      return new UnionPostings(posts.toArray(new DocsEnum[posts.size()]),
+                               tokens.toArray(new String[tokens.size()]),
+                               tokenType, mPayloadVer);
+    }
+    
+    /**
+     * Obtains segment statistics of a query node: the number of segment documents
+     * containing the node's term and the initial size of arrays keeping elements
+     * of a single document, see {@link OnePostStateBase#getInitElemQty(long, long)}.
+     * If the node has alternative terms, the number of documents is the sum 
+     * of alternatives' numbers (but not more than the number of segment documents).
+     * 
+     * @param context     a segment context.
+     * @param terms       terms of alternatives.
+     * @param termCtxs    contexts of alternatives' terms.
+     * @param termsEnum   an auxiliary iterator for the terms' field.
+     * @param indx        an index of the term in the output arrays.
+     * @param docFreqs    numbers of documents (including deleted ones), zero
+     *                    if the term doesn't exist in the segment.
+     * @param initElemQtys  initial sizes of element arrays.
+     * @throws IOException
+     */
+    private void getSegmentTermStats(AtomicReaderContext context,
+                                     Term                terms[],
+                                     TermContext         termCtxs[],
+                                     final TermsEnum     termsEnum,
+                                     int                 indx,
+                                     int                 docFreqs[],
+                                     int                 initElemQtys[]) 
+                                     throws IOException {
+      long docFreq = 0, totalTermFreq = 0;
+      
+      for (int k = 0; k < terms.length; ++k) {
+        final TermState state = termCtxs[k].get(context.ord);
+        
+        if (state == null) continue;
+        termsEnum.seekExact(terms[k].bytes(), state);
+        docFreq += termsEnum.docFreq();
+        if (totalTermFreq >= 0 && termsEnum.totalTermFreq() >= 0)
+          totalTermFreq += termsEnum.totalTermFreq();
+        else
+          totalTermFreq = -1;
+      }
+      docFreqs[indx] = (int) Math.min(docFreq, context.reader().maxDoc());
+      initElemQtys[indx] = OnePostStateBase.getInitElemQty(docFreq, 
+                                                           docFreq > 0 ? totalTermFreq : -1);
+    }
+    
     private boolean termNotInReader(AtomicReader reader, Term term) throws IOException {
       return reader.docFreq(term) == 0;
     }
@@ -320,12 +885,98 @@ public class StructQueryVer3 extends Query {
                           boolean scoreDocsInOrder,
                           boolean topScorer, 
                           Bits acceptDocs) throws IOException {
+      if (mParallelLeaves != null) {
+        int ord = context.ord;
+        
+        if (ord < mParallelLeaves.size() &&
+            mParallelLeaves.get(ord).reader() == context.reader()) {
+          ParallelSegmentSearcher.SegmentResults res = getParallelResults()[ord];
+          return res != null ? 
+                 new SegmentResultScorer(this, res, acceptDocs, mTimeBudget) : null;
+        }
+      }
+      return createScorer(context, acceptDocs, mTopScores, null, true);
+    }
+    
+    /**
+     * Searches all segments concurrently, unless this was done already.
+     * Documents are searched using live documents: 
+     * accepted documents are checked by {@link SegmentResultScorer}.
+     * 
+     * @return results for each segment.
+     * @throws IOException
+     */
+    private synchronized ParallelSegmentSearcher.SegmentResults[] 
+                                      getParallelResults() throws IOException {
+      if (mParallelResults == null) {
+        mParallelResults = ParallelSegmentSearcher.search(mParallelLeaves,
+            new ParallelSegmentSearcher.ScorerFactory() {
+              @Override
+              public StructScorerVer3 create(AtomicReaderContext context) 
+                                            throws IOException {
+                return createScorer(context, context.reader().getLiveDocs(), 
+                                    null, null, false);
+              }
+            }, 
+            mSearchExecutor, mSearchThreadQty);
+      }
+      return mParallelResults;
+    }
+    
+    /**
+     * Creates a scorer for a given segment, which respects the 
+     * time budget and gathers execution statistics (if requested). 
+     * For other parameters, see 
+     * {@link #createScorerInternal(AtomicReaderContext, Bits, TopScoreThreshold, Map)}.
+     * 
+     * @param interrupt   if true, the scorer throws an exception, when the time
+     *                    budget is exceeded, see 
+     *                    {@link StructScorerVer3#setTimeBudget(QueryTimeBudget, boolean)}.
+     * @return a scorer or null, if no document can match.
+     * @throws IOException
+     */
+    StructScorerVer3 createScorer(AtomicReaderContext context,
+                                  Bits acceptDocs,
+                                  TopScoreThreshold topScores,
+                                  Map<Term, SharedPostings> sharedPosts,
+                                  boolean interrupt) 
+                                  throws IOException {
+      StructScorerVer3 scorer = createScorerInternal(context, acceptDocs, 
+                                                     topScores, sharedPosts);
+      if (scorer != null) {
+        scorer.setTimeBudget(mTimeBudget, interrupt);
+        if (mStats != null) scorer.setStats(mStats, context.ord);
+      } else if (mStats != null) {
+        mStats.addSegment(context.ord, null);
+      }
+      return scorer;
+    }
+    
+    /**
+     * Creates a scorer for a given segment.
+     * 
+     * @param context     a segment context.
+     * @param acceptDocs  documents that can be returned.
+     * @param topScores   top-k scores used for pruning, or null, if 
+     *                    pruning is disabled.
+     * @param sharedPosts postings shared among queries evaluated in a batch
+     *                    (keyed by terms, new postings are added to the map), 
+     *                    or null, if the query is evaluated alone, 
+     *                    see {@link StructQueryBatchVer3}.
+     * @return a scorer or null, if no document can match.
+     * @throws IOException
+     */
+    private StructScorerVer3 createScorerInternal(AtomicReaderContext context,
+                                                  Bits acceptDocs,
+                                                  TopScoreThreshold topScores,
+                                                  Map<Term, SharedPostings> sharedPosts) 
+                                                  throws IOException {
       final AtomicReader        reader = context.reader();
       final Bits                liveDocs = acceptDocs;
-      DocsAndPositionsEnum[]    postings = 
+      DocsEnum[]                postings = 
                                 // mTerms is from the enclosing class
-                                       new DocsAndPositionsEnum[mTerms.size()];
-      DocsAndPositionsEnum      coverAnnotPost = null;
+                                       new DocsEnum[mTerms.size()];
+      DocsEnum                  coverAnnotPost = null;
       
       Fields fld = reader.fields();
       if (null == fld.terms(mTextFieldName)) {
@@ -357,21 +1008,53 @@ public class StructQueryVer3 extends Query {
       final TermsEnum termTextFieldEnum = fieldTermsTextField.iterator(null);
       final TermsEnum termAnnotFieldEnum = fieldTermsAnnotField.iterator(null);
       
+      /*
+       * Dense postings do not take part in leapfrogging and are 
+       * positioned only in documents found using non-dense postings.
+       * Hence, only non-dense postings need to check live (and accepted) 
+       * documents.
+       */
+      int       termQty = mTerms.size();
+      int       docFreqs[] = new int[termQty + (mCoverAnnotContext != null ? 1:0)];
+      int       initElemQtys[] = new int[docFreqs.length];
+      
+      for (int i = 0; i < termQty; ++i) {
+        getSegmentTermStats(context, mTerms.get(i), 
+                            mTermContexts.get(i),
+                            mTokenTypes.get(i) == FieldType.FIELD_TEXT ?
+                            termTextFieldEnum : termAnnotFieldEnum,
+                            i, docFreqs, initElemQtys);
+      }
+      if (mCoverAnnotContext != null) {
+        getSegmentTermStats(context, new Term[] { mCoverAnnotTerm },
+                            new TermContext[] { mCoverAnnotContext },
+                            termAnnotFieldEnum,
+                            termQty, docFreqs, initElemQtys);
+      }
+      /*
+       * Shared postings are positioned by the batch evaluator,
+       * which does not distinguish between dense and non-dense postings.
+       */
+      boolean   isDense[] = sharedPosts != null ? 
+                            new boolean[docFreqs.length] :
+                            findDensePostings(docFreqs, reader.maxDoc());
+      
       for (int i = 0; i < mTerms.size(); ++i) {
-        postings[i] = initPosting(context,
-                                  liveDocs,
-                                  mTokens.get(i),
-                                  mTokenTypes.get(i),
-                                  mTerms.get(i),
-                                  mTermContexts.get(i),
-                                  termTextFieldEnum,
-                                  termAnnotFieldEnum);
+        postings[i] = initNodePosting(context,
+                                      sharedPosts,
+                                      isDense[i] ? null : liveDocs,
+                                      mTokenTypes.get(i),
+                                      mTerms.get(i),
+                                      mTermContexts.get(i),
+                                      termTextFieldEnum,
+                                      termAnnotFieldEnum);
         /* We have an AND query if any elements is missing, there's nothing to return */
         if (null == postings[i]) return null;
       }
       if (mCoverAnnotContext != null) {
         coverAnnotPost = initPosting(context,
-                                    liveDocs,
+                                    sharedPosts,
+                                    isDense[termQty] ? null : liveDocs,
                                     mCoverAnnotLabel,
                                     FieldType.FIELD_ANNOTATION,
                                     mCoverAnnotTerm,
@@ -389,7 +1072,14 @@ public class StructQueryVer3 extends Query {
           mSpan,
           mSimilarity.simScorer(mWeightTextField, context),
           mSimilarity.simScorer(mWeightAnnotField, context),
-          mMaxSpanCheckConstrIter);
+          mMaxSpanCheckConstrIter,
+          mPayloadVer,
+          mMatchOnly,
+          topScores,
+          isDense,
+          initElemQtys,
+          getNodeSimScorers(context),
+          mCompactWeight);
     }
     
     @Override
@@ -397,50 +1087,171 @@ public class StructQueryVer3 extends Query {
     
     @Override
     public Explanation explain(AtomicReaderContext context, int doc) throws IOException {
-      Scorer scorer = scorer(context, true, false, context.reader().getLiveDocs());
-      /* 
-       * Leo TODO: This one needs to be tested.  
+      /*
+       * Explanations should not depend on previously seen documents 
+       * (no pruning here) or time, nor should they affect statistics.
+       * Scorers are shared among explanations of the same request,
+       * see StructExplainCache. The cache is kept in the request state,
+       * because weights are created anew for each explained document.
        */
-      if (scorer != null) {
-        int newDoc = scorer.advance(doc);
-        if (newDoc == doc) {
-          ComplexExplanation result = new ComplexExplanation();
-          float freq = ((StructScorerVer3)scorer).freq();
-          
-          // 1. frequency explanation for the text field
-          SimScorer docScorerTextField 
-                            = mSimilarity.simScorer(mWeightTextField, context);
-          result.setDescription("weight("+getQuery()+" in "+doc+") " + 
-              "[" + mSimilarity.getClass().getSimpleName() + "], result of:");
-          Explanation scoreExplanationTextField = 
-              docScorerTextField.explain(doc, 
-                                new Explanation(freq, "textFieldFreq=" + freq));          
-          result.addDetail(scoreExplanationTextField);          
-          
-          /**
-           *  2. frequency explanation for the annotation field we plug the 
-           *     same frequency value into two different scorers: one for the 
-           *     regular text field and another for the annotation field
-           *     {@see edu.cmu.lti.oaqa.annographix.solr.StructScorerVer3#score()}.
-           */
-          SimScorer docScorerAnnotField 
-                            = mSimilarity.simScorer(mWeightAnnotField, context);
-          Explanation scoreExplanationAnnotField = 
-              docScorerAnnotField.explain(doc, 
-                                new Explanation(freq, "annotFieldFreq=" + freq));          
-          result.addDetail(scoreExplanationAnnotField);          
+      StructQueryRequestState reqState = StructQueryRequestState.getCurrent();
+      StructQueryRequestState.QueryState queryState = reqState != null ? 
+                          reqState.getQueryState(StructQueryVer3.this, false) : null;
+      StructExplainCache cache = queryState != null ? 
+                                 queryState.getExplainCache() : null;
+      if (cache == null) cache = new StructExplainCache(null);
+      /*
+       * Documents are explained after the search: the search 
+       * could end before all scorers were exhausted, but
+       * statistics should get into the debug output.
+       */
+      if (queryState != null) queryState.flushStats();
+      StructScorerVer3.MatchInfo info = cache.getMatchInfo(context, doc,
+          new ParallelSegmentSearcher.ScorerFactory() {
+            @Override
+            public StructScorerVer3 create(AtomicReaderContext context) 
+                                          throws IOException {
+              return createScorerInternal(context, 
+                                          context.reader().getLiveDocs(), 
+                                          null, null);
+            }
+          });
+      
+      if (info != null && mNodeSimWeights != null) {
+        ComplexExplanation result = explainNodeScore(context, doc, info);
+        
+        result.addDetail(explainSpans(info));
+        return result;
+      }
+      if (info != null) {
+        ComplexExplanation result = new ComplexExplanation();
+        float freq = info.mFreq;
+        
+        // 1. frequency explanation for the text field
+        SimScorer docScorerTextField 
+                          = mSimilarity.simScorer(mWeightTextField, context);
+        result.setDescription("weight("+getQuery()+" in "+doc+") " + 
+            "[" + mSimilarity.getClass().getSimpleName() + "], result of:");
+        Explanation scoreExplanationTextField = 
+            docScorerTextField.explain(doc, 
+                              new Explanation(freq, "textFieldFreq=" + freq));          
+        result.addDetail(scoreExplanationTextField);          
+        
+        /**
+         *  2. frequency explanation for the annotation field we plug the 
+         *     same frequency value into two different scorers: one for the 
+         *     regular text field and another for the annotation field
+         *     {@see edu.cmu.lti.oaqa.annographix.solr.StructScorerVer3#score()}.
+         */
+        SimScorer docScorerAnnotField 
+                          = mSimilarity.simScorer(mWeightAnnotField, context);
+        Explanation scoreExplanationAnnotField = 
+            docScorerAnnotField.explain(doc, 
+                              new Explanation(freq, "annotFieldFreq=" + freq));          
+        result.addDetail(scoreExplanationAnnotField);          
 
-          // 3. The value is a sum of similarities for two fields
-          result.setValue(
-                          scoreExplanationTextField.getValue() + 
-                          scoreExplanationAnnotField.getValue()
-                          );
-          result.setMatch(true);
-          return result;
+        // 3. The value is a sum of similarities for two fields
+        result.setValue(
+                        scoreExplanationTextField.getValue() + 
+                        scoreExplanationAnnotField.getValue()
+                        );
+        result.setMatch(true);
+        
+        // 4. Let the user know if some spans were not checked completely
+        if (info.mSpanCheckLimitQty > 0) {
+          result.addDetail(new Explanation(info.mSpanCheckLimitQty, 
+              "spans whose constraint check exceeded max_iter=" + 
+              mMaxSpanCheckConstrIter + " (treated as non-matching)"));
         }
+        
+        // 5. Matching spans and constraints satisfied in spans
+        result.addDetail(explainSpans(info));
+        return result;
       }
 
       return new ComplexExplanation(false, 0.0f, "no matching term");
-    }    
+    }
+    
+    /**
+     * Explains a per-node score, see {@link StructScorerVer3#score()}.
+     * 
+     * @param context   a segment context.
+     * @param doc       a segment document id.
+     * @param info      information about the match.
+     * @return an explanation.
+     * @throws IOException
+     */
+    private ComplexExplanation explainNodeScore(AtomicReaderContext context,
+                                                int doc,
+                                                StructScorerVer3.MatchInfo info) 
+                                                throws IOException {
+      ComplexExplanation result = new ComplexExplanation();
+      SimScorer          nodeScorers[] = getNodeSimScorers(context);
+      Explanation        nodeSum = new Explanation(0, "sum of node scores:");
+      float              sum = 0;
+      
+      for (int i = 0; i < nodeScorers.length; ++i) {
+        float       freq = info.mNodeMatchQty[i];
+        Explanation e = nodeScorers[i].explain(doc, 
+            new Explanation(freq, "nodeFreq(" + mTokens.get(i) + ")=" + freq));
+        
+        e.setDescription("node '" + mTokens.get(i) + "' weight=" + 
+                         mNodeWeights[i] + ", " + e.getDescription());
+        nodeSum.addDetail(e);
+        sum += e.getValue();
+      }
+      nodeSum.setValue(sum);
+      
+      Explanation compact = new Explanation(1 + mCompactWeight * info.mCompactness,
+          "1 + compactWeight * compactness, compactWeight=" + mCompactWeight + 
+          ", compactness=" + info.mCompactness);
+      
+      result.setDescription("weight("+getQuery()+" in "+doc+") " + 
+          "[" + mSimilarity.getClass().getSimpleName() + 
+          ", per-node scoring], product of:");
+      result.addDetail(nodeSum);
+      result.addDetail(compact);
+      result.setValue(nodeSum.getValue() * compact.getValue());
+      result.setMatch(true);
+      
+      if (info.mSpanCheckLimitQty > 0) {
+        result.addDetail(new Explanation(info.mSpanCheckLimitQty, 
+            "spans whose constraint check exceeded max_iter=" + 
+            mMaxSpanCheckConstrIter + " (treated as non-matching)"));
+      }
+      return result;
+    }
+    
+    /**
+     * Explains which spans match and which constraints 
+     * are satisfied in spans containing all query elements.
+     * 
+     * @param info  information about the match.
+     * @return an explanation.
+     */
+    private Explanation explainSpans(StructScorerVer3.MatchInfo info) {
+      StringBuilder sb = new StringBuilder();
+      
+      for (int i = 0; i < info.mSpanStarts.size(); ++i) {
+        sb.append(" [" + info.mSpanStarts.get(i) + "," + 
+                  info.mSpanEnds.get(i) + ")");
+      }
+      if (info.mFreq > info.mSpanStarts.size()) sb.append(" ...");
+      
+      Explanation res = new Explanation(info.mFreq, 
+          "matching spans (offsets of elements that can take part in the match):" +
+          sb.toString());
+      
+      Explanation constr = new Explanation(info.mCandSpanQty, 
+          "spans containing all query elements" + 
+          (info.mConstrDesc.length > 0 ? ", constraints checked separately:" : ""));
+      for (int i = 0; i < info.mConstrDesc.length; ++i) {
+        constr.addDetail(new Explanation(info.mSatisfiedQty[i], 
+            info.mConstrDesc[i] + ": satisfied in " + info.mSatisfiedQty[i] + 
+            " of " + info.mCandSpanQty + " spans"));
+      }
+      res.addDetail(constr);
+      return res;
+    }
   }
 }
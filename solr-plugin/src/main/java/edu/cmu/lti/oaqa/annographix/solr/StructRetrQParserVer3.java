@@ -3,10 +3,25 @@ package edu.cmu.lti.oaqa.annographix.solr;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.payloads.DelimitedPayloadTokenFilterFactory;
+import org.apache.lucene.analysis.util.TokenFilterFactory;
 import org.apache.lucene.search.Query;
+import org.apache.solr.analysis.TokenizerChain;
+import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.handler.component.ResponseBuilder;
 import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrRequestInfo;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.DocListAndSet;
 import org.apache.solr.search.QParser;
 import org.apache.solr.search.SyntaxError;
 
@@ -34,6 +49,60 @@ public class StructRetrQParserVer3 extends QParser {
   String    mAnnotFieldName;
   /** A label of a top-level covering annotation; equal to null, if there is none. */
   String    mCoverAnnotLabel;
+  /** A version of the annotation payload format. */
+  int       mPayloadVer = UtilConst.DEFAULT_PAYLOAD_VERSION;
+  /** 
+   * If true, we only check whether documents match, 
+   * but don't count matching spans. 
+   */
+  boolean   mMatchOnly = false;
+  /**
+   * If positive, documents that certainly cannot get into top-k
+   * results are not verified (and do not match), see 
+   * {@link TopScoreThreshold}. This is done only for the main query
+   * sorted by score, see {@link StructQueryRequestState#isScoreSortedMainQuery(org.apache.lucene.search.Query)}.
+   * The number of found documents (numFound) is then a lower bound.
+   * The value is never smaller than the number of documents Solr collects,
+   * see {@link #getCollectedDocQty(int, int, int)}.
+   */
+  int       mTopK = 0;
+  /** A cache of parsed queries (can be null). */
+  StructQueryPlanCache mPlanCache;
+  /** A cache of decoded annotations for hot labels (can be null). */
+  AnnotColumnCache     mAnnotCache;
+  /** An executor to search segments concurrently (can be null). */
+  ExecutorService      mSearchExecutor;
+  /** 
+   * The maximum number of threads used to search segments, 
+   * see {@link ParallelSegmentSearcher}.
+   */
+  int                  mThreadQty = 1;
+  /**
+   * A time budget in milliseconds (see {@link QueryTimeBudget}), 
+   * zero means no limit. By default, it is equal to the value of 
+   * the request parameter <code>timeAllowed</code>.
+   */
+  long                 mTimeAllowed = 0;
+  /** 
+   * A query running at least this number of milliseconds is logged,
+   * a negative value disables logging.
+   */
+  long                 mSlowQueryMs = -1;
+  /** 
+   * A counter of queries whose time budget was exceeded 
+   * (see {@link QueryTimeBudget}), which is kept by the plugin.
+   */
+  AtomicLong           mExceededQueryQty;
+  /** If true, each query node is scored separately, see {@link StructScorerVer3#score()}. */
+  boolean              mNodeScoring = false;
+  /** 
+   * Weights of query nodes in the format 
+   * <code>label1:weight1,label2:weight2,...</code> (can be null);
+   * nodes that are not listed get the weight one.
+   */
+  String               mNodeWeightsSpec;
+  /** A weight of span compactness in per-node scoring. */
+  float                mCompactWeight = 0;
   
   
   public final static String PARAM_BOOST    = "boost";
@@ -43,6 +112,17 @@ public class StructRetrQParserVer3 extends QParser {
   public final static String PARAM_TEXT_FIELD = UtilConst.CONFIG_TEXT4ANNOT_FIELD;
   public final static String PARAM_ANNOT_FIELD = UtilConst.CONFIG_ANNOTATION_FIELD;
   public final static String PARAM_MAX_SPAN_CONSTR_ITER = "max_iter";
+  public final static String PARAM_MATCH_ONLY = "match_only";
+  public final static String PARAM_TOP_K = "top_k";
+  public final static String PARAM_THREADS = "threads";
+  public final static String PARAM_TIME_ALLOWED = "time_allowed";
+  public final static String PARAM_NODE_SCORING = "node_scoring";
+  public final static String PARAM_NODE_WEIGHTS = "node_weights";
+  public final static String PARAM_COMPACT_WEIGHT = "compact_weight";
+  /** A key of execution statistics in the debug output. */
+  public final static String DEBUG_INFO_KEY = "structQuery";
+  /** The default number of returned documents (the parameter rows). */
+  private final static int   DEFAULT_ROWS = 10;
   /** 
    * This array <b>must</b> contain all parameter names, when a new parameter
    * is introduced, its name must be added here. 
@@ -53,18 +133,60 @@ public class StructRetrQParserVer3 extends QParser {
                                                    PARAM_COVER_ANNOT,
                                                    PARAM_TEXT_FIELD,
                                                    PARAM_ANNOT_FIELD,
-                                                   PARAM_MAX_SPAN_CONSTR_ITER};
+                                                   PARAM_MAX_SPAN_CONSTR_ITER,
+                                                   PARAM_MATCH_ONLY,
+                                                   PARAM_TOP_K,
+                                                   PARAM_THREADS,
+                                                   PARAM_TIME_ALLOWED,
+                                                   PARAM_NODE_SCORING,
+                                                   PARAM_NODE_WEIGHTS,
+                                                   PARAM_COMPACT_WEIGHT};
   public final static HashSet<String> mParamNameDict = new HashSet<String>
                                                     (Arrays.asList(mValidParamNames));
   Iterator<String> mParamNameIter;
   
   
+  /**
+   * Constructor.
+   * 
+   * @param qstr          a query text.
+   * @param localParams   local parameters.
+   * @param params        request parameters.
+   * @param req           a request.
+   * @param planCache     a cache of parsed queries, or null if 
+   *                      parsed queries are not cached.
+   * @param annotCache    a cache of decoded annotations for hot labels,
+   *                      or null if annotations are not cached.
+   * @param searchExecutor  an executor to search segments concurrently,
+   *                        or null if segments are searched sequentially.
+   * @param maxThreadQty    the maximum number of threads a query can use
+   *                        (the size of the executor's pool).
+   * @param defThreadQty    the default number of threads a query uses.
+   * @param slowQueryMs     a query running at least this number of 
+   *                        milliseconds is logged, a negative value
+   *                        disables logging.
+   * @param exceededQueryQty  a counter of queries whose time budget 
+   *                          was exceeded (kept by the plugin).
+   */
   public StructRetrQParserVer3(String qstr, 
                             SolrParams localParams, 
                             SolrParams params,
-      SolrQueryRequest req) {
+      SolrQueryRequest req,
+      StructQueryPlanCache planCache,
+      AnnotColumnCache annotCache,
+      ExecutorService searchExecutor,
+      int maxThreadQty,
+      int defThreadQty,
+      long slowQueryMs,
+      AtomicLong exceededQueryQty) {
     super(qstr, localParams, params, req);
     
+    mPlanCache = planCache;
+    mAnnotCache = annotCache;
+    mSearchExecutor = searchExecutor;
+    mSlowQueryMs = slowQueryMs;
+    mExceededQueryQty = exceededQueryQty;
+    
     if (localParams.getFloat(PARAM_BOOST) != null)
       mBoost    = localParams.getFloat(PARAM_BOOST);
     
@@ -84,9 +206,42 @@ public class StructRetrQParserVer3 extends QParser {
       mMaxSpanCheckConstrIter = localParams.getInt(PARAM_MAX_SPAN_CONSTR_ITER);
     }
     
+    mMatchOnly = localParams.getBool(PARAM_MATCH_ONLY, false);
+    
+    mTopK = localParams.getInt(PARAM_TOP_K, 0);
+    /*
+     *  Documents ranked below k would be lost (and the truncated result 
+     *  would be cached): k should cover the window of results collected by Solr.
+     *  The query (and the cache key) depend on this window.
+     */
+    if (mTopK > 0 && params != null && req != null && req.getCore() != null) {
+      mTopK = Math.max(mTopK, 
+          getCollectedDocQty(params.getInt(CommonParams.START, 0),
+                             params.getInt(CommonParams.ROWS, DEFAULT_ROWS),
+                             req.getCore().getSolrConfig().queryResultWindowSize));
+    }
+    
+    // A query cannot use more threads than the pool has (+ the calling thread)
+    mThreadQty = Math.min(localParams.getInt(PARAM_THREADS, defThreadQty),
+                          maxThreadQty + 1);
+    
+    if (localParams.getInt(PARAM_TIME_ALLOWED) != null) {
+      mTimeAllowed = localParams.getInt(PARAM_TIME_ALLOWED);
+    } else if (params != null) {
+      mTimeAllowed = params.getInt(CommonParams.TIME_ALLOWED, 0);
+    }
+    
+    mNodeScoring = localParams.getBool(PARAM_NODE_SCORING, false);
+    mNodeWeightsSpec = localParams.get(PARAM_NODE_WEIGHTS);
+    mCompactWeight = localParams.getFloat(PARAM_COMPACT_WEIGHT, 0.0f);
+    
     mTextFieldName = localParams.get(PARAM_TEXT_FIELD, 
                                      UtilConst.DEFAULT_TEXT4ANNOT_FIELD);
     
+    if (req != null) {
+      mPayloadVer = getPayloadVersion(req.getSchema(), mAnnotFieldName);
+    }
+    
     
     mParamNameIter = localParams.getParameterNamesIterator();
   }  
@@ -117,15 +272,199 @@ public class StructRetrQParserVer3 extends QParser {
       throw new SyntaxError("Only version 3 is currently supported.");
     }
     
-    Query  subQuery = parseVer3(text);
+    StructQueryVer3 subQuery = parseVer3(text);
     subQuery.setBoost(mBoost);
+    initRequestState(subQuery);
     return subQuery;
   }
   
-  private Query parseVer3(String text) throws SyntaxError {       
-    return new StructQueryVer3(text, 
-                               mSpan, mCoverAnnotLabel,
-                               mTextFieldName, mAnnotFieldName,
-                               mMaxSpanCheckConstrIter);
+  private StructQueryVer3 parseVer3(String text) throws SyntaxError {       
+    StructQueryParseVer3 queryParse = mPlanCache != null ?
+                                      mPlanCache.getParse(text) :
+                                      new StructQueryParseVer3(text);
+    StructQueryVer3 res = new StructQueryVer3(text,
+                                              queryParse,
+                                              mSpan, mCoverAnnotLabel,
+                                              mTextFieldName, mAnnotFieldName,
+                                              mMaxSpanCheckConstrIter,
+                                              mPayloadVer,
+                                              mMatchOnly,
+                                              mTopK);
+    res.setAnnotColumnCache(mAnnotCache);
+    res.setSearchExecutor(mSearchExecutor, mThreadQty);
+    if (mNodeScoring) {
+      if (mCompactWeight < 0) {
+        throw new SyntaxError("The value of '" + PARAM_COMPACT_WEIGHT + 
+                              "' should be non-negative");
+      }
+      res.setNodeScoring(parseNodeWeights(mNodeWeightsSpec, queryParse), 
+                         mCompactWeight);
+    }
+    return res;
   }  
+  
+  /**
+   * Registers request-scoped objects of the query, i.e., the time budget,
+   * the output of execution statistics, and the cache used to explain 
+   * matches, in the state of the current Solr request, 
+   * see {@link StructQueryRequestState}.
+   * 
+   * @param query   a query, which should not be modified afterwards.
+   */
+  private void initRequestState(StructQueryVer3 query) {
+    SolrRequestInfo reqInfo = SolrRequestInfo.getRequestInfo();
+    if (reqInfo == null) return;
+    
+    ResponseBuilder   rb = reqInfo.getResponseBuilder();
+    NamedList<Object> debugInfo = null;
+    if (rb != null && rb.isDebugQuery()) {
+      debugInfo = new SimpleOrderedMap<Object>();
+      rb.addDebugInfo(DEBUG_INFO_KEY, debugInfo);
+    }
+    boolean explain = rb != null && rb.isDebugResults();
+    if (mTimeAllowed <= 0 && debugInfo == null && mSlowQueryMs < 0 && 
+        !explain) return;
+    
+    StructQueryRequestState.QueryState state = 
+        StructQueryRequestState.get(reqInfo, true).getQueryState(query, true);
+    if (mTimeAllowed > 0) state.setTimeBudget(new QueryTimeBudget(mTimeAllowed, 
+                                                           mExceededQueryQty));
+    state.setStatsOutput(debugInfo, mSlowQueryMs);
+    if (debugInfo != null || mSlowQueryMs >= 0) {
+      // Statistics not reported by the end of the request are reported now
+      reqInfo.addCloseHook(state);
+    }
+    if (explain) {
+      StructExplainCache explainCache = 
+          new StructExplainCache(createExplainDocSource(rb));
+      // Scorers kept by the cache are released when the request is done
+      reqInfo.addCloseHook(explainCache);
+      state.setExplainCache(explainCache);
+    }
+  }
+  
+  /**
+   * Creates a source of explained documents: these are
+   * the documents returned in the response.
+   * 
+   * @param rb    a response builder.
+   * @return a source of documents.
+   */
+  private static StructExplainCache.DocSource createExplainDocSource(
+                                                  final ResponseBuilder rb) {
+    return new StructExplainCache.DocSource() {
+      @Override
+      public int[] getDocIds() {
+        DocListAndSet results = rb.getResults();
+        if (results == null || results.docList == null) return null;
+        
+        int[]       res = new int[results.docList.size()];
+        DocIterator iter = results.docList.iterator();
+        for (int i = 0; i < res.length && iter.hasNext(); ++i) 
+          res[i] = iter.nextDoc();
+        return res;
+      }
+    };
+  }
+  
+  /**
+   * Parses weights of query nodes.
+   * 
+   * @param spec    weights in the format <code>label1:weight1,label2:weight2,...</code>,
+   *                labels are case-insensitive, nodes that are not 
+   *                listed get the weight one; can be null.
+   * @param parse   a query parse.
+   * @return weights of all query nodes (in the order of query tokens).
+   * @throws SyntaxError
+   */
+  static float[] parseNodeWeights(String spec, StructQueryParseVer3 parse) 
+                                  throws SyntaxError {
+    float res[] = new float[parse.getTokens().size()];
+    Arrays.fill(res, 1.0f);
+    
+    if (spec == null || spec.trim().isEmpty()) return res;
+    
+    for (String part : spec.split(",")) {
+      int sepPos = part.lastIndexOf(StructQueryParseVer3.LABEL_SEPARATOR);
+      if (sepPos < 0) {
+        throw new SyntaxError("Bad node weight '" + part + 
+                              "', expected the format <label>" + 
+                              StructQueryParseVer3.LABEL_SEPARATOR + "<weight>");
+      }
+      // Note lowercasing: the query text is lowercased as well
+      String  label = part.substring(0, sepPos).trim().toLowerCase();
+      Integer id = parse.getLabelId(label);
+      if (id == null) {
+        throw new SyntaxError("Unknown label '" + label + "' in the node weight '" + 
+                              part + "'");
+      }
+      float weight;
+      try {
+        weight = Float.parseFloat(part.substring(sepPos + 1).trim());
+      } catch (NumberFormatException e) {
+        throw new SyntaxError("Bad weight in the node weight '" + part + "'");
+      }
+      if (!(weight >= 0) || Float.isInfinite(weight)) {
+        throw new SyntaxError("The node weight '" + part + 
+                              "' should be a non-negative number");
+      }
+      res[id] = weight;
+    }
+    return res;
+  }
+  
+  /**
+   * Computes the number of top documents Solr collects to answer
+   * a request: the number of requested documents is rounded up 
+   * to a multiple of the result window size (as it is done by 
+   * {@link org.apache.solr.search.SolrIndexSearcher} to fill 
+   * the query-result cache).
+   * 
+   * @param start       an offset of the first returned document.
+   * @param rows        the number of returned documents.
+   * @param windowSize  the size of the result window (queryResultWindowSize).
+   * @return the number of collected documents.
+   */
+  static int getCollectedDocQty(int start, int rows, int windowSize) {
+    long requested = (long) Math.max(start, 0) + Math.max(rows, 0);
+    
+    if (windowSize > 0) {
+      requested = requested < windowSize ? 
+                  windowSize : 
+                  ((requested - 1) / windowSize + 1) * windowSize;
+    }
+    return (int) Math.min(requested, Integer.MAX_VALUE);
+  }
+  
+  /**
+   * Determines a version of the payload format using the configuration 
+   * of the annotation field. To this end, we find the payload filter
+   * in the index-time analyzer chain and check the encoder class.
+   * 
+   * @param schema          an index schema.
+   * @param annotFieldName  a name of the annotation field.
+   * @return    {@link UtilConst#PAYLOAD_VERSION_4} if the field is
+   *            encoded using {@link AnnotEncoderVer4}, or 
+   *            {@link UtilConst#DEFAULT_PAYLOAD_VERSION} otherwise.
+   */
+  static int getPayloadVersion(IndexSchema schema, String annotFieldName) {
+    SchemaField field = schema.getFieldOrNull(annotFieldName);
+    if (field == null) return UtilConst.DEFAULT_PAYLOAD_VERSION;
+    Analyzer analyzer = field.getType().getAnalyzer();
+    
+    if (analyzer instanceof TokenizerChain) {
+      for (TokenFilterFactory f : 
+                ((TokenizerChain)analyzer).getTokenFilterFactories()) {
+        if (f instanceof DelimitedPayloadTokenFilterFactory) {
+          String encoder = f.getOriginalArgs().get(
+                              DelimitedPayloadTokenFilterFactory.ENCODER_ATTR);
+          if (encoder != null && 
+              encoder.endsWith(AnnotEncoderVer4.class.getSimpleName())) {
+            return UtilConst.PAYLOAD_VERSION_4;
+          }
+        }
+      }
+    }
+    return UtilConst.DEFAULT_PAYLOAD_VERSION;
+  }
 }
\ No newline at end of file
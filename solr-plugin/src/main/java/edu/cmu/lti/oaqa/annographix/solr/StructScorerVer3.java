@@ -27,6 +27,7 @@ import org.apache.lucene.search.*;
 import org.apache.lucene.search.similarities.Similarity.SimScorer;
 
 import edu.cmu.lti.oaqa.annographix.solr.StructQueryParseVer3.FieldType;
+import edu.cmu.lti.oaqa.annographix.solr.StructQueryParseVer3.ConstraintType;
 
 
 /**
@@ -35,6 +36,9 @@ import edu.cmu.lti.oaqa.annographix.solr.StructQueryParseVer3.FieldType;
  * <p>This is workhorse class that does most of the hard work in three steps:</p>
  * <ol>
  * <li>Finds documents containing all query elements (by leapfrogging).
+ *    Dense postings, i.e., postings of elements that occur in nearly
+ *    every document, do not take part in leapfrogging: they are
+ *    positioned only after all the other postings agree on a document.
  * <li>Inside a found document, identify all spans containing all query elements.
  *    A span is specified by either i) the maximum size in the # of characters;
  *    ii) a label of the covering annotation.
@@ -42,6 +46,13 @@ import edu.cmu.lti.oaqa.annographix.solr.StructQueryParseVer3.FieldType;
  *    element offsets) that satisfies all constraints (as expressed by parent-child,
  *    or containment relationship) of the query.
  * </ol>
+ * <p>The first step is cheap and is exposed separately as an approximation
+ * iterator (see {@link #approximation()}), while steps 2 and 3 are
+ * carried out by the verification function {@link #matches()}. A consumer
+ * can first intersect the approximation with other iterators (e.g., filters)
+ * and verify only the documents that survive the intersection.
+ * The functions {@link #nextDoc()} and {@link #advance(int)} simply
+ * combine both phases.</p>
  * 
  * @author Leonid Boytsov
  *
@@ -53,12 +64,50 @@ public class StructScorerVer3 extends Scorer {
   private int       mSpan;
   private int       mMaxSpanCheckConstrIter;
   private int       mNumMatches = 0;
+  /** 
+   * True if the number of matching spans in the current document
+   * is computed completely (rather than just up to the first match). 
+   */
+  private boolean   mFreqComplete = true;
+  /** 
+   * True, if we only need to know whether a document matches:
+   * the number of matching spans is not computed in this case.
+   */
+  private boolean   mMatchOnly;
+  /** 
+   * Top-k scores shared among scorers of all segments, or null, 
+   * if top-k pruning is disabled. 
+   */
+  private TopScoreThreshold mTopScores;
+  /** An id of the last document whose score was added to mTopScores. */
+  private int       mTopScoresDocId = -1;
+  /** A time budget of the query, or null, if time is not limited. */
+  private QueryTimeBudget mTimeBudget;
+  /** If true, an exception is thrown when the time budget is exceeded. */
+  private boolean   mInterruptOnTimeout = false;
+  /** True if the scorer stopped, because the time budget was exceeded. */
+  private boolean   mTimeBudgetExceeded = false;
+  /** Statistics of the search, or null, if statistics are not gathered. */
+  private StructQueryStats              mQueryStats;
+  /** Statistics of this segment, or null, if statistics are not gathered. */
+  private StructQueryStats.SegmentStats mSegmStats;
+  /** A segment index. */
+  private int                           mSegmOrd;
   
   /** 
    * All postings (+the posting of the covering annotation if the latter exists)
    * sorted in the order of increasing cost.
    */
   private OnePostStateBase[] mAllPostsSortedByCost;
+  /**
+   * Non-dense postings sorted in the order of increasing cost: only these
+   * postings are used for leapfrogging.
+   */
+  private OnePostStateBase[] mLeapfrogPostsSortedByCost;
+  /**
+   * Dense postings, which are positioned only in {@link #matches()}.
+   */
+  private OnePostStateBase[] mDensePosts;
   /**
    * Text/annotation only postings sorted first in the order of decreasing
    * connectedness, then in the order of increasing posting cost.
@@ -71,6 +120,23 @@ public class StructScorerVer3 extends Scorer {
   
   
   private TermSpanIterator           mTermSpanIterator;
+  /** Postings of query nodes in the order of query tokens. */
+  private OnePostStateBase[]         mNodePosts;
+  /** 
+   * Similarity scorers of query nodes, or null, if per-node 
+   * scoring is disabled, see {@link #score()}.
+   */
+  private SimScorer[]                mNodeScorers;
+  /** A weight of span compactness in per-node scoring. */
+  private float                      mCompactWeight;
+  /** Numbers of node elements that can take part in matching spans. */
+  private int[]                      mNodeMatchQty;
+  /** A compactness of the most compact matching span. */
+  private float                      mCompactness;
+  /** For each node: stamps of counted elements (the stamp changes in every document). */
+  private int[][]                    mElemMarks;
+  /** A stamp of the current document. */
+  private int                        mElemMarkStamp = 0;
   
   private OnePostStateBase           mCoverAnnotPost = null;
   private long mCost = 0;
@@ -86,16 +152,51 @@ public class StructScorerVer3 extends Scorer {
    * @param docScorerAnnotField A similarity scorer for the annotation field.
    * @param maxSpanCheckConstrIter    The maximum number of brute-force iterations that we carry out
    *                                  before giving up on constraint checking for the <b>current span</b>. 
+   * @param payloadVer      A version of the annotation payload format.
+   * @param matchOnly       If true, we stop checking spans inside a document
+   *                        as soon as we find the first satisfying span,
+   *                        and {@link #freq()} returns one for every matching
+   *                        document.
+   * @param topScores       Top-k scores shared among scorers of all segments
+   *                        (null, if top-k pruning is disabled), see {@link #matches()}.
+   * @param isDense         Flags of dense postings: the first flags correspond
+   *                        to postings, the last one (if present) corresponds 
+   *                        to the covering annotation posting. At least one
+   *                        posting must be non-dense. If null, all postings
+   *                        are non-dense.
+   * @param initElemQtys    The initial sizes of arrays keeping elements of 
+   *                        a single document (in the same order as isDense),
+   *                        see {@link OnePostStateBase#getInitElemQty(long, long)}.
+   *                        Arrays are taken from the pool of the current thread
+   *                        and returned to the pool when the scorer is exhausted.
+   *                        If null, arrays are not pooled.
+   * @param nodeScorers     Similarity scorers of query nodes (in the order
+   *                        of query tokens) used for per-node scoring
+   *                        (see {@link #score()}), or null, if the scorer 
+   *                        uses only the number of matching spans.
+   * @param compactWeight   A weight of span compactness in per-node scoring.
    */
   public StructScorerVer3(Weight weight,
                           StructQueryParseVer3 queryParse, 
-                          DocsAndPositionsEnum[] postings,
-                          DocsAndPositionsEnum   coverAnnotPost,
+                          DocsEnum[] postings,
+                          DocsEnum   coverAnnotPost,
                           int span,
                           SimScorer docScorerTextField, 
                           SimScorer docScorerAnnotField, 
-                          int maxSpanCheckConstrIter) {
+                          int maxSpanCheckConstrIter,
+                          int payloadVer,
+                          boolean matchOnly,
+                          TopScoreThreshold topScores,
+                          boolean[] isDense,
+                          int[] initElemQtys,
+                          SimScorer[] nodeScorers,
+                          float compactWeight) {
     super(weight);
+    
+    mMatchOnly = matchOnly;
+    mNodeScorers = nodeScorers;
+    mCompactWeight = compactWeight;
+    mTopScores = topScores;
 
     mDocScorerAnnotField = docScorerAnnotField;
     mDocScorerTextField = docScorerTextField;
@@ -144,7 +245,9 @@ public class StructScorerVer3 extends Scorer {
                                         queryParse.getTypes().get(i),
                                         queryParse.getConnectQty(i),
                                         minPostCompCost[compId],
-                                        compId)
+                                        compId,
+                                        payloadVer,
+                                        initElemQtys != null ? initElemQtys[i] : 0)
         );
       }
     }
@@ -153,7 +256,8 @@ public class StructScorerVer3 extends Scorer {
         OnePostStateBase.createPost(coverAnnotPost,
                                     "", 
                                     FieldType.FIELD_ANNOTATION,
-                                    0, 0, 0);
+                                    0, 0, 0, payloadVer,
+                                    initElemQtys != null ? initElemQtys[tokQty] : 0);
       allPostListUnsorted.add(mCoverAnnotPost);
     }
     mAllPostsSortedByCost = new OnePostStateBase[allPostListUnsorted.size()];
@@ -163,7 +267,29 @@ public class StructScorerVer3 extends Scorer {
     // a heuristic let the cost be equal to the size of the shortest posting
     mCost = mAllPostsSortedByCost[0].getPostCost();
     
-    /** 2. Sorting for efficient search within documents. */
+    ArrayList<OnePostStateBase> leapfrogPosts = new ArrayList<OnePostStateBase>();
+    ArrayList<OnePostStateBase> densePosts = new ArrayList<OnePostStateBase>();
+    
+    for (int i = 0; i < allPostListUnsorted.size(); ++i) {
+      if (isDense != null && isDense[i]) 
+        densePosts.add(allPostListUnsorted.get(i));
+      else
+        leapfrogPosts.add(allPostListUnsorted.get(i));
+    }
+    if (leapfrogPosts.isEmpty()) {
+      throw new RuntimeException("Bug: all postings are dense");
+    }
+    mLeapfrogPostsSortedByCost = new OnePostStateBase[leapfrogPosts.size()];
+    leapfrogPosts.toArray(mLeapfrogPostsSortedByCost);
+    Arrays.sort(mLeapfrogPostsSortedByCost, new SortPostByCost());
+    mDensePosts = new OnePostStateBase[densePosts.size()];
+    densePosts.toArray(mDensePosts);
+    
+    /** 
+     * 2. Sorting for efficient search within documents. Note that
+     *    the order of postings inside each component is further adapted 
+     *    to each document, see {@link TermSpanIterator#reorderByDocQty()}.
+     */
     
     // First we need create arrays of constraints
     mPostSortByConnQtyMinCostCompIdPostCost = new OnePostStateBase[tokQty];    
@@ -177,6 +303,11 @@ public class StructScorerVer3 extends Scorer {
       mPostSortByConnQtyMinCostCompIdPostCost[i].setConstraints(queryParse.getConstrTypes(i), 
                                                  constrNode);
     }
+    mNodePosts = Arrays.copyOf(mPostSortByConnQtyMinCostCompIdPostCost, tokQty);
+    if (mNodeScorers != null) {
+      mNodeMatchQty = new int[tokQty];
+      mElemMarks = new int[tokQty][0];
+    }
     // Sort postings and assign sort indexes...
     Arrays.sort(mPostSortByConnQtyMinCostCompIdPostCost, 
                 new SortByConnQtyMinCostCompIdPostCost());
@@ -212,22 +343,282 @@ public class StructScorerVer3 extends Scorer {
   }
 
   /**
-   * @return a score associated with a given number of matches inside the document.
+   * Computes the score of the current document. By default, the score is
+   * a function of the number of matching spans inside the document:
+   * the same frequency is plugged into similarities of the text 
+   * and the annotation fields.
+   * 
+   * <p>If per-node scorers are specified, the score is computed using 
+   * statistics gathered while matching spans are counted 
+   * (no additional span checking is needed):</p>
+   * <ol>
+   * <li>For each node, we count distinct elements that can take part 
+   *     in matching spans and plug this frequency into the node similarity
+   *     (node weights are incorporated into node similarities). 
+   *     Node scores are summed.
+   * <li>The sum is multiplied by <code>1 + compactWeight * compactness</code>,
+   *     where compactness is computed for the most compact matching span, 
+   *     see {@link #getCompactness(int)}.
+   * </ol>
+   * 
+   * @return a score of the current document.
    */
   @Override
   public float score() throws IOException {
-    return mDocScorerAnnotField.score(mCurrDocId, freq()) +
-           mDocScorerTextField.score(mCurrDocId, freq());
+    float score = mNodeScorers != null ? 
+                  getNodeScore() :
+                  mDocScorerAnnotField.score(mCurrDocId, freq()) +
+                  mDocScorerTextField.score(mCurrDocId, freq());
+    if (mTopScores != null && mTopScoresDocId != mCurrDocId) {
+      mTopScores.addScore(score);
+      mTopScoresDocId = mCurrDocId;
+    }
+    return score;
+  }
+  
+  /**
+   * Computes a per-node score of the current document, see {@link #score()}.
+   */
+  private float getNodeScore() throws IOException {
+    float sum = 0;
+    
+    freq(); // makes per-node statistics complete
+    for (int i = 0; i < mNodeScorers.length; ++i) 
+      sum += mNodeScorers[i].score(mCurrDocId, mNodeMatchQty[i]);
+    return sum * (1 + mCompactWeight * mCompactness);
+  }
+  
+  /**
+   * A compactness of a matching span is a decreasing function of the 
+   * length of the shortest window containing elements of all nodes 
+   * (see {@link TermSpanIterator#getMatchMinWindow()}): 
+   * <code>1 / (1 + ln(1 + window))</code>. It is equal to one
+   * for an empty window and approaches zero as the window grows.
+   * 
+   * @param window  a window length in characters.
+   * @return a compactness value in the range (0, 1].
+   */
+  static float getCompactness(int window) {
+    return (float)(1.0 / (1.0 + Math.log(1.0 + Math.max(window, 0))));
+  }
+  
+  /**
+   * Resets per-node statistics before spans of a new document 
+   * are checked, see {@link #score()}.
+   */
+  private void resetNodeStats() {
+    if (mNodeScorers == null) return;
+    
+    // Elements marked in previous documents have smaller stamps
+    ++mElemMarkStamp;
+    Arrays.fill(mNodeMatchQty, 0);
+    mCompactness = 0;
+  }
+  
+  /**
+   * Updates per-node statistics after a matching span is found, 
+   * see {@link #score()}. An element is counted only once, 
+   * even if it can take part in several matching spans. 
+   */
+  private void addMatchingSpan() {
+    if (mNodeScorers == null) return;
+    
+    for (int i = 0; i < mNodePosts.length; ++i) {
+      OnePostStateBase  post = mNodePosts[i];
+      int[]             marks = mElemMarks[i];
+      
+      // the number of elements doesn't change within a document
+      if (marks.length < post.getQty()) 
+        marks = mElemMarks[i] = new int[2 * post.getQty()];
+      
+      for (int k = 0; k < post.mDomainQty; ++k) {
+        int e = post.mDomain[k];
+        if (marks[e] != mElemMarkStamp) {
+          marks[e] = mElemMarkStamp;
+          ++mNodeMatchQty[i];
+        }
+      }
+    }
+    mCompactness = Math.max(mCompactness, 
+                     getCompactness(mTermSpanIterator.getMatchMinWindow()));
+  }
+  
+  /**
+   * Computes an upper bound for the score of the current document
+   * without checking spans. To this end, we use an upper bound for 
+   * the number of matching spans:
+   * <ol>
+   * <li>If there is a covering annotation, each of its occurrences
+   * is a separate span;
+   * <li>Otherwise, each span starts at a beginning of some element. 
+   * Hence, the number of spans cannot exceed the total number of elements.
+   * </ol>
+   * This upper bound is valid as long as the similarity does not decrease 
+   * as the frequency grows, which is true for standard similarities 
+   * (TF-IDF and BM25).
+   * 
+   * @return an upper bound for the score of the current document.
+   */
+  private float getScoreUpperBound() {
+    if (mNodeScorers != null) {
+      // A node cannot have more matching elements than elements
+      float sum = 0;
+      
+      for (int i = 0; i < mNodeScorers.length; ++i) 
+        sum += mNodeScorers[i].score(mCurrDocId, mNodePosts[i].getQty());
+      return sum * (1 + mCompactWeight);
+    }
+    
+    int maxFreq = 0;
+    
+    if (mCoverAnnotPost != null) {
+      maxFreq = mCoverAnnotPost.getQty();
+    } else {
+      for (OnePostStateBase st : mPostSortByConnQtyMinCostCompIdPostCost) 
+        maxFreq += st.getQty();
+    }
+    if (mMatchOnly) maxFreq = Math.min(maxFreq, 1);
+    
+    return mDocScorerAnnotField.score(mCurrDocId, maxFreq) +
+           mDocScorerTextField.score(mCurrDocId, maxFreq);
   }
 
   /**
+   * Returns a number of matching spans inside the document. 
+   * The document verification function {@link #matches()} stops
+   * at the first matching span, so that we do not pay for counting
+   * spans, if the caller does not need scores or frequencies (e.g., when
+   * the query is used as a filter). Remaining spans are counted 
+   * the first time this function is called for the current document.
+   * 
    * @return a number of matches inside the document.
    */
   @Override
   public int freq() throws IOException {
+    if (!mFreqComplete) {
+      long startNanos = mSegmStats != null ? System.nanoTime() : 0;
+      
+      if (!mMatchOnly) {
+        while (mTermSpanIterator.nextSpan()) {
+          if (mTermSpanIterator.checkSpanConstraints()) {
+            ++mNumMatches;
+            addMatchingSpan();
+          }
+        }
+      }
+      mFreqComplete = true;
+      if (mSegmStats != null) {
+        ++mSegmStats.mFreqDocQty;
+        mSegmStats.mFreqNanos += System.nanoTime() - startNanos;
+      }
+    }
     return mNumMatches;
   }
 
+  /**
+   * Re-checks all spans of the current document (the scorer should be
+   * positioned at a matching document) and collects information
+   * used to explain the match. The number of matches is the same
+   * as the one returned by {@link #freq()}, which can be called
+   * afterwards without checking spans again.
+   *
+   * @param maxSpanQty  the maximum number of memorized matching spans.
+   * @return information about the match.
+   * @throws IOException
+   */
+  MatchInfo getMatchInfo(int maxSpanQty) throws IOException {
+    ArrayList<ConstraintInfo> constr = mTermSpanIterator.getConstraints();
+    MatchInfo res = new MatchInfo(constr);
+    int       limitQty = mTermSpanIterator.getSpanCheckLimitQty();
+
+    mNumMatches = 0;
+    resetNodeStats();
+    mTermSpanIterator.initSpanIteration();
+    while (mTermSpanIterator.nextSpan()) {
+      ++res.mCandSpanQty;
+      mTermSpanIterator.countSatisfiedConstraints(res.mSatisfiedQty);
+      if (mTermSpanIterator.checkSpanConstraints()) {
+        ++mNumMatches;
+        addMatchingSpan();
+        if (res.mSpanStarts.size() < maxSpanQty) {
+          res.mSpanStarts.add(mTermSpanIterator.getMatchStartOffset());
+          res.mSpanEnds.add(mTermSpanIterator.getMatchEndOffset());
+        }
+        if (mMatchOnly) break;
+      }
+    }
+    mFreqComplete = true;
+    res.mFreq = mNumMatches;
+    res.mSpanCheckLimitQty = mTermSpanIterator.getSpanCheckLimitQty() - limitQty;
+    if (mNodeScorers != null) {
+      res.mNodeMatchQty = mNodeMatchQty.clone();
+      res.mCompactness = mCompactness;
+    }
+    return res;
+  }
+
+  /**
+   * Information about the match in one document,
+   * see {@link StructScorerVer3#getMatchInfo(int)}.
+   */
+  static class MatchInfo {
+    /**
+     * Constructor.
+     *
+     * @param constr    query constraints.
+     */
+    MatchInfo(ArrayList<ConstraintInfo> constr) {
+      mConstrDesc = new String[constr.size()];
+      for (int i = 0; i < mConstrDesc.length; ++i) {
+        ConstraintInfo c = constr.get(i);
+        String head = c.mConstrainingNode.getToken(),
+               dep = c.mDependentNode.getToken();
+        mConstrDesc[i] = c.mConstrType == ConstraintType.CONSTRAINT_PARENT ?
+                         "'" + head + "' is the parent of '" + dep + "'" :
+                         "'" + head + "' covers '" + dep + "'";
+      }
+      mSatisfiedQty = new int[mConstrDesc.length];
+    }
+
+    /** A number of matching spans. */
+    int                 mFreq;
+    /** A number of spans containing all query elements. */
+    int                 mCandSpanQty;
+    /** A number of spans whose constraint check exceeded the maximum number of iterations. */
+    int                 mSpanCheckLimitQty;
+    /**
+     * Start offsets of matching spans (only the first ones are memorized):
+     * the smallest start offset of elements that may take part in the match.
+     */
+    ArrayList<Integer>  mSpanStarts = new ArrayList<Integer>();
+    /** End offsets of memorized matching spans. */
+    ArrayList<Integer>  mSpanEnds = new ArrayList<Integer>();
+    /** 
+     * Numbers of node elements that can take part in matching spans
+     * (in the order of query tokens), or null, if per-node scoring is disabled.
+     */
+    int[]               mNodeMatchQty;
+    /** A compactness of the most compact matching span, see {@link StructScorerVer3#getCompactness(int)}. */
+    float               mCompactness;
+    /** Descriptions of query constraints. */
+    final String[]      mConstrDesc;
+    /**
+     * For each constraint: a number of spans containing all query elements,
+     * where the constraint (taken alone) is satisfied.
+     */
+    final int[]         mSatisfiedQty;
+  }
+
+  /**
+   * @return a number of spans (in all documents checked so far), where
+   *         the constraint check was terminated, because the maximum number 
+   *         of iterations was reached. In such a case, a span is considered 
+   *         to be non-matching even though it may actually match.
+   */
+  public int getSpanCheckLimitQty() {
+    return mTermSpanIterator.getSpanCheckLimitQty();
+  }
+
   /**
    * @return the current document id.
    */
@@ -269,18 +660,228 @@ public class StructScorerVer3 extends Scorer {
    */
   @Override
   public int advance(int target) throws IOException {
-    // first (least-costly, i.e., rarest) term
-    int doc = mAllPostsSortedByCost[0].advance(target);
-
-    if (doc == DocIdSetIterator.NO_MORE_DOCS) {
-      return mCurrDocId = doc;
+    int doc = advanceApproximation(target);
+    
+    while (doc != DocIdSetIterator.NO_MORE_DOCS) {
+      // If the time budget is exceeded, no more documents are returned
+      if (mTimeBudget != null && mTimeBudget.checkClock()) {
+        mNumMatches = 0;
+        mFreqComplete = true;
+        mTimeBudgetExceeded = true;
+        StructQueryStats queryStats = mQueryStats;
+        onExhausted();
+        mCurrDocId = DocIdSetIterator.NO_MORE_DOCS;
+        if (mInterruptOnTimeout) {
+          // Solr doesn't search remaining segments: report what we have
+          if (queryStats != null) queryStats.flush();
+          throw mTimeBudget.createTimeExceededException(doc);
+        }
+        return mCurrDocId;
+      }
+      if (matches()) return doc;
+      doc = advanceApproximation(doc + 1);
+    }
+    return doc;
+  }
+  
+  /**
+   * Sets a time budget of the query: once the budget is exceeded,
+   * spans are not checked and no more documents are returned,
+   * see {@link QueryTimeBudget}.
+   * 
+   * @param timeBudget  a time budget, or null, if time is not limited.
+   * @param interrupt   if true, the scorer throws an exception 
+   *                    (see {@link QueryTimeBudget#createTimeExceededException(int)}),
+   *                    instead of simply returning no more documents.
+   */
+  public void setTimeBudget(QueryTimeBudget timeBudget, boolean interrupt) {
+    mTimeBudget = timeBudget;
+    mInterruptOnTimeout = interrupt;
+    mTermSpanIterator.setTimeBudget(timeBudget);
+  }
+  
+  /**
+   * @return true if the scorer stopped returning documents, 
+   *         because the time budget was exceeded.
+   */
+  public boolean isTimeBudgetExceeded() {
+    return mTimeBudgetExceeded;
+  }
+  
+  /**
+   * Lets the scorer gather execution statistics. The statistics 
+   * are reported when the scorer is exhausted.
+   * 
+   * @param queryStats  statistics of the search.
+   * @param segmOrd     a segment index.
+   */
+  void setStats(StructQueryStats queryStats, int segmOrd) {
+    mQueryStats = queryStats;
+    mSegmStats = new StructQueryStats.SegmentStats();
+    mSegmOrd = segmOrd;
+    queryStats.addScorer(segmOrd, this);
+  }
+  
+  /**
+   * @return a copy of statistics gathered so far, 
+   *         see {@link #setStats(StructQueryStats, int)}.
+   */
+  StructQueryStats.SegmentStats getStats() {
+    StructQueryStats.SegmentStats res = mSegmStats.copy();
+    
+    res.mSpanQty = mTermSpanIterator.getSpanQty();
+    res.mConstrIterQty = mTermSpanIterator.getConstrIterQty();
+    res.mMaxIterCutoffQty = mTermSpanIterator.getSpanCheckLimitQty();
+    for (OnePostStateBase st: mAllPostsSortedByCost) 
+      res.mPayloadBytes += st.getDecodedBytes();
+    return res;
+  }
+  
+  /**
+   * Reports statistics and returns element arrays of postings 
+   * to the pool, see {@link ElemBuffers}.
+   */
+  private void onExhausted() {
+    reportStats();
+    for (OnePostStateBase st: mAllPostsSortedByCost) st.releaseElemInfo();
+  }
+  
+  /**
+   * Reports statistics of the segment (only once).
+   */
+  private void reportStats() {
+    if (mQueryStats == null) return;
+    
+    mQueryStats.addSegment(mSegmOrd, getStats());
+    mQueryStats = null;
+  }
+  
+  /**
+   * Returns an approximation of this scorer: an iterator over 
+   * documents that contain all non-dense query elements, but not necessarily
+   * contain dense elements or satisfy span and structural constraints. The approximation
+   * shares the state with the scorer: positioning the approximation
+   * also positions the scorer. To find out if the current document
+   * is a true match, call {@link #matches()}.
+   * 
+   * @return an approximation iterator.
+   */
+  public DocIdSetIterator approximation() {
+    return mApproximation;
+  }
+  
+  /**
+   * Verifies that the current document (the one where the approximation
+   * iterator is positioned) has at least one span satisfying all the constraints.
+   * Span checking stops at the first satisfying span, the remaining
+   * spans are counted lazily, see {@link #freq()}. If top-k pruning
+   * is enabled, a document whose score cannot exceed the k-th largest 
+   * score seen so far is rejected without checking spans.
+   * 
+   * @return true if the current document is a true match.
+   * @throws IOException
+   */
+  public boolean matches() throws IOException {
+    if (mSegmStats == null) return matchesInternal();
+    
+    long startNanos = System.nanoTime();
+    try {
+      return matchesInternal();
+    } finally {
+      mSegmStats.mCheckNanos += System.nanoTime() - startNanos;
+    }
+  }
+  
+  /**
+   * The actual verification function, see {@link #matches()}.
+   */
+  private boolean matchesInternal() throws IOException {
+    /*
+     *  Dense postings are positioned only now, when all the other
+     *  postings agree on the document.
+     */
+    for (OnePostStateBase st: mDensePosts) {
+      int doc = st.getDocID();
+      
+      if (doc < mCurrDocId) doc = st.advance(mCurrDocId);
+      if (doc != mCurrDocId) {
+        mNumMatches = 0;
+        mFreqComplete = true;
+        return false;        
+      }
     }
+    /*
+     *  we need to prepare reading positional information  
+     *  and payload data (which are read lazily). 
+     */
+    for (OnePostStateBase st: mAllPostsSortedByCost) 
+      st.readDocElements();
+    /*
+     *  If the document cannot get into the top-k results,
+     *  we do not check spans at all. Note that we cannot skip
+     *  documents whose scores are equal to the threshold: segments 
+     *  are not necessarily processed in the order of increasing 
+     *  document ids.
+     */
+    if (mTopScores != null && 
+        getScoreUpperBound() < mTopScores.getThreshold()) {
+      mNumMatches = 0;
+      mFreqComplete = true;
+      return false;
+    }
+    // adapt the order of the within-document search to element counts
+    mTermSpanIterator.reorderByDocQty();
+    if (mSegmStats != null) ++mSegmStats.mCheckedDocQty;
+    resetNodeStats();
+    mNumMatches = findFirstMatch() ? 1 : 0;
+    // if there is no match, there is nothing left to count
+    mFreqComplete = mNumMatches == 0;
+    return mNumMatches != 0;
+  }
+  
+  /**
+   * Move to the first document with id &gt;= target that contains
+   * all the non-dense query elements (by leapfrogging). No span or 
+   * constraint checking is done here.
+   * 
+   * @param target      find a document at least this large.
+   * @return            the id of the found document, or 
+   *                    {@link DocIdSetIterator#NO_MORE_DOCS}.
+   * @throws IOException
+   */
+  private int advanceApproximation(int target) throws IOException {
+    if (mSegmStats == null) {
+      int doc = advanceApproximationInternal(target);
+      
+      if (doc == DocIdSetIterator.NO_MORE_DOCS) onExhausted();
+      return doc;
+    }
+    
+    long  startNanos = System.nanoTime();
+    int   doc = advanceApproximationInternal(target);
+    
+    mSegmStats.mLeapfrogNanos += System.nanoTime() - startNanos;
+    if (doc != DocIdSetIterator.NO_MORE_DOCS) 
+      ++mSegmStats.mCandDocQty;
+    else
+      onExhausted();
+    return doc;
+  }
+  
+  /**
+   * The actual leapfrogging function, see {@link #advanceApproximation(int)}.
+   */
+  private int advanceApproximationInternal(int target) throws IOException {
+    mNumMatches = 0;
+    mFreqComplete = true;
+    // first (least-costly, i.e., rarest) term
+    int doc = mLeapfrogPostsSortedByCost[0].advance(target);
 
-    while(true) {
+    while (doc != DocIdSetIterator.NO_MORE_DOCS) {
       // second, etc terms 
       int i = 1;
-      while(i < mAllPostsSortedByCost.length) {
-        OnePostStateBase  td = mAllPostsSortedByCost[i];
+      while(i < mLeapfrogPostsSortedByCost.length) {
+        OnePostStateBase  td = mLeapfrogPostsSortedByCost[i];
         int doc2 = td.getDocID();
 
         if (doc2 < doc) {
@@ -288,59 +889,68 @@ public class StructScorerVer3 extends Scorer {
         }
 
         if (doc2 > doc) {
-          target = doc2;
+          doc = mLeapfrogPostsSortedByCost[0].advance(doc2);
           break;
         }
         i++;
       }
 
-      if (i == mAllPostsSortedByCost.length) {
-        /*
-         *  found all query elements in a document, 
-         *  let's compute a number of matches inside
-         *  this document
-         */
-        mCurrDocId = doc;
-        /*
-         *  ... but first we need to read positional information  
-         *      and payload data. 
-         */
-        for (OnePostStateBase st: mAllPostsSortedByCost) 
-          st.readDocElements();
-        mNumMatches = computeFreq();
-
-        if (mNumMatches != 0) {
-          return mCurrDocId;
-        }
-      }
-
-      if (target <= doc)
-        doc = mAllPostsSortedByCost[0].nextDoc();
-      else
-        doc = mAllPostsSortedByCost[0].advance(target);
-
-      if (doc == DocIdSetIterator.NO_MORE_DOCS) {
-        return mCurrDocId = doc;
-      }
-    }  
+      // found all query elements in a document
+      if (i == mLeapfrogPostsSortedByCost.length) break;
+    }
+    return mCurrDocId = doc;
   }
 
   /**
-   * This function computes a number of spans (as represented by the 
-   * maximum span size or a covering annotation) where a query graph
-   * matches a graph of document tokens.
+   * This function starts iterating over spans (as represented by the 
+   * maximum span size or a covering annotation) and stops as soon as it 
+   * finds the first span, where a query graph matches a graph of 
+   * document tokens. The span iterator stays positioned after the found
+   * span, so that remaining spans can be checked later. 
    *  
-   * @return    number of matches inside a document.
+   * @return    true if there is at least one matching span.
+   * @throws IOException
    */
-  private int computeFreq() {
+  private boolean findFirstMatch() throws IOException {
     mTermSpanIterator.initSpanIteration();
-    int qty = 0;
     while (mTermSpanIterator.nextSpan()) {
-      if (mTermSpanIterator.checkSpanConstraints()) ++qty;
+      if (mTermSpanIterator.checkSpanConstraints()) {
+        addMatchingSpan();
+        return true;
+      }
     }
-    return qty;
+    return false;
   }
 
+  /**
+   * An approximation iterator: a thin wrapper that delegates
+   * all the work to the enclosing scorer.
+   */
+  private final DocIdSetIterator mApproximation = new DocIdSetIterator() {
+    @Override
+    public int docID() {
+      return mCurrDocId;
+    }
+
+    @Override
+    public int nextDoc() throws IOException {
+      if (mCurrDocId == DocIdSetIterator.NO_MORE_DOCS) {
+        return mCurrDocId;
+      }
+      return advanceApproximation(mCurrDocId + 1);
+    }
+
+    @Override
+    public int advance(int target) throws IOException {
+      return advanceApproximation(target);
+    }
+
+    @Override
+    public long cost() {
+      return mCost;
+    }
+  };
+
   /** 
    * Returns the estimated cost of this 
    * scorer {@link org.apache.lucene.search.DocIdSetIterator#cost()}.
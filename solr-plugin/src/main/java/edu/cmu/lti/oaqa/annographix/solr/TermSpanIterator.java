@@ -19,6 +19,12 @@
  */
 package edu.cmu.lti.oaqa.annographix.solr;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import edu.cmu.lti.oaqa.annographix.solr.StructQueryParseVer3.ConstraintType;
+
 /**
  * <p>A span iterator base class. This class helps you iterate 
  * over possible matches inside a document. This is achieved
@@ -44,8 +50,10 @@ public abstract class TermSpanIterator {
    * This function initiates span iterators. It should be called after 
    * fetching the information for the next document. It assumes that each 
    * query element is found in the document at least once.
+   * 
+   * @throws IOException
    */
-  public abstract void initSpanIteration();
+  public abstract void initSpanIteration() throws IOException;
   
   /**
    * Finds the next covering span.
@@ -54,8 +62,9 @@ public abstract class TermSpanIterator {
    * 
    * @return    false if we reach the end of the document or true,
    *            if the next span is found.
+   * @throws IOException
    */  
-  public boolean nextSpan() {
+  public boolean nextSpan() throws IOException {
     while (nextSpanInternal()) {
       /*
        *  Let's check if we can find all elements inside the span.
@@ -88,8 +97,7 @@ public abstract class TermSpanIterator {
           return false;
         }
         
-        ElemInfoData nextElem = post.getElement(nextStartIdx);
-        if (nextElem.mStartOffset >= mCurrSpanEndOffset) {
+        if (post.getStartOffset(nextStartIdx) >= mCurrSpanEndOffset) {
           /*
            *  uups the next found element is actually to the right of the current
            *  covering annotation (square brackets denote annotations):
@@ -120,6 +128,7 @@ public abstract class TermSpanIterator {
       }
       
       if (bOk) {
+        ++mSpanQty;
         return true;
       }
     }
@@ -134,25 +143,436 @@ public abstract class TermSpanIterator {
    * the largest number of nodes/elements (or the smallest 
    * minimum posting cost if there are ties).
    * 
+   * <p>For each component, we first treat the search as a constraint 
+   * satisfaction problem, where each node (posting) is a variable,
+   * and its domain is a set of elements fitting into the span:</p>
+   * <ol>
+   * <li>Domains are pruned to make them arc consistent: we repeatedly
+   *     remove elements, which cannot satisfy a constraint with 
+   *     <b>any</b> element of the other node's domain. Each pass 
+   *     requires O(n log n) time, where n is the number of elements
+   *     in the span. Pruned elements are memorized and are not 
+   *     considered again for the current span.
+   * <li>If the component graph is a tree (which is typical), 
+   *     non-empty arc consistent domains guarantee the existence of 
+   *     a solution. Thus, we obtain an exact answer without any enumeration.
+   * <li>Otherwise, we enumerate combinations of elements 
+   *     from the pruned domains using 
+   *     {@link #checkSpanConstraintsForOneComponent(int, int, int)}.
+   *     Only this step is limited by the maximum number of iterations. 
+   *     If the limit is hit, we count this event, 
+   *     see {@link #getSpanCheckLimitQty()}.
+   * </ol>
+   * 
    * @return true if we can find elements satisfying span constrains
+   * @throws IOException
    */
-  public boolean checkSpanConstraints() {
+  public boolean checkSpanConstraints() throws IOException {
     int prevCompId = -1;
     
+    // If the time budget is exceeded, we treat spans as non-matching
+    if (isTimeBudgetExceeded()) return false;
+    
+    mConstrIterQty += mSpanCheckConstrIter;
     mSpanCheckConstrIter = 0;    
     // We want to consider components in the order they are sorted 
     for (int i = 0; i < mPostSorted.length; ++i) {
       int compId = mPostSorted[i].getComponentId();
       if (compId == prevCompId) continue; // This component was checked already
       prevCompId = compId;
+      
+      if (!pruneDomains(compId)) return false;
+      if (mCompIsTree[compId]) continue; // Arc consistency is sufficient
 
       if (!checkSpanConstraintsForOneComponent(mCompStartId[compId],
                                                mCompEndId[compId], 
-                                               mCompStartId[compId]))
+                                               mCompStartId[compId])) {
+        if (mSpanCheckConstrIter > mMaxSpanCheckConstrIter) ++mSpanCheckLimitQty;
+        return false;
+      }
+    }
+    return true;
+  }
+  
+  /**
+   * Reorders postings inside each component using per-document 
+   * element counts. This function should be called after 
+   * {@link OnePostStateBase#readDocElements()} and before 
+   * {@link #initSpanIteration()}.
+   * 
+   * <p>The initial order is computed once (for all documents) using 
+   * document frequencies. However, a term that is rare in the collection 
+   * may be frequent in a specific document and vice versa. Thus, inside
+   * a document, we prefer to start the search from postings with fewer elements
+   * (if there are ties, more connected postings go first). Components stay 
+   * contiguous, because only postings of the same component are reordered.
+   * </p>
+   * 
+   * <p>Because the number of postings is small, we use an in-place
+   * insertion sort, which does not allocate memory. Constraint indices 
+   * are rebuilt only if the order of the component postings has changed:
+   * they are rebuilt in place (see 
+   * {@link OnePostStateBase#buildConstraintIndex(OnePostStateBase[])}).
+   * </p>
+   * 
+   * @return true if the order has changed.
+   */
+  public boolean reorderByDocQty() {
+    boolean bChanged = false;
+    
+    for (int compId = 0; compId < mCompQty; ++compId) {
+      int     compStartId = mCompStartId[compId], compEndId = mCompEndId[compId];
+      boolean bCompChanged = false;
+      
+      for (int i = compStartId + 1; i <= compEndId; ++i) {
+        OnePostStateBase  post = mPostSorted[i];
+        int               k = i - 1;
+        
+        for (; k >= compStartId && compareDocOrder(mPostSorted[k], post) > 0; --k) {
+          mPostSorted[k + 1] = mPostSorted[k];
+        }
+        if (k + 1 != i) {
+          mPostSorted[k + 1] = post;
+          bCompChanged = true;
+        }
+      }
+      
+      if (bCompChanged) {
+        for (int i = compStartId; i <= compEndId; ++i) 
+          mPostSorted[i].setSortIndex(i);
+        for (int i = compStartId; i <= compEndId; ++i) 
+          mPostSorted[i].buildConstraintIndex(mPostSorted);
+        bChanged = true;
+      }
+    }
+    
+    return bChanged;
+  }
+  
+  /**
+   * Compares two postings of the same component, 
+   * see {@link #reorderByDocQty()}.
+   */
+  private static int compareDocOrder(OnePostStateBase o1, OnePostStateBase o2) {
+    // 1. By the number of elements in the current document -- increasing.
+    if (o1.getQty() != o2.getQty()) 
+      return o1.getQty() < o2.getQty() ? -1 : 1;
+    // 2. By connectedness -- decreasing.
+    if (o1.getConnectQty() != o2.getConnectQty()) 
+      return o2.getConnectQty() - o1.getConnectQty();
+    // 3. By the posting cost -- increasing.
+    long d = o1.getPostCost() - o2.getPostCost();
+    return d == 0 ? 0 : (d < 0 ? -1 : 1);
+  }
+  
+  /**
+   * @return a number of times the span constraint check was terminated,
+   *         because the maximum number of iterations was reached 
+   *         (such a span is considered to be non-matching).
+   */
+  public int getSpanCheckLimitQty() { return mSpanCheckLimitQty; }
+  
+  /**
+   * @return the number of spans (found so far), which contain all query elements.
+   */
+  public long getSpanQty() { return mSpanQty; }
+  
+  /**
+   * @return the number of constraint-check iterations (carried out so far).
+   */
+  public long getConstrIterQty() { return mConstrIterQty + mSpanCheckConstrIter; }
+
+  /**
+   * @return constraints of all components (the order is fixed
+   *         for the lifetime of the iterator).
+   */
+  ArrayList<ConstraintInfo> getConstraints() {
+    ArrayList<ConstraintInfo> res = new ArrayList<ConstraintInfo>();
+
+    for (ConstraintInfo[] compConstr : mCompConstr)
+      res.addAll(Arrays.asList(compConstr));
+    return res;
+  }
+
+  /**
+   * Checks each constraint <b>separately</b> in the current span, i.e.,
+   * it checks whether there is a pair of elements fitting into the span
+   * that satisfies the constraint. This function is used only to
+   * explain matches: it should be called after {@link #nextSpan()}
+   * and before {@link #checkSpanConstraints()}, because it overwrites
+   * node domains.
+   *
+   * @param satisfiedQty  counters (in the order of {@link #getConstraints()}):
+   *                      a counter is incremented if the constraint
+   *                      can be satisfied in the current span.
+   */
+  void countSatisfiedConstraints(int[] satisfiedQty) {
+    int k = 0;
+
+    for (ConstraintInfo[] compConstr : mCompConstr) {
+      for (ConstraintInfo c : compConstr) {
+        OnePostStateBase head = c.mConstrainingNode, dep = c.mDependentNode;
+
+        if (initDomain(head) > 0 && initDomain(dep) > 0) {
+          if (c.mConstrType == ConstraintType.CONSTRAINT_PARENT)
+            reviseParent(head, dep, true);
+          else
+            reviseContainHead(head, dep);
+          if (head.mDomainQty > 0) ++satisfiedQty[k];
+        }
+        ++k;
+      }
+    }
+  }
+
+  /**
+   * @return the smallest start offset of elements that may take part in
+   *         the match found in the current span, i.e., elements left
+   *         in node domains by {@link #checkSpanConstraints()}.
+   *         Call it only if the check succeeded.
+   */
+  int getMatchStartOffset() {
+    int res = Integer.MAX_VALUE;
+
+    for (OnePostStateBase post : mPostSorted) {
+      // domain elements are sorted by start offsets
+      if (post.mDomainQty > 0)
+        res = Math.min(res, post.mStartOffsets[post.mDomain[0]]);
+    }
+    return res;
+  }
+
+  /**
+   * @return the largest end offset of elements that may take part in
+   *         the match found in the current span,
+   *         see {@link #getMatchStartOffset()}.
+   */
+  int getMatchEndOffset() {
+    int res = -1;
+
+    for (OnePostStateBase post : mPostSorted) {
+      for (int i = 0; i < post.mDomainQty; ++i)
+        res = Math.max(res, post.mEndOffsets[post.mDomain[i]]);
+    }
+    return res;
+  }
+
+  /**
+   * Computes the length of the shortest window (in characters) that
+   * contains at least one element of each node left in node domains
+   * by {@link #checkSpanConstraints()}. Call it only if the check succeeded.
+   *
+   * <p>Domain elements are sorted by start offsets. Hence, we can
+   * sweep over domains: the window starts at the leftmost current
+   * element, which is replaced by the next element of the same node
+   * at each step.</p>
+   *
+   * @return the length of the shortest window.
+   */
+  int getMatchMinWindow() {
+    int   n = mPostSorted.length;
+    int[] pos = getScratch(n);
+    int   res = Integer.MAX_VALUE;
+
+    Arrays.fill(pos, 0, n, 0);
+    while (true) {
+      int minStart = Integer.MAX_VALUE, maxEnd = -1, minK = 0;
+
+      for (int k = 0; k < n; ++k) {
+        OnePostStateBase post = mPostSorted[k];
+        int              e = post.mDomain[pos[k]];
+
+        if (post.mStartOffsets[e] < minStart) {
+          minStart = post.mStartOffsets[e];
+          minK = k;
+        }
+        maxEnd = Math.max(maxEnd, post.mEndOffsets[e]);
+      }
+      res = Math.min(res, maxEnd - minStart);
+      if (++pos[minK] >= mPostSorted[minK].mDomainQty) break;
+    }
+    return res;
+  }
+
+  /**
+   * Initializes the domain of a node using elements fitting into
+   * the current span, see {@link OnePostStateBase#initDomain(int, int, int)}.
+   *
+   * @param post    a node posting.
+   * @return the size of the domain.
+   */
+  private int initDomain(OnePostStateBase post) {
+    int k = post.getSortIndex();
+    return post.initDomain(mStartElemIndx[k], mEndElemIndx[k], mCurrSpanEndOffset);
+  }
+
+  /**
+   * Sets a time budget of the query.
+   * 
+   * @param timeBudget  a time budget, or null, if time is not limited.
+   */
+  public void setTimeBudget(QueryTimeBudget timeBudget) {
+    mTimeBudget = timeBudget;
+  }
+  
+  /**
+   * A cheap check of the time budget: the clock is read
+   * only once in {@link #TIME_CHECK_MASK}+1 calls.
+   * 
+   * @return true if the time budget is exceeded.
+   */
+  private boolean isTimeBudgetExceeded() {
+    if (mTimeBudget == null) return false;
+    if (mTimeBudget.isExceeded()) return true;
+    if ((++mTimeCheckQty & TIME_CHECK_MASK) != 0) return false;
+    return mTimeBudget.checkClock();
+  }
+  
+  /**
+   * Initializes domains of component nodes and makes them arc consistent.
+   * 
+   * @param compId  a component id.
+   * @return false if at least one domain becomes empty, i.e., 
+   *         the span cannot match.
+   */
+  private boolean pruneDomains(int compId) {
+    for (int k = mCompStartId[compId]; k <= mCompEndId[compId]; ++k) {
+      if (mPostSorted[k].initDomain(mStartElemIndx[k], mEndElemIndx[k], 
+                                    mCurrSpanEndOffset) == 0) 
         return false;
     }
+    ConstraintInfo[] compConstr = mCompConstr[compId];
+    boolean          bChanged = true;
+    
+    while (bChanged) {
+      bChanged = false;
+      for (ConstraintInfo c : compConstr) {
+        OnePostStateBase head = c.mConstrainingNode, dep = c.mDependentNode;
+        
+        if (c.mConstrType == ConstraintType.CONSTRAINT_PARENT) {
+          bChanged |= reviseParent(head, dep, true);
+          bChanged |= reviseParent(dep, head, false);
+        } else {
+          bChanged |= reviseContainHead(head, dep);
+          bChanged |= reviseContainDep(dep, head);
+        }
+        if (head.mDomainQty == 0 || dep.mDomainQty == 0) return false;
+      }
+    }
     return true;
-  }  
+  }
+  
+  /**
+   * Removes domain elements that do not have a matching element (via a 
+   * parent-child constraint) in the other node's domain. 
+   * 
+   * @param target          a node whose domain is pruned.
+   * @param other           a node connected with the target.
+   * @param isTargetParent  true if the target is the parent node.
+   * @return true if the target domain has changed.
+   */
+  private boolean reviseParent(OnePostStateBase target, 
+                               OnePostStateBase other,
+                               boolean isTargetParent) {
+    int     otherQty = other.mDomainQty;
+    int[]   otherKeys = isTargetParent ? other.mParentIds : other.mIds;
+    int[]   keys = getScratch(otherQty);
+    
+    for (int j = 0; j < otherQty; ++j) 
+      keys[j] = otherKeys[other.mDomain[j]];
+    Arrays.sort(keys, 0, otherQty);
+    
+    int[]   targetKeys = isTargetParent ? target.mIds : target.mParentIds;
+    int     newQty = 0;
+    
+    for (int i = 0; i < target.mDomainQty; ++i) {
+      int e = target.mDomain[i];
+      if (Arrays.binarySearch(keys, 0, otherQty, targetKeys[e]) >= 0) 
+        target.mDomain[newQty++] = e;
+      else
+        target.mInDomain[e] = false;
+    }
+    boolean bChanged = newQty != target.mDomainQty;
+    target.mDomainQty = newQty;
+    return bChanged;
+  }
+  
+  /**
+   * Removes domain elements of the covering node that do not cover
+   * any element of the covered node's domain. Because domain elements are
+   * sorted by start offsets, for each covering element, candidates
+   * start at or after some position, and we need to know only
+   * the minimum end offset in this suffix of the domain.
+   * 
+   * @param head    a covering node whose domain is pruned.
+   * @param dep     a covered node.
+   * @return true if the head domain has changed.
+   */
+  private boolean reviseContainHead(OnePostStateBase head, 
+                                    OnePostStateBase dep) {
+    int     depQty = dep.mDomainQty;
+    int[]   sufMinEnd = getScratch(depQty);
+    
+    for (int j = depQty - 1; j >= 0; --j) {
+      int end = dep.mEndOffsets[dep.mDomain[j]];
+      sufMinEnd[j] = j + 1 < depQty ? Math.min(end, sufMinEnd[j + 1]) : end;
+    }
+    
+    int pos = 0, newQty = 0;
+    for (int i = 0; i < head.mDomainQty; ++i) {
+      int e = head.mDomain[i];
+      int start = head.mStartOffsets[e];
+      
+      while (pos < depQty && dep.mStartOffsets[dep.mDomain[pos]] < start) ++pos;
+      if (pos < depQty && sufMinEnd[pos] <= head.mEndOffsets[e]) 
+        head.mDomain[newQty++] = e;
+      else
+        head.mInDomain[e] = false;
+    }
+    boolean bChanged = newQty != head.mDomainQty;
+    head.mDomainQty = newQty;
+    return bChanged;
+  }
+  
+  /**
+   * Removes domain elements of the covered node that are not covered
+   * by any element of the covering node's domain. For each covered
+   * element, candidates form a prefix of the covering node's domain,
+   * and we need to know only the maximum end offset in this prefix.
+   * 
+   * @param dep     a covered node whose domain is pruned.
+   * @param head    a covering node.
+   * @return true if the dependent domain has changed.
+   */
+  private boolean reviseContainDep(OnePostStateBase dep, 
+                                   OnePostStateBase head) {
+    int headQty = head.mDomainQty;
+    int pos = 0, newQty = 0, maxEnd = Integer.MIN_VALUE;
+    
+    for (int i = 0; i < dep.mDomainQty; ++i) {
+      int e = dep.mDomain[i];
+      int start = dep.mStartOffsets[e];
+      
+      for (; pos < headQty && head.mStartOffsets[head.mDomain[pos]] <= start; ++pos) 
+        maxEnd = Math.max(maxEnd, head.mEndOffsets[head.mDomain[pos]]);
+      if (maxEnd >= dep.mEndOffsets[e]) 
+        dep.mDomain[newQty++] = e;
+      else
+        dep.mInDomain[e] = false;
+    }
+    boolean bChanged = newQty != dep.mDomainQty;
+    dep.mDomainQty = newQty;
+    return bChanged;
+  }
+  
+  /**
+   * @param qty a minimum size.
+   * @return a scratch array with at least qty elements.
+   */
+  private int[] getScratch(int qty) {
+    if (mScratch.length < qty) mScratch = new int[qty * 2];
+    return mScratch;
+  }
   
   /**
    * Checks if span constraints can be satisfied for one component. 
@@ -170,7 +590,19 @@ public abstract class TermSpanIterator {
    * an element that can fits into the span only partially. To ensure
    * that all elements inside the span are considered, we need to iterate
    * until the starting offset becomes &gt;= than the span's end offset.
+   * </p>
    * 
+   * <p>If the current node is connected with an earlier node via a
+   * parent-child constraint, we do not enumerate all the elements 
+   * of the current node. Instead, we find children (or the parent)
+   * of the already selected element using an index of elements 
+   * sorted by ids/parent ids (a hash-join-like approach).</p>
+   * 
+   * <p>If the current node is connected with earlier nodes via 
+   * containment constraints, we consider only elements whose start
+   * offsets can possibly satisfy these constraints. Because elements
+   * are sorted by start offsets, such elements occupy a contiguous 
+   * range of indices, which is found via an exponential search.</p>
    * 
    * @param     compStartId        an id of the first element in the component (inclusive).
    * @param     compEndId          an id of the last element in the component (inclusive).
@@ -179,96 +611,172 @@ public abstract class TermSpanIterator {
    * 
    * @return    true if we can find a combination of elements within
    *            the span that satisfy the constraints, or false otherwise.
+   * @throws IOException 
    */
   public boolean checkSpanConstraintsForOneComponent(
                                       int compStartId,
                                       int compEndId,
-                                      int startPostIndex) {
+                                      int startPostIndex) throws IOException {
     if (startPostIndex > compEndId) {
     // We checked successfully all the constraints for this component
       return true;
     }
     
     OnePostStateBase    elem = mPostSorted[startPostIndex];
-
-    for (int elemIndx = mStartElemIndx[startPostIndex];
-         elemIndx < mEndElemIndx[startPostIndex];
-         ++elemIndx) {
-      ++mSpanCheckConstrIter;
-      // This is a heuristic cutoff to forcibly terminate long-working queries  
-      if (mSpanCheckConstrIter > mMaxSpanCheckConstrIter) return false;
-      
-      elem.setCurrElemIndex(elemIndx);
-      /*
-       * Note that spans are sorted by start offset and for elements
-       * with indices in the range 
-       * [mStartElemIndx[startPostIndex],mEndElemIndx[startPostIndex]] starting
-       * offsets are between the start and end offset of the current span.
-       * 
-       * However, it is not guaranteed for end offsets.
-       * Due to non-monotonicity of end offsets (as the function of start offset),
-       * one element may fall out the current span while some following elements
-       * may still fit in.
-       *  
-       * Hence, we don't exit the loop the first time we see the end offset
-       * beyond the span boundary. Instead, we ignore such element and 
-       * proceed to checking the next one.
-       * 
-       * An example (square brackets denote annotation boundary):
-       *    [     ]       span
-       *    [      ]      element 1 (fits in only partially)
-       *     [   ]        element 2 (follows element 1, but fits into the span)
-       */
-      ElemInfoData currElement = elem.getCurrElement();
-      if (currElement.mEndOffset > mCurrSpanEndOffset)
-        continue;
-          
-      boolean bOk = true;
-      /*
-       *  Check constraints related to earlier postings
-       *  that belong to the same component.
-       *  We can disregard postings from other components,
-       *  because there are no constraints shared with them.
-       */
-      if (startPostIndex  > compStartId) {
-        /*
-        // Current node is constraining, compStartId <= startPostIndex - 1
-        if (!mPostSorted[startPostIndex].checkConstraints(compStartId, 
-                                                          startPostIndex - 1)) {
-          bOk = false;
-        } else {
-          for (int k = compStartId; k < startPostIndex; ++k)
-         // Current node is being constrained by previous component nodes
-            if (!mPostSorted[k].checkConstraints(startPostIndex, startPostIndex)) {
-              bOk = false; 
-              break;
-            } 
-        }
-        */
-        bOk = mPostSorted[startPostIndex].checkConstrIncrIndexed();
-      }
-         
-      if (bOk) {
+    ConstraintInfo      probe = elem.getParentProbe();
+    int                 minElemIndx = mStartElemIndx[startPostIndex];
+    int                 maxElemIndx = mEndElemIndx[startPostIndex];
+    
+    ConstraintInfo[]    containConstr = elem.getContainConstraints();
+    
+    for (int i = 0; i < elem.getContainConstraintQty(); ++i) {
+      ConstraintInfo c = containConstr[i];
+      if (c.mDependentNode == elem) {
         /*
-         *  Ok, we are good for post indices from compStartId to startPostIndex.
-         *  That is, there are combinations of elements fully fitting into 
-         *  the span and satisfying all the constraints.
+         * The current node is covered by an earlier node: the start offset
+         * of the current element should be in the range [start, end] 
+         * of the covering element.
          */
-        if (startPostIndex == compEndId) return true; // all checks are done
+        OnePostStateBase head = c.mConstrainingNode;
+        minElemIndx = elem.findElemLargerOffset(FORWARD_ITER_QTY,
+                                                head.getCurrStartOffset() - 1,
+                                                minElemIndx);
+        maxElemIndx = Math.min(maxElemIndx, 
+                               elem.findElemLargerOffset(FORWARD_ITER_QTY,
+                                                         head.getCurrEndOffset(),
+                                                         minElemIndx));
+      } else {
         /*
-         *  Let's see if this can be extended to node components with indices
-         *  larger than startPostIndex. 
+         * The current node covers an earlier node: the start offset
+         * of the current element should not exceed the start offset
+         * of the covered element. End offsets are checked later.
          */
-        boolean f = checkSpanConstraintsForOneComponent(
-                                    compStartId, 
-                                    compEndId,
-                                    startPostIndex + 1);
-        if (f) return true; // At least one combination exists!
+        OnePostStateBase dep = c.mDependentNode;
+        maxElemIndx = Math.min(maxElemIndx, 
+                               elem.findElemLargerOffset(FORWARD_ITER_QTY,
+                                                         dep.getCurrStartOffset(),
+                                                         minElemIndx));
+      }
+      if (minElemIndx >= maxElemIndx) return false;
+    }
+    
+    if (probe != null) {
+      /*
+       * The current node is connected with an earlier node (whose element
+       * is already selected) via a parent-child constraint. Instead of 
+       * iterating over all elements inside the span, we retrieve only 
+       * the elements, which are either children or the parent of the 
+       * already selected element. To this end, we probe an index of 
+       * elements sorted by parent ids or ids.
+       */
+      boolean   isParent = probe.mConstrainingNode == elem;
+      int       key = isParent ? probe.mDependentNode.getCurrParentId() :
+                                 probe.mConstrainingNode.getCurrId();
+      long[]    keyIndex = elem.getKeyIndex(!isParent);
+      int       qty = elem.getQty();
+      
+      for (int pos = OnePostStateBase.lowerBoundKey(keyIndex, qty, key); 
+           pos < qty && OnePostStateBase.getIndexKey(keyIndex[pos]) == key; 
+           ++pos) {
+        int elemIndx = OnePostStateBase.getIndexElem(keyIndex[pos]);
+        // The element should be inside the span (and the narrowed range)
+        if (elemIndx < minElemIndx || elemIndx >= maxElemIndx) continue;
+        // Elements that were pruned earlier cannot be a part of the match
+        if (!elem.isInDomain(elemIndx)) continue;
+        
+        ++mSpanCheckConstrIter;
+        // This is a heuristic cutoff to forcibly terminate long-working queries  
+        if (mSpanCheckConstrIter > mMaxSpanCheckConstrIter || 
+            isTimeBudgetExceeded()) return false;
+        
+        if (checkElement(elem, elemIndx, compStartId, compEndId, startPostIndex)) 
+          return true;
       }
+      return false;
+    }
+
+    for (int elemIndx = minElemIndx;
+         elemIndx < maxElemIndx;
+         ++elemIndx) {
+      if (!elem.isInDomain(elemIndx)) continue;
+      ++mSpanCheckConstrIter;
+      // This is a heuristic cutoff to forcibly terminate long-working queries  
+      if (mSpanCheckConstrIter > mMaxSpanCheckConstrIter || 
+          isTimeBudgetExceeded()) return false;
+      
+      if (checkElement(elem, elemIndx, compStartId, compEndId, startPostIndex)) 
+        return true;
     }
 
     return false;
   }
+  
+  /**
+   * Selects a given element of the current node and checks whether 
+   * it can be extended to a complete combination of elements that 
+   * fit into the span and satisfy the constraints,
+   * see {@link #checkSpanConstraintsForOneComponent(int, int, int)}.
+   * 
+   * @param     elem               the current node (posting).
+   * @param     elemIndx           an index of the element to select.
+   * @param     compStartId        an id of the first element in the component (inclusive).
+   * @param     compEndId          an id of the last element in the component (inclusive).
+   * @param     startPostIndex     the current posting index.
+   * 
+   * @return    true if a complete combination of elements is found.
+   * @throws IOException 
+   */
+  private boolean checkElement(OnePostStateBase elem,
+                               int elemIndx,
+                               int compStartId,
+                               int compEndId,
+                               int startPostIndex) throws IOException {
+    elem.setCurrElemIndex(elemIndx);
+    /*
+     * Note that spans are sorted by start offset and for elements
+     * with indices in the range 
+     * [mStartElemIndx[startPostIndex],mEndElemIndx[startPostIndex]] starting
+     * offsets are between the start and end offset of the current span.
+     * 
+     * However, it is not guaranteed for end offsets.
+     * Due to non-monotonicity of end offsets (as the function of start offset),
+     * one element may fall out the current span while some following elements
+     * may still fit in.
+     *  
+     * Hence, we don't exit the loop the first time we see the end offset
+     * beyond the span boundary. Instead, we ignore such element and 
+     * proceed to checking the next one.
+     * 
+     * An example (square brackets denote annotation boundary):
+     *    [     ]       span
+     *    [      ]      element 1 (fits in only partially)
+     *     [   ]        element 2 (follows element 1, but fits into the span)
+     */
+    if (elem.getCurrEndOffset() > mCurrSpanEndOffset)
+      return false;
+        
+    /*
+     *  Check constraints related to earlier postings
+     *  that belong to the same component.
+     *  We can disregard postings from other components,
+     *  because there are no constraints shared with them.
+     */
+    if (startPostIndex  > compStartId && !elem.checkConstrIncrIndexed())
+      return false;
+    /*
+     *  Ok, we are good for post indices from compStartId to startPostIndex.
+     *  That is, there are combinations of elements fully fitting into 
+     *  the span and satisfying all the constraints.
+     */
+    if (startPostIndex == compEndId) return true; // all checks are done
+    /*
+     *  Let's see if this can be extended to node components with indices
+     *  larger than startPostIndex. 
+     */
+    return checkSpanConstraintsForOneComponent(compStartId, 
+                                               compEndId,
+                                               startPostIndex + 1);
+  }
 
   /**
    * Constructor.
@@ -314,6 +822,43 @@ public abstract class TermSpanIterator {
         mCompStartId[compId] = i; 
       }
     }    
+    /*
+     *  Memorize constraints of each component and check
+     *  if the component graph is a tree: a connected graph
+     *  is a tree if and only if the number of edges is one less
+     *  than the number of nodes. We also need to make sure 
+     *  that there are no loops and no node pairs connected 
+     *  by several constraints.
+     */
+    mCompConstr = new ConstraintInfo[mCompQty][];
+    mCompIsTree = new boolean[mCompQty];
+    
+    for (int compId = 0; compId < mCompQty; ++compId) {
+      ArrayList<ConstraintInfo> constrList = new ArrayList<ConstraintInfo>();
+      boolean                   bTree = true;
+      
+      for (int i = mCompStartId[compId]; i <= mCompEndId[compId]; ++i) {
+        OnePostStateBase head = mPostSorted[i];
+        
+        for (int k = 0; k < head.mConstrNode.length; ++k) {
+          OnePostStateBase dep = head.mConstrNode[k];
+          
+          if (dep == head) bTree = false;
+          for (ConstraintInfo c : constrList) {
+            if ((c.mConstrainingNode == head && c.mDependentNode == dep) ||
+                (c.mConstrainingNode == dep && c.mDependentNode == head)) {
+              bTree = false;
+            }
+          }
+          constrList.add(new ConstraintInfo(head, dep, head.mConstrType[k]));
+        }
+      }
+      
+      mCompConstr[compId] = new ConstraintInfo[constrList.size()];
+      constrList.toArray(mCompConstr[compId]);
+      mCompIsTree[compId] = bTree && 
+          constrList.size() == mCompEndId[compId] - mCompStartId[compId];
+    }
   }
   
   /**
@@ -331,8 +876,9 @@ public abstract class TermSpanIterator {
    * and mCurrSpanEndOffset.
    * 
    * @return    true if successful, and false, if no further spans are found.
+   * @throws IOException
    */
-  protected abstract boolean nextSpanInternal();
+  protected abstract boolean nextSpanInternal() throws IOException;
   
   /**
    * This function should be implemented in the child class, it is
@@ -388,6 +934,30 @@ public abstract class TermSpanIterator {
    * that we have done so far in a current span
    */
   protected int                        mSpanCheckConstrIter = 0;
+  /**
+   * A number of spans, where the constraint check was terminated, because
+   * the number of check iterations exceeded {@link #mMaxSpanCheckConstrIter}.
+   */
+  protected int                        mSpanCheckLimitQty = 0;
+  /** A number of spans that contain all query elements. */
+  protected long                       mSpanQty = 0;
+  /** 
+   * A number of constraint-check iterations in all spans except
+   * the current one.
+   */
+  protected long                       mConstrIterQty = 0;
+  /** A time budget of the query, or null, if time is not limited. */
+  protected QueryTimeBudget            mTimeBudget = null;
+  /** A counter of time-budget checks. */
+  private int                          mTimeCheckQty = 0;
+  /** The clock is read once in TIME_CHECK_MASK + 1 checks. */
+  private static final int             TIME_CHECK_MASK = 0xFF;
+  /** Constraints of each component. */
+  protected ConstraintInfo[][]         mCompConstr;
+  /** Flags indicating that the component graph is a tree. */
+  protected boolean[]                  mCompIsTree;
+  /** A scratch array used to prune domains. */
+  private int[]                        mScratch = new int[0];
   
 }
 
@@ -19,11 +19,23 @@
  */
 package edu.cmu.lti.oaqa.annographix.solr;
 
+import java.io.IOException;
+
 /**
  * 
  * See {@link TermSpanIterator}, covering windows are provided by an annotation,
  * i.e., we find all occurrences of this annotation in the document.
  * 
+ * <p>Covering annotations are not simply visited one by one. Instead,
+ * the iteration is driven by the posting with the smallest number 
+ * of elements in the current document (an anchor): a matching covering 
+ * annotation must contain (the start of) at least one anchor element.
+ * Hence, we jump over covering annotations that end before the next 
+ * anchor element, and stop as soon as there are no anchor elements left.
+ * The first covering annotation starting after the anchor element
+ * is found using the exponential search.
+ * </p>
+ * 
  * @author Leonid Boytsov
  *
  */
@@ -31,9 +43,9 @@ public class TermSpanIteratorCoverAnnot extends TermSpanIterator {
   /**
    * Constructor.
    * 
-   * @param     postSorted  see {@link TermSpanIterator#TermSpanIterator(OnePostStateBase[])}
+   * @param     postSorted  see {@link TermSpanIterator#TermSpanIterator(OnePostStateBase[], int)}
    * @param     coverAnnot  a pointer to the covering annotator posting wrapper.
-   * @param mMaxSpanCheckConstrIter 
+   * @param     maxSpanCheckConstrIter see {@link TermSpanIterator#TermSpanIterator(OnePostStateBase[], int)} 
    */
   TermSpanIteratorCoverAnnot(OnePostStateBase[] postSorted,
                              OnePostStateBase   coverAnnot, 
@@ -50,20 +62,63 @@ public class TermSpanIteratorCoverAnnot extends TermSpanIterator {
     initSpanIterationBase();
     mCoverAnnotQty = mCoverAnnot.getQty();
     mAnnotIndx = -1;
+    
+    mAnchor = null;
+    for (OnePostStateBase post : mPostSorted) {
+      if (mAnchor == null || post.getQty() < mAnchor.getQty()) mAnchor = post;
+    }
+    mAnchorIndx = 0;
   }
 
   /**
    * See {@link TermSpanIterator#nextSpanInternal()}
    */
   @Override
-  protected boolean nextSpanInternal() {
-    if (++mAnnotIndx >= mCoverAnnotQty) return false;
-    ElemInfoData    elem = mCoverAnnot.getElement(mAnnotIndx);
-    
-    mCurrSpanStartOffset    = elem.mStartOffset;
-    mCurrSpanEndOffset      = elem.mEndOffset;
-
-    return true;
+  protected boolean nextSpanInternal() throws IOException {
+    while (++mAnnotIndx < mCoverAnnotQty) {
+      int coverStart = mCoverAnnot.getStartOffset(mAnnotIndx);
+      if (mAnchor == null) {
+        mCurrSpanStartOffset    = coverStart;
+        mCurrSpanEndOffset      = mCoverAnnot.getEndOffset(mAnnotIndx);
+        return true;
+      }
+      // The first anchor element that starts inside or after the covering annotation
+      mAnchorIndx = mAnchor.findElemLargerOffset(FORWARD_ITER_QTY, 
+                                                 coverStart - 1, mAnchorIndx);
+      if (mAnchorIndx >= mAnchor.getQty()) {
+        /*
+         *  Covering annotations are sorted by their start offsets:
+         *  if there are no anchor elements to the right of this 
+         *  covering annotation, the same is true for all the following ones.
+         */
+        finishSpanIteration();
+        return false;
+      }
+      int anchorStart = mAnchor.getStartOffset(mAnchorIndx);
+      
+      if (anchorStart < mCoverAnnot.getEndOffset(mAnnotIndx)) {
+        mCurrSpanStartOffset    = coverStart;
+        mCurrSpanEndOffset      = mCoverAnnot.getEndOffset(mAnnotIndx);
+        return true;
+      }
+      /*
+       *  The anchor element is to the right of the covering annotation.
+       *  Covering annotations starting after anchorStart will be checked
+       *  against the following anchor elements. However, those 
+       *  starting at or before anchorStart can match only if they end 
+       *  after anchorStart. Note that end offsets are not necessarily 
+       *  monotonic (annotations may be nested), so we have to check 
+       *  all of them, but this check is cheap. 
+       */
+      int nextIndx = mCoverAnnot.findElemLargerOffset(FORWARD_ITER_QTY, 
+                                                      anchorStart, 
+                                                      mAnnotIndx + 1);
+      int j = mAnnotIndx + 1;
+      while (j < nextIndx && mCoverAnnot.getEndOffset(j) <= anchorStart) ++j;
+      // The loop will increment mAnnotIndx
+      mAnnotIndx = j - 1;
+    }
+    return false;
   }
   
   /**
@@ -74,9 +129,11 @@ public class TermSpanIteratorCoverAnnot extends TermSpanIterator {
     mAnnotIndx = mCoverAnnotQty;
   }
   
-
-  
   private int               mAnnotIndx = -1;
   private int               mCoverAnnotQty = 0;
   private OnePostStateBase  mCoverAnnot;  
-}
\ No newline at end of file
+  /** A posting with the smallest number of elements in the current document. */
+  private OnePostStateBase  mAnchor;
+  /** An index of the current anchor element. */
+  private int               mAnchorIndx = 0;
+}
@@ -19,13 +19,19 @@
  */
 package edu.cmu.lti.oaqa.annographix.solr;
 
-import java.util.PriorityQueue;
+import java.io.IOException;
 
 /**
  * 
  * See {@link TermSpanIterator}, covering windows are document spans
  * that contain all query elements and whose length is within the threshold
  * 
+ * <p>The sliding window is driven by a min-heap of posting <b>slots</b>
+ * (indices in the array of postings) keyed by the start offset of the
+ * current element. The heap is stored in a plain int array: when
+ * the posting on top moves forward, the top slot is sifted down in place.
+ * Thus, no objects are created/boxed and no poll/add pairs are needed.</p>
+ * 
  * @author Leonid Boytsov
  *
  */
@@ -44,40 +50,47 @@ public class TermSpanIteratorMaxLen extends TermSpanIterator {
     super(postSorted, maxSpanCheckConstrIter);
     
     mMaxSpanLen = maxSpanLen;
-    mQueueObjs = new ElemInfoDataHolder[postSorted.length];
-    for (int i = 0; i < postSorted.length; ++i)
-      mQueueObjs[i] = new ElemInfoDataHolder(postSorted[i]);
-    mStartOffsetQueue = new PriorityQueue<ElemInfoDataHolder>();
+    
+    int n = postSorted.length;
+    
+    mHeap       = new int[n];
+    mSlotCurr   = new int[n];
+    mSlotOffset = new int[n];
+    mSlotQty    = new int[n];
   }
   
   /**
    * See {@link TermSpanIterator#initSpanIteration()}. 
    */
   @Override
-  public void initSpanIteration() {
+  public void initSpanIteration() throws IOException {
     initSpanIterationBase();
-    mStartOffsetQueue.clear();
     
     mLargestStartOffset = -1;
     
     for (int i = 0; i < mPostSorted.length; ++i) {
-      ElemInfoDataHolder obj = mQueueObjs[i];
-      obj.reset();
-      mLargestStartOffset = Math.max(obj.getCurrOffset(), mLargestStartOffset);
-      mStartOffsetQueue.add(obj);
+      mSlotQty[i]    = mPostSorted[i].getQty();
+      mSlotCurr[i]   = 0;
+      mSlotOffset[i] = mPostSorted[i].getStartOffset(0);
+      mLargestStartOffset = Math.max(mSlotOffset[i], mLargestStartOffset);
+      mHeap[i] = i;
     }
+    mHeapSize = mPostSorted.length;
+    // Heapify
+    for (int i = mHeapSize / 2 - 1; i >= 0; --i) 
+      siftDown(i);
   }
 
   /**
    * See {@link TermSpanIterator#nextSpanInternal()}
    */
   @Override
-  protected boolean nextSpanInternal() {
-    while (!mStartOffsetQueue.isEmpty()) {
-      ElemInfoDataHolder bottom = mStartOffsetQueue.poll();
+  protected boolean nextSpanInternal() throws IOException {
+    while (mHeapSize > 0) {
+      int bottom = mHeap[0];
       
       // Here start should be < mLargestStartOffset 
-      int start = bottom.getCurrOffset();
+      int start = mSlotOffset[bottom];
       
       boolean bRet = false;
       
@@ -104,12 +117,19 @@ public class TermSpanIteratorMaxLen extends TermSpanIterator {
         mCurrSpanEndOffset   = start + mMaxSpanLen;
       }
       
-      if (bottom.findNextElemLargerOffset(minOffsetToExceed)) {
+      if (findNextElemLargerOffset(bottom, minOffsetToExceed)) {
         // May be the new end highest start offset
-        mLargestStartOffset = Math.max(mLargestStartOffset, bottom.getCurrOffset());
-        mStartOffsetQueue.add(bottom);
+        mLargestStartOffset = Math.max(mLargestStartOffset, mSlotOffset[bottom]);
+        // The top slot has moved forward: restore the heap property in place
+        siftDown(0);
       } else {
-        return false; // Exhausted all possibilities with one element
+        /*
+         *  We exhausted all possibilities with one element. Hence, 
+         *  there can be no further spans, but the span found in this
+         *  iteration (if any) is still valid.
+         */
+        mHeapSize = 0;
+        return bRet; 
       }
       
       if (bRet) return true;
@@ -123,70 +143,97 @@ public class TermSpanIteratorMaxLen extends TermSpanIterator {
    */  
   @Override
   protected void finishSpanIteration() {
-    mStartOffsetQueue.clear();
-  }
-  
-  private int                           mMaxSpanLen = 0;
-  ElemInfoDataHolder[]                  mQueueObjs = null;
-  PriorityQueue<ElemInfoDataHolder>     mStartOffsetQueue = null;
-  private int                           mLargestStartOffset = -1;
-}
-
-/**
- *  A helper wrapper class to iterate over posting entries within a document.
- *  Objects of these class will be placed into the queue.
- *
- */
-class ElemInfoDataHolder implements Comparable<ElemInfoDataHolder> {
-  ElemInfoDataHolder(OnePostStateBase post) {
-    mPost = post;
+    mHeapSize = 0;
   }
   
   /**
-   * Resets to zero the index indicating the current entry.  
+   * "Fast forward" the index of the current entry of a given slot until the start
+   * offset becomes larger than a given one. Note that it makes at 
+   * least one move.
+   * 
+   * @param slot            a posting slot.
+   * @param offsetToExceed  an offset to exceed.
+   * @return true   if the slot still points to a valid element (after the move).
+   * @throws IOException 
    */
-  public void reset() {
-    mData = mPost.getAllElements();
-    mQty = mPost.getQty();
-    mCurr = 0;
+  private boolean findNextElemLargerOffset(int slot, 
+                                           int offsetToExceed) throws IOException {
+    int qty  = mSlotQty[slot];
+    int curr = mSlotCurr[slot];
+    
+    if (curr < qty) {
+      ++curr;
+      
+      if (curr < qty) {
+        OnePostStateBase post = mPostSorted[slot];
+        int offset = post.getStartOffset(curr);
+        
+        if (offset <= offsetToExceed) {
+          curr = post.findElemLargerOffset(TermSpanIterator.FORWARD_ITER_QTY, 
+                                           offsetToExceed, curr);
+          if (curr < qty) offset = post.getStartOffset(curr);
+        }
+        mSlotCurr[slot] = curr;
+        if (curr < qty) {
+          mSlotOffset[slot] = offset;
+          return true;
+        }
+        return false;
+      }
+    }
+    mSlotCurr[slot] = curr;
+    return false;
   }
   
   /**
-   * @return the current offset as long as mCurr < mQty.
-   */
-  public int getCurrOffset() {
-    return mData[mCurr].mStartOffset;
-  }
-
-  /**
-   * "Fast forward" the index of the current entry until the start
-   * offset becomes larger than a given one. Note that it makes at 
-   * least one move.
+   * Moves the heap entry at a given position down until
+   * the heap property is restored. 
    * 
-   * @return true   if the pointer still points to a valid element (after the move).
+   * @param pos   a position in the heap.
    */
-  public boolean findNextElemLargerOffset(int offsetToExceed) {
-    if (mCurr < mQty) {
-      ++mCurr;
+  private void siftDown(int pos) {
+    int slot   = mHeap[pos];
+    int half   = mHeapSize >>> 1;
     
-      if (mCurr < mQty) {
-        if (getCurrOffset() > offsetToExceed) return true;
-        mCurr = mPost.findElemLargerOffset(TermSpanIterator.FORWARD_ITER_QTY, 
-                                           offsetToExceed, mCurr);          
-        return mCurr < mQty;
+    while (pos < half) {
+      int child = 2 * pos + 1;
+      int childSlot = mHeap[child];
+      int right = child + 1;
+      
+      if (right < mHeapSize && lessThan(mHeap[right], childSlot)) {
+        child = right;
+        childSlot = mHeap[right];
       }
+      if (!lessThan(childSlot, slot)) break;
+      
+      mHeap[pos] = childSlot;
+      pos = child;
     }
-    return false;
+    mHeap[pos] = slot;
   }
   
-  @Override
-  public int compareTo(ElemInfoDataHolder o) {
-    return getCurrOffset() - o.getCurrOffset();  
+  /**
+   * Compares two slots by the start offset of the current element; 
+   * ties are broken using slot indices, so that the order in which
+   * elements with equal offsets are processed does not depend 
+   * on the history of heap operations.
+   */
+  private boolean lessThan(int slot1, int slot2) {
+    int off1 = mSlotOffset[slot1], off2 = mSlotOffset[slot2];
+    return off1 < off2 || (off1 == off2 && slot1 < slot2);
   }
   
-
-  private OnePostStateBase  mPost;  
-  private ElemInfoData[]    mData;
-  private int               mCurr = 0;
-  private int               mQty = 0;
+  private int                           mMaxSpanLen = 0;
+  private int                           mLargestStartOffset = -1;
+  
+  /** A min-heap of posting slots keyed by the current start offset. */
+  private final int[]                   mHeap;
+  /** A number of slots in the heap. */
+  private int                           mHeapSize = 0;
+  /** An index of the current element for each posting slot. */
+  private final int[]                   mSlotCurr;
+  /** A start offset of the current element (cached to speed up comparisons). */
+  private final int[]                   mSlotOffset;
+  /** A number of elements in the current document for each posting slot. */
+  private final int[]                   mSlotQty;
 }
@@ -0,0 +1,90 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+/**
+ * Keeps track of the k largest scores seen so far. The smallest of them, 
+ * i.e., the k-th largest score, is a threshold: a document whose score 
+ * cannot exceed this threshold cannot be among the top-k documents.
+ * 
+ * <p>One object is shared by all the segment scorers of a single search, 
+ * which may run in different threads. Hence, updates are synchronized,
+ * while the threshold can be read without locking.</p>
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+public class TopScoreThreshold {
+  /**
+   * Constructor.
+   * 
+   * @param k   a number of top-scored documents to keep track of (should be &gt; 0).
+   */
+  public TopScoreThreshold(int k) {
+    if (k <= 0) {
+      throw new RuntimeException("Bug: the number of top documents should be positive, got: " + k);
+    }
+    mHeap = new float[k];
+  }
+  
+  /**
+   * @return the k-th largest score seen so far, or negative infinity,
+   *         if we have seen fewer than k scores.
+   */
+  public float getThreshold() {
+    return mThreshold;
+  }
+  
+  /**
+   * Memorizes the score of a matching document.
+   * 
+   * @param score   a document score.
+   */
+  public synchronized void addScore(float score) {
+    if (mQty < mHeap.length) {
+      // sift up
+      int pos = mQty++;
+      while (pos > 0) {
+        int parent = (pos - 1) >> 1;
+        if (mHeap[parent] <= score) break;
+        mHeap[pos] = mHeap[parent];
+        pos = parent;
+      }
+      mHeap[pos] = score;
+      if (mQty == mHeap.length) mThreshold = mHeap[0];
+      return;
+    }
+    if (score <= mHeap[0]) return;
+    // replace the smallest score and sift down
+    int pos = 0;
+    while (true) {
+      int child = 2 * pos + 1;
+      if (child >= mQty) break;
+      if (child + 1 < mQty && mHeap[child + 1] < mHeap[child]) ++child;
+      if (score <= mHeap[child]) break;
+      mHeap[pos] = mHeap[child];
+      pos = child;
+    }
+    mHeap[pos] = score;
+    mThreshold = mHeap[0];
+  }
+  
+  /** A min-heap of the largest scores. */
+  private final float[]   mHeap;
+  /** A number of scores in the heap. */
+  private int             mQty = 0;
+  private volatile float  mThreshold = Float.NEGATIVE_INFINITY;
+}
@@ -0,0 +1,135 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.util.PriorityQueue;
+
+import edu.cmu.lti.oaqa.annographix.solr.StructQueryParseVer3.FieldType;
+
+/**
+ * A union of postings of alternative lexical entries of the same query
+ * node, e.g., ~:run|ran (see {@link StructQueryParseVer3#getAlternatives(String)}).
+ * 
+ * <p>Postings are merged at the document level using a heap. Each 
+ * alternative posting is wrapped by its own decoder, elements of all 
+ * alternatives present in the current document are merged 
+ * by {@link OnePostStateUnion}. The cost of the union is the sum of 
+ * alternatives' costs.</p>
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+class UnionPostings extends DocsEnum implements ElemSource {
+  /**
+   * Constructor.
+   * 
+   * @param postings    already initialized postings of alternatives.
+   * @param tokens      textual representations of alternatives.
+   * @param type        posting type: annotation or regular token.
+   * @param payloadVer  a version of the annotation payload format.
+   */
+  UnionPostings(DocsEnum postings[], 
+                String tokens[], FieldType type,
+                int payloadVer) {
+    mPostings = postings;
+    mDecoders = new OnePostStateBase[postings.length];
+    mQueue = new PriorityQueue<OnePostStateBase>(postings.length) {
+      @Override
+      protected boolean lessThan(OnePostStateBase a, OnePostStateBase b) {
+        return a.getDocID() < b.getDocID();
+      }
+    };
+    for (int i = 0; i < postings.length; ++i) {
+      mDecoders[i] = OnePostStateBase.createPost(postings[i], tokens[i], type, 
+                                                 0, 0, 0, payloadVer, 0);
+      mCost += postings[i].cost();
+      mQueue.add(mDecoders[i]);
+    }
+  }
+
+  @Override
+  public int docID() {
+    return mDocId;
+  }
+
+  @Override
+  public int nextDoc() throws IOException {
+    return advance(mDocId + 1);
+  }
+
+  @Override
+  public int advance(int target) throws IOException {
+    if (mDocId == NO_MORE_DOCS) return mDocId;
+    
+    OnePostStateBase top = mQueue.top();
+    
+    while (top.getDocID() < target) {
+      if (top.advance(target) == NO_MORE_DOCS) {
+        mQueue.pop();
+        if (mQueue.size() == 0) return mDocId = NO_MORE_DOCS;
+        top = mQueue.top();
+      } else {
+        top = mQueue.updateTop();
+      }
+    }
+    return mDocId = top.getDocID();
+  }
+
+  /**
+   * @return the total number of elements of alternatives 
+   *         in the current document.
+   */
+  @Override
+  public int freq() throws IOException {
+    int res = 0;
+    
+    for (int i = 0; i < mDecoders.length; ++i) {
+      if (mDecoders[i].getDocID() == mDocId) res += mPostings[i].freq();
+    }
+    return res;
+  }
+
+  @Override
+  public long cost() {
+    return mCost;
+  }
+  
+  /**
+   * @return decoders of alternatives: only decoders whose current document 
+   *         is equal to {@link #docID()} point to elements of this document.
+   */
+  OnePostStateBase[] getDecoders() {
+    return mDecoders;
+  }
+
+  @Override
+  public OnePostStateBase createPost(String token, FieldType type,
+                                     int connectQty,
+                                     long minCompPostCost,
+                                     int componentId) {
+    return new OnePostStateUnion(token, type, this, 
+                                 connectQty, minCompPostCost, componentId);
+  }
+  
+  private final DocsEnum                            mPostings[];
+  private final OnePostStateBase                    mDecoders[];
+  private final PriorityQueue<OnePostStateBase>     mQueue;
+  private long                                      mCost = 0;
+  private int                                       mDocId = -1;
+}
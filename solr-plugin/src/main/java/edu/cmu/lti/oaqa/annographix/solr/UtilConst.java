@@ -60,12 +60,36 @@ public class UtilConst {
   /**
    * The string used to denote any-term (a wildcard).
    * It should not contain a PAYLOAD_CHAR or a PAYLOAD_ID_SEP_CHAR!
+   * In particular, annotations of the type NamedEntity with any label
+   * are indexed using an additional term NamedEntity_#any, 
+   * see {@link #combineFieldValueAny(String)}.
    * 
    */
   public static final String STRING_ANY = "#any";
   
   
   public static final int DEFAULT_MAX_SPAN_CHECK_ITER = 100000;
+  
+  /**
+   * A posting is considered to be dense, if it contains at least 
+   * this fraction of segment documents (including deleted ones).
+   * Dense postings are not used for leapfrogging, see {@link StructScorerVer3}.
+   */
+  public static final float DENSE_POSTING_RATIO = 0.9f;
+  
+  /**
+   * A version of the payload format produced by {@link AnnotEncoderVer3}.
+   */
+  public static final int PAYLOAD_VERSION_3 = 3;
+  /**
+   * A version of the (compact) payload format produced by {@link AnnotEncoderVer4}.
+   */
+  public static final int PAYLOAD_VERSION_4 = 4;
+  /**
+   * A payload format version that we use, if we cannot determine
+   * the version from the field configuration.
+   */
+  public static final int DEFAULT_PAYLOAD_VERSION = PAYLOAD_VERSION_3;
 
   
   /**
@@ -196,6 +220,35 @@ public class UtilConst {
         annotationType + UtilConst.VALUE_SEPARATOR + annotationLabel
            ;
   }
+ 
+  /**
+   *  Creates an artificial type-only term, which represents annotations
+   *  of a given type with any label, e.g., NamedEntity_#any. The indexer
+   *  emits this term (in addition to the regular one) for every annotation
+   *  with a non-empty label. Hence, a query can find annotations of the
+   *  type using a single posting list. The type-only term is indexed at
+   *  the position of the regular one, see {@link AnyTypeTokenFilter}.
+   *  
+   * @param annotationType          annotation type, e.g., NamedEntity.
+   * @return a type-only term.
+   */
+  public static String combineFieldValueAny(String annotationType) {
+    return combineFieldValue(annotationType, STRING_ANY);
+  }
+  
+  /**
+   *  Extracts an annotation type from a term created by the function
+   *  {@link #combineFieldValue(String, String)}.
+   *  
+   * @param annotTerm               an annotation term, e.g., NamedEntity_PER.
+   * @return an annotation type, or null, if the term has no label (or no type).
+   */
+  public static String getAnnotationType(String annotTerm) {
+    int pos = annotTerm.indexOf(VALUE_SEPARATOR);
+    return pos > 0 && pos + 1 < annotTerm.length() ? 
+           annotTerm.substring(0, pos) : null;
+  }
+  
   /**
    * 
    * Creates an artificial term annotation keyword  
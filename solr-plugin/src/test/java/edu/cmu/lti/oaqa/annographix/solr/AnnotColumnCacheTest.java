@@ -0,0 +1,234 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.cmu.lti.oaqa.annographix.solr.StructQueryParseVer3.FieldType;
+
+/**
+ * 
+ * Testing {@link AnnotColumnCache} over a small multi-segment index,
+ * see {@link StructQueryTestIndex}: cached postings, hits and misses, 
+ * eviction of least recently used entries, postings that are too large
+ * to be cached, and removal of entries of closed segments.
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+public class AnnotColumnCacheTest {
+  @Before
+  public void setUp() throws IOException {
+    mDir = StructQueryTestIndex.create();
+    mReader = DirectoryReader.open(mDir);
+    mLeaves = mReader.leaves();
+    assertTrue(mLeaves.size() >= 3);
+  }
+  
+  @After
+  public void tearDown() throws IOException {
+    if (mReader != null) mReader.close();
+    mDir.close();
+  }
+  
+  @Test
+  public void testHitsAndMisses() throws Exception {
+    AnnotColumnCache cache = new AnnotColumnCache(Arrays.asList(LABEL), 
+                                                  Long.MAX_VALUE);
+    
+    for (AtomicReaderContext context : mLeaves) {
+      checkPostings(context, getPostings(cache, context));
+    }
+    assertEquals(0, getStat(cache, "annotCacheHits"));
+    assertEquals(mLeaves.size(), getStat(cache, "annotCacheMisses"));
+    assertEquals(mLeaves.size(), getStat(cache, "annotCacheSize"));
+    
+    for (AtomicReaderContext context : mLeaves) {
+      checkPostings(context, getPostings(cache, context));
+    }
+    assertEquals(mLeaves.size(), getStat(cache, "annotCacheHits"));
+    assertEquals(mLeaves.size(), getStat(cache, "annotCacheMisses"));
+    assertEquals(mLeaves.size(), getStat(cache, "annotCacheSize"));
+  }
+  
+  @Test
+  public void testEviction() throws Exception {
+    long sizes[] = getByteSizes();
+    /*
+     *  Segments a and b fill the cache, segment c, which is not 
+     *  larger than b, replaces b, because b is used less recently than a.
+     */
+    int a = 0, b = 1, c = 2;
+    if (sizes[b] < sizes[c]) { b = 2; c = 1; }
+    
+    long maxBytes = sizes[a] + sizes[b];
+    AnnotColumnCache cache = new AnnotColumnCache(Arrays.asList(LABEL), 
+                                                  maxBytes);
+    
+    assertNotNull(getPostings(cache, mLeaves.get(a)));
+    assertNotNull(getPostings(cache, mLeaves.get(b)));
+    assertNotNull(getPostings(cache, mLeaves.get(a)));
+    assertEquals(1, getStat(cache, "annotCacheHits"));
+    assertEquals(maxBytes, getStat(cache, "annotCacheBytes"));
+    
+    checkPostings(mLeaves.get(c), getPostings(cache, mLeaves.get(c)));
+    assertEquals(2, getStat(cache, "annotCacheSize"));
+    assertEquals(sizes[a] + sizes[c], getStat(cache, "annotCacheBytes"));
+    
+    assertNotNull(getPostings(cache, mLeaves.get(a)));
+    assertEquals(2, getStat(cache, "annotCacheHits"));
+    assertNotNull(getPostings(cache, mLeaves.get(b)));
+    assertEquals(2, getStat(cache, "annotCacheHits"));
+    assertEquals(4, getStat(cache, "annotCacheMisses"));
+    assertTrue(getStat(cache, "annotCacheBytes") <= maxBytes);
+  }
+  
+  @Test
+  public void testTooLarge() throws Exception {
+    long sizes[] = getByteSizes();
+    AnnotColumnCache cache = new AnnotColumnCache(Arrays.asList(LABEL), 
+                                                  sizes[0] - 1);
+    
+    for (int i = 0; i < 2; ++i) {
+      assertNull(getPostings(cache, mLeaves.get(0)));
+    }
+    // The posting is decoded only once
+    assertEquals(1, getStat(cache, "annotCacheMisses"));
+    assertEquals(0, getStat(cache, "annotCacheHits"));
+    assertEquals(0, getStat(cache, "annotCacheSize"));
+    assertEquals(0, getStat(cache, "annotCacheBytes"));
+  }
+  
+  @Test
+  public void testPurgeOnClose() throws Exception {
+    AnnotColumnCache cache = new AnnotColumnCache(Arrays.asList(LABEL), 
+                                                  Long.MAX_VALUE);
+    
+    for (AtomicReaderContext context : mLeaves) {
+      assertNotNull(getPostings(cache, context));
+    }
+    assertEquals(mLeaves.size(), getStat(cache, "annotCacheSize"));
+    
+    mReader.close();
+    mReader = null;
+    assertEquals(0, getStat(cache, "annotCacheSize"));
+    assertEquals(0, getStat(cache, "annotCacheBytes"));
+  }
+  
+  /**
+   * @return sizes of cached columns of each segment.
+   */
+  private long[] getByteSizes() throws IOException {
+    AnnotColumnCache cache = new AnnotColumnCache(Arrays.asList(LABEL), 
+                                                  Long.MAX_VALUE);
+    long sizes[] = new long[mLeaves.size()];
+    long prevBytes = 0;
+    
+    for (int i = 0; i < sizes.length; ++i) {
+      assertNotNull(getPostings(cache, mLeaves.get(i)));
+      long bytes = getStat(cache, "annotCacheBytes");
+      sizes[i] = bytes - prevBytes;
+      prevBytes = bytes;
+    }
+    return sizes;
+  }
+  
+  private static DocsEnum getPostings(AnnotColumnCache cache,
+                                      AtomicReaderContext context) 
+                                      throws IOException {
+    AtomicReader  reader = context.reader();
+    TermsEnum     termsEnum = 
+        reader.terms(StructQueryTestIndex.ANNOT_FIELD).iterator(null);
+    
+    assertTrue(termsEnum.seekExact(new BytesRef(LABEL)));
+    return cache.getPostings(reader, 
+                             new Term(StructQueryTestIndex.ANNOT_FIELD, LABEL), 
+                             termsEnum, UtilConst.PAYLOAD_VERSION_3, 
+                             reader.getLiveDocs());
+  }
+  
+  /**
+   * Checks that a cached posting has the same documents and annotations 
+   * as the posting read from the index.
+   */
+  private static void checkPostings(AtomicReaderContext context, 
+                                    DocsEnum cachedPost) throws IOException {
+    AtomicReader          reader = context.reader();
+    DocsAndPositionsEnum  post = reader.termPositionsEnum(
+                          new Term(StructQueryTestIndex.ANNOT_FIELD, LABEL));
+    
+    assertNotNull(cachedPost);
+    OnePostStateBase exp = OnePostStateBase.createPost(post, LABEL, 
+                                                       FieldType.FIELD_ANNOTATION,
+                                                       0, 0, 0,
+                                                       UtilConst.PAYLOAD_VERSION_3, 
+                                                       0);
+    OnePostStateBase st = OnePostStateBase.createPost(cachedPost, LABEL, 
+                                                      FieldType.FIELD_ANNOTATION,
+                                                      0, 0, 0,
+                                                      UtilConst.PAYLOAD_VERSION_3, 
+                                                      0);
+    assertTrue(st instanceof OnePostStateCached);
+    
+    int docQty = 0;
+    while (exp.nextDoc() != OnePostStateBase.NO_MORE_DOCS) {
+      if (reader.getLiveDocs() != null && 
+          !reader.getLiveDocs().get(exp.getDocID())) continue;
+      
+      assertEquals(exp.getDocID(), st.nextDoc());
+      exp.readDocElements();
+      st.readDocElements();
+      assertEquals(exp.getQty(), st.getQty());
+      for (int i = 0; i < exp.getQty(); ++i) {
+        assertEquals(exp.getStartOffset(i), st.getStartOffset(i));
+        assertEquals(exp.getEndOffset(i),   st.getEndOffset(i));
+        assertEquals(exp.getId(i),          st.getId(i));
+        assertEquals(exp.getParentId(i),    st.getParentId(i));
+      }
+      ++docQty;
+    }
+    assertEquals(OnePostStateBase.NO_MORE_DOCS, st.nextDoc());
+    assertTrue(docQty > 0);
+  }
+  
+  private static long getStat(AnnotColumnCache cache, String name) {
+    return ((Number) cache.getStatistics().get(name)).longValue();
+  }
+  
+  /** The label occurs in every document. */
+  private static final String LABEL = "sent";
+  
+  private Directory                       mDir;
+  private DirectoryReader                 mReader;
+  private List<AtomicReaderContext>       mLeaves;
+}
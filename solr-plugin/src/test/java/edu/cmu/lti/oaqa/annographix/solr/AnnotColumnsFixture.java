@@ -0,0 +1,49 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+/**
+ * Cached annotation columns shared by tests of postings, 
+ * which are built over such columns, see {@link CachedAnnotPostings}.
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+class AnnotColumnsFixture {
+  /**
+   * Three documents: 2 (two annotations), 5 (one annotation), 9 (two annotations).
+   */
+  static AnnotColumns createColumns() {
+    return new AnnotColumns(new int[]{2, 5, 9}, 
+                            new int[]{0, 2, 3, 5},
+                            new int[]{0, 10, 3, 1, 7},
+                            new int[]{5, 20, 8, 4, 9},
+                            new int[]{1, 2, 1, 1, 2},
+                            new int[]{-1, 1, -1, -1, 1});
+  }
+  
+  /**
+   * Two documents: 5 (two annotations), 7 (one annotation).
+   */
+  static AnnotColumns createOtherColumns() {
+    return new AnnotColumns(new int[]{5, 7}, 
+                            new int[]{0, 2, 3},
+                            new int[]{0, 4, 6},
+                            new int[]{2, 6, 8},
+                            new int[]{2, 3, 1},
+                            new int[]{-1, -1, -1});
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import static org.junit.Assert.*;
+
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+
+/**
+ * 
+ * Testing the compact (version 4) payload encoding: the decoded
+ * data should be the same as the data decoded from a version 3 payload.
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+public class AnnotEncoderVer4Test {
+  /**
+   * Encodes a textual payload using both encoders, decodes the result,
+   * and compares it with the expected values.
+   */
+  void genericTest(int start, int end, int id, int parentId) {
+    String payload = "" + start + UtilConst.PAYLOAD_ID_SEP_CHAR +
+                          end   + UtilConst.PAYLOAD_ID_SEP_CHAR +
+                          id    + UtilConst.PAYLOAD_ID_SEP_CHAR +
+                          parentId;
+    char [] buf = payload.toCharArray();
+    
+    BytesRef ver3 = new AnnotEncoderVer3().encode(buf, 0, buf.length);
+    BytesRef ver4 = new AnnotEncoderVer4().encode(buf, 0, buf.length);
+    
+    assertTrue(ver4.length <= AnnotEncoderVer4.MAX_ENCODED_LEN);
+    assertTrue(ver4.length <= ver3.length);
+    
+    ElemInfoData e3 = new ElemInfoData(), e4 = new ElemInfoData();
+    
+    AnnotEncoderVer3.decode(ver3, e3);
+    AnnotEncoderVer4.decode(ver4, e4);
+    
+    assertEquals(start,     e4.mStartOffset);
+    assertEquals(end,       e4.mEndOffset);
+    assertEquals(id,        e4.mId);
+    assertEquals(parentId,  e4.mParentId);
+    
+    assertEquals(e3.mStartOffset, e4.mStartOffset);
+    assertEquals(e3.mEndOffset,   e4.mEndOffset);
+    assertEquals(e3.mId,          e4.mId);
+    assertEquals(e3.mParentId,    e4.mParentId);
+  }
+  
+  @Test
+  public void testSmall() {
+    genericTest(0, 0, 0, -1);
+    genericTest(0, 5, 1, -1);
+    genericTest(10, 15, 2, 1);
+    genericTest(127, 128, 3, 2);
+  }
+  
+  @Test
+  public void testLarge() {
+    genericTest(1000000, 1000025, 50000, 49999);
+    genericTest(1000000, 1000025, 50000, -1);
+    genericTest(Integer.MAX_VALUE - 10, Integer.MAX_VALUE, 
+                Integer.MAX_VALUE, 0);
+  }
+  
+  @Test
+  public void testCompact() {
+    BytesRef res = new AnnotEncoderVer4().encode("10~15~2~1".toCharArray(), 0, 9);
+    assertEquals(4, res.length);
+  }
+  
+  @Test
+  public void testOffsetInBuffer() {
+    BytesRef res = new AnnotEncoderVer4().encode("100~200~300~-1".toCharArray(), 0, 14);
+    byte [] shifted = new byte[res.length + 3];
+    System.arraycopy(res.bytes, res.offset, shifted, 3, res.length);
+    
+    ElemInfoData e = new ElemInfoData();
+    AnnotEncoderVer4.decode(new BytesRef(shifted, 3, res.length), e);
+    assertEquals(100, e.mStartOffset);
+    assertEquals(200, e.mEndOffset);
+    assertEquals(300, e.mId);
+    assertEquals(-1,  e.mParentId);
+  }
+}
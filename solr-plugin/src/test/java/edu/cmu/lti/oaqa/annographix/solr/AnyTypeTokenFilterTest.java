@@ -0,0 +1,166 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.payloads.DelimitedPayloadTokenFilter;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.junit.Test;
+
+/**
+ * 
+ * Testing that type-only annotation terms (e.g., ne_#any) do not change 
+ * length norms of the annotation field, see {@link AnyTypeTokenFilter}.
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+public class AnyTypeTokenFilterTest {
+  @Test
+  public void testNorms() throws IOException {
+    AtomicReader reader = createIndex(true, 
+                                      ANNOTS, ANNOTS_WITH_ANY);
+    NumericDocValues norms = reader.getNormValues(ANNOT_FIELD);
+    
+    assertEquals(norms.get(0), norms.get(1));
+    reader.close();
+    
+    // Without the filter, type-only terms make the field longer
+    reader = createIndex(false, 
+                         ANNOTS, ANNOTS_WITH_ANY);
+    norms = reader.getNormValues(ANNOT_FIELD);
+    
+    assertTrue(norms.get(0) != norms.get(1));
+    reader.close();
+  }
+  
+  @Test
+  public void testPositionsAndPayloads() throws IOException {
+    AtomicReader reader = createIndex(true, ANNOTS_WITH_ANY);
+    DocsAndPositionsEnum post = 
+                   reader.termPositionsEnum(new Term(ANNOT_FIELD, "ne_#any"));
+    ElemInfoData         data = new ElemInfoData();
+    
+    assertEquals(0, post.nextDoc());
+    assertEquals(2, post.freq());
+    // The same positions as ne_per and ne_loc
+    assertEquals(0, post.nextPosition());
+    AnnotEncoderVer3.decode(post.getPayload(), data);
+    assertEquals(0, data.mStartOffset);
+    assertEquals(5, data.mEndOffset);
+    assertEquals(1, data.mId);
+    assertEquals(2, post.nextPosition());
+    AnnotEncoderVer3.decode(post.getPayload(), data);
+    assertEquals(6, data.mStartOffset);
+    assertEquals(3, data.mId);
+    assertEquals(DocIdSetIterator.NO_MORE_DOCS, post.nextDoc());
+    
+    post = reader.termPositionsEnum(new Term(ANNOT_FIELD, "ne_loc"));
+    assertEquals(0, post.nextDoc());
+    assertEquals(2, post.nextPosition());
+    reader.close();
+  }
+  
+  /**
+   * Indexes documents with a single annotation field, whose analyzer 
+   * is the same as in the schema.
+   * 
+   * @param useFilter   true to use {@link AnyTypeTokenFilter}.
+   * @param annotTexts  texts of the annotation field.
+   * @return a reader of the only index segment.
+   */
+  private static AtomicReader createIndex(final boolean useFilter, 
+                                          String ... annotTexts) 
+                                          throws IOException {
+    Analyzer analyzer = new Analyzer() {
+      @Override
+      protected TokenStreamComponents createComponents(String fieldName, 
+                                                       Reader reader) {
+        Tokenizer   tokenizer = new WhitespaceTokenizer(LUCENE_VERSION, reader);
+        TokenStream res = new DelimitedPayloadTokenFilter(tokenizer, 
+                                                          UtilConst.PAYLOAD_CHAR,
+                                                          new AnnotEncoderVer3());
+        if (useFilter) res = new AnyTypeTokenFilter(res);
+        return new TokenStreamComponents(tokenizer, res);
+      }
+    };
+    IndexWriterConfig config = new IndexWriterConfig(LUCENE_VERSION, analyzer);
+    config.setSimilarity(new BM25Similarity());
+    
+    Directory   dir = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(dir, config);
+    
+    for (String text : annotTexts) {
+      Document doc = new Document();
+      doc.add(new TextField(ANNOT_FIELD, text, Field.Store.NO));
+      writer.addDocument(doc);
+    }
+    writer.close();
+    
+    DirectoryReader reader = DirectoryReader.open(dir);
+    assertEquals(1, reader.leaves().size());
+    return reader.leaves().get(0).reader();
+  }
+  
+  /**
+   * @return a text of one annotation in the annotation field.
+   */
+  private static String annot(String label, int start, int end, 
+                              int id, int parentId) {
+    return label + UtilConst.PAYLOAD_CHAR + 
+           start + UtilConst.PAYLOAD_ID_SEP_CHAR + 
+           end + UtilConst.PAYLOAD_ID_SEP_CHAR + 
+           id + UtilConst.PAYLOAD_ID_SEP_CHAR + 
+           parentId + " ";
+  }
+  
+  private static final Version LUCENE_VERSION = Version.LUCENE_46;
+  private static final String  ANNOT_FIELD = "annotation";
+  /** Two named entities and a token. */
+  private static final String  ANNOTS = 
+                                annot("ne_per", 0, 5, 1, -1) + 
+                                annot("tok", 0, 5, 2, 1) + 
+                                annot("ne_loc", 6, 9, 3, -1);
+  /** The same annotations, named entities are followed by type-only terms. */
+  private static final String  ANNOTS_WITH_ANY = 
+                                annot("ne_per", 0, 5, 1, -1) + 
+                                annot("ne_#any", 0, 5, 1, -1) + 
+                                annot("tok", 0, 5, 2, 1) + 
+                                annot("ne_loc", 6, 9, 3, -1) + 
+                                annot("ne_#any", 6, 9, 3, -1);
+}
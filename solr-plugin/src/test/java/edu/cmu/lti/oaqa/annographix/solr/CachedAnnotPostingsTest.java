@@ -0,0 +1,94 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+import org.junit.Test;
+
+import edu.cmu.lti.oaqa.annographix.solr.StructQueryParseVer3.FieldType;
+
+/**
+ * 
+ * Testing iteration over cached decoded annotations.
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+public class CachedAnnotPostingsTest {
+  /**
+   * Postings of {@link AnnotColumnsFixture#createColumns()}.
+   */
+  private CachedAnnotPostings createPostings(Bits acceptDocs) {
+    return new CachedAnnotPostings(AnnotColumnsFixture.createColumns(), acceptDocs);
+  }
+  
+  @Test
+  public void testIteration() throws IOException {
+    CachedAnnotPostings post = createPostings(null);
+    
+    assertEquals(3, post.cost());
+    assertEquals(2, post.nextDoc());
+    assertEquals(2, post.freq());
+    assertEquals(9, post.advance(6));
+    assertEquals(2, post.freq());
+    assertEquals(DocIdSetIterator.NO_MORE_DOCS, post.nextDoc());
+  }
+  
+  @Test
+  public void testAcceptDocs() throws IOException {
+    FixedBitSet acceptDocs = new FixedBitSet(10);
+    acceptDocs.set(0, 10);
+    acceptDocs.clear(5);
+    acceptDocs.clear(2);
+    
+    CachedAnnotPostings post = createPostings(acceptDocs);
+    assertEquals(9, post.nextDoc());
+    assertEquals(DocIdSetIterator.NO_MORE_DOCS, post.advance(10));
+    
+    post = createPostings(acceptDocs);
+    assertEquals(9, post.advance(3));
+  }
+  
+  @Test
+  public void testPostState() throws IOException {
+    CachedAnnotPostings post = createPostings(null);
+    OnePostStateBase    st = OnePostStateBase.createPost(post, "np", 
+                                                         FieldType.FIELD_ANNOTATION,
+                                                         0, 0, 0,
+                                                         UtilConst.PAYLOAD_VERSION_3, 16);
+    assertTrue(st instanceof OnePostStateCached);
+    
+    assertEquals(5, st.advance(3));
+    st.readDocElements();
+    assertEquals(1, st.getQty());
+    assertEquals(3, st.getStartOffset(0));
+    assertEquals(8, st.getEndOffset(0));
+    
+    assertEquals(9, st.nextDoc());
+    st.readDocElements();
+    assertEquals(2, st.getQty());
+    assertEquals(7, st.getStartOffset(1));
+    assertEquals(9, st.getEndOffset(1));
+    assertEquals(2, st.getId(1));
+    assertEquals(1, st.getParentId(1));
+  }
+}
@@ -0,0 +1,50 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * 
+ * Testing the detection of dense postings.
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+public class DensePostingsTest {
+  @Test
+  public void testSomeDense() {
+    boolean res[] = StructQueryVer3.findDensePostings(
+                                        new int[]{ 95, 3, 100, 89, 90 }, 100);
+    
+    assertTrue(Arrays.equals(new boolean[]{ true, false, true, false, true }, res));
+  }
+  
+  @Test
+  public void testAllDense() {
+    boolean res[] = StructQueryVer3.findDensePostings(
+                                        new int[]{ 100, 95, 98 }, 100);
+    // the rarest posting must remain non-dense
+    assertTrue(Arrays.equals(new boolean[]{ true, false, true }, res));
+    
+    res = StructQueryVer3.findDensePostings(new int[]{ 1 }, 1);
+    assertTrue(Arrays.equals(new boolean[]{ false }, res));
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import edu.cmu.lti.oaqa.annographix.solr.StructQueryParseVer3.ConstraintType;
+import edu.cmu.lti.oaqa.annographix.solr.StructQueryParseVer3.FieldType;
+
+/**
+ * 
+ * Testing pooled element buffers and their sizing.
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+public class ElemBuffersTest {
+  @Test
+  public void testInitElemQty() {
+    // unknown statistics
+    assertEquals(OnePostStateBase.INIT_SIZE_ELEM_INFO, 
+                 OnePostStateBase.getInitElemQty(0, -1));
+    assertEquals(OnePostStateBase.INIT_SIZE_ELEM_INFO, 
+                 OnePostStateBase.getInitElemQty(10, -1));
+    // rare in a document
+    assertEquals(OnePostStateBase.MIN_SIZE_ELEM_INFO, 
+                 OnePostStateBase.getInitElemQty(100, 150));
+    // twice the (rounded up) average
+    assertEquals(2 * 40, OnePostStateBase.getInitElemQty(100, 3950));
+    // very frequent in a document
+    assertEquals(OnePostStateBase.INIT_SIZE_ELEM_INFO, 
+                 OnePostStateBase.getInitElemQty(10, 1000000));
+  }
+  
+  @Test
+  public void testPool() throws InterruptedException {
+    // a new thread has its own (empty) pool
+    final ElemBuffers bufs[] = new ElemBuffers[2];
+    final int         pooledQty[] = new int[4];
+    
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        pooledQty[0] = ElemBuffers.getPooledCapacity();
+        bufs[0] = ElemBuffers.acquire(100);
+        ElemBuffers.release(bufs[0]);
+        pooledQty[1] = ElemBuffers.getPooledCapacity();
+        // the pooled buffer is reused and extended
+        bufs[1] = ElemBuffers.acquire(200);
+        pooledQty[2] = ElemBuffers.getPooledCapacity();
+        // too large buffers are not pooled
+        ElemBuffers huge = new ElemBuffers();
+        huge.realloc(ElemBuffers.MAX_POOLED_CAPACITY + 1);
+        ElemBuffers.release(huge);
+        pooledQty[3] = ElemBuffers.getPooledCapacity();
+      }
+    };
+    t.start();
+    t.join();
+    
+    assertEquals(0, pooledQty[0]);
+    assertEquals(100, pooledQty[1]);
+    assertEquals(0, pooledQty[2]);
+    assertEquals(0, pooledQty[3]);
+    assertSame(bufs[0], bufs[1]);
+    assertEquals(200, bufs[1].getCapacity());
+  }
+  
+  @Test
+  public void testKeyIndex() {
+    ElemBuffers buf = new ElemBuffers();
+    
+    buf.realloc(10);
+    assertEquals(0, buf.mIdIndex.length);
+    buf.allocKeyIndex();
+    assertEquals(10, buf.mIdIndex.length);
+    assertEquals(10, buf.mParentIdIndex.length);
+    // once allocated, key indices are re-allocated with other arrays
+    buf.realloc(4);
+    assertEquals(4, buf.mIdIndex.length);
+    assertEquals(4, buf.mParentIdIndex.length);
+  }
+  
+  @Test
+  public void testKeyIndexZeroCapacity() {
+    ElemBuffers buf = new ElemBuffers();
+    
+    // key indices requested before arrays are allocated
+    buf.allocKeyIndex();
+    assertEquals(0, buf.mIdIndex.length);
+    buf.realloc(8);
+    assertEquals(8, buf.mIdIndex.length);
+    assertEquals(8, buf.mParentIdIndex.length);
+  }
+  
+  /**
+   * A parent-probed node whose arrays are not pooled, i.e., 
+   * they are allocated only when the first document is read.
+   */
+  @Test
+  public void testParentProbeUnpooled() throws IOException {
+    // Two documents: 2 (two annotations), 9 (three annotations).
+    AnnotColumns cols = new AnnotColumns(new int[]{2, 9}, 
+                                         new int[]{0, 2, 5},
+                                         new int[]{0, 10, 1, 3, 7},
+                                         new int[]{5, 20, 9, 4, 9},
+                                         new int[]{1, 2, 1, 2, 3},
+                                         new int[]{-1, 1, -1, 1, 1});
+    OnePostStateBase parent = createPost(cols, 0);
+    OnePostStateBase child = createPost(cols, 1);
+    
+    ArrayList<ConstraintType>   constrType = new ArrayList<ConstraintType>();
+    ArrayList<OnePostStateBase> constrNode = new ArrayList<OnePostStateBase>();
+    
+    child.setConstraints(constrType, constrNode);
+    constrType.add(ConstraintType.CONSTRAINT_PARENT);
+    constrNode.add(child);
+    parent.setConstraints(constrType, constrNode);
+    
+    OnePostStateBase sorted[] = new OnePostStateBase[]{parent, child};
+    child.buildConstraintIndex(sorted);
+    assertNotNull(child.getParentProbe());
+    
+    assertEquals(9, child.advance(3));
+    child.readDocElements();
+    assertEquals(3, child.getQty());
+    
+    long keyIndex[] = child.getKeyIndex(true);
+    assertEquals(0, OnePostStateBase.lowerBoundKey(keyIndex, 3, -1));
+    assertEquals(1, OnePostStateBase.lowerBoundKey(keyIndex, 3, 0));
+    assertEquals(1, OnePostStateBase.getIndexKey(keyIndex[2]));
+  }
+  
+  private OnePostStateBase createPost(AnnotColumns cols, int sortIndx) {
+    OnePostStateBase res = 
+        OnePostStateBase.createPost(new CachedAnnotPostings(cols, null), "np", 
+                                    FieldType.FIELD_ANNOTATION,
+                                    1, 0, 0,
+                                    UtilConst.PAYLOAD_VERSION_3, 0);
+    res.setSortIndex(sortIndx);
+    return res;
+  }
+}
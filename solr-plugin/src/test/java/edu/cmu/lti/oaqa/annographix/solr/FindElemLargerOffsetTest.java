@@ -29,20 +29,18 @@ import org.junit.Test;
  */
 public class FindElemLargerOffsetTest {
   /**
-   * A helper function that creates an array of the type ElemInfoData[]
-   * and fills in offsets values. All other fields in ElemInfoData are
-   * set to defaults.
+   * A helper function that creates an array of <b>start</b> offsets
+   * and checks that offsets are valid.
    * 
    * @param offsets     an array of offsets
-   * @return            an array of elements whose <b>start</b> offsets
-   *                    are set equal to offsets specified by the input parameter.
+   * @return            an array of element start offsets
+   *                    equal to offsets specified by the input parameter.
    */
-  static ElemInfoData[] fillArray(int ... offsets) throws Exception {
-    ElemInfoData[] res = new ElemInfoData[offsets.length];
+  static int[] fillArray(int ... offsets) throws Exception {
+    int[] res = new int[offsets.length];
     
     for (int i = 0; i < offsets.length; ++i) {
-      res[i] = new ElemInfoData();
-      res[i].mStartOffset = offsets[i];
+      res[i] = offsets[i];
       if (i > 0 && offsets[i] < offsets[i-1]) {
         throw new Exception("Wrong test data, monotonicity violated for i" + (i-1));
       }
@@ -54,9 +52,6 @@ public class FindElemLargerOffsetTest {
     return res;
   }
   
-  static StartOffsetElemInfoDataComparator  mOffsetComp = new StartOffsetElemInfoDataComparator();
-  static ElemInfoData                       mSearchKey = new ElemInfoData();
-  
   @Test
   public void testTiny() {
     try {
@@ -112,7 +107,7 @@ public class FindElemLargerOffsetTest {
    */
   private void genericTest(int step, int forwardIterQty,
                            int ... offsets) throws Exception {
-    ElemInfoData[] dt = fillArray(offsets);
+    int[] dt = fillArray(offsets);
     
     for (int i = 1; i < offsets.length; ++i) {
       if (offsets[i] > offsets[i-1]) {
@@ -120,8 +115,6 @@ public class FindElemLargerOffsetTest {
         for (int minIndx = i - 1 ; minIndx >= 0 ; minIndx -= step) {
           int res = 
               OnePostStateBase.findElemLargerOffset(dt, dt.length, 
-                                                    mOffsetComp, 
-                                                    mSearchKey, 
                                                     forwardIterQty,
                                                     prevOff, minIndx);
           assertTrue(String.format("Expected %d, but got", i, res), res == i);
@@ -129,8 +122,6 @@ public class FindElemLargerOffsetTest {
           // What happens if we search for the largest offset available at the array boundary?
           res = 
               OnePostStateBase.findElemLargerOffset(dt, i + 1, 
-                                                    mOffsetComp, 
-                                                    mSearchKey, 
                                                     forwardIterQty,
                                                     offsets[i], minIndx);    
 
@@ -140,8 +131,6 @@ public class FindElemLargerOffsetTest {
       // What if minIndx >= array size?
       int res = 
           OnePostStateBase.findElemLargerOffset(dt, i+1, 
-                                                mOffsetComp, 
-                                                mSearchKey, 
                                                 forwardIterQty,
                                                 offsets[i], i + 1);
       assertTrue(String.format("Expected %d, but got", i, res), res == (i+1));           
@@ -0,0 +1,78 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import static org.junit.Assert.*;
+
+import org.apache.solr.search.SyntaxError;
+import org.junit.Test;
+
+/**
+ * 
+ * Testing helper functions of per-node scoring.
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+public class NodeScoringTest {
+  @Test
+  public void testParseNodeWeights() throws SyntaxError {
+    StructQueryParseVer3 parse = 
+        new StructQueryParseVer3("@s:sent ~w1:apple ~w2:pie #covers(s,w1,w2)");
+    
+    assertArrayEquals(new float[] {1, 1, 1}, 
+        StructRetrQParserVer3.parseNodeWeights(null, parse), 0);
+    assertArrayEquals(new float[] {1, 2.5f, 0}, 
+        StructRetrQParserVer3.parseNodeWeights("W1:2.5, w2:0", parse), 0);
+    
+    String badSpecs[] = {"w3:1", "w1", "w1:abc", "w1:-1", "s:NaN"};
+    for (String spec : badSpecs) {
+      try {
+        StructRetrQParserVer3.parseNodeWeights(spec, parse);
+        fail("No exception for the node weights '" + spec + "'");
+      } catch (SyntaxError e) {}
+    }
+  }
+  
+  @Test
+  public void testCanonicalNodeWeights() throws SyntaxError {
+    // Equivalent queries with different orders of nodes
+    StructQueryVer3 q1 = new StructQueryVer3("~a:pie ~b:apple", 
+        new StructQueryParseVer3("~a:pie ~b:apple"), 
+        100, null, "text", "annot", 1000, UtilConst.PAYLOAD_VERSION_3, false, 0);
+    StructQueryVer3 q2 = new StructQueryVer3("~b:apple ~a:pie", 
+        new StructQueryParseVer3("~b:apple ~a:pie"), 
+        100, null, "text", "annot", 1000, UtilConst.PAYLOAD_VERSION_3, false, 0);
+    
+    q1.setNodeScoring(new float[] {2, 1}, 0.5f);
+    q2.setNodeScoring(new float[] {1, 2}, 0.5f);
+    assertEquals(q1, q2);
+    assertEquals(q1.hashCode(), q2.hashCode());
+    
+    q2.setNodeScoring(new float[] {2, 1}, 0.5f);
+    assertFalse(q1.equals(q2));
+    q2.setNodeScoring(null, 0);
+    assertFalse(q1.equals(q2));
+  }
+  
+  @Test
+  public void testCompactness() {
+    assertEquals(1.0f, StructScorerVer3.getCompactness(0), 1e-6f);
+    assertTrue(StructScorerVer3.getCompactness(5) > 
+               StructScorerVer3.getCompactness(50));
+    assertTrue(StructScorerVer3.getCompactness(Integer.MAX_VALUE) > 0);
+  }
+}
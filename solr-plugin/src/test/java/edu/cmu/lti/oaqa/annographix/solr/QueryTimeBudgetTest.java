@@ -0,0 +1,64 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.search.TimeLimitingCollector.TimeExceededException;
+import org.junit.Test;
+
+/**
+ * 
+ * Testing the time budget of a query.
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+public class QueryTimeBudgetTest {
+  @Test
+  public void testNotExceeded() {
+    QueryTimeBudget budget = new QueryTimeBudget(1000000);
+    
+    assertFalse(budget.checkClock());
+    assertFalse(budget.isExceeded());
+  }
+  
+  @Test
+  public void testExceeded() throws InterruptedException {
+    AtomicLong      qty = new AtomicLong();
+    QueryTimeBudget budget = new QueryTimeBudget(1, qty);
+    
+    Thread.sleep(5);
+    assertFalse(budget.isExceeded()); // the clock is not read yet
+    assertTrue(budget.checkClock());
+    assertTrue(budget.checkClock());
+    assertTrue(budget.isExceeded());
+    // each query is counted only once
+    assertEquals(1, qty.get());
+  }
+  
+  @Test
+  public void testTimeExceededException() {
+    QueryTimeBudget       budget = new QueryTimeBudget(10);
+    TimeExceededException e = budget.createTimeExceededException(42);
+    
+    assertEquals(42, e.getLastDocCollected());
+    assertEquals(10, e.getTimeAllowed());
+    assertTrue(e.getTimeElapsed() > 10);
+  }
+}
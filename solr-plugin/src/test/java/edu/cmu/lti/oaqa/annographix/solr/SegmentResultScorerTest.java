@@ -0,0 +1,93 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.TimeLimitingCollector.TimeExceededException;
+import org.apache.lucene.util.FixedBitSet;
+import org.junit.Test;
+
+/**
+ * 
+ * Testing the replay of segment results found by {@link ParallelSegmentSearcher}.
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+public class SegmentResultScorerTest {
+  private ParallelSegmentSearcher.SegmentResults createResults() {
+    ParallelSegmentSearcher.SegmentResults res = 
+                                      new ParallelSegmentSearcher.SegmentResults();
+    // More documents than the initial capacity
+    for (int i = 0; i < 40; ++i) {
+      res.add(3 * i, 0.5f * i, i + 1);
+    }
+    return res;
+  }
+  
+  @Test
+  public void testIteration() throws IOException {
+    SegmentResultScorer scorer = new SegmentResultScorer(null, createResults(), null, null);
+    
+    assertEquals(40, scorer.cost());
+    assertEquals(0, scorer.nextDoc());
+    assertEquals(1, scorer.freq());
+    assertEquals(3, scorer.nextDoc());
+    assertEquals(0.5f, scorer.score(), 0);
+    assertEquals(30, scorer.advance(29));
+    assertEquals(11, scorer.freq());
+    assertEquals(5.0f, scorer.score(), 0);
+    assertEquals(117, scorer.advance(117));
+    assertEquals(DocIdSetIterator.NO_MORE_DOCS, scorer.nextDoc());
+  }
+  
+  @Test
+  public void testAcceptDocs() throws IOException {
+    FixedBitSet acceptDocs = new FixedBitSet(120);
+    acceptDocs.set(0, 120);
+    acceptDocs.clear(0);
+    acceptDocs.clear(30);
+    
+    SegmentResultScorer scorer = new SegmentResultScorer(null, createResults(), 
+                                                         acceptDocs, null);
+    assertEquals(3, scorer.nextDoc());
+    assertEquals(33, scorer.advance(28));
+    assertEquals(12, scorer.freq());
+    assertEquals(DocIdSetIterator.NO_MORE_DOCS, scorer.advance(118));
+  }
+  
+  @Test
+  public void testTimeBudgetExceeded() throws IOException {
+    ParallelSegmentSearcher.SegmentResults res = createResults();
+    res.mTimeBudgetExceeded = true;
+    
+    SegmentResultScorer scorer = new SegmentResultScorer(null, res, null,
+                                                         new QueryTimeBudget(0));
+    // found documents are replayed first
+    assertEquals(114, scorer.advance(114));
+    assertEquals(117, scorer.nextDoc());
+    try {
+      scorer.nextDoc();
+      fail("An exception is expected");
+    } catch (TimeExceededException e) {
+      assertEquals(117, e.getLastDocCollected());
+    }
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.apache.lucene.search.DocIdSetIterator;
+import org.junit.Test;
+
+import edu.cmu.lti.oaqa.annographix.solr.StructQueryParseVer3.FieldType;
+
+/**
+ * 
+ * Testing postings shared among queries evaluated in a batch.
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+public class SharedPostingsTest {
+  /**
+   * Shares the posting of {@link AnnotColumnsFixture#createColumns()}.
+   */
+  private SharedPostings createPostings() {
+    return new SharedPostings(new CachedAnnotPostings(
+                                  AnnotColumnsFixture.createColumns(), null), 
+                              "np",
+                              FieldType.FIELD_ANNOTATION, 
+                              UtilConst.PAYLOAD_VERSION_3);
+  }
+  
+  @Test
+  public void testAdvance() throws IOException {
+    SharedPostings post = createPostings();
+    
+    assertEquals(3, post.cost());
+    assertEquals(5, post.advance(3));
+    // a posting positioned at or after the target doesn't move
+    assertEquals(5, post.advance(1));
+    assertEquals(5, post.advance(5));
+    assertEquals(1, post.freq());
+    assertEquals(9, post.nextDoc());
+    assertEquals(DocIdSetIterator.NO_MORE_DOCS, post.advance(10));
+  }
+  
+  @Test
+  public void testPostStates() throws IOException {
+    SharedPostings    post = createPostings();
+    OnePostStateBase  st1 = OnePostStateBase.createPost(post, "np", 
+                                                        FieldType.FIELD_ANNOTATION,
+                                                        0, 0, 0,
+                                                        UtilConst.PAYLOAD_VERSION_3, 0);
+    OnePostStateBase  st2 = OnePostStateBase.createPost(post, "np", 
+                                                        FieldType.FIELD_ANNOTATION,
+                                                        0, 0, 0,
+                                                        UtilConst.PAYLOAD_VERSION_3, 0);
+    assertTrue(st1 instanceof OnePostStateShared);
+    
+    assertEquals(9, st1.advance(6));
+    // the second state sees the same document
+    assertEquals(9, st2.advance(3));
+    st1.readDocElements();
+    st2.readDocElements();
+    assertEquals(2, st1.getQty());
+    assertEquals(2, st2.getQty());
+    assertEquals(7, st2.getStartOffset(1));
+    assertEquals(1, st1.getStartOffset(0));
+    assertEquals(9, st1.getEndOffset(1));
+    assertEquals(2, st1.getId(1));
+    assertEquals(1, st2.getParentId(1));
+  }
+}
@@ -0,0 +1,46 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * 
+ * Testing the selection of explained documents for a segment.
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+public class StructExplainCacheTest {
+  @Test
+  public void testGetSegmentDocs() {
+    // documents are listed in the order of ranks, some are repeated
+    int docIds[] = {42, 10, 57, 11, 3, 42, 50};
+    
+    assertArrayEquals(new int[] {0, 1, 32}, 
+                      StructExplainCache.getSegmentDocs(docIds, 10, 40));
+    assertArrayEquals(new int[] {3}, 
+                      StructExplainCache.getSegmentDocs(docIds, 0, 10));
+    assertArrayEquals(new int[] {0, 7}, 
+                      StructExplainCache.getSegmentDocs(docIds, 50, 10));
+    assertArrayEquals(new int[0], 
+                      StructExplainCache.getSegmentDocs(docIds, 60, 10));
+    assertArrayEquals(new int[0], 
+                      StructExplainCache.getSegmentDocs(null, 0, 10));
+  }
+}
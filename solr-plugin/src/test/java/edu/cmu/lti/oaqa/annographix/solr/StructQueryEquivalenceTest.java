@@ -0,0 +1,265 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * 
+ * Testing that structured queries return the same hits and scores as 
+ * the original (baseline) implementation of {@link StructQueryVer3}.
+ * Expected results were obtained by running the baseline implementation on 
+ * {@link StructQueryTestIndex}. The baseline lost the last span of a 
+ * document in {@link TermSpanIteratorMaxLen} (see TermSpanIteratorMaxLenTest): 
+ * it was run with this bug fixed. Each query is evaluated sequentially, 
+ * concurrently (see {@link ParallelSegmentSearcher}), and in a batch 
+ * (see {@link StructQueryBatchVer3}).
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+public class StructQueryEquivalenceTest {
+  /** A test case: a query and its expected hits. */
+  private static class QueryCase {
+    QueryCase(String text, int span, String coverAnnotLabel, String expHits) {
+      this(text, span, coverAnnotLabel, 
+           UtilConst.DEFAULT_MAX_SPAN_CHECK_ITER, expHits);
+    }
+    
+    QueryCase(String text, int span, String coverAnnotLabel, 
+              int maxSpanCheckIter, String expHits) {
+      mText = text;
+      mSpan = span;
+      mCoverAnnotLabel = coverAnnotLabel;
+      mMaxSpanCheckIter = maxSpanCheckIter;
+      mExpHits = expHits;
+    }
+    
+    StructQueryVer3 createQuery() throws Exception {
+      return StructQueryTestIndex.createQuery(mText, mSpan, mCoverAnnotLabel,
+                                              mMaxSpanCheckIter);
+    }
+    
+    @Override
+    public String toString() {
+      return mText + " span: " + mSpan + " cover: " + mCoverAnnotLabel + 
+             " max. iter: " + mMaxSpanCheckIter;
+    }
+    
+    final String mText;
+    final int    mSpan;
+    final String mCoverAnnotLabel;
+    final int    mMaxSpanCheckIter;
+    /** Expected hits in the format id:score (sorted by score), can be empty. */
+    final String mExpHits;
+  }
+  
+  @BeforeClass
+  public static void setUp() throws IOException {
+    mReader = DirectoryReader.open(StructQueryTestIndex.create());
+    mSearcher = new IndexSearcher(mReader);
+    mSearcher.setSimilarity(new BM25Similarity());
+    mExecutor = Executors.newFixedThreadPool(2);
+  }
+  
+  @AfterClass
+  public static void tearDown() throws IOException {
+    mExecutor.shutdown();
+    mReader.close();
+  }
+  
+  @Test
+  public void testParent() throws Exception {
+    checkQueries(new QueryCase[] {
+      new QueryCase("@a:np @b:tok #parent(a,b)", 20, null,
+          "d2:0.45715126 d5:0.4381192 d38:0.4381192 d19:0.40498838 " +
+          "d16:0.36334053 d13:0.35836294 d24:0.35540918 d27:0.32818496 " +
+          "d34:0.32818496 d6:0.29354122 d7:0.29354122 d30:0.29354122 " +
+          "d0:0.24980746 d4:0.24980746 d10:0.24980746 d12:0.24980746 " +
+          "d29:0.24980746 d37:0.19603947 d39:0.19603947"),
+      new QueryCase("@a:sent @b:vp @c:tok #parent(a,b) #parent(b,c)", 60, null,
+          "d31:0.7162287 d19:0.70310295 d4:0.66733533 d12:0.66733533 " +
+          "d33:0.66632843 d37:0.63858795 d39:0.63858795 d13:0.6108159 " +
+          "d5:0.59283406 d9:0.59283406 d3:0.5848364 d22:0.5848364 " +
+          "d16:0.52959305 d28:0.52233785 d26:0.51803255 d14:0.47835147 " +
+          "d2:0.4278559 d6:0.4278559 d20:0.4278559 d10:0.36411104 " +
+          "d38:0.28574058"),
+      new QueryCase("@a:sent @b:tok ~c:w2 #parent(a,b)", 20, null,
+          "d35:0.4710468 d14:0.46897575 d11:0.4535123 d19:0.44811594 " +
+          "d37:0.4171561 d0:0.31401318 d38:0.28483906 d5:0.25856826")
+    });
+  }
+  
+  @Test
+  public void testCovers() throws Exception {
+    checkQueries(new QueryCase[] {
+      new QueryCase("@a:np ~b:w1 #covers(a,b)", 20, null,
+          "d3:0.6416594 d16:0.638037 d4:0.5969507 d17:0.5406783 " +
+          "d19:0.5167858 d10:0.5114572 d39:0.40004563 d34:0.36266634 " +
+          "d0:0.35775316 d29:0.3234776 d9:0.2965936 d21:0.2845128"),
+      new QueryCase("@a:np ~b:w1 #covers(a,b)", 60, null,
+          "d39:0.6840246 d16:0.6702356 d3:0.6416594 d4:0.5969507 " +
+          "d9:0.5951624 d21:0.57860994 d19:0.57753044 d17:0.5406783 " +
+          "d10:0.5114572 d29:0.47502255 d34:0.36266634 d0:0.35775316"),
+      new QueryCase("@a:vp ~b:w3 ~c:w4 #covers(a,b) #covers(a,c)", 60, null,
+          "d22:1.0469046 d28:0.8920218 d9:0.84525424 d27:0.67209256")
+    });
+  }
+  
+  @Test
+  public void testCoverAnnot() throws Exception {
+    checkQueries(new QueryCase[] {
+      new QueryCase("@a:np ~b:w2 #covers(a,b)", 60, "sent",
+          "d2:0.38277158 d24:0.35617405 d31:0.32524008 d4:0.3033732 " +
+          "d38:0.2764892 d5:0.2502184 d21:0.24723746 d39:0.22035345"),
+      new QueryCase("@a:vp @b:tok ~c:w1 #parent(a,b)", 60, "sent",
+          "d13:0.86821723 d2:0.7232641 d33:0.7232641 d9:0.7195579 " +
+          "d3:0.67757976 d6:0.67757976 d39:0.6740364 d19:0.66759217 " +
+          "d22:0.6482026 d4:0.58632046 d37:0.51024014 d5:0.47596458 " +
+          "d16:0.47596458")
+    });
+  }
+  
+  /**
+   * Queries whose constraint graphs are not trees: two nodes are connected by
+   * two constraints, or constraints form a cycle. Such spans are checked by
+   * enumerating elements of pruned domains.
+   */
+  @Test
+  public void testNonTree() throws Exception {
+    checkQueries(new QueryCase[] {
+      new QueryCase("@a:np @b:tok #parent(a,b) #covers(a,b)", 60, null,
+          "d5:0.4618841 d2:0.45715126 d16:0.4381192 d38:0.4381192 " +
+          "d13:0.41906548 d19:0.40498838 d24:0.35540918 d27:0.32818496 " +
+          "d34:0.32818496 d39:0.29945207 d6:0.29354122 d7:0.29354122 " +
+          "d30:0.29354122 d0:0.24980746 d4:0.24980746 d10:0.24980746 " +
+          "d12:0.24980746 d29:0.24980746 d37:0.19603947"),
+      new QueryCase("@a:vp @b:tok #covers(a,b) #parent(a,b)", 20, null,
+          "d19:0.6627672 d9:0.5755103 d37:0.5755103 d39:0.5755103 " +
+          "d6:0.5677464 d22:0.5677464 d33:0.5677464 d16:0.51411736 " +
+          "d12:0.5070742 d13:0.5070742 d26:0.50289464 d14:0.46437314 " +
+          "d5:0.4237168 d2:0.41535315 d3:0.41535315 d20:0.41535315 " +
+          "d31:0.41535315 d4:0.353471 d10:0.353471 d28:0.353471 " +
+          "d38:0.27739072"),
+      new QueryCase("@a:sent @b:np ~c:w1 #covers(a,b) #covers(b,c) #covers(a,c)", 
+          60, null,
+          "d19:0.67310447 d3:0.6611308 d16:0.65669775 d39:0.6536324 " +
+          "d10:0.61479986 d9:0.6124861 d17:0.5558162 d21:0.5362062 " +
+          "d34:0.5304802 d29:0.49028623 d0:0.36839318 d4:0.36839318"),
+      new QueryCase("@a:sent @b:vp @c:tok #covers(a,b) #covers(b,c) #covers(a,c)", 
+          60, null,
+          "d31:0.7162287 d19:0.70310295 d4:0.66733533 d12:0.66733533 " +
+          "d33:0.66632843 d37:0.63858795 d39:0.63858795 d13:0.6108159 " +
+          "d5:0.59283406 d9:0.59283406 d3:0.5848364 d22:0.5848364 " +
+          "d16:0.52959305 d0:0.52233785 d28:0.52233785 d11:0.51803255 " +
+          "d26:0.51803255 d14:0.47835147 d2:0.4278559 d6:0.4278559 " +
+          "d20:0.4278559 d10:0.36411104 d38:0.28574058"),
+      new QueryCase("@a:np @b:tok ~c:w2 #parent(a,b) #covers(a,b) #covers(a,c)", 
+          60, "sent",
+          "d24:0.5338786 d2:0.5295422 d4:0.4282769 d5:0.3482381 " +
+          "d39:0.3183732")
+    });
+  }
+  
+  /**
+   * A cycle of three nodes cannot be checked in two iterations: 
+   * each span check hits the limit and no document matches.
+   */
+  @Test
+  public void testMaxIter() throws Exception {
+    QueryCase c = new QueryCase(
+        "@a:sent @b:np ~c:w1 #covers(a,b) #covers(b,c) #covers(a,c)", 
+        60, null, 2, "");
+    
+    checkQueries(new QueryCase[] { c });
+    
+    Weight  weight = mSearcher.createNormalizedWeight(c.createQuery());
+    int     limitQty = 0;
+    
+    for (AtomicReaderContext context : mReader.leaves()) {
+      StructScorerVer3 scorer = (StructScorerVer3) 
+          weight.scorer(context, true, false, context.reader().getLiveDocs());
+      
+      if (scorer == null) continue;
+      assertEquals(DocIdSetIterator.NO_MORE_DOCS, scorer.nextDoc());
+      limitQty += scorer.getSpanCheckLimitQty();
+    }
+    assertTrue(limitQty > 0);
+  }
+  
+  private void checkQueries(QueryCase cases[]) throws Exception {
+    // The index should have several segments to test concurrent search
+    assertTrue(mReader.leaves().size() > 1);
+    
+    ArrayList<StructQueryVer3> batch = new ArrayList<StructQueryVer3>();
+    
+    for (QueryCase c : cases) {
+      StructQueryVer3 query = c.createQuery();
+      checkHits(c, mSearcher.search(query, HIT_QTY));
+      
+      query = c.createQuery();
+      query.setSearchExecutor(mExecutor, 2);
+      checkHits(c, mSearcher.search(query, HIT_QTY));
+      
+      batch.add(c.createQuery());
+    }
+    
+    TopDocs batchRes[] = new StructQueryBatchVer3(batch).search(mSearcher, HIT_QTY);
+    for (int i = 0; i < cases.length; ++i) {
+      checkHits(cases[i], batchRes[i]);
+    }
+  }
+  
+  private void checkHits(QueryCase c, TopDocs hits) throws IOException {
+    String expHits[] = c.mExpHits.isEmpty() ? new String[0] : 
+                                              c.mExpHits.split(" ");
+    
+    assertEquals(c.toString(), expHits.length, hits.totalHits);
+    assertEquals(c.toString(), expHits.length, hits.scoreDocs.length);
+    for (int i = 0; i < expHits.length; ++i) {
+      ScoreDoc hit = hits.scoreDocs[i];
+      String   parts[] = expHits[i].split(":");
+      
+      assertEquals(c.toString(), parts[0], 
+          mReader.document(hit.doc).get(StructQueryTestIndex.ID_FIELD));
+      assertEquals(c.toString(), Float.parseFloat(parts[1]), hit.score, 1e-5);
+    }
+  }
+  
+  /** More than the number of documents in the test index. */
+  private static final int HIT_QTY = 100;
+  
+  private static DirectoryReader mReader;
+  private static IndexSearcher   mSearcher;
+  private static ExecutorService mExecutor;
+}
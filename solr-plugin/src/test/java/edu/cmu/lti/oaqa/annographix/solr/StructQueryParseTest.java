@@ -295,4 +295,142 @@ public class StructQueryParseTest {
       fail("Exception occurred.");      
     }
   }
+  
+  /**
+   * Queries that differ only in labels and in the order of 
+   * elements/constraints should have the same canonical form.
+   */
+  @Test
+  public void testCanonicalForm() {
+    try {
+      StructQueryParseVer3 p1 = new StructQueryParseVer3(
+          "@a:sent @b:np ~c:dog #parent(a,b) #covers(b,c)");
+      StructQueryParseVer3 p2 = new StructQueryParseVer3(
+          "~x:dog #covers(y,x) @y:np @z:sent #parent(z,y) #covers(y,x)");
+      StructQueryParseVer3 p3 = new StructQueryParseVer3(
+          "@a:sent @b:np ~c:dog #covers(a,b) #covers(b,c)");
+      
+      assertEquals(p1.getCanonicalText(), p2.getCanonicalText());
+      assertFalse(p1.getCanonicalText().equals(p3.getCanonicalText()));
+      
+      StructQueryParseVer3 c = p2.getCanonicalParse();
+      assertFalse(p2.isCanonical());
+      assertTrue(c.isCanonical());
+      assertSame(c, c.getCanonicalParse());
+      assertEquals(p2.getCanonicalText(), c.getCanonicalText());
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Exception occurred.");      
+    }
+  }
+  
+  /**
+   * Equivalent queries should be equal and have equal hash codes,
+   * if they share all the parameters.
+   */
+  @Test
+  public void testQueryEquality() {
+    try {
+      StructQueryVer3 q1 = new StructQueryVer3(
+          "@a:np ~b:dog #covers(a,b)", 
+          10, null, "text", "annot", 100, 3, false, 0);
+      StructQueryVer3 q2 = new StructQueryVer3(
+          "~y:dog @x:np #covers(x,y)", 
+          10, null, "text", "annot", 100, 3, false, 0);
+      StructQueryVer3 q3 = new StructQueryVer3(
+          "~y:dog @x:np #covers(x,y)", 
+          20, null, "text", "annot", 100, 3, false, 0);
+      
+      assertEquals(q1, q2);
+      assertEquals(q1.hashCode(), q2.hashCode());
+      assertFalse(q1.equals(q3));
+      
+      q2.setBoost(2);
+      assertFalse(q1.equals(q2));
+      
+      // The span is irrelevant when there is a covering annotation
+      StructQueryVer3 q4 = new StructQueryVer3(
+          "@a:np ~b:dog #covers(a,b)", 
+          10, "sent", "text", "annot", 100, 3, false, 0);
+      StructQueryVer3 q5 = new StructQueryVer3(
+          "@a:np ~b:dog #covers(a,b)", 
+          20, "sent", "text", "annot", 100, 3, false, 0);
+      assertEquals(q4, q5);
+      assertEquals(q4.hashCode(), q5.hashCode());
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Exception occurred.");      
+    }
+  }
+  
+  /**
+   * A type-only annotation term is accepted as a regular token,
+   * while other uses of the wildcard are rejected.
+   */
+  @Test
+  public void testTypeAny() {
+    try {
+      StructQueryParseVer3 p = new StructQueryParseVer3("@a:ne_#any ~b:keyword #covers(a,b)");
+      assertEquals("ne_#any", p.getTokens().get(0));
+      assertEquals("ne_#any", UtilConst.combineFieldValueAny("ne"));
+      assertEquals("ne", UtilConst.getAnnotationType("ne_per"));
+      assertNull(UtilConst.getAnnotationType("sentence"));
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Exception occurred.");      
+    }
+    
+    String badQueries[] = {"@:#any", "@:_#any", "~:ne_#any", "~:#any", "@:ne_per_#any"};
+    
+    for (String query : badQueries) {
+      boolean bGotException = false;
+      
+      try {
+        new StructQueryParseVer3(query);
+      } catch (Exception e) {
+        System.out.println("Error message: " + e);
+        bGotException = true;      
+      }
+      assertTrue("Failed to generate an exception for the query: " + query, 
+                 bGotException);
+    }
+  }
+  
+  /**
+   * Alternatives are sorted and deduplicated, so equivalent queries
+   * have the same canonical form; empty alternatives are rejected.
+   */
+  @Test
+  public void testAlternatives() {
+    try {
+      StructQueryParseVer3 p1 = new StructQueryParseVer3("~a:run|ran|run @b:np");
+      StructQueryParseVer3 p2 = new StructQueryParseVer3("@x:np ~y:ran|run");
+      
+      assertEquals("np", p1.getTokens().get(1));
+      assertEquals("ran|run", p1.getTokens().get(0));
+      assertArrayEquals(new String[] {"ran", "run"}, 
+                        StructQueryParseVer3.getAlternatives(p1.getTokens().get(0)));
+      assertArrayEquals(new String[] {"np"}, 
+                        StructQueryParseVer3.getAlternatives("np"));
+      assertEquals(p1.getCanonicalText(), p2.getCanonicalText());
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Exception occurred.");      
+    }
+    
+    String badQueries[] = {"~:run|", "~:|run", "~:run||ran", "@:ne_per|#any"};
+    
+    for (String query : badQueries) {
+      boolean bGotException = false;
+      
+      try {
+        new StructQueryParseVer3(query);
+      } catch (Exception e) {
+        System.out.println("Error message: " + e);
+        bGotException = true;      
+      }
+      assertTrue("Failed to generate an exception for the query: " + query, 
+                 bGotException);
+    }
+  }
 }
@@ -0,0 +1,69 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import static org.junit.Assert.*;
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.search.SyntaxError;
+import org.junit.Test;
+
+/**
+ * 
+ * Testing the cache of parsed structured queries.
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+public class StructQueryPlanCacheTest {
+  @Test
+  public void testNormalize() {
+    assertEquals("@a:b ~c:d #covers(a,c)", 
+        StructQueryPlanCache.normalize("  @a:b \t ~c:d\n\n#covers(a,c) "));
+    assertEquals("", StructQueryPlanCache.normalize(" \t "));
+  }
+  
+  @Test
+  public void testHitsAndEviction() throws SyntaxError {
+    StructQueryPlanCache cache = new StructQueryPlanCache(2);
+    
+    StructQueryParseVer3 p1 = cache.getParse("@a:b ~c:d #covers(a,c)");
+    // The same query modulo white-spaces
+    assertSame(p1, cache.getParse(" @a:b  ~c:d #covers(a,c)"));
+    
+    cache.getParse("@x:y");
+    // Touch the first entry so that the second one becomes the eldest
+    assertSame(p1, cache.getParse("@a:b ~c:d #covers(a,c)"));
+    cache.getParse("~z:z");
+    assertSame(p1, cache.getParse("@a:b ~c:d #covers(a,c)"));
+    
+    NamedList<Object> stat = cache.getStatistics();
+    assertEquals(2,  stat.get("planCacheSize"));
+    assertEquals(3L, stat.get("planCacheHits"));
+    assertEquals(3L, stat.get("planCacheMisses"));
+  }
+  
+  @Test(expected = SyntaxError.class)
+  public void testSyntaxErrorNotCached() throws SyntaxError {
+    StructQueryPlanCache cache = new StructQueryPlanCache(2);
+    try {
+      cache.getParse("@a:b #covers(a,c)");
+    } catch (SyntaxError e) {
+      assertEquals(0, cache.getStatistics().get("planCacheSize"));
+      throw e;
+    }
+  }
+}
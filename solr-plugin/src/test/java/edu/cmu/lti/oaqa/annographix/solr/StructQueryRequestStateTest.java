@@ -0,0 +1,134 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.handler.component.SearchComponent;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrRequestInfo;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.search.SortSpec;
+import org.apache.solr.search.SyntaxError;
+import org.apache.solr.search.WrappedQuery;
+import org.junit.Test;
+
+/**
+ * 
+ * Testing the request-scoped state of structured queries.
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+public class StructQueryRequestStateTest {
+  private StructQueryVer3 createQuery(String text) throws SyntaxError {
+    return new StructQueryVer3(text, 0, "sent", "text4annot", "annotation",
+                               1000, UtilConst.PAYLOAD_VERSION_3, false, 0);
+  }
+  
+  @Test
+  public void testState() throws SyntaxError {
+    SolrQueryRequest  req = new LocalSolrQueryRequest(null, new ModifiableSolrParams());
+    SolrQueryResponse rsp = new SolrQueryResponse();
+    ResponseBuilder   rb = new ResponseBuilder(req, rsp, 
+                                               new ArrayList<SearchComponent>());
+    SolrRequestInfo   reqInfo = new SolrRequestInfo(req, rsp);
+    reqInfo.setResponseBuilder(rb);
+    
+    StructQueryVer3 main = createQuery("@a:np ~b:vp"), 
+                    filter = createQuery("@a:pp"),
+                    other = createQuery("@c:np ~d:np");
+    BooleanQuery    root = new BooleanQuery();
+    
+    root.add(main, BooleanClause.Occur.MUST);
+    root.add(createQuery("@d:np"), BooleanClause.Occur.SHOULD);
+    rb.setQuery(root);
+    rb.setFilters(Arrays.<Query>asList(filter));
+    
+    assertNull(StructQueryRequestState.get(reqInfo, false));
+    
+    StructQueryRequestState state = StructQueryRequestState.get(reqInfo, true);
+    assertSame(state, StructQueryRequestState.get(reqInfo, false));
+    assertSame(state, req.getContext().get(StructQueryRequestState.CONTEXT_KEY));
+    
+    QueryTimeBudget budget = new QueryTimeBudget(100);
+    state.getQueryState(main, true).setTimeBudget(budget);
+    // the state is shared by equal queries
+    assertSame(budget, 
+               state.getQueryState(createQuery("@a:np ~b:vp"), false).getTimeBudget());
+    assertNull(state.getQueryState(other, false));
+    
+    assertTrue(state.isInMainQuery(main));
+    assertTrue(state.isInMainQuery(createQuery("@d:np")));
+    assertFalse(state.isInMainQuery(filter));
+    assertFalse(state.isInMainQuery(other));
+  }
+  
+  @Test
+  public void testScoreSortedMainQuery() throws SyntaxError {
+    SolrQueryRequest  req = new LocalSolrQueryRequest(null, new ModifiableSolrParams());
+    SolrQueryResponse rsp = new SolrQueryResponse();
+    ResponseBuilder   rb = new ResponseBuilder(req, rsp, 
+                                               new ArrayList<SearchComponent>());
+    
+    StructQueryVer3         main = createQuery("@a:np ~b:vp");
+    StructQueryRequestState state = new StructQueryRequestState(rb);
+    
+    rb.setQuery(new WrappedQuery(main));
+    // no sort specification means sorting by score
+    assertTrue(state.isScoreSortedMainQuery(main));
+    assertFalse(state.isScoreSortedMainQuery(createQuery("@c:np ~d:np")));
+    
+    rb.setSortSpec(new SortSpec(new Sort(SortField.FIELD_SCORE, 
+                                         new SortField("id", SortField.Type.STRING)), 
+                                10));
+    assertTrue(state.isScoreSortedMainQuery(main));
+    
+    rb.setSortSpec(new SortSpec(new Sort(new SortField("id", SortField.Type.STRING)), 
+                                10));
+    assertFalse(state.isScoreSortedMainQuery(main));
+    
+    rb.setSortSpec(new SortSpec(new Sort(new SortField(null, SortField.Type.SCORE, true)), 
+                                10));
+    assertFalse(state.isScoreSortedMainQuery(main));
+    
+    rb.setSortSpec(null);
+    rb.setNeedDocSet(true);
+    assertFalse(state.isScoreSortedMainQuery(main));
+    rb.setNeedDocSet(false);
+    
+    // a clause of the main query is not scored on its own
+    BooleanQuery root = new BooleanQuery();
+    root.add(main, BooleanClause.Occur.MUST);
+    root.add(createQuery("@d:np"), BooleanClause.Occur.SHOULD);
+    rb.setQuery(root);
+    assertTrue(state.isInMainQuery(main));
+    assertFalse(state.isScoreSortedMainQuery(main));
+    
+    assertFalse(new StructQueryRequestState(null).isScoreSortedMainQuery(main));
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import static org.junit.Assert.*;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Weight;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.junit.Test;
+
+/**
+ * 
+ * Testing aggregation of per-segment execution statistics.
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+public class StructQueryStatsTest {
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testReport() {
+    NamedList<Object> debugInfo = new SimpleOrderedMap<Object>();
+    StructQueryStats  stats = new StructQueryStats("a b", 3, debugInfo, -1);
+    
+    StructQueryStats.SegmentStats s0 = new StructQueryStats.SegmentStats();
+    s0.mCandDocQty = 5;
+    s0.mSpanQty = 2;
+    StructQueryStats.SegmentStats s2 = new StructQueryStats.SegmentStats();
+    s2.mCandDocQty = 1;
+    s2.mSpanQty = 7;
+    
+    stats.addSegment(2, s2);
+    stats.addSegment(0, s0);
+    stats.addSegment(0, s2); // ignored: the segment was reported already
+    assertEquals(0, debugInfo.size());
+    stats.addSegment(1, null); // no document can match
+    assertEquals(1, debugInfo.size());
+    
+    NamedList<Object> res = (NamedList<Object>) debugInfo.get("search");
+    assertEquals("a b", res.get("plan"));
+    
+    NamedList<Object> total = (NamedList<Object>) res.get("total");
+    assertEquals(6L, total.get("candidateDocs"));
+    assertEquals(9L, total.get("spans"));
+    assertEquals(0L, ((NamedList<Object>) res.get("segment1")).get("spans"));
+    assertEquals(5L, ((NamedList<Object>) res.get("segment0")).get("candidateDocs"));
+    assertEquals(true, res.get("complete"));
+    
+    stats.flush(); // reported already
+    assertEquals(1, debugInfo.size());
+  }
+  
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testFlush() {
+    NamedList<Object> debugInfo = new SimpleOrderedMap<Object>();
+    StructQueryStats  stats = new StructQueryStats("a b", 3, debugInfo, -1);
+    
+    stats.flush(); // no segment was searched
+    assertEquals(0, debugInfo.size());
+    
+    StructQueryStats.SegmentStats s1 = new StructQueryStats.SegmentStats();
+    s1.mCandDocQty = 4;
+    stats.addSegment(1, s1);
+    // e.g., the time budget was exceeded: other segments aren't searched
+    stats.close();
+    assertEquals(1, debugInfo.size());
+    
+    NamedList<Object> res = (NamedList<Object>) debugInfo.get("search");
+    assertEquals(false, res.get("complete"));
+    assertEquals(4L, ((NamedList<Object>) res.get("total")).get("candidateDocs"));
+    assertNotNull(res.get("segment1"));
+    assertNull(res.get("segment0"));
+    
+    stats.addSegment(0, null);
+    stats.addSegment(2, null);
+    assertEquals(1, debugInfo.size());
+  }
+  
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testPartialScorer() throws Exception {
+    DirectoryReader   reader = DirectoryReader.open(StructQueryTestIndex.create());
+    IndexSearcher     searcher = new IndexSearcher(reader);
+    NamedList<Object> debugInfo = new SimpleOrderedMap<Object>();
+    StructQueryStats  stats = new StructQueryStats("a b", 
+                                         reader.leaves().size(), debugInfo, -1);
+    
+    Weight weight = searcher.createNormalizedWeight(
+        StructQueryTestIndex.createQuery("@a:np ~b:w1 #covers(a,b)", 60, null));
+    AtomicReaderContext context = reader.leaves().get(0);
+    StructScorerVer3    scorer = (StructScorerVer3) weight.scorer(context, 
+                             true, false, context.reader().getLiveDocs());
+    
+    scorer.setStats(stats, context.ord);
+    // e.g., the query is a required clause of a conjunction, which ends early
+    assertTrue(scorer.nextDoc() != DocIdSetIterator.NO_MORE_DOCS);
+    stats.flush();
+    assertEquals(1, debugInfo.size());
+    
+    NamedList<Object> res = (NamedList<Object>) debugInfo.get("search");
+    assertEquals(false, res.get("complete"));
+    NamedList<Object> segm = (NamedList<Object>) res.get("segment0");
+    assertTrue((Long) segm.get("candidateDocs") > 0);
+    assertTrue((Long) segm.get("spans") > 0);
+    
+    // the exhausted scorer does not report again
+    while (scorer.nextDoc() != DocIdSetIterator.NO_MORE_DOCS);
+    assertEquals(1, debugInfo.size());
+    reader.close();
+  }
+}
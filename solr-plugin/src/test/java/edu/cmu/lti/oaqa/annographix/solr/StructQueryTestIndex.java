@@ -0,0 +1,242 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.LowerCaseFilter;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.lucene.analysis.payloads.DelimitedPayloadTokenFilter;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+
+/**
+ * A small annotated index shared by tests that evaluate structured 
+ * queries. The index is generated randomly, but it is the same in
+ * each run: it has several segments and deleted documents.
+ * 
+ * <p>Each document consists of sentences (annotation <b>sent</b>), 
+ * which contain phrases (annotations <b>np</b> and <b>vp</b>). 
+ * Phrases contain tokens (annotation <b>tok</b>), whose parent is 
+ * either the phrase or the sentence. Words are <b>w0</b>, ..., <b>w5</b>.
+ * Annotations are encoded using {@link AnnotEncoderVer3}.</p>
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+public class StructQueryTestIndex {
+  public static final String ID_FIELD = "id";
+  public static final String TEXT_FIELD = "text4annot";
+  public static final String ANNOT_FIELD = "annotation";
+  
+  private static final Version LUCENE_VERSION = Version.LUCENE_46;
+  private static final int     DOC_QTY = 40;
+  private static final int     SEED = 1;
+  
+  /**
+   * Creates the index.
+   * 
+   * @return a directory with the index.
+   * @throws IOException
+   */
+  public static Directory create() throws IOException {
+    Analyzer textAnalyzer = new Analyzer() {
+      @Override
+      protected TokenStreamComponents createComponents(String fieldName, 
+                                                       Reader reader) {
+        Tokenizer tokenizer = new WhitespaceTokenizer(LUCENE_VERSION, reader);
+        return new TokenStreamComponents(tokenizer, 
+                          new LowerCaseFilter(LUCENE_VERSION, tokenizer));
+      }
+    };
+    Analyzer annotAnalyzer = new Analyzer() {
+      @Override
+      protected TokenStreamComponents createComponents(String fieldName, 
+                                                       Reader reader) {
+        Tokenizer tokenizer = new WhitespaceTokenizer(LUCENE_VERSION, reader);
+        return new TokenStreamComponents(tokenizer, 
+                          new DelimitedPayloadTokenFilter(tokenizer, 
+                                                          UtilConst.PAYLOAD_CHAR,
+                                                          new AnnotEncoderVer3()));
+      }
+    };
+    HashMap<String, Analyzer> fieldAnalyzers = new HashMap<String, Analyzer>();
+    fieldAnalyzers.put(ANNOT_FIELD, annotAnalyzer);
+    
+    IndexWriterConfig config = new IndexWriterConfig(LUCENE_VERSION, 
+               new PerFieldAnalyzerWrapper(textAnalyzer, fieldAnalyzers));
+    // Several small segments
+    config.setMaxBufferedDocs(10);
+    
+    FieldType textFieldType = new FieldType(TextField.TYPE_NOT_STORED);
+    textFieldType.setIndexOptions(
+                  FieldInfo.IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS);
+    textFieldType.freeze();
+    
+    Directory   dir = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(dir, config);
+    Random      rand = new Random(SEED);
+    
+    for (int docId = 0; docId < DOC_QTY; ++docId) {
+      StringBuilder     text = new StringBuilder();
+      ArrayList<int[]>  annots = new ArrayList<int[]>();
+      ArrayList<String> labels = new ArrayList<String>();
+      
+      int sentQty = 1 + rand.nextInt(4);
+      for (int sentId = 0; sentId < sentQty; ++sentId) {
+        int wordQty = 2 + rand.nextInt(8);
+        int wordStart[] = new int[wordQty], wordEnd[] = new int[wordQty];
+        
+        for (int k = 0; k < wordQty; ++k) {
+          wordStart[k] = text.length();
+          text.append("w" + rand.nextInt(6));
+          wordEnd[k] = text.length();
+          text.append(' ');
+        }
+        int sentAnnotId = addAnnot(annots, labels, "sent", 
+                                   wordStart[0], wordEnd[wordQty - 1], -1);
+        
+        int phraseQty = rand.nextInt(3);
+        for (int p = 0; p < phraseQty; ++p) {
+          int first = rand.nextInt(wordQty);
+          int last = first + rand.nextInt(wordQty - first);
+          int phraseAnnotId = addAnnot(annots, labels, 
+                                       rand.nextBoolean() ? "np" : "vp", 
+                                       wordStart[first], wordEnd[last], 
+                                       sentAnnotId);
+          
+          int tokQty = rand.nextInt(3);
+          for (int t = 0; t < tokQty; ++t) {
+            int k = first + rand.nextInt(last - first + 1);
+            addAnnot(annots, labels, "tok", wordStart[k], wordEnd[k], 
+                     rand.nextInt(3) == 0 ? sentAnnotId : phraseAnnotId);
+          }
+        }
+        text.append(". ");
+      }
+      
+      Document doc = new Document();
+      doc.add(new StringField(ID_FIELD, "d" + docId, Field.Store.YES));
+      doc.add(new Field(TEXT_FIELD, text.toString(), textFieldType));
+      doc.add(new TextField(ANNOT_FIELD, createAnnotText(annots, labels), 
+                            Field.Store.NO));
+      writer.addDocument(doc);
+      
+      if (docId % 15 == 7) {
+        writer.deleteDocuments(new Term(ID_FIELD, "d" + rand.nextInt(docId + 1)));
+      }
+    }
+    writer.close();
+    
+    return dir;
+  }
+  
+  /**
+   * Creates a structured query for the index.
+   * 
+   * @param text              a query text.
+   * @param span              a maximum span size.
+   * @param coverAnnotLabel   a label of the covering annotation, or null.
+   * @return a query.
+   * @throws Exception
+   */
+  public static StructQueryVer3 createQuery(String text, int span, 
+                                            String coverAnnotLabel) 
+                                            throws Exception {
+    return createQuery(text, span, coverAnnotLabel, 
+                       UtilConst.DEFAULT_MAX_SPAN_CHECK_ITER);
+  }
+  
+  /**
+   * Creates a structured query for the index.
+   * 
+   * @param text              a query text.
+   * @param span              a maximum span size.
+   * @param coverAnnotLabel   a label of the covering annotation, or null.
+   * @param maxSpanCheckIter  a maximum number of iterations to check 
+   *                          constraints of a span with cycles.
+   * @return a query.
+   * @throws Exception
+   */
+  public static StructQueryVer3 createQuery(String text, int span, 
+                                            String coverAnnotLabel,
+                                            int maxSpanCheckIter) 
+                                            throws Exception {
+    return new StructQueryVer3(text, span, coverAnnotLabel, 
+                               TEXT_FIELD, ANNOT_FIELD,
+                               maxSpanCheckIter,
+                               UtilConst.PAYLOAD_VERSION_3, false, 0);
+  }
+  
+  private static int addAnnot(ArrayList<int[]> annots, 
+                              ArrayList<String> labels,
+                              String label, int start, int end, int parentId) {
+    int id = annots.size();
+    annots.add(new int[]{start, end, id, parentId});
+    labels.add(label);
+    return id;
+  }
+  
+  /**
+   * Creates a text of the annotation field: annotations are 
+   * sorted by the start offset, see {@link AnnotEncoderVer3}.
+   */
+  private static String createAnnotText(ArrayList<int[]> annots, 
+                                        final ArrayList<String> labels) {
+    ArrayList<int[]> sorted = new ArrayList<int[]>(annots);
+    Collections.sort(sorted, new Comparator<int[]>() {
+      @Override
+      public int compare(int[] a, int[] b) {
+        if (a[0] != b[0]) return a[0] - b[0];
+        return (a[1] - a[0]) - (b[1] - b[0]);
+      }
+    });
+    
+    StringBuilder res = new StringBuilder();
+    for (int[] e : sorted) {
+      res.append(labels.get(e[2]));
+      res.append(UtilConst.PAYLOAD_CHAR);
+      res.append(e[0]);
+      res.append(UtilConst.PAYLOAD_ID_SEP_CHAR);
+      res.append(e[1]);
+      res.append(UtilConst.PAYLOAD_ID_SEP_CHAR);
+      res.append(e[2]);
+      res.append(UtilConst.PAYLOAD_ID_SEP_CHAR);
+      res.append(e[3]);
+      res.append(' ');
+    }
+    return res.toString();
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * 
+ * Testing that the two-phase iteration of {@link StructScorerVer3}, i.e.,
+ * {@link StructScorerVer3#approximation()} followed by 
+ * {@link StructScorerVer3#matches()}, finds the same documents, 
+ * frequencies, and scores as {@link StructScorerVer3#advance(int)}.
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+public class StructScorerApproximationTest {
+  @BeforeClass
+  public static void setUp() throws IOException {
+    mReader = DirectoryReader.open(StructQueryTestIndex.create());
+    mSearcher = new IndexSearcher(mReader);
+    mSearcher.setSimilarity(new BM25Similarity());
+  }
+  
+  @AfterClass
+  public static void tearDown() throws IOException {
+    mReader.close();
+  }
+  
+  @Test
+  public void testNextDoc() throws Exception {
+    checkAllSegments(1);
+  }
+  
+  @Test
+  public void testAdvance() throws Exception {
+    checkAllSegments(3);
+  }
+  
+  private void checkAllSegments(int step) throws Exception {
+    for (String query : QUERIES) {
+      for (String coverAnnotLabel : new String[] {null, "sent"}) {
+        int matchQty = 0;
+        for (AtomicReaderContext context : mReader.leaves()) {
+          matchQty += checkSegment(query, coverAnnotLabel, context, step);
+        }
+        assertTrue(query + " cover: " + coverAnnotLabel, matchQty > 0);
+      }
+    }
+  }
+  
+  /**
+   * Compares matches found by the scorer with matches found by its 
+   * approximation, which are verified using 
+   * {@link StructScorerVer3#matches()}. 
+   * 
+   * @param step    each target of advance() is at least this
+   *                larger than the previous document.
+   * @return the number of matches.
+   */
+  private int checkSegment(String queryText, String coverAnnotLabel,
+                           AtomicReaderContext context, int step) 
+                           throws Exception {
+    ArrayList<String> expMatches = new ArrayList<String>();
+    ArrayList<String> matches = new ArrayList<String>();
+    
+    StructScorerVer3 scorer = createScorer(queryText, coverAnnotLabel, context);
+    if (scorer == null) return 0;
+    for (int doc = scorer.advance(0); 
+         doc != DocIdSetIterator.NO_MORE_DOCS;
+         doc = scorer.advance(doc + step)) {
+      expMatches.add(doc + ":" + scorer.freq() + ":" + scorer.score());
+    }
+    
+    scorer = createScorer(queryText, coverAnnotLabel, context);
+    DocIdSetIterator approx = scorer.approximation();
+    for (int doc = approx.advance(0); 
+         doc != DocIdSetIterator.NO_MORE_DOCS;) {
+      if (scorer.matches()) {
+        matches.add(doc + ":" + scorer.freq() + ":" + scorer.score());
+        doc = approx.advance(doc + step);
+      } else {
+        doc = approx.nextDoc();
+      }
+    }
+    
+    assertEquals(queryText + " cover: " + coverAnnotLabel + 
+                 " segment: " + context.ord, expMatches, matches);
+    return matches.size();
+  }
+  
+  private StructScorerVer3 createScorer(String queryText, 
+                                        String coverAnnotLabel,
+                                        AtomicReaderContext context) 
+                                        throws Exception {
+    Weight weight = mSearcher.createNormalizedWeight(
+                   StructQueryTestIndex.createQuery(queryText, 40, coverAnnotLabel));
+    return (StructScorerVer3) weight.scorer(context, true, false, 
+                                            context.reader().getLiveDocs());
+  }
+  
+  /** The label sent is dense: it occurs in every document. */
+  private static final String QUERIES[] = {
+    "@a:np @b:tok #parent(a,b)",
+    "@a:sent @b:vp @c:tok #parent(a,b) #parent(b,c)",
+    "@a:np ~b:w1 #covers(a,b)",
+    "@a:sent @b:np ~c:w2 #covers(a,b) #covers(b,c)",
+    "~a:w1 ~b:w2 ~c:w3"
+  };
+  
+  private static DirectoryReader mReader;
+  private static IndexSearcher   mSearcher;
+}
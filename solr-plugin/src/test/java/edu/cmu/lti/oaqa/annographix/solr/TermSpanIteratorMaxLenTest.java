@@ -0,0 +1,113 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import edu.cmu.lti.oaqa.annographix.solr.StructQueryParseVer3.ConstraintType;
+import edu.cmu.lti.oaqa.annographix.solr.StructQueryParseVer3.FieldType;
+
+/**
+ * 
+ * Testing spans of a limited length: the span found when one
+ * of postings runs out of elements should be kept.
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+public class TermSpanIteratorMaxLenTest {
+  /**
+   * One document (5) with elements: start offsets are given, 
+   * each element has length 5.
+   */
+  private OnePostStateBase createPost(int compId, int ... startOffsets) 
+      throws IOException {
+    int qty = startOffsets.length;
+    int endOffsets[] = new int[qty], ids[] = new int[qty], parentIds[] = new int[qty];
+    
+    for (int i = 0; i < qty; ++i) {
+      endOffsets[i] = startOffsets[i] + 5;
+      ids[i] = i + 1;
+      parentIds[i] = -1;
+    }
+    AnnotColumns cols = new AnnotColumns(new int[]{5}, new int[]{0, qty},
+                                         startOffsets, endOffsets, 
+                                         ids, parentIds);
+    OnePostStateBase res = 
+        OnePostStateBase.createPost(new CachedAnnotPostings(cols, null), "np", 
+                                    FieldType.FIELD_ANNOTATION,
+                                    0, 0, compId,
+                                    UtilConst.PAYLOAD_VERSION_3, 0);
+    res.setConstraints(new ArrayList<ConstraintType>(), 
+                       new ArrayList<OnePostStateBase>());
+    return res;
+  }
+  
+  private TermSpanIteratorMaxLen createIterator(int maxSpanLen, 
+                                                OnePostStateBase ... posts) 
+      throws IOException {
+    for (int i = 0; i < posts.length; ++i) posts[i].setSortIndex(i);
+    for (OnePostStateBase post : posts) {
+      post.buildConstraintIndex(posts);
+      assertEquals(5, post.advance(0));
+      post.readDocElements();
+    }
+    TermSpanIteratorMaxLen res = new TermSpanIteratorMaxLen(posts, maxSpanLen, 1000);
+    res.initSpanIteration();
+    return res;
+  }
+  
+  @Test
+  public void testSingleElement() throws IOException {
+    // A single occurrence of a single-term query
+    TermSpanIteratorMaxLen it = createIterator(10, createPost(0, 7));
+    
+    assertTrue(it.nextSpan());
+    assertTrue(it.checkSpanConstraints());
+    assertEquals(7, it.getMatchStartOffset());
+    assertFalse(it.nextSpan());
+  }
+  
+  @Test
+  public void testLastSpan() throws IOException {
+    /*
+     * The only span containing both elements starts at the 
+     * last element of the first posting. 
+     */
+    TermSpanIteratorMaxLen it = createIterator(10, 
+                                               createPost(0, 0, 30),
+                                               createPost(1, 31));
+    assertTrue(it.nextSpan());
+    assertTrue(it.checkSpanConstraints());
+    assertEquals(30, it.getMatchStartOffset());
+    assertEquals(36, it.getMatchEndOffset());
+    assertFalse(it.nextSpan());
+  }
+  
+  @Test
+  public void testNoSpan() throws IOException {
+    // Elements are too far from each other
+    TermSpanIteratorMaxLen it = createIterator(10, 
+                                               createPost(0, 0, 30),
+                                               createPost(1, 50));
+    assertFalse(it.nextSpan());
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import edu.cmu.lti.oaqa.annographix.solr.StructQueryParseVer3.ConstraintType;
+import edu.cmu.lti.oaqa.annographix.solr.StructQueryParseVer3.FieldType;
+
+/**
+ * 
+ * Testing constraints of a component that is not a tree: a phrase must be
+ * both the parent of a token and cover it, i.e., #parent(a,b) #covers(a,b).
+ * Domains of such components can be arc consistent without a solution,
+ * so elements have to be enumerated. 
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+public class TermSpanIteratorNonTreeTest {
+  /**
+   * Each phrase covers a token whose parent is the other phrase: 
+   * domains are arc consistent, but there is no solution.
+   */
+  @Test
+  public void testNoSolution() throws IOException {
+    TermSpanIterator it = createIterator(UtilConst.DEFAULT_MAX_SPAN_CHECK_ITER,
+                                         new int[]{0, 2}, new int[]{20, 1});
+    
+    assertFalse(hasMatch(it));
+    assertEquals(0, it.getSpanCheckLimitQty());
+  }
+  
+  /**
+   * The same as {@link #testNoSolution()}, but the first phrase 
+   * also has a child token, which it covers.
+   */
+  @Test
+  public void testSolution() throws IOException {
+    TermSpanIterator it = createIterator(UtilConst.DEFAULT_MAX_SPAN_CHECK_ITER,
+                                         new int[]{0, 2}, new int[]{4, 1}, 
+                                         new int[]{20, 1});
+    
+    assertTrue(hasMatch(it));
+    assertEquals(0, it.getSpanCheckLimitQty());
+  }
+  
+  /**
+   * The same as {@link #testSolution()}, but a solution cannot be found
+   * in one iteration: the limit is hit (in each span).
+   */
+  @Test
+  public void testMaxIter() throws IOException {
+    TermSpanIterator it = createIterator(1,
+                                         new int[]{0, 2}, new int[]{4, 1}, 
+                                         new int[]{20, 1});
+    
+    assertFalse(hasMatch(it));
+    assertTrue(it.getSpanCheckLimitQty() > 0);
+  }
+  
+  private static boolean hasMatch(TermSpanIterator it) throws IOException {
+    while (it.nextSpan()) {
+      if (it.checkSpanConstraints()) return true;
+    }
+    return false;
+  }
+  
+  /**
+   * Creates an iterator over one document (5) with two phrases 
+   * [0,10] (id 1) and [20,30] (id 2), as well as given tokens.
+   * 
+   * @param maxSpanCheckIter  a maximum number of iterations.
+   * @param tokens            tokens (sorted by start offsets): start offsets 
+   *                          and parent ids, each token has length 5.
+   */
+  private static TermSpanIterator createIterator(int maxSpanCheckIter, 
+                                                 int[] ... tokens) 
+                                                 throws IOException {
+    int qty = tokens.length;
+    int startOffsets[] = new int[qty], endOffsets[] = new int[qty];
+    int ids[] = new int[qty], parentIds[] = new int[qty];
+    
+    for (int i = 0; i < qty; ++i) {
+      startOffsets[i] = tokens[i][0];
+      endOffsets[i] = tokens[i][0] + 5;
+      ids[i] = i + 3;
+      parentIds[i] = tokens[i][1];
+    }
+    OnePostStateBase phrase = createPost("np", 
+                                new AnnotColumns(new int[]{5}, new int[]{0, 2},
+                                                 new int[]{0, 20}, 
+                                                 new int[]{10, 30},
+                                                 new int[]{1, 2},
+                                                 new int[]{-1, -1}));
+    OnePostStateBase token = createPost("tok", 
+                                new AnnotColumns(new int[]{5}, new int[]{0, qty},
+                                                 startOffsets, endOffsets, 
+                                                 ids, parentIds));
+    
+    ArrayList<ConstraintType>   constrType = new ArrayList<ConstraintType>();
+    ArrayList<OnePostStateBase> constrNode = new ArrayList<OnePostStateBase>();
+    
+    token.setConstraints(constrType, constrNode);
+    constrType.add(ConstraintType.CONSTRAINT_PARENT);
+    constrNode.add(token);
+    constrType.add(ConstraintType.CONSTRAINT_CONTAINS);
+    constrNode.add(token);
+    phrase.setConstraints(constrType, constrNode);
+    
+    OnePostStateBase posts[] = new OnePostStateBase[]{phrase, token};
+    
+    for (int i = 0; i < posts.length; ++i) posts[i].setSortIndex(i);
+    for (OnePostStateBase post : posts) {
+      post.buildConstraintIndex(posts);
+      assertEquals(5, post.advance(0));
+      post.readDocElements();
+    }
+    TermSpanIterator res = new TermSpanIteratorMaxLen(posts, 100, 
+                                                      maxSpanCheckIter);
+    res.initSpanIteration();
+    return res;
+  }
+  
+  private static OnePostStateBase createPost(String token, AnnotColumns cols) {
+    return OnePostStateBase.createPost(new CachedAnnotPostings(cols, null), token, 
+                                       FieldType.FIELD_ANNOTATION,
+                                       1, 0, 0,
+                                       UtilConst.PAYLOAD_VERSION_3, 0);
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * 
+ * Testing the tracker of top-k scores.
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+public class TopScoreThresholdTest {
+  @Test
+  public void testSmall() {
+    TopScoreThreshold t = new TopScoreThreshold(3);
+    
+    assertEquals(Float.NEGATIVE_INFINITY, t.getThreshold(), 0);
+    t.addScore(5);
+    t.addScore(1);
+    assertEquals(Float.NEGATIVE_INFINITY, t.getThreshold(), 0);
+    t.addScore(3);
+    assertEquals(1, t.getThreshold(), 0);
+    t.addScore(0.5f);
+    assertEquals(1, t.getThreshold(), 0);
+    t.addScore(4);
+    assertEquals(3, t.getThreshold(), 0);
+    t.addScore(10);
+    assertEquals(4, t.getThreshold(), 0);
+  }
+  
+  @Test
+  public void testRandom() {
+    Random    r = new Random(0);
+    
+    for (int k = 1; k <= 10; ++k) {
+      TopScoreThreshold t = new TopScoreThreshold(k);
+      float[]           scores = new float[100];
+      
+      for (int i = 0; i < scores.length; ++i) {
+        scores[i] = r.nextInt(20); // let's have some ties
+        t.addScore(scores[i]);
+        
+        if (i + 1 >= k) {
+          float[] sorted = Arrays.copyOf(scores, i + 1);
+          Arrays.sort(sorted);
+          assertEquals(sorted[i + 1 - k], t.getThreshold(), 0);
+        }
+      }
+    }
+  }
+  
+  @Test
+  public void testCollectedDocQty() {
+    // Solr rounds the number of requested documents up to the window size
+    assertEquals(20, StructRetrQParserVer3.getCollectedDocQty(0, 10, 20));
+    assertEquals(20, StructRetrQParserVer3.getCollectedDocQty(10, 10, 20));
+    assertEquals(40, StructRetrQParserVer3.getCollectedDocQty(15, 10, 20));
+    assertEquals(25, StructRetrQParserVer3.getCollectedDocQty(15, 10, 0));
+    assertEquals(Integer.MAX_VALUE, 
+                 StructRetrQParserVer3.getCollectedDocQty(10, Integer.MAX_VALUE, 20));
+  }
+}
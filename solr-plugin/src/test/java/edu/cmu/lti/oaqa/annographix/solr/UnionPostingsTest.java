@@ -0,0 +1,94 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.annographix.solr;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.junit.Test;
+
+import edu.cmu.lti.oaqa.annographix.solr.StructQueryParseVer3.FieldType;
+
+/**
+ * 
+ * Testing unions of postings of alternative lexical entries.
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+public class UnionPostingsTest {
+  /**
+   * The first alternative is {@link AnnotColumnsFixture#createColumns()}, 
+   * the second alternative is {@link AnnotColumnsFixture#createOtherColumns()}.
+   */
+  private UnionPostings createPostings() {
+    return new UnionPostings(new DocsEnum[] {
+                                  new CachedAnnotPostings(
+                                    AnnotColumnsFixture.createColumns(), null),
+                                  new CachedAnnotPostings(
+                                    AnnotColumnsFixture.createOtherColumns(), null) },
+                             new String[] {"np", "vp"},
+                             FieldType.FIELD_ANNOTATION,
+                             UtilConst.PAYLOAD_VERSION_3);
+  }
+  
+  @Test
+  public void testIteration() throws IOException {
+    UnionPostings post = createPostings();
+    
+    assertEquals(5, post.cost());
+    assertEquals(2, post.nextDoc());
+    assertEquals(2, post.freq());
+    assertEquals(5, post.nextDoc());
+    assertEquals(3, post.freq());
+    assertEquals(7, post.advance(6));
+    assertEquals(1, post.freq());
+    assertEquals(9, post.nextDoc());
+    assertEquals(DocIdSetIterator.NO_MORE_DOCS, post.nextDoc());
+    assertEquals(DocIdSetIterator.NO_MORE_DOCS, post.advance(100));
+  }
+  
+  @Test
+  public void testPostState() throws IOException {
+    OnePostStateBase  st = OnePostStateBase.createPost(createPostings(), "np|vp", 
+                                                       FieldType.FIELD_ANNOTATION,
+                                                       0, 0, 0,
+                                                       UtilConst.PAYLOAD_VERSION_3, 16);
+    assertTrue(st instanceof OnePostStateUnion);
+    assertEquals(5, st.getPostCost());
+    
+    assertEquals(5, st.advance(3));
+    st.readDocElements();
+    assertEquals(3, st.getQty());
+    // elements of both alternatives are merged by start offsets
+    assertEquals(0, st.getStartOffset(0));
+    assertEquals(2, st.getEndOffset(0));
+    assertEquals(2, st.getId(0));
+    assertEquals(3, st.getStartOffset(1));
+    assertEquals(8, st.getEndOffset(1));
+    assertEquals(1, st.getId(1));
+    assertEquals(4, st.getStartOffset(2));
+    assertEquals(3, st.getId(2));
+    
+    assertEquals(7, st.nextDoc());
+    st.readDocElements();
+    assertEquals(1, st.getQty());
+    assertEquals(6, st.getStartOffset(0));
+  }
+}